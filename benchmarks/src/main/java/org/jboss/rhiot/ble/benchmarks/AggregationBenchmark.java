@@ -0,0 +1,104 @@
+package org.jboss.rhiot.ble.benchmarks;
+
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.FrameEncoder;
+import org.jboss.rhiot.ble.common.EventsBucket;
+import org.jboss.rhiot.ble.common.EventsWindow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The EventsWindow aggregation of beacon mode events. Each event is decoded from a beacon_info frame as the scanner
+ * callback does, since the window keeps the BeaconInfo of the first event of each beacon, so addEvent includes the
+ * cost of DecodeBenchmark.newBeaconInfo. The event times advance so a bucket is emitted every eventsPerWindow events.
+ * The buckets are released as a consumer does, so the window reuses its tables rather than allocating one per window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregationBenchmark {
+    /** The number of distinct beacons advertising */
+    @Param({"100", "10000"})
+    int population;
+    @Param({"10000"})
+    int eventsPerWindow;
+
+    ByteBuffer frame;
+    EventsWindow window;
+    long begin;
+    long events;
+    int minor;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        window = new EventsWindow();
+        window.reset(1);
+        begin = window.getBegin();
+        frame = Fixtures.beaconFrame(0, begin);
+        events = 0;
+    }
+
+    @Benchmark
+    public EventsBucket addEvent() {
+        minor = minor + 1 == population ? 0 : minor + 1;
+        long time = begin + events * 1000 / eventsPerWindow;
+        events ++;
+        FrameEncoder.encodeBeacon(frame, Fixtures.UUID, false, 1, FrameEncoder.IBEACON_CODE, FrameEncoder.IBEACON_MANUFACTURER,
+            201, minor, -59, -59, -72, time);
+        EventsBucket bucket = window.addEvent(new BeaconInfo(frame), false);
+        if(bucket != null)
+            bucket.release();
+        return bucket;
+    }
+
+    /**
+     * The rollover of a window holding one event from each beacon of the population
+     */
+    @State(Scope.Thread)
+    public static class FullWindow {
+        EventsWindow window;
+        EventsBucket bucket;
+
+        @Setup(Level.Invocation)
+        public void fill(AggregationBenchmark state) {
+            window = new EventsWindow();
+            window.reset(1);
+            long time = window.getBegin();
+            for (int n = 0; n < state.population; n++)
+                window.addEvent(new BeaconInfo(Fixtures.beaconFrame(n, time)), false);
+        }
+
+        /**
+         * Release the bucket outside of the measurement
+         */
+        @TearDown(Level.Invocation)
+        public void release() {
+            if(bucket != null)
+                bucket.release();
+            bucket = null;
+        }
+    }
+
+    @Benchmark
+    public EventsBucket getCurrentBucket(FullWindow full) {
+        full.bucket = full.window.getCurrentBucket();
+        return full.bucket;
+    }
+}
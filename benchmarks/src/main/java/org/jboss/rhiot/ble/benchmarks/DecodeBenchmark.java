@@ -0,0 +1,106 @@
+package org.jboss.rhiot.ble.benchmarks;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.AdStructure;
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.GAP_UUIDs;
+import org.jboss.rhiot.ble.bluez.HCIDump;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decode of the native frames done on the scanner thread for every event: the beacon_info freeze, the eager
+ * and buffer backed ad_data_inline decode, the AD structure lookup and the RHIoTTag TLM parse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    ByteBuffer beaconFrame;
+    ByteBuffer iBeaconAdvert;
+    ByteBuffer tagAdvert;
+    BeaconInfo beaconInfo;
+    AdEventInfo tagInfo;
+    AdEventInfo bufferTagInfo;
+
+    @Setup
+    public void setup() {
+        long now = System.currentTimeMillis();
+        beaconFrame = Fixtures.beaconFrame(42, now);
+        iBeaconAdvert = Fixtures.iBeaconAdvertFrame(now);
+        tagAdvert = Fixtures.tagAdvertFrame(now);
+        beaconInfo = new BeaconInfo(beaconFrame);
+        tagInfo = new AdEventInfo();
+        HCIDump.freezeAdEventInfo(tagInfo, tagAdvert);
+        bufferTagInfo = new AdEventInfo(tagAdvert);
+    }
+
+    @Benchmark
+    public BeaconInfo freezeBeaconInfo() {
+        HCIDump.freezeBeaconInfo(beaconInfo, beaconFrame);
+        return beaconInfo;
+    }
+
+    @Benchmark
+    public BeaconInfo newBeaconInfo() {
+        return new BeaconInfo(beaconFrame);
+    }
+
+    @Benchmark
+    public AdEventInfo freezeAdEventInfo() {
+        AdEventInfo info = new AdEventInfo();
+        HCIDump.freezeAdEventInfo(info, tagAdvert);
+        return info;
+    }
+
+    @Benchmark
+    public AdEventInfo bufferBackedAdEventInfo() {
+        return new AdEventInfo(tagAdvert);
+    }
+
+    @Benchmark
+    public AdStructure getADSOfType() {
+        return tagInfo.getADSOfType(GAP_UUIDs.ServiceData);
+    }
+
+    @Benchmark
+    public AdStructure bufferBackedGetADSOfType() {
+        return bufferTagInfo.getADSOfType(GAP_UUIDs.ServiceData);
+    }
+
+    @Benchmark
+    public RHIoTTag parseTag() {
+        return new RHIoTTag(Fixtures.TAG_DATA);
+    }
+
+    /**
+     * The full general mode path of the default advert callback for an RHIoTTag advert
+     */
+    @Benchmark
+    public RHIoTTag createTag() {
+        return RHIoTTag.create(new AdEventInfo(tagAdvert));
+    }
+
+    /**
+     * The full general mode path for an advert that is not an RHIoTTag
+     */
+    @Benchmark
+    public RHIoTTag createTagFromIBeacon() {
+        return RHIoTTag.create(new AdEventInfo(iBeaconAdvert));
+    }
+}
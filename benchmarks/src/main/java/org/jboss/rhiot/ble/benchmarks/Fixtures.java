@@ -0,0 +1,113 @@
+package org.jboss.rhiot.ble.benchmarks;
+
+import org.jboss.rhiot.ble.bluez.FrameEncoder;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.ble.bluez.SyntheticEventSource;
+import org.jboss.rhiot.ble.common.Beacon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Builds the frames the benchmarks decode, in the layout and byte order the native scanner writes on the gateways.
+ * The adverts carry the AD structures seen from real devices: the flags, then either the iBeacon manufacturer data
+ * or the RHIoTTag service uuid list and TLM service data.
+ */
+public class Fixtures {
+    public static final String UUID = "DAF246CEF20311E4B116123B93F75CBA";
+    public static final String SCANNER_ID = "Room201";
+    /** The size of the native buffer used by a general scanner */
+    public static final int FRAME_SIZE = 512;
+
+    /** The TLM service data of an RHIoTTag, as passed to RHIoTTag(byte[]) */
+    public static final byte[] TAG_DATA = {
+        (byte) 0xAA, (byte) 0xFE, 0x20,
+        // version, battery mV, temperature 8.8
+        0, 0x0B, (byte) 0xB8, 22, (byte) 0x80,
+        // advCnt, secCnt
+        0, 0, 0x01, 0x2C, 0, 0, 0x2E, (byte) 0xE0,
+        // keys, lux
+        0x01, 0x01, (byte) 0xF4
+    };
+
+    private static final byte[] BDADDR = {0x31, 0x27, (byte) 0xA8, 0x12, 0x5A, (byte) 0xC0};
+
+    public static ByteBuffer allocFrame() {
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        return frame;
+    }
+
+    /**
+     * @return a beacon_info frame for an iBeacon with the given minor
+     */
+    public static ByteBuffer beaconFrame(int minor, long time) {
+        ByteBuffer frame = allocFrame();
+        int length = FrameEncoder.encodeBeacon(frame, UUID, false, 1, FrameEncoder.IBEACON_CODE,
+            FrameEncoder.IBEACON_MANUFACTURER, 201, minor, -59, -59, -72, time);
+        frame.limit(length);
+        return frame;
+    }
+
+    /**
+     * @return an ad_data_inline frame for an iBeacon advert
+     */
+    public static ByteBuffer iBeaconAdvertFrame(long time) {
+        byte[] uuid = SyntheticEventSource.uuidBytes(UUID);
+        byte[] ad = new byte[30];
+        int n = flags(ad);
+        ad[n++] = 26;
+        ad[n++] = (byte) 0xFF;
+        ad[n++] = (byte) FrameEncoder.IBEACON_MANUFACTURER;
+        ad[n++] = (byte) (FrameEncoder.IBEACON_MANUFACTURER >> 8);
+        ad[n++] = (byte) (FrameEncoder.IBEACON_CODE >> 8);
+        ad[n++] = (byte) FrameEncoder.IBEACON_CODE;
+        System.arraycopy(uuid, 0, ad, n, 16);
+        n += 16;
+        ad[n++] = 0;
+        ad[n++] = (byte) 201;
+        ad[n++] = 0;
+        ad[n++] = 42;
+        ad[n++] = (byte) -59;
+        return advertFrame(ad, n, time);
+    }
+
+    /**
+     * @return an ad_data_inline frame for an RHIoTTag advert
+     */
+    public static ByteBuffer tagAdvertFrame(long time) {
+        byte[] ad = new byte[31];
+        int n = flags(ad);
+        // Complete list of 16 bit service uuids
+        ad[n++] = 3;
+        ad[n++] = 0x03;
+        ad[n++] = RHIoTTag.SERVICE_DATA_PREFIX[0];
+        ad[n++] = RHIoTTag.SERVICE_DATA_PREFIX[1];
+        ad[n++] = (byte) (TAG_DATA.length + 1);
+        ad[n++] = 0x16;
+        System.arraycopy(TAG_DATA, 0, ad, n, TAG_DATA.length);
+        n += TAG_DATA.length;
+        return advertFrame(ad, n, time);
+    }
+
+    public static Beacon beacon(long time) {
+        Beacon beacon = new Beacon(SCANNER_ID, UUID, FrameEncoder.IBEACON_CODE, FrameEncoder.IBEACON_MANUFACTURER, 201, 42,
+            -59, -72, time);
+        beacon.setCalibratedPower(-59);
+        return beacon;
+    }
+
+    private static int flags(byte[] ad) {
+        ad[0] = 2;
+        ad[1] = 0x01;
+        ad[2] = 0x06;
+        return 3;
+    }
+
+    private static ByteBuffer advertFrame(byte[] ad, int length, long time) {
+        ByteBuffer frame = allocFrame();
+        int frameLength = FrameEncoder.encodeAdvert(frame, 1, BDADDR, 0, -68, time, ad, 0, length);
+        frame.limit(frameLength);
+        return frame;
+    }
+}
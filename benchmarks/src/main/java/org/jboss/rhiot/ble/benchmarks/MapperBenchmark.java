@@ -0,0 +1,55 @@
+package org.jboss.rhiot.ble.benchmarks;
+
+import org.jboss.rhiot.ble.beaconmaps.file.PropertiesMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The minor id to user lookup done for each beacon of an emitted bucket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MapperBenchmark {
+    @Param({"1000"})
+    int users;
+
+    PropertiesMapper mapper;
+    int minor;
+
+    @Setup
+    public void setup() {
+        StringBuilder mappings = new StringBuilder();
+        for (int n = 0; n < users; n++) {
+            if(n > 0)
+                mappings.append(',');
+            mappings.append(n).append("=user").append(n);
+        }
+        mapper = new PropertiesMapper(mappings.toString());
+    }
+
+    @Benchmark
+    public String lookupUser() {
+        minor = minor + 1 == users ? 0 : minor + 1;
+        return mapper.lookupUser(minor);
+    }
+
+    @Benchmark
+    public String lookupUnknownUser() {
+        return mapper.lookupUser(users + 1);
+    }
+}
@@ -0,0 +1,82 @@
+package org.jboss.rhiot.ble.benchmarks;
+
+import com.google.gson.Gson;
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.BeaconJsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary and JSON forms of a Beacon sent to the broker. gsonToJson is the reflective Gson serialization toJSON
+ * used before BeaconJsonWriter, and ndjsonBatch writes BATCH beacons as NDJSON into a reused ByteBuffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    static final int BATCH = 64;
+    Beacon beacon;
+    byte[] msg;
+    Gson gson;
+    BeaconJsonWriter ndjson;
+    ByteBuffer out;
+
+    @Setup
+    public void setup() throws IOException {
+        beacon = Fixtures.beacon(System.currentTimeMillis());
+        msg = beacon.toByteMsg();
+        gson = new Gson();
+        ndjson = new BeaconJsonWriter();
+        ndjson.setNewlineDelimited(true);
+        out = ByteBuffer.allocate(64 * 1024);
+    }
+
+    @Benchmark
+    public byte[] toByteMsg() throws IOException {
+        return beacon.toByteMsg();
+    }
+
+    @Benchmark
+    public Beacon fromByteMsg() throws IOException {
+        return Beacon.fromByteMsg(msg);
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return beacon.toJSON();
+    }
+
+    @Benchmark
+    public String toJSONSimple() {
+        return beacon.toJSONSimple();
+    }
+
+    @Benchmark
+    public String gsonToJson() {
+        return gson.toJson(beacon);
+    }
+
+    @Benchmark
+    public int ndjsonBatch() {
+        ndjson.reset();
+        for (int n = 0; n < BATCH; n++)
+            ndjson.write(beacon);
+        out.clear();
+        return ndjson.writeTo(out);
+    }
+}
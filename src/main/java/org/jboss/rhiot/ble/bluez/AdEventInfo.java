@@ -1,11 +1,20 @@
 package org.jboss.rhiot.ble.bluez;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 /**
  * Top level object for a general BLE advertising event. This gives the packet address, type, rssi, time and
  * the number of AdStructures found in the event msg.
+ *
+ * An AdEventInfo can either hold copies of the event data, as filled in by
+ * {@link HCIDump#freezeAdEventInfo(AdEventInfo, ByteBuffer)}, or be backed directly by the ad_data_inline frame in
+ * the native buffer as created by {@link #AdEventInfo(ByteBuffer)}. A buffer backed info indexes the AD structure
+ * offsets in a single pass, and {@link #getADSOfType(int)} and {@link AdStructure#startsWith(byte[])} read the
+ * buffer directly. Byte arrays are only created by getBDaddr() and getData(). A buffer backed info is only valid
+ * for the duration of the callback it is passed to, use {@link #copy()} to keep it.
  */
 public class AdEventInfo {
     /** The type of the bdaddr; 0 = Public, 1 = Random, other = Reserved */
@@ -20,6 +29,91 @@ public class AdEventInfo {
     long time;
     /** The advertising data structures in the packet */
     List<AdStructure> data;
+    /** The ad_data_inline frame for a buffer backed info */
+    private ByteBuffer buffer;
+    /** The offset of each ad_structure header in the buffer */
+    private int[] adsOffsets;
+    /** The lazily created buffer backed AdStructures */
+    private AdStructure[] adsViews;
+
+    public AdEventInfo() {
+    }
+
+    /**
+     * Create an info backed by the ad_data_inline frame starting at index 0 of the buffer. The fixed fields are read
+     * little endian regardless of the buffer order, and the AD structure offsets are indexed.
+     * @param buffer - the native buffer or a dispatch ring slot holding the frame
+     */
+    public AdEventInfo(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Reuse this info for the ad_data_inline frame starting at index 0 of the buffer, as the constructor does. Any
+     * bdaddr, data list or AdStructure views of the previous frame are discarded.
+     * @param buffer - the buffer holding the frame
+     * @return this info
+     */
+    AdEventInfo wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.bdaddr = null;
+        this.data = null;
+        this.adsViews = null;
+        this.bdaddr_type = buffer.get(HCIDump.ADI_bdaddr_type_OFFSET);
+        this.count = buffer.get(HCIDump.ADI_count_OFFSET) & 0xff;
+        this.rssi = getIntLE(buffer, HCIDump.ADI_rssi_OFFSET);
+        this.time = getLongLE(buffer, HCIDump.ADI_time_OFFSET);
+        if(adsOffsets == null || adsOffsets.length < count)
+            this.adsOffsets = new int[count];
+        int offset = HCIDump.ADI_data_OFFSET;
+        int limit = buffer.limit();
+        int found = 0;
+        // Accept a structure only if its header and data lie within the buffer, ignoring any truncated structures
+        while (found < count && offset + 2 <= limit) {
+            int length = buffer.get(offset) & 0xff;
+            if(offset + 2 + length > limit)
+                break;
+            adsOffsets[found ++] = offset;
+            offset += length + 2;
+        }
+        this.count = found;
+        return this;
+    }
+
+    static int getIntLE(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xff) | (buffer.get(offset + 1) & 0xff) << 8
+            | (buffer.get(offset + 2) & 0xff) << 16 | (buffer.get(offset + 3) & 0xff) << 24;
+    }
+
+    static long getLongLE(ByteBuffer buffer, int offset) {
+        return (getIntLE(buffer, offset) & 0xffffffffL) | ((long) getIntLE(buffer, offset + 4)) << 32;
+    }
+
+    /**
+     * @return true if this info reads from the native frame rather than holding copies of the event data
+     */
+    public boolean isBufferBacked() {
+        return buffer != null;
+    }
+
+    /**
+     * Create an info that holds copies of all the event data so it remains valid after the callback returns.
+     * @return a new info independent of the native buffer
+     */
+    public AdEventInfo copy() {
+        AdEventInfo copy = new AdEventInfo();
+        copy.bdaddr_type = bdaddr_type;
+        copy.bdaddr = getBDaddr().clone();
+        copy.count = count;
+        copy.rssi = rssi;
+        copy.time = time;
+        List<AdStructure> copyData = new ArrayList<>(count);
+        for(AdStructure ads : getData()) {
+            copyData.add(new AdStructure(ads.getType(), ads.getData().clone()));
+        }
+        copy.data = copyData;
+        return copy;
+    }
 
     public int getBdaddrType() {
         return bdaddr_type;
@@ -30,12 +124,30 @@ public class AdEventInfo {
     }
 
     public byte[] getBDaddr() {
+        if(bdaddr == null && buffer != null) {
+            byte[] addr = new byte[6];
+            for(int n = 0; n < 6; n ++)
+                addr[n] = buffer.get(HCIDump.ADI_bdaddr_OFFSET + n);
+            bdaddr = addr;
+        }
         return bdaddr;
     }
+
+    /**
+     * Get a byte of the address without copying the address
+     * @param index - 0-5 index into the address in its stored, reversed order
+     * @return the address byte
+     */
+    public byte getBDaddrByte(int index) {
+        if(bdaddr == null && buffer != null)
+            return buffer.get(HCIDump.ADI_bdaddr_OFFSET + index);
+        return bdaddr[index];
+    }
+
     public String getBDaddrAsString() {
         StringBuilder tmp = new StringBuilder();
-        for(int n = bdaddr.length-1; n >= 0; n --) {
-            tmp.append(String.format("%02X:", bdaddr[n]));
+        for(int n = 5; n >= 0; n --) {
+            tmp.append(String.format("%02X:", getBDaddrByte(n)));
         }
         tmp.setLength(tmp.length()-1);
         return tmp.toString();
@@ -69,7 +181,20 @@ public class AdEventInfo {
         this.time = time;
     }
 
+    /**
+     * Get the AD structures of the event. For a buffer backed info this creates the list and copies each
+     * structure's data on the first call.
+     * @return the advertising data structures in the packet
+     */
     public List<AdStructure> getData() {
+        if(data == null && buffer != null) {
+            ArrayList<AdStructure> adData = new ArrayList<>(count);
+            for(int i = 0; i < count; i ++) {
+                AdStructure view = getADS(i);
+                adData.add(new AdStructure(view.getType(), view.getData()));
+            }
+            data = adData;
+        }
         return data;
     }
 
@@ -79,6 +204,15 @@ public class AdEventInfo {
 
     public AdStructure getADSOfType(int type) {
         AdStructure ads = null;
+        if(buffer != null) {
+            for(int i = 0; i < count; i ++) {
+                if((buffer.get(adsOffsets[i] + 1) & 0xff) == type) {
+                    ads = getADS(i);
+                    break;
+                }
+            }
+            return ads;
+        }
         for(AdStructure test : data) {
             if(test.getType() == type) {
                 ads = test;
@@ -87,9 +221,26 @@ public class AdEventInfo {
         }
         return ads;
     }
+
+    /**
+     * Get the i-th AD structure, which for a buffer backed info is a view that does not copy the data
+     */
+    AdStructure getADS(int i) {
+        if(buffer == null)
+            return data.get(i);
+        if(adsViews == null)
+            adsViews = new AdStructure[count];
+        AdStructure ads = adsViews[i];
+        if(ads == null) {
+            ads = new AdStructure(buffer, adsOffsets[i]);
+            adsViews[i] = ads;
+        }
+        return ads;
+    }
+
     public String toString() {
         StringBuilder tmp = new StringBuilder(String.format("AdEventInfo(%s/%d): rssi=%d, time=%s\n", getBDaddrAsString(), bdaddr_type, rssi, new Date(time)));
-        for(AdStructure ads : data) {
+        for(AdStructure ads : getData()) {
             tmp.append('\t');
             tmp.append(ads);
             tmp.append('\n');
@@ -1,13 +1,22 @@
 package org.jboss.rhiot.ble.bluez;
 
+import java.nio.ByteBuffer;
+
 /**
  * The generic BLE AD structure used in advertising packets. The values for the type property are defined in:
  * https://www.bluetooth.com/specifications/assigned-numbers/generic-access-profile
+ *
+ * A structure created by a buffer backed AdEventInfo reads its data from the native frame, and only copies it
+ * into a byte[] when getData() is called.
  */
 public class AdStructure {
     int length;
     int type;
     byte data[];
+    /** The frame holding the structure data for a buffer backed structure */
+    private ByteBuffer buffer;
+    /** The offset of the structure data in the buffer */
+    private int dataOffset;
 
     public AdStructure(int type, byte[] data) {
         this.length = data.length;
@@ -15,6 +24,18 @@ public class AdStructure {
         this.data = data;
     }
 
+    /**
+     * Create a structure backed by the ad_structure at offset in the buffer
+     * @param buffer - the ad_data_inline frame
+     * @param offset - the offset of the ad_structure length byte
+     */
+    AdStructure(ByteBuffer buffer, int offset) {
+        this.length = buffer.get(offset) & 0xff;
+        this.type = buffer.get(offset + 1) & 0xff;
+        this.buffer = buffer;
+        this.dataOffset = offset + 2;
+    }
+
     public int getLength() {
         return length;
     }
@@ -32,6 +53,12 @@ public class AdStructure {
     }
 
     public byte[] getData() {
+        if(data == null && buffer != null) {
+            byte[] copy = new byte[length];
+            for(int n = 0; n < length; n ++)
+                copy[n] = buffer.get(dataOffset + n);
+            data = copy;
+        }
         return data;
     }
 
@@ -39,18 +66,31 @@ public class AdStructure {
         this.data = data;
     }
 
+    /**
+     * Get a data byte without copying the data
+     * @param index - index into the structure data
+     * @return the data byte
+     */
+    public byte getByte(int index) {
+        if(data == null && buffer != null)
+            return buffer.get(dataOffset + index);
+        return data[index];
+    }
+
     public String dataAsHexString() {
         StringBuilder hex = new StringBuilder();
-        for(byte b : data) {
-            hex.append(String.format("%02X", b));
+        for(int n = 0; n < length; n ++) {
+            hex.append(String.format("%02X", getByte(n)));
         }
         return hex.toString();
     }
 
     public boolean startsWith(byte[] prefix) {
+        if(prefix.length > length)
+            return false;
         boolean matches = true;
         for (int n = 0; n < prefix.length; n++) {
-            matches &= (data[n] == prefix[n]);
+            matches &= (getByte(n) == prefix[n]);
             if(!matches)
                 break;
         }
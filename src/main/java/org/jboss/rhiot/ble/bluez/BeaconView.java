@@ -0,0 +1,195 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable flyweight over a beacon_info frame that reads the fields directly from the buffer at the HCIDump
+ * struct offsets without copying. A callback can filter and aggregate on the view without allocating, and only
+ * materialize a Beacon or BeaconInfo for the events it keeps. The view is only valid for the duration of the
+ * callback since the underlying buffer is overwritten by the next event.
+ *
+ * @see IBeaconViewCallback
+ */
+public class BeaconView {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private ByteBuffer buffer;
+    private int scannerSequenceNo;
+
+    public BeaconView() {
+    }
+
+    public BeaconView(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Point the view at a new beacon_info frame
+     * @param buffer - buffer with the beacon_info frame starting at index 0
+     * @return this view
+     */
+    public BeaconView wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.scannerSequenceNo = 0;
+        return this;
+    }
+
+    /**
+     * Point the view at a new beacon_info frame numbered by the dispatching scanner
+     * @param buffer - buffer with the beacon_info frame starting at index 0
+     * @param scannerSequenceNo - the scanner's sequence number of the event, 0 if unassigned
+     * @return this view
+     */
+    public BeaconView wrap(ByteBuffer buffer, int scannerSequenceNo) {
+        this.buffer = buffer;
+        this.scannerSequenceNo = scannerSequenceNo;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of uuid chars in the frame
+     */
+    public int getUUIDLength() {
+        return UUIDCache.uuidLength(buffer, HCIDump.UUID_OFFSET);
+    }
+
+    /**
+     * @return a hash of the raw uuid chars, consistent for the same uuid across events
+     */
+    public int uuidHashCode() {
+        return UUIDCache.hash(buffer, HCIDump.UUID_OFFSET, getUUIDLength());
+    }
+
+    /**
+     * Compare the frame uuid to the ascii bytes of a uuid without allocating
+     * @param uuid - ascii bytes of the uuid as obtained from {@link #uuidBytes(String)}
+     * @return true if the frame uuid matches
+     */
+    public boolean uuidEquals(byte[] uuid) {
+        return UUIDCache.matches(uuid, buffer, HCIDump.UUID_OFFSET, getUUIDLength());
+    }
+
+    /**
+     * Get the uuid String through the shared UUIDCache, which does not allocate once the uuid has been seen.
+     * @return the proximity uuid
+     */
+    public String getUUID() {
+        return UUIDCache.DEFAULT.lookup(buffer, HCIDump.UUID_OFFSET, getUUIDLength());
+    }
+
+    public boolean isHeartbeat() {
+        return buffer.getInt(HCIDump.IS_HEARTBEAT_OFFSET) != 0;
+    }
+
+    public int getCount() {
+        return buffer.getInt(HCIDump.count_OFFSET);
+    }
+
+    public int getCode() {
+        return buffer.getInt(HCIDump.code_OFFSET);
+    }
+
+    public int getManufacturer() {
+        return buffer.getInt(HCIDump.manufacturer_OFFSET);
+    }
+
+    public int getMajor() {
+        return buffer.getInt(HCIDump.major_OFFSET);
+    }
+
+    public int getMinor() {
+        return buffer.getInt(HCIDump.minor_OFFSET);
+    }
+
+    public int getPower() {
+        return buffer.getInt(HCIDump.power_OFFSET);
+    }
+
+    public int getCalibratedPower() {
+        return buffer.getInt(HCIDump.calibrated_power_OFFSET);
+    }
+
+    public int getRssi() {
+        return buffer.getInt(HCIDump.rssi_OFFSET);
+    }
+
+    public long getTime() {
+        return buffer.getLong(HCIDump.time_OFFSET);
+    }
+
+    /**
+     * @return the sequence number the scanner assigned the event on dispatch, 0 if unassigned
+     */
+    public int getScannerSequenceNo() {
+        return scannerSequenceNo;
+    }
+
+    /**
+     * Materialize the current frame as a Beacon that is independent of the buffer
+     * @param scannerID - the id of the scanner that received the event
+     * @return a new Beacon
+     */
+    public Beacon toBeacon(String scannerID) {
+        Beacon beacon = new Beacon(scannerID, getUUID(), getCode(), getManufacturer(), getMajor(), getMinor(),
+            getPower(), getRssi(), getTime());
+        beacon.setCalibratedPower(getCalibratedPower());
+        beacon.setHeartbeat(isHeartbeat());
+        beacon.setCount(getCount());
+        beacon.setScannerSequenceNo(scannerSequenceNo);
+        return beacon;
+    }
+
+    /**
+     * Copy the current frame into an existing Beacon so beacon objects can be reused
+     * @param beacon - the beacon to overwrite
+     * @param scannerID - the id of the scanner that received the event
+     * @return the beacon argument
+     */
+    public Beacon copyTo(Beacon beacon, String scannerID) {
+        beacon.setScannerID(scannerID);
+        beacon.setUUID(getUUID());
+        beacon.setCode(getCode());
+        beacon.setManufacturer(getManufacturer());
+        beacon.setMajor(getMajor());
+        beacon.setMinor(getMinor());
+        beacon.setPower(getPower());
+        beacon.setCalibratedPower(getCalibratedPower());
+        beacon.setRssi(getRssi());
+        beacon.setTime(getTime());
+        beacon.setHeartbeat(isHeartbeat());
+        beacon.setCount(getCount());
+        beacon.setScannerSequenceNo(scannerSequenceNo);
+        return beacon;
+    }
+
+    /**
+     * Materialize the current frame as a BeaconInfo that is independent of the buffer
+     * @param scannerID - the id of the scanner that received the event
+     * @return a new BeaconInfo
+     */
+    public BeaconInfo toBeaconInfo(String scannerID) {
+        BeaconInfo info = new BeaconInfo(buffer);
+        info.setScannerID(scannerID);
+        info.setScannerSequenceNo(scannerSequenceNo);
+        return info;
+    }
+
+    /**
+     * Get the ascii bytes of a uuid for use with {@link #uuidEquals(byte[])}
+     * @param uuid - the uuid string
+     * @return the ascii bytes of the uuid
+     */
+    public static byte[] uuidBytes(String uuid) {
+        return uuid.getBytes(ASCII);
+    }
+
+    public String toString() {
+        return String.format("BeaconView{[%s,%d,%d]rssi=%d, time=%d}", getUUID(), getMajor(), getMinor(), getRssi(), getTime());
+    }
+}
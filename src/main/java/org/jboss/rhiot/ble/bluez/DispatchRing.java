@@ -0,0 +1,432 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated single-producer/multi-consumer ring of event frames that decouples the native scanner thread from
+ * the user callbacks. The native thread calls {@link #publish(ByteBuffer, int)} to copy the current frame out of the
+ * shared native buffer into a free slot and returns immediately. The consumer threads claim published slots and
+ * dispatch them to the handler in place, releasing the slot once the handler returns.
+ *
+ * Each slot carries a sequence number that encodes its state relative to the producer and consumer cursors:
+ * seq == n means the slot is free for the producer at position n, seq == n+1 means frame n has been published
+ * and may be claimed by a consumer, and after consumption the slot is released for position n+capacity.
+ * A frame may be published with a tag, such as the sequence number the producer assigned it, that is passed to an
+ * {@link ITaggedEventCallback} handler with the frame.
+ */
+public class DispatchRing {
+    /** How an idle consumer (or a producer blocked on a full ring) waits for the ring state to change */
+    public enum WaitStrategy {
+        /** Spin on the cursor, lowest latency but burns a core per consumer */
+        BUSY_SPIN,
+        /** Spin with Thread.yield() between checks */
+        YIELD,
+        /** Park for a short interval between checks, lowest cpu use */
+        PARK
+    }
+
+    /** What the producer does when every slot holds an unconsumed frame */
+    public enum OverflowPolicy {
+        /** Discard the oldest unclaimed frame to make room for the new one */
+        DROP_OLDEST,
+        /** Discard the new frame */
+        DROP_NEWEST,
+        /** Wait for a consumer to free a slot, which stalls the native scanner thread until the ring is stopped */
+        BLOCK
+    }
+
+    /** The default park interval used by the PARK wait strategy */
+    public static final long DEFAULT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+    private final long[] tags;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray publishNanos;
+    /** The next position a consumer will claim */
+    private final AtomicLong tail = new AtomicLong();
+    /** The next position the producer will publish, only written by the producer thread */
+    private volatile long head;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final ITaggedEventCallback handler;
+    private final Thread[] consumers;
+    /** The number of consumer threads that have not exited */
+    private final AtomicInteger liveConsumers = new AtomicInteger();
+    private long parkNanos = DEFAULT_PARK_NANOS;
+    private volatile boolean running;
+    private volatile boolean stopRequested;
+
+    // Metrics, the producer side counters are only written by the single producer thread
+    private volatile long droppedOldest;
+    private volatile long droppedNewest;
+    private volatile long blockedCount;
+    private volatile long truncatedCount;
+    private final AtomicLong consumedCount = new AtomicLong();
+    private final AtomicLong handlerErrors = new AtomicLong();
+    private volatile long lastLagNanos;
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    /**
+     * Create a ring of frame slots.
+     *
+     * @param capacity - the number of slots in the ring, rounded up to a power of 2
+     * @param slotSize - the maximum frame size, normally the size of the native buffer
+     * @param order - the byte order of the frames, must match the native buffer order
+     * @param consumerThreads - the number of threads dispatching frames to the handler
+     * @param waitStrategy - how idle consumers and blocked producers wait
+     * @param overflowPolicy - what to do with a new frame when the ring is full
+     * @param handler - the frame handler run on the consumer threads
+     */
+    public DispatchRing(int capacity, int slotSize, ByteOrder order, int consumerThreads, WaitStrategy waitStrategy,
+                        OverflowPolicy overflowPolicy, final IRawEventCallback handler) {
+        this(capacity, slotSize, order, consumerThreads, waitStrategy, overflowPolicy, new ITaggedEventCallback() {
+            @Override
+            public boolean frameEvent(ByteBuffer frame, long tag) {
+                return handler.beaconEvent(frame);
+            }
+        });
+    }
+
+    /**
+     * Create a ring of frame slots whose handler receives the tag published with each frame.
+     *
+     * @param capacity - the number of slots in the ring, rounded up to a power of 2
+     * @param slotSize - the maximum frame size, normally the size of the native buffer
+     * @param order - the byte order of the frames, must match the native buffer order
+     * @param consumerThreads - the number of threads dispatching frames to the handler
+     * @param waitStrategy - how idle consumers and blocked producers wait
+     * @param overflowPolicy - what to do with a new frame when the ring is full
+     * @param handler - the frame handler run on the consumer threads
+     */
+    public DispatchRing(int capacity, int slotSize, ByteOrder order, int consumerThreads, WaitStrategy waitStrategy,
+                        OverflowPolicy overflowPolicy, ITaggedEventCallback handler) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be > 0, was: "+capacity);
+        if(consumerThreads < 1)
+            throw new IllegalArgumentException("consumerThreads must be > 0, was: "+consumerThreads);
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slotSize = slotSize;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.handler = handler;
+        this.slots = new ByteBuffer[size];
+        this.lengths = new int[size];
+        this.tags = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        this.publishNanos = new AtomicLongArray(size);
+        // One direct allocation carved into fixed size slots
+        ByteBuffer arena = ByteBuffer.allocateDirect(size * slotSize);
+        for (int n = 0; n < size; n++) {
+            arena.limit((n + 1) * slotSize);
+            arena.position(n * slotSize);
+            slots[n] = arena.slice().order(order);
+            sequences.set(n, n);
+        }
+        this.consumers = new Thread[consumerThreads];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getConsumerThreads() {
+        return consumers.length;
+    }
+
+    public long getParkNanos() {
+        return parkNanos;
+    }
+
+    /**
+     * Set the interval the PARK wait strategy parks between checks of the ring state. Must be called before start.
+     * @param parkNanos - park interval in nanoseconds
+     */
+    public void setParkNanos(long parkNanos) {
+        this.parkNanos = parkNanos;
+    }
+
+    /**
+     * Start the consumer threads
+     */
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        liveConsumers.set(consumers.length);
+        for (int n = 0; n < consumers.length; n++) {
+            consumers[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        consume();
+                    } finally {
+                        liveConsumers.decrementAndGet();
+                    }
+                }
+            }, "DispatchRing-consumer-" + n);
+            consumers[n].setDaemon(true);
+            consumers[n].start();
+        }
+    }
+
+    /**
+     * Stop the consumer threads and wait for them to exit. Frames still in the ring are not dispatched.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (int n = 0; n < consumers.length; n++) {
+            Thread consumer = consumers[n];
+            if(consumer == null)
+                continue;
+            LockSupport.unpark(consumer);
+            try {
+                consumer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumers[n] = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true if a handler invocation has returned true to indicate scanning should stop
+     */
+    public boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Copy a frame into the next slot of the ring. This must only be called from the single producer thread.
+     *
+     * @param frame - the buffer holding the frame starting at index 0, its position and limit are reset on return
+     * @param length - the length of the frame
+     * @return true if the frame was queued, false if it was dropped by the overflow policy
+     */
+    public boolean publish(ByteBuffer frame, int length) {
+        return publish(frame, length, 0);
+    }
+
+    /**
+     * Copy a frame and its tag into the next slot of the ring. This must only be called from the single producer
+     * thread.
+     *
+     * @param frame - the buffer holding the frame starting at index 0, its position and limit are reset on return
+     * @param length - the length of the frame
+     * @param tag - the value passed to an {@link ITaggedEventCallback} handler with the frame
+     * @return true if the frame was queued, false if it was dropped by the overflow policy or because the ring is
+     * full and no consumer is running to free a slot
+     */
+    public boolean publish(ByteBuffer frame, int length, long tag) {
+        long position = head;
+        int index = (int) (position & mask);
+        int idleCount = 0;
+        while (sequences.get(index) != position) {
+            // A stopped ring, or one whose consumers have all exited, will never free the slot
+            if(!running || liveConsumers.get() == 0) {
+                droppedNewest ++;
+                return false;
+            }
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    droppedNewest ++;
+                    return false;
+                case DROP_OLDEST:
+                    // Steal the oldest frame if no consumer has claimed it yet
+                    long oldest = position - capacity;
+                    if(sequences.get(index) == oldest + 1 && tail.compareAndSet(oldest, oldest + 1)) {
+                        droppedOldest ++;
+                        sequences.lazySet(index, position);
+                    } else {
+                        // A consumer is dispatching this slot, wait for it to be released
+                        idle(idleCount ++);
+                    }
+                    break;
+                case BLOCK:
+                    if(idleCount == 0)
+                        blockedCount ++;
+                    idle(idleCount ++);
+                    break;
+            }
+        }
+
+        if(length > slotSize) {
+            truncatedCount ++;
+            length = slotSize;
+        }
+        ByteBuffer slot = slots[index];
+        slot.clear();
+        frame.limit(length);
+        frame.position(0);
+        slot.put(frame);
+        frame.clear();
+        lengths[index] = length;
+        tags[index] = tag;
+        publishNanos.lazySet(index, System.nanoTime());
+        // The volatile store publishes the slot contents to the consumers
+        sequences.set(index, position + 1);
+        head = position + 1;
+        return true;
+    }
+
+    /**
+     * @return the number of frames published but not yet claimed by a consumer
+     */
+    public int getDepth() {
+        long depth = head - tail.get();
+        return (int) Math.max(0, depth);
+    }
+
+    public long getPublishedCount() {
+        return head;
+    }
+
+    public long getConsumedCount() {
+        return consumedCount.get();
+    }
+
+    public long getDroppedOldestCount() {
+        return droppedOldest;
+    }
+
+    public long getDroppedNewestCount() {
+        return droppedNewest;
+    }
+
+    /**
+     * @return the total number of frames dropped by the overflow policy, or on a full ring without running consumers
+     */
+    public long getDroppedCount() {
+        return droppedOldest + droppedNewest;
+    }
+
+    /**
+     * @return the number of times the producer had to wait on a full ring under the BLOCK policy
+     */
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    /**
+     * @return the number of frames that were larger than the slot size and were truncated
+     */
+    public long getTruncatedCount() {
+        return truncatedCount;
+    }
+
+    public long getHandlerErrorCount() {
+        return handlerErrors.get();
+    }
+
+    /**
+     * @return the time between publish and dispatch of the most recently claimed frame
+     */
+    public long getLastLagNanos() {
+        return lastLagNanos;
+    }
+
+    /**
+     * @return the maximum time between publish and dispatch of a frame since the last resetMaxLag
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos.get();
+    }
+
+    public void resetMaxLag() {
+        maxLagNanos.set(0);
+    }
+
+    public String toString() {
+        return String.format("DispatchRing(capacity=%d, consumers=%d, %s, %s): depth=%d, published=%d, consumed=%d, dropped=%d, lag=%dus, maxLag=%dus",
+            capacity, consumers.length, waitStrategy, overflowPolicy, getDepth(), getPublishedCount(), getConsumedCount(),
+            getDroppedCount(), TimeUnit.NANOSECONDS.toMicros(lastLagNanos), TimeUnit.NANOSECONDS.toMicros(getMaxLagNanos()));
+    }
+
+    private void consume() {
+        int idleCount = 0;
+        while (running) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long seq = sequences.get(index);
+            if(seq == position + 1) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    dispatch(index);
+                    // Release the slot for the producer's next lap of the ring
+                    sequences.set(index, position + capacity);
+                    idleCount = 0;
+                }
+            } else if(seq <= position) {
+                // Nothing published at this position yet
+                idle(idleCount ++);
+            }
+            // Otherwise another consumer claimed the position, so retry with the new tail
+        }
+    }
+
+    private void dispatch(int index) {
+        long lag = System.nanoTime() - publishNanos.get(index);
+        lastLagNanos = lag;
+        long max = maxLagNanos.get();
+        while (lag > max && !maxLagNanos.compareAndSet(max, lag))
+            max = maxLagNanos.get();
+
+        ByteBuffer slot = slots[index];
+        slot.clear();
+        slot.limit(lengths[index]);
+        try {
+            if(handler.frameEvent(slot, tags[index]))
+                stopRequested = true;
+        } catch (Throwable e) {
+            handlerErrors.incrementAndGet();
+            System.err.printf("Error during dispatch of ring slot: %d\n", index);
+            e.printStackTrace(System.err);
+        }
+        consumedCount.incrementAndGet();
+    }
+
+    private void idle(int idleCount) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                // Spin briefly before parking to catch bursts
+                if(idleCount < 100)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(parkNanos);
+                break;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the events of a scanner into a reused batch for an {@link IBatchEventCallback} or
+ * {@link IBatchAdvertEventCallback}, delivering the batch when maxBatch events have been added or the oldest event
+ * in it has waited lingerMillis. The linger deadline is checked as events are added and by a daemon timer thread, so a
+ * partial batch is still delivered when no further events arrive. The timer thread is started with the first event and
+ * stopped by close().
+ *
+ * The Beacon objects, frame copies and AdEventInfos of the batch are created once and overwritten by later
+ * events. Adding and delivery are serialized on the batcher, so the callback is never invoked concurrently even with
+ * several dispatch ring consumer threads, and an event source thread adding to a batch waits while the timer thread
+ * delivers one.
+ */
+class EventBatcher implements Runnable {
+    private final String name;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final IBatchEventCallback beaconCallback;
+    private final IBatchAdvertEventCallback advertCallback;
+    private Beacon[] beacons;
+    private AdEventInfo[] infos;
+    private ByteBuffer[] frames;
+    /** The number of events in the current batch */
+    private int count;
+    private long firstEventNanos;
+    private boolean stopRequested;
+    /** The current timer thread, null when it is not running */
+    private Thread timer;
+    private long batchCount;
+    private long eventCount;
+
+    /**
+     * @param name - the name used for the timer thread and error messages
+     * @param maxBatch - the number of events that causes a batch to be delivered
+     * @param lingerMillis - the maximum time an event waits for its batch to be delivered, <= 0 to only deliver full
+     *                     batches and those passed to flush()
+     * @param beaconCallback - the consumer of the batches
+     */
+    EventBatcher(String name, int maxBatch, long lingerMillis, IBatchEventCallback beaconCallback) {
+        this(name, maxBatch, lingerMillis, beaconCallback, null);
+        beacons = new Beacon[maxBatch];
+        for (int n = 0; n < maxBatch; n++)
+            beacons[n] = new Beacon();
+    }
+
+    /**
+     * @param name - the name used for the timer thread and error messages
+     * @param maxBatch - the number of events that causes a batch to be delivered
+     * @param lingerMillis - the maximum time an event waits for its batch to be delivered, <= 0 to only deliver full
+     *                     batches and those passed to flush()
+     * @param advertCallback - the consumer of the batches
+     */
+    EventBatcher(String name, int maxBatch, long lingerMillis, IBatchAdvertEventCallback advertCallback) {
+        this(name, maxBatch, lingerMillis, null, advertCallback);
+        infos = new AdEventInfo[maxBatch];
+        frames = new ByteBuffer[maxBatch];
+        for (int n = 0; n < maxBatch; n++)
+            infos[n] = new AdEventInfo();
+    }
+
+    private EventBatcher(String name, int maxBatch, long lingerMillis, IBatchEventCallback beaconCallback,
+                         IBatchAdvertEventCallback advertCallback) {
+        if(maxBatch <= 0)
+            throw new IllegalArgumentException("maxBatch must be > 0: "+maxBatch);
+        this.name = name;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.beaconCallback = beaconCallback;
+        this.advertCallback = advertCallback;
+    }
+
+    IBatchEventCallback getBeaconCallback() {
+        return beaconCallback;
+    }
+
+    IBatchAdvertEventCallback getAdvertCallback() {
+        return advertCallback;
+    }
+
+    int getMaxBatch() {
+        return maxBatch;
+    }
+
+    synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Add the beacon_info frame of the view to the batch
+     * @param view - view over the frame
+     * @param scannerID - the id of the scanner that received the event
+     * @return true if a batch callback has requested that scanning stop
+     */
+    synchronized boolean add(BeaconView view, String scannerID) {
+        view.copyTo(beacons[count], scannerID);
+        return added();
+    }
+
+    /**
+     * Add a copy of the ad_data_inline frame at the start of the buffer to the batch
+     * @param frame - the native buffer or a dispatch ring slot holding the frame
+     * @param length - the length of the frame
+     * @return true if a batch callback has requested that scanning stop
+     */
+    synchronized boolean add(ByteBuffer frame, int length) {
+        ByteBuffer copy = frames[count];
+        if(copy == null || copy.capacity() < length) {
+            copy = ByteBuffer.allocate(Math.max(length, HCIScanner.DEFAULT_GENERAL_BUFFER_SIZE));
+            copy.order(ByteOrder.LITTLE_ENDIAN);
+            frames[count] = copy;
+        }
+        copy.clear();
+        for (int n = 0; n < length; n++)
+            copy.put(n, frame.get(n));
+        copy.limit(length);
+        infos[count].wrap(copy);
+        return added();
+    }
+
+    private boolean added() {
+        if(count ++ == 0) {
+            firstEventNanos = System.nanoTime();
+            if(lingerNanos > 0) {
+                if(timer == null)
+                    startTimer();
+                else
+                    notifyAll();
+            }
+        }
+        if(count == maxBatch || (lingerNanos > 0 && System.nanoTime() - firstEventNanos >= lingerNanos))
+            deliver();
+        return stopRequested;
+    }
+
+    /**
+     * Deliver any partial batch now
+     * @return true if a batch callback has requested that scanning stop
+     */
+    synchronized boolean flush() {
+        if(count > 0)
+            deliver();
+        return stopRequested;
+    }
+
+    /**
+     * Deliver any partial batch and stop the timer thread. A later event restarts the timer.
+     */
+    synchronized void close() {
+        flush();
+        timer = null;
+        notifyAll();
+    }
+
+    private void startTimer() {
+        Thread thread = new Thread(this, "EventBatcher-"+name);
+        thread.setDaemon(true);
+        timer = thread;
+        thread.start();
+    }
+
+    private void deliver() {
+        try {
+            boolean stop = beaconCallback != null ? beaconCallback.beaconEvents(beacons, count)
+                : advertCallback.advertEvents(infos, count);
+            if(stop)
+                stopRequested = true;
+        } catch (Throwable e) {
+            System.err.printf("%s batch callback failed for %d events, msg=%s\n", name, count, e);
+        } finally {
+            batchCount ++;
+            eventCount += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * The timer thread delivering batches whose linger time has expired
+     */
+    @Override
+    public synchronized void run() {
+        Thread self = Thread.currentThread();
+        try {
+            while (timer == self) {
+                if(count == 0) {
+                    wait();
+                } else {
+                    long remaining = lingerNanos - (System.nanoTime() - firstEventNanos);
+                    if(remaining <= 0)
+                        deliver();
+                    else
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            if(timer == self)
+                timer = null;
+        }
+    }
+}
@@ -0,0 +1,743 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.IGauge;
+import org.jboss.rhiot.ble.common.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A durable local spool of beacon_info/ad_data_inline frames for when the uplink of a gateway is down. Frames are
+ * appended as fixed size records to memory mapped segment files in a directory, and drained in order by
+ * {@link #drain(ISpoolCallback, int)} once they can be forwarded. The drain position is kept in a mapped cursor
+ * file, so a restarted process continues where the last one stopped.
+ *
+ * An append is a copy into the mapped segment with no system call, so the spool can sit on the scanner's dispatch
+ * path, for example as an event tap with {@link HCIScanner#addEventTap(IRawEventCallback)}. The appended records
+ * survive a crash of the process as soon as they are written, and the thread started by {@link #start()} forces
+ * them to the device at the force interval, so at most that much is lost if the host itself goes down.
+ *
+ * Each force records the position up to which the records are on the device in the cursor file. A host crash can
+ * leave later records of a mapped segment on the device out of order, so on open the end of the spool is found by
+ * scanning forward from that position to the first unwritten record, and any records after it, which were never
+ * forced, are cleared so they cannot reappear once the records before them are written again.
+ *
+ * When a segment is full the next append rolls over to a new one. Drained segments are deleted, and the oldest
+ * undrained segments are deleted, and their records counted as dropped, when the spool exceeds its maximum bytes
+ * or a segment's last record is older than the maximum age.
+ *
+ * Each segment file, named by its zero padded id, holds a big endian header:
+ * <pre>
+ *     long    magic = {@link #MAGIC}
+ *     int     version = {@link #VERSION}
+ *     int     recordSize
+ *     int     recordsPerSegment
+ *     int     maxFrameLength
+ *     long    segment id
+ *     long    creation time in milliseconds
+ * </pre>
+ * padded to 64 bytes, followed by recordsPerSegment records of:
+ * <pre>
+ *     int     frame length, 0 for a record not yet written; written last
+ *     byte    general - 1 for an ad_data_inline frame, 0 for a beacon_info frame
+ *     byte[3] padding
+ *     long    spool time in milliseconds
+ *     byte[]  frame, padded to the record size
+ * </pre>
+ * The cursor file holds the big endian magic, the drain position and the forced position as longs.
+ *
+ * Appends may come from several threads, and one thread at a time drains. Segment creation and retention run under
+ * the write lock, and a force takes the write lock only while holding the spool's monitor, never the other way
+ * around. The spool relies on a mapped file
+ * remaining readable after it is deleted, as it does on Linux.
+ */
+public class EventSpool implements IRawEventCallback, AutoCloseable {
+    /** "RHIOTSP1" */
+    public static final long MAGIC = 0x5248494f54535031L;
+    public static final int VERSION = 1;
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1000;
+    /** How long appends to a full segment are rejected after a failure to create the next one */
+    public static final long ROLLOVER_RETRY_MILLIS = 1000;
+    static final int SEGMENT_HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int CURSOR_SIZE = 24;
+    private static final int CURSOR_READ_OFFSET = 8;
+    private static final int CURSOR_FORCED_OFFSET = 16;
+
+    private final File directory;
+    private final boolean general;
+    private final int maxFrameLength;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final long segmentBytes;
+    /** The segment files by id, the records of segment n start at position n * recordsPerSegment */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private final Object readLock = new Object();
+    /** The segment being appended to, guarded by writeLock */
+    private volatile Segment current;
+    private int writeIndex;
+    /** The position after the last appended record, published after the record is written */
+    private volatile long writePosition;
+    /** The full segments not yet forced by the force thread */
+    private final ConcurrentLinkedQueue<MappedByteBuffer> retired = new ConcurrentLinkedQueue<>();
+    private volatile boolean dirty;
+    /** Set while the next segment cannot be created, guarded by writeLock */
+    private boolean rolloverFailed;
+    private long rolloverRetryTime;
+    /** The position of the next record to drain, only written under readLock */
+    private volatile long readPosition;
+    private final MappedByteBuffer cursor;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long maxAgeMillis;
+    private volatile long forceIntervalMillis = DEFAULT_FORCE_INTERVAL_MILLIS;
+    private Thread forcer;
+    private volatile boolean running;
+    private volatile boolean closed;
+    private volatile long appendedCount;
+    private volatile long drainedCount;
+    private volatile long droppedCount;
+    private volatile long truncatedCount;
+    private volatile long errorCount;
+    private volatile long rejectedCount;
+    private volatile long forceCount;
+
+    /**
+     * Open or create a spool of beacon_info or ad_data_inline frames with {@link #DEFAULT_RECORDS_PER_SEGMENT}
+     * records per segment
+     * @param directory - the spool directory, created if it does not exist
+     * @param general - true to spool ad_data_inline frames, false for beacon_info frames
+     * @throws IOException if the directory or its files cannot be opened, or were created with another layout
+     */
+    public EventSpool(File directory, boolean general) throws IOException {
+        this(directory, general, general ? HCIScanner.DEFAULT_GENERAL_BUFFER_SIZE : HCIDump.beacon_info_SIZEOF,
+            DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Open or create a spool
+     * @param directory - the spool directory, created if it does not exist
+     * @param general - true if the frames passed to {@link #beaconEvent(ByteBuffer)} are ad_data_inline frames
+     * @param maxFrameLength - the largest frame stored whole, longer frames are truncated
+     * @param recordsPerSegment - the number of records in each segment file
+     * @throws IOException if the directory or its files cannot be opened, or were created with another layout
+     */
+    public EventSpool(File directory, boolean general, int maxFrameLength, int recordsPerSegment) throws IOException {
+        if(maxFrameLength <= 0)
+            throw new IllegalArgumentException("maxFrameLength must be > 0: "+maxFrameLength);
+        if(recordsPerSegment <= 0)
+            throw new IllegalArgumentException("recordsPerSegment must be > 0: "+recordsPerSegment);
+        this.directory = directory;
+        this.general = general;
+        this.maxFrameLength = maxFrameLength;
+        this.recordSize = (RECORD_HEADER_SIZE + maxFrameLength + 7) & ~7;
+        this.recordsPerSegment = recordsPerSegment;
+        this.segmentBytes = SEGMENT_HEADER_SIZE + (long) recordsPerSegment * recordSize;
+        if(segmentBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segments larger than 2GB: "+segmentBytes);
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create spool directory: "+directory);
+
+        File cursorFile = new File(directory, CURSOR_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(cursorFile, "rw")) {
+            cursor = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CURSOR_SIZE);
+        }
+        boolean cursorValid = cursor.getLong(0) == MAGIC;
+        long savedPosition = cursorValid ? cursor.getLong(CURSOR_READ_OFFSET) : 0;
+        long forcedPosition = cursorValid ? cursor.getLong(CURSOR_FORCED_OFFSET) : 0;
+
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if(name.length() == 20 + SEGMENT_SUFFIX.length() && name.endsWith(SEGMENT_SUFFIX)) {
+                    long id = Long.parseLong(name.substring(0, 20));
+                    checkHeader(file, id);
+                    segments.put(id, new Segment(id, file));
+                }
+            }
+        }
+        if(segments.isEmpty()) {
+            current = createSegment(0);
+            writeIndex = 0;
+        } else {
+            current = segments.lastEntry().getValue();
+            current.map = map(current.file, FileChannel.MapMode.READ_WRITE);
+            // Only the records before the forced position are known to be contiguous on the device
+            int forcedIndex = forcedPosition / recordsPerSegment == current.id
+                ? (int) (forcedPosition % recordsPerSegment) : 0;
+            writeIndex = recoverEnd(current.map, forcedIndex);
+        }
+        writePosition = current.id * recordsPerSegment + writeIndex;
+
+        readPosition = Math.min(Math.max(savedPosition, floor()), writePosition);
+        cursor.putLong(CURSOR_READ_OFFSET, readPosition);
+        cursor.putLong(CURSOR_FORCED_OFFSET, Math.min(forcedPosition, writePosition));
+        cursor.putLong(0, MAGIC);
+    }
+
+    private void checkHeader(File file, long id) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() != segmentBytes)
+                throw new IOException(String.format("Spool segment %s is %d bytes, expected %d", file, raf.length(), segmentBytes));
+            long magic = raf.readLong();
+            int version = raf.readInt();
+            int size = raf.readInt();
+            int records = raf.readInt();
+            if(magic != MAGIC || version != VERSION)
+                throw new IOException(String.format("Not a version %d spool segment: %s", VERSION, file));
+            if(size != recordSize || records != recordsPerSegment)
+                throw new IOException(String.format("Spool segment %s has recordSize=%d, recordsPerSegment=%d, expected %d, %d",
+                    file, size, records, recordSize, recordsPerSegment));
+            raf.readInt();
+            if(raf.readLong() != id)
+                throw new IOException("Spool segment id does not match its name: "+file);
+        }
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, file);
+        boolean existed = file.exists();
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segmentBytes);
+            }
+            segment.map = map(file, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException e) {
+            // Do not leave a partial segment to fail the header check on the next open
+            if(!existed)
+                file.delete();
+            throw e;
+        }
+        MappedByteBuffer map = segment.map;
+        map.putLong(0, MAGIC);
+        map.putInt(8, VERSION);
+        map.putInt(12, recordSize);
+        map.putInt(16, recordsPerSegment);
+        map.putInt(20, maxFrameLength);
+        map.putLong(24, id);
+        map.putLong(32, System.currentTimeMillis());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            return raf.getChannel().map(mode, 0, segmentBytes);
+        }
+    }
+
+    /**
+     * Find the first unwritten record at or after the forced index, and clear the length of any record after it
+     * @return the index of the first unwritten record
+     */
+    private int recoverEnd(MappedByteBuffer map, int forcedIndex) {
+        int end = forcedIndex;
+        while (end < recordsPerSegment && map.getInt(SEGMENT_HEADER_SIZE + end * recordSize) != 0)
+            end ++;
+        for (int n = end + 1; n < recordsPerSegment; n++) {
+            int offset = SEGMENT_HEADER_SIZE + n * recordSize;
+            if(map.getInt(offset) != 0)
+                map.putInt(offset, 0);
+        }
+        return end;
+    }
+
+    /**
+     * @return the position of the oldest record still in the spool
+     */
+    private long floor() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() * recordsPerSegment : writePosition;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes - the size of the segment files above which the oldest are deleted, at least two segments
+     *                 are always kept
+     */
+    public void setMaxBytes(long maxBytes) {
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be > 0: "+maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @param maxAgeMillis - the age of a segment's last record after which the segment is deleted, 0 for no limit
+     */
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        if(maxAgeMillis < 0)
+            throw new IllegalArgumentException("maxAgeMillis must be >= 0: "+maxAgeMillis);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public long getForceIntervalMillis() {
+        return forceIntervalMillis;
+    }
+
+    /**
+     * @param forceIntervalMillis - how often the thread started by {@link #start()} forces the appended records to
+     *                            the device and applies the age retention
+     */
+    public void setForceIntervalMillis(long forceIntervalMillis) {
+        if(forceIntervalMillis <= 0)
+            throw new IllegalArgumentException("forceIntervalMillis must be > 0: "+forceIntervalMillis);
+        this.forceIntervalMillis = forceIntervalMillis;
+    }
+
+    /**
+     * Start the daemon thread that forces the appended records and cursor to the device at the force interval
+     */
+    public synchronized void start() {
+        if(running || closed)
+            return;
+        running = true;
+        forcer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(forceIntervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    force();
+                    if(maxAgeMillis > 0) {
+                        synchronized (writeLock) {
+                            applyRetention();
+                        }
+                    }
+                }
+            }
+        }, "EventSpool-force");
+        forcer.setDaemon(true);
+        forcer.start();
+    }
+
+    /**
+     * IRawEventCallback implementation that appends the frame, so the spool can be added as a scanner event tap
+     * @param frame - the frame starting at index 0, of the type given by the general flag of the spool
+     * @return false so scanning continues
+     */
+    @Override
+    public boolean beaconEvent(ByteBuffer frame) {
+        append(frame, HCIScanner.frameLength(frame, general), general, System.currentTimeMillis());
+        return false;
+    }
+
+    /**
+     * Append a frame to the spool. Failures to roll over to a new segment are counted and reported to System.err
+     * rather than thrown, as this is called on the scanner thread. After a failure appends are rejected without
+     * retrying for {@link #ROLLOVER_RETRY_MILLIS}, so a full disk costs the scanner thread no file system calls.
+     * @param frame - the buffer holding the frame starting at index 0, its position and limit are not changed
+     * @param length - the length of the frame
+     * @param general - true for an ad_data_inline frame, false for a beacon_info frame
+     * @param time - the spool time in milliseconds, used for the age retention
+     * @return true if the frame was appended
+     */
+    public boolean append(ByteBuffer frame, int length, boolean general, long time) {
+        if(length <= 0)
+            return false;
+        synchronized (writeLock) {
+            if(closed)
+                return false;
+            if(writeIndex == recordsPerSegment && !rollover()) {
+                rejectedCount ++;
+                return false;
+            }
+            if(length > maxFrameLength) {
+                truncatedCount ++;
+                length = maxFrameLength;
+            }
+            MappedByteBuffer map = current.map;
+            int offset = SEGMENT_HEADER_SIZE + writeIndex * recordSize;
+            map.put(offset + 4, (byte) (general ? 1 : 0));
+            map.putLong(offset + 8, time);
+            ByteBuffer source = frame.duplicate();
+            source.limit(length);
+            source.position(0);
+            map.position(offset + RECORD_HEADER_SIZE);
+            map.put(source);
+            // The length is written last so a reader or a recovery never sees a partially written record
+            map.putInt(offset, length);
+            writeIndex ++;
+            appendedCount ++;
+            dirty = true;
+            writePosition = current.id * recordsPerSegment + writeIndex;
+        }
+        return true;
+    }
+
+    private boolean rollover() {
+        Segment full = current;
+        if(rolloverFailed) {
+            long now = System.currentTimeMillis();
+            if(now < rolloverRetryTime)
+                return false;
+            rolloverRetryTime = now + ROLLOVER_RETRY_MILLIS;
+        }
+        try {
+            current = createSegment(full.id + 1);
+        } catch (IOException e) {
+            errorCount ++;
+            if(!rolloverFailed) {
+                // Only report the first failure, until a segment is created again
+                System.err.printf("Failed to create spool segment %d in %s, rejecting appends, msg=%s\n", full.id + 1,
+                    directory, e);
+                rolloverFailed = true;
+                rolloverRetryTime = System.currentTimeMillis() + ROLLOVER_RETRY_MILLIS;
+            }
+            return false;
+        }
+        if(rolloverFailed) {
+            rolloverFailed = false;
+            System.err.printf("Created spool segment %d in %s after %d rejected appends\n", full.id + 1, directory,
+                rejectedCount);
+        }
+        writeIndex = 0;
+        // Leave forcing the full segment to the force thread
+        MappedByteBuffer map = full.map;
+        if(map != null)
+            retired.add(map);
+        // The full segment may have been drained before it stopped being the current one
+        releaseDrained();
+        applyRetention();
+        return true;
+    }
+
+    /**
+     * Delete the oldest segments while the spool is larger than the maximum bytes or their last record is older than
+     * the maximum age, always keeping the segment being appended to. Undrained records of a deleted segment are
+     * counted as dropped when the drain skips them. Must be called holding writeLock.
+     */
+    private void applyRetention() {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 2 || (segments.size() == 2 && maxAgeMillis > 0)) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment segment = oldest.getValue();
+            if(segment == current)
+                break;
+            boolean oversize = segments.size() > 2 && segments.size() * segmentBytes > maxBytes;
+            boolean expired = maxAgeMillis > 0 && lastRecordTime(segment) < now - maxAgeMillis;
+            if(!oversize && !expired)
+                break;
+            // A drain may have released it since
+            if(!segments.remove(oldest.getKey(), segment))
+                continue;
+            segment.map = null;
+            if(!segment.file.delete())
+                System.err.printf("Failed to delete spool segment %s\n", segment.file);
+        }
+    }
+
+    private long lastRecordTime(Segment segment) {
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r")) {
+            raf.seek(SEGMENT_HEADER_SIZE + (long) (recordsPerSegment - 1) * recordSize + 8);
+            return raf.readLong();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Pass the spooled frames in order to a callback, removing each one the callback accepts. The drain position
+     * is saved to the cursor file when the call returns, including when the callback throws.
+     * @param callback - the callback passed each frame, returning false to stop at that frame
+     * @param maxRecords - the maximum number of frames to drain
+     * @return the number of frames drained
+     */
+    public int drain(ISpoolCallback callback, int maxRecords) {
+        synchronized (readLock) {
+            long position = readPosition;
+            long limit = writePosition;
+            Segment segment = null;
+            MappedByteBuffer map = null;
+            int count = 0;
+            try {
+                while (count < maxRecords && position < limit) {
+                    long floor = floor();
+                    if(position < floor) {
+                        droppedCount += floor - position;
+                        position = floor;
+                        continue;
+                    }
+                    long id = position / recordsPerSegment;
+                    if(segment == null || segment.id != id) {
+                        segment = segments.get(id);
+                        if(segment == null) {
+                            // Deleted by the retention since the floor was read
+                            long next = (id + 1) * recordsPerSegment;
+                            droppedCount += next - position;
+                            position = next;
+                            continue;
+                        }
+                        map = segment.map;
+                        if(map == null) {
+                            try {
+                                map = map(segment.file, FileChannel.MapMode.READ_ONLY);
+                            } catch (IOException e) {
+                                if(segments.get(id) == segment)
+                                    throw e;
+                                // Deleted by the retention while being mapped
+                                segment = null;
+                                long next = (id + 1) * recordsPerSegment;
+                                droppedCount += next - position;
+                                position = next;
+                                continue;
+                            }
+                            segment.map = map;
+                        }
+                    }
+                    int offset = SEGMENT_HEADER_SIZE + (int) (position % recordsPerSegment) * recordSize;
+                    int length = map.getInt(offset);
+                    if(length <= 0 || length > maxFrameLength) {
+                        errorCount ++;
+                        System.err.printf("Skipping corrupt spool record %d of %s, length=%d\n",
+                            position % recordsPerSegment, segment.file, length);
+                    } else {
+                        ByteBuffer frame = map.duplicate();
+                        frame.limit(offset + RECORD_HEADER_SIZE + length);
+                        frame.position(offset + RECORD_HEADER_SIZE);
+                        frame = frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+                        if(!callback.spooledEvent(frame, map.get(offset + 4) != 0, map.getLong(offset + 8)))
+                            break;
+                        count ++;
+                    }
+                    position ++;
+                }
+            } catch (IOException e) {
+                errorCount ++;
+                System.err.printf("Failed to map spool segment in %s, msg=%s\n", directory, e);
+            } finally {
+                readPosition = position;
+                drainedCount += count;
+                cursor.putLong(CURSOR_READ_OFFSET, position);
+                releaseDrained();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Delete the oldest segments once all of their records have been drained. The segment being appended to is left
+     * for the rollover, which calls this again once it is full and replaced.
+     */
+    private void releaseDrained() {
+        for (Map.Entry<Long, Segment> first = segments.firstEntry(); first != null; first = segments.firstEntry()) {
+            Segment segment = first.getValue();
+            if(segment == current || (segment.id + 1) * recordsPerSegment > readPosition)
+                break;
+            release(segment);
+        }
+    }
+
+    /**
+     * Delete a fully drained segment
+     */
+    private void release(Segment segment) {
+        if(segments.remove(segment.id, segment)) {
+            segment.map = null;
+            if(!segment.file.delete())
+                System.err.printf("Failed to delete spool segment %s\n", segment.file);
+        }
+    }
+
+    /**
+     * Force the appended records to the storage device, then record the position they were forced up to and force
+     * the cursor
+     */
+    public synchronized void force() {
+        long position;
+        Segment segment;
+        synchronized (writeLock) {
+            position = writePosition;
+            segment = current;
+        }
+        // Every segment before the one holding the position is full and retired
+        for (MappedByteBuffer full = retired.poll(); full != null; full = retired.poll())
+            full.force();
+        if(dirty) {
+            dirty = false;
+            // A segment released since it was read has no mapping and needs no force
+            MappedByteBuffer map = segment.map;
+            if(map != null)
+                map.force();
+        }
+        cursor.putLong(CURSOR_FORCED_OFFSET, position);
+        cursor.force();
+        forceCount ++;
+    }
+
+    /**
+     * @return the number of frames appended and not yet drained or dropped
+     */
+    public long getPendingCount() {
+        return writePosition - Math.max(readPosition, floor());
+    }
+
+    public long getAppendedCount() {
+        return appendedCount;
+    }
+
+    public long getDrainedCount() {
+        return drainedCount;
+    }
+
+    /**
+     * @return the number of undrained frames deleted by the size and age retention
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getTruncatedCount() {
+        return truncatedCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return the number of appends rejected because the next segment could not be created
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Register the spool counters as gauges
+     * @param registry - the registry to add the gauges to
+     * @param prefix - the prefix of the gauge names, e.g. "spool."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"pending", new IGauge() {
+            @Override
+            public long getValue() {
+                return getPendingCount();
+            }
+        });
+        registry.register(prefix+"appended", new IGauge() {
+            @Override
+            public long getValue() {
+                return appendedCount;
+            }
+        });
+        registry.register(prefix+"drained", new IGauge() {
+            @Override
+            public long getValue() {
+                return drainedCount;
+            }
+        });
+        registry.register(prefix+"dropped", new IGauge() {
+            @Override
+            public long getValue() {
+                return droppedCount;
+            }
+        });
+        registry.register(prefix+"segments", new IGauge() {
+            @Override
+            public long getValue() {
+                return segments.size();
+            }
+        });
+        registry.register(prefix+"rejected", new IGauge() {
+            @Override
+            public long getValue() {
+                return rejectedCount;
+            }
+        });
+        registry.register(prefix+"errors", new IGauge() {
+            @Override
+            public long getValue() {
+                return errorCount;
+            }
+        });
+    }
+
+    /**
+     * Stop the force thread and force the spool. Frames appended after this are ignored.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = forcer;
+            forcer = null;
+        }
+        if(thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (writeLock) {
+            closed = true;
+        }
+        force();
+    }
+
+    public String toString() {
+        return String.format("EventSpool(%s): segments=%d, pending=%d, appended=%d, drained=%d, dropped=%d, rejected=%d, errors=%d",
+            directory, segments.size(), getPendingCount(), appendedCount, drainedCount, droppedCount, rejectedCount,
+            errorCount);
+    }
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        /** The mapping of the file, created by the writer or the first drain after a restart */
+        volatile MappedByteBuffer map;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+}
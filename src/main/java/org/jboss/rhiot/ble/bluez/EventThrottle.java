@@ -0,0 +1,272 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.UUIDCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A dedup and rate limiting stage for the scanner dispatch path that suppresses repeats of the same beacon or
+ * advertisement before they reach the callbacks. An event is forwarded if its identity has not been seen, if
+ * windowMillis has passed since the identity was last forwarded, or if its rssi differs from the last forwarded
+ * rssi by more than rssiThreshold. Otherwise it is suppressed. Times are the event times of the frames, so replayed
+ * captures throttle as they did live.
+ *
+ * The identity of a beacon is its uuid, major and minor. Uuids of 32 hex digits are packed exactly and any others are
+ * keyed on their string hash. The identity of a general advertising event is its bdaddr, address type and a 64 bit
+ * hash of its AD structure bytes, so a device is forwarded again whenever its payload changes.
+ *
+ * The identities are held in a bounded table of primitive arrays, chained into hash buckets and a least recently used
+ * list, so the stage does not allocate per event. When the table is full the least recently seen identity is evicted
+ * and will be forwarded when it is next seen. The stage is thread safe.
+ *
+ * @see HCIScanner#setEventThrottle(EventThrottle)
+ */
+public class EventThrottle {
+    /** The default number of identities tracked */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /** Key bit marking the identity of a general advertising event */
+    private static final long ADVERT_KEY = 1L << 62;
+    /** Key bit marking a beacon uuid keyed on its string hash */
+    private static final long HASHED_UUID_KEY = 1L << 61;
+    private static final int NONE = -1;
+
+    private final long windowMillis;
+    private final int rssiThreshold;
+    private final int capacity;
+    /** Bucket heads of the hash chains, indexed by hash & mask */
+    private final int[] buckets;
+    private final int mask;
+    private final long[] keys1;
+    private final long[] keys2;
+    private final long[] keys3;
+    private final long[] lastForwardTimes;
+    private final int[] lastRssis;
+    /** The next entry in the same hash chain */
+    private final int[] chain;
+    /** The least recently used list links */
+    private final int[] newer;
+    private final int[] older;
+    private int newest = NONE;
+    private int oldest = NONE;
+    private int size;
+    private long forwardedCount;
+    private long suppressedCount;
+    private long evictionCount;
+
+    /**
+     * Create a throttle that forwards each identity at most once per window
+     * @param windowMillis - the minimum time between forwarded events of an identity
+     */
+    public EventThrottle(long windowMillis) {
+        this(windowMillis, -1, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param windowMillis - the minimum time between forwarded events of an identity, unless the rssi changes. Use
+     *                     Long.MAX_VALUE to forward repeats only on rssi changes
+     * @param rssiThreshold - forward a repeat within the window if its rssi differs from the last forwarded rssi by more
+     *                      than this, < 0 to ignore rssi
+     * @param capacity - the maximum number of identities tracked
+     */
+    public EventThrottle(long windowMillis, int rssiThreshold, int capacity) {
+        if(windowMillis < 0)
+            throw new IllegalArgumentException("windowMillis must be >= 0: "+windowMillis);
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be > 0: "+capacity);
+        this.windowMillis = windowMillis;
+        this.rssiThreshold = rssiThreshold;
+        this.capacity = capacity;
+        int bucketCount = Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+        buckets = new int[bucketCount];
+        Arrays.fill(buckets, NONE);
+        mask = bucketCount - 1;
+        keys1 = new long[capacity];
+        keys2 = new long[capacity];
+        keys3 = new long[capacity];
+        lastForwardTimes = new long[capacity];
+        lastRssis = new int[capacity];
+        chain = new int[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getRssiThreshold() {
+        return rssiThreshold;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of identities currently tracked
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * @return the number of identities evicted to make room for new ones
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Forget all identities and reset the counts
+     */
+    public synchronized void clear() {
+        Arrays.fill(buckets, NONE);
+        newest = NONE;
+        oldest = NONE;
+        size = 0;
+        forwardedCount = 0;
+        suppressedCount = 0;
+        evictionCount = 0;
+    }
+
+    /**
+     * Decide whether a beacon event should be dispatched
+     * @param view - view over the beacon_info frame
+     * @return true to forward the event, false if it is suppressed
+     */
+    public boolean accept(BeaconView view) {
+        String uuid = view.getUUID();
+        long key1;
+        long key2;
+        long key3 = (long) (view.getMajor() & 0xffff) << 16 | (view.getMinor() & 0xffff);
+        if(UUIDCodec.isPackable(uuid)) {
+            key1 = UUIDCodec.high(uuid);
+            key2 = UUIDCodec.low(uuid);
+        } else {
+            key1 = uuid.hashCode();
+            key2 = uuid.length();
+            key3 |= HASHED_UUID_KEY;
+        }
+        return accept(key1, key2, key3, view.getTime(), view.getRssi());
+    }
+
+    /**
+     * Decide whether a general advertising event should be dispatched
+     * @param frame - the ad_data_inline frame at the start of the buffer
+     * @param length - the length of the frame
+     * @return true to forward the event, false if it is suppressed
+     */
+    public boolean acceptAdvert(ByteBuffer frame, int length) {
+        long bdaddr = 0;
+        for (int n = 5; n >= 0; n--)
+            bdaddr = bdaddr << 8 | (frame.get(HCIDump.ADI_bdaddr_OFFSET + n) & 0xff);
+        long key1 = bdaddr | (long) (frame.get(HCIDump.ADI_bdaddr_type_OFFSET) & 0xff) << 48;
+        // FNV-1a over the AD structures
+        long hash = 0xcbf29ce484222325L;
+        for (int n = HCIDump.ADI_data_OFFSET; n < length; n++) {
+            hash ^= frame.get(n) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return accept(key1, hash, ADVERT_KEY, AdEventInfo.getLongLE(frame, HCIDump.ADI_time_OFFSET),
+            AdEventInfo.getIntLE(frame, HCIDump.ADI_rssi_OFFSET));
+    }
+
+    private synchronized boolean accept(long key1, long key2, long key3, long time, int rssi) {
+        int bucket = hash(key1, key2, key3) & mask;
+        int entry = buckets[bucket];
+        while (entry != NONE && (keys1[entry] != key1 || keys2[entry] != key2 || keys3[entry] != key3))
+            entry = chain[entry];
+
+        if(entry == NONE) {
+            entry = size < capacity ? size ++ : evictOldest();
+            keys1[entry] = key1;
+            keys2[entry] = key2;
+            keys3[entry] = key3;
+            chain[entry] = buckets[bucket];
+            buckets[bucket] = entry;
+            linkNewest(entry);
+            return forward(entry, time, rssi);
+        }
+
+        if(entry != newest) {
+            unlink(entry);
+            linkNewest(entry);
+        }
+        if(time - lastForwardTimes[entry] >= windowMillis || time < lastForwardTimes[entry]
+            || (rssiThreshold >= 0 && Math.abs(rssi - lastRssis[entry]) > rssiThreshold))
+            return forward(entry, time, rssi);
+        suppressedCount ++;
+        return false;
+    }
+
+    private boolean forward(int entry, long time, int rssi) {
+        lastForwardTimes[entry] = time;
+        lastRssis[entry] = rssi;
+        forwardedCount ++;
+        return true;
+    }
+
+    /**
+     * Remove the least recently used entry from its hash chain and the lru list
+     * @return the freed entry
+     */
+    private int evictOldest() {
+        int entry = oldest;
+        int bucket = hash(keys1[entry], keys2[entry], keys3[entry]) & mask;
+        if(buckets[bucket] == entry) {
+            buckets[bucket] = chain[entry];
+        } else {
+            int previous = buckets[bucket];
+            while (chain[previous] != entry)
+                previous = chain[previous];
+            chain[previous] = chain[entry];
+        }
+        unlink(entry);
+        evictionCount ++;
+        return entry;
+    }
+
+    private void linkNewest(int entry) {
+        older[entry] = newest;
+        newer[entry] = NONE;
+        if(newest != NONE)
+            newer[newest] = entry;
+        newest = entry;
+        if(oldest == NONE)
+            oldest = entry;
+    }
+
+    private void unlink(int entry) {
+        int n = newer[entry];
+        int o = older[entry];
+        if(n != NONE)
+            older[n] = o;
+        else
+            newest = o;
+        if(o != NONE)
+            newer[o] = n;
+        else
+            oldest = n;
+    }
+
+    private static int hash(long key1, long key2, long key3) {
+        long h = key1 * 0x9E3779B97F4A7C15L;
+        h = (h ^ key2) * 0x9E3779B97F4A7C15L;
+        h = (h ^ key3) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public synchronized String toString() {
+        return String.format("EventThrottle(window=%d, rssiThreshold=%d): size=%d/%d, forwarded=%d, suppressed=%d, evicted=%d",
+            windowMillis, rssiThreshold, size, capacity, forwardedCount, suppressedCount, evictionCount);
+    }
+}
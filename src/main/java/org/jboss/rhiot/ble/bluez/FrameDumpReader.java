@@ -0,0 +1,83 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the frames of a dump written by {@link FrameDumpWriter}. The frame array is reused by each call to next().
+ */
+public class FrameDumpReader implements Closeable {
+    private final DataInputStream in;
+    private byte[] frame = new byte[HCIScanner.DEFAULT_GENERAL_BUFFER_SIZE];
+    private int length;
+    private boolean general;
+    private long timeMicros;
+
+    public FrameDumpReader(File dump) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(dump), 64*1024));
+    }
+
+    public FrameDumpReader(InputStream is) throws IOException {
+        in = new DataInputStream(is);
+        byte[] magic = new byte[FrameDumpWriter.MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, FrameDumpWriter.MAGIC))
+            throw new IOException("Not a frame dump, magic: "+new String(magic, "US-ASCII"));
+        int version = in.readInt();
+        if(version != FrameDumpWriter.VERSION)
+            throw new IOException(String.format("Frame dump version: %d does not match current version: %d", version, FrameDumpWriter.VERSION));
+    }
+
+    /**
+     * Read the next frame
+     * @return true if a frame was read, false at the end of the dump
+     * @throws IOException on a read failure or truncated frame
+     */
+    public boolean next() throws IOException {
+        int flag = in.read();
+        if(flag < 0)
+            return false;
+        general = flag != 0;
+        try {
+            timeMicros = in.readLong();
+            length = in.readInt();
+            if(length < 0)
+                throw new IOException("Invalid frame length: "+length);
+            if(frame.length < length)
+                frame = new byte[length];
+            in.readFully(frame, 0, length);
+        } catch (EOFException e) {
+            // A truncated last record from a scanner that was killed
+            return false;
+        }
+        return true;
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isGeneral() {
+        return general;
+    }
+
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,74 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a compact dump of the native beacon_info/ad_data_inline frames as they are received by a scanner, for
+ * replay with a {@link ReplayEventSource}. The big endian file format is:
+ * <pre>
+ *     byte[8] magic = "HCIFRAME"
+ *     int version = 1
+ *     repeated records of:
+ *         byte general - 1 for an ad_data_inline frame, 0 for a beacon_info frame
+ *         long timeMicros - the receipt time in microseconds since the epoch
+ *         int length - the length of the frame
+ *         byte[length] frame - the frame as laid out in the native buffer
+ * </pre>
+ * @see HCIScanner#setFrameRecorder(FrameDumpWriter)
+ */
+public class FrameDumpWriter implements Closeable {
+    static final byte[] MAGIC = {'H', 'C', 'I', 'F', 'R', 'A', 'M', 'E'};
+    static final int VERSION = 1;
+
+    private final DataOutputStream out;
+    private byte[] scratch = new byte[HCIScanner.DEFAULT_GENERAL_BUFFER_SIZE];
+    private long frameCount;
+
+    public FrameDumpWriter(File dump) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dump), 64*1024));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Append a frame to the dump. Write errors are reported to System.err rather than thrown as this is called on
+     * the scanner thread.
+     * @param frame - buffer holding the frame starting at index 0
+     * @param length - the length of the frame
+     * @param general - true for an ad_data_inline frame, false for a beacon_info frame
+     */
+    public synchronized void write(ByteBuffer frame, int length, boolean general) {
+        if(scratch.length < length)
+            scratch = new byte[length];
+        for (int n = 0; n < length; n++)
+            scratch[n] = frame.get(n);
+        try {
+            out.writeByte(general ? 1 : 0);
+            out.writeLong(System.currentTimeMillis() * 1000);
+            out.writeInt(length);
+            out.write(scratch, 0, length);
+            frameCount ++;
+        } catch (IOException e) {
+            System.err.printf("Failed to write frame %d to dump, msg=%s\n", frameCount, e.getMessage());
+        }
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
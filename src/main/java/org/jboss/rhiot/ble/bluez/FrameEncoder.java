@@ -0,0 +1,174 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes beacon_info and ad_data_inline frames into a buffer in the same layout as the native scanner, so events
+ * that did not come from a BlueZ adapter can be pushed through {@link HCIScanner#eventNotification()}. The multi-byte
+ * fields are written little endian, the host order of the native scanner on the x86_64 and ARM gateways, and the
+ * uuid is written as 32 uppercase hex chars.
+ */
+public class FrameEncoder {
+    /** The Apple company identifier of the iBeacon manufacturer specific data */
+    public static final int IBEACON_MANUFACTURER = 0x004C;
+    /** The iBeacon type and length bytes following the company identifier */
+    public static final int IBEACON_CODE = 0x0215;
+    /** The length of the iBeacon manufacturer specific data: company(2) + code(2) + uuid(16) + major(2) + minor(2) + power(1) */
+    static final int IBEACON_DATA_LENGTH = 25;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    /**
+     * Write a beacon_info frame
+     * @param frame - buffer to write the frame to starting at index 0
+     * @param uuid - proximity uuid, at most 36 chars
+     * @return the length of the frame
+     */
+    public static int encodeBeacon(ByteBuffer frame, String uuid, boolean isHeartbeat, int count, int code, int manufacturer,
+                                   int major, int minor, int power, int calibratedPower, int rssi, long time) {
+        int length = Math.min(uuid.length(), UUIDCache.MAX_UUID_LENGTH);
+        for (int n = 0; n < UUIDCache.MAX_UUID_LENGTH; n++)
+            frame.put(HCIDump.UUID_OFFSET + n, n < length ? (byte) uuid.charAt(n) : 0);
+        putBeaconFields(frame, isHeartbeat, count, code, manufacturer, major, minor, power, calibratedPower, rssi, time);
+        return HCIDump.beacon_info_SIZEOF;
+    }
+
+    /**
+     * Write a beacon_info frame for a uuid given as 16 raw bytes, without allocating
+     * @param frame - buffer to write the frame to starting at index 0
+     * @param uuid - array holding the raw uuid bytes
+     * @param uuidOffset - offset of the first uuid byte
+     * @return the length of the frame
+     */
+    public static int encodeBeacon(ByteBuffer frame, byte[] uuid, int uuidOffset, boolean isHeartbeat, int count, int code,
+                                   int manufacturer, int major, int minor, int power, int calibratedPower, int rssi, long time) {
+        putUUIDChars(frame, uuid, uuidOffset);
+        putBeaconFields(frame, isHeartbeat, count, code, manufacturer, major, minor, power, calibratedPower, rssi, time);
+        return HCIDump.beacon_info_SIZEOF;
+    }
+
+    /**
+     * Write a beacon_info frame from the AD structures of an advertising packet if it is an iBeacon.
+     * @param frame - buffer to write the frame to starting at index 0
+     * @param adData - array holding the raw AD structures of the advertising packet
+     * @param adOffset - offset of the first AD structure
+     * @param adLength - total length of the AD structures
+     * @param rssi - the received signal strength
+     * @param time - the receipt time in milliseconds
+     * @return the length of the frame, 0 if the packet was not an iBeacon
+     */
+    public static int encodeIBeacon(ByteBuffer frame, byte[] adData, int adOffset, int adLength, int rssi, long time) {
+        int end = adOffset + adLength;
+        int offset = adOffset;
+        while (offset + 1 < end) {
+            int length = adData[offset] & 0xff;
+            if(length == 0 || offset + 1 + length > end)
+                break;
+            int type = adData[offset + 1] & 0xff;
+            int data = offset + 2;
+            if(type == 0xFF && length - 1 >= IBEACON_DATA_LENGTH
+                && (adData[data] & 0xff) == (IBEACON_MANUFACTURER & 0xff) && (adData[data + 1] & 0xff) == (IBEACON_MANUFACTURER >> 8)
+                && (adData[data + 2] & 0xff) == (IBEACON_CODE >> 8) && (adData[data + 3] & 0xff) == (IBEACON_CODE & 0xff)) {
+                int major = ((adData[data + 20] & 0xff) << 8) | (adData[data + 21] & 0xff);
+                int minor = ((adData[data + 22] & 0xff) << 8) | (adData[data + 23] & 0xff);
+                int power = adData[data + 24];
+                return encodeBeacon(frame, adData, data + 4, false, 1, IBEACON_CODE, IBEACON_MANUFACTURER, major, minor,
+                    power, power, rssi, time);
+            }
+            offset += length + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Write an ad_data_inline frame from the raw AD structures of an advertising packet. Structures that do not fit
+     * in the frame buffer are dropped.
+     * @param frame - buffer to write the frame to starting at index 0
+     * @param bdaddrType - the type of the bdaddr; 0 = Public, 1 = Random
+     * @param bdaddr - array holding the 6 address bytes in HCI (little endian) order
+     * @param bdaddrOffset - offset of the first address byte
+     * @param rssi - the received signal strength
+     * @param time - the receipt time in milliseconds
+     * @param adData - array holding the raw AD structures of the advertising packet
+     * @param adOffset - offset of the first AD structure
+     * @param adLength - total length of the AD structures
+     * @return the length of the frame
+     */
+    public static int encodeAdvert(ByteBuffer frame, int bdaddrType, byte[] bdaddr, int bdaddrOffset, int rssi, long time,
+                                   byte[] adData, int adOffset, int adLength) {
+        frame.put(HCIDump.ADI_bdaddr_type_OFFSET, (byte) bdaddrType);
+        for (int n = 0; n < 6; n++)
+            frame.put(HCIDump.ADI_bdaddr_OFFSET + n, bdaddr[bdaddrOffset + n]);
+        putIntLE(frame, HCIDump.ADI_rssi_OFFSET, rssi);
+        putLongLE(frame, HCIDump.ADI_time_OFFSET, time);
+
+        // The raw AD length includes the type byte, the native ad_structure length is just the data
+        int count = 0;
+        int out = HCIDump.ADI_data_OFFSET;
+        int end = adOffset + adLength;
+        int offset = adOffset;
+        while (offset + 1 < end) {
+            int length = adData[offset] & 0xff;
+            if(length == 0 || offset + 1 + length > end || out + length + 1 > frame.capacity())
+                break;
+            frame.put(out ++, (byte) (length - 1));
+            frame.put(out ++, adData[offset + 1]);
+            for (int n = 2; n <= length; n++)
+                frame.put(out ++, adData[offset + n]);
+            count ++;
+            offset += length + 1;
+        }
+        frame.put(HCIDump.ADI_count_OFFSET, (byte) count);
+        putIntLE(frame, HCIDump.ADI_total_length_OFFSET, out);
+        return out;
+    }
+
+    /**
+     * Overwrite the time field of an encoded frame
+     * @param frame - buffer holding the frame
+     * @param general - true for an ad_data_inline frame, false for a beacon_info frame
+     * @param time - the receipt time in milliseconds
+     */
+    public static void setTime(ByteBuffer frame, boolean general, long time) {
+        putLongLE(frame, general ? HCIDump.ADI_time_OFFSET : HCIDump.time_OFFSET, time);
+    }
+
+    /**
+     * Write the 16 raw uuid bytes as 32 hex chars plus null padding at UUID_OFFSET
+     */
+    static void putUUIDChars(ByteBuffer frame, byte[] uuid, int uuidOffset) {
+        int out = HCIDump.UUID_OFFSET;
+        for (int n = 0; n < 16; n++) {
+            int b = uuid[uuidOffset + n] & 0xff;
+            frame.put(out ++, HEX[b >> 4]);
+            frame.put(out ++, HEX[b & 0xf]);
+        }
+        while (out < HCIDump.UUID_OFFSET + UUIDCache.MAX_UUID_LENGTH)
+            frame.put(out ++, (byte) 0);
+    }
+
+    private static void putBeaconFields(ByteBuffer frame, boolean isHeartbeat, int count, int code, int manufacturer,
+                                        int major, int minor, int power, int calibratedPower, int rssi, long time) {
+        putIntLE(frame, HCIDump.IS_HEARTBEAT_OFFSET, isHeartbeat ? 1 : 0);
+        putIntLE(frame, HCIDump.count_OFFSET, count);
+        putIntLE(frame, HCIDump.code_OFFSET, code);
+        putIntLE(frame, HCIDump.manufacturer_OFFSET, manufacturer);
+        putIntLE(frame, HCIDump.major_OFFSET, major);
+        putIntLE(frame, HCIDump.minor_OFFSET, minor);
+        putIntLE(frame, HCIDump.power_OFFSET, power);
+        putIntLE(frame, HCIDump.calibrated_power_OFFSET, calibratedPower);
+        putIntLE(frame, HCIDump.rssi_OFFSET, rssi);
+        putLongLE(frame, HCIDump.time_OFFSET, time);
+    }
+
+    static void putIntLE(ByteBuffer frame, int offset, int value) {
+        frame.put(offset, (byte) value);
+        frame.put(offset + 1, (byte) (value >> 8));
+        frame.put(offset + 2, (byte) (value >> 16));
+        frame.put(offset + 3, (byte) (value >> 24));
+    }
+
+    static void putLongLE(ByteBuffer frame, int offset, long value) {
+        putIntLE(frame, offset, (int) value);
+        putIntLE(frame, offset + 4, (int) (value >> 32));
+    }
+}
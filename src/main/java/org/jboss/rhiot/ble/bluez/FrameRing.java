@@ -0,0 +1,240 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-producer/single-consumer ring of event frames laid out in one direct ByteBuffer so that it can be shared
+ * with the native scanner. The native scanner thread writes each frame into the next free slot and advances the
+ * head, and upcalls {@link HCIDump#ringNotification(int)} once per batch of frames or when its linger timer expires.
+ * The upcall drains every frame between the tail and the head and then advances the tail, so the scanner keeps
+ * writing while Java dispatches and a frame is never overwritten while it is being read.
+ *
+ * The little endian layout, with the head, tail and dropped counters on separate cache lines, is:
+ * <pre>
+ *     int32   version = 1                          at VERSION_OFFSET
+ *     int32   slot count, a power of 2             at SLOT_COUNT_OFFSET
+ *     int32   slot size, the maximum frame length  at SLOT_SIZE_OFFSET
+ *     int32   flags, FLAG_GENERAL for ad_data_inline frames
+ *     int64   head, the number of frames written   at HEAD_OFFSET, written by the producer
+ *     int64   tail, the number of frames consumed  at TAIL_OFFSET, written by the consumer
+ *     int64   frames dropped on a full ring        at DROPPED_OFFSET, written by the producer
+ *     slots   slot count * { int32 length, int32 reserved, uint8 frame[slot size] } from SLOTS_OFFSET
+ * </pre>
+ * Frame n is in slot n % slot count. The producer writes the slot before storing head = n+1, and the consumer
+ * finishes reading a slot before storing a tail past it. The ring is full when head - tail == slot count, in which
+ * case the producer drops the new frame and counts it.
+ *
+ * {@link #offer(ByteBuffer, int)} is the Java form of the producer, used by Java event sources and to exercise
+ * the ring without the native library. As a ByteBuffer has no ordered accesses, the Java side keeps the head, tail
+ * and dropped counters in AtomicLongs, setting each after the buffer writes it publishes and copying it into the
+ * buffer for the native side. Once offer has been called the consumer takes the head from its AtomicLong, otherwise
+ * it reads the head the native producer stored in the buffer.
+ *
+ * With the native producer the JNI upcall orders the two sides: the scanner thread upcalls after storing the head
+ * with __atomic_store_n(head, n + 1, __ATOMIC_RELEASE), so the drain it runs sees the slots before that head, and the
+ * tail the drain stores is visible to the scanner thread once the upcall returns. A native thread other than the one
+ * upcalling must load the tail with __atomic_load_n(tail, __ATOMIC_ACQUIRE). The counters are 8 byte aligned within
+ * the buffer, which a direct buffer allocation aligns to at least 8 bytes.
+ */
+public class FrameRing {
+    public static final int VERSION = 1;
+    public static final int FLAG_GENERAL = 0x01;
+    public static final int VERSION_OFFSET = 0;
+    public static final int SLOT_COUNT_OFFSET = 4;
+    public static final int SLOT_SIZE_OFFSET = 8;
+    public static final int FLAGS_OFFSET = 12;
+    public static final int HEAD_OFFSET = 64;
+    public static final int TAIL_OFFSET = 128;
+    public static final int DROPPED_OFFSET = 192;
+    public static final int SLOTS_OFFSET = 256;
+    /** The length and reserved int32s ahead of each slot's frame */
+    public static final int SLOT_HEADER_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    /** The counters written by the Java producer and consumer, copied into the buffer after each update */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /** Set once offer is called, when the head is taken from the AtomicLong rather than the native producer */
+    private volatile boolean javaProducer;
+    private final int slotCount;
+    private final int mask;
+    private final int slotSize;
+    /** The frame views of each slot */
+    private final ByteBuffer[] frames;
+    private long drainCount;
+    private long drainedFrames;
+    private int maxDrainFrames;
+
+    /**
+     * Allocate a ring
+     * @param slotCount - the number of frames the ring can hold, rounded up to a power of 2
+     * @param slotSize - the maximum frame length, normally the size of the scanner's native buffer
+     * @param general - true if the frames are ad_data_inline general advertising events
+     */
+    public FrameRing(int slotCount, int slotSize, boolean general) {
+        if(slotCount < 1)
+            throw new IllegalArgumentException("slotCount must be > 0, was: "+slotCount);
+        int size = Integer.highestOneBit(slotCount);
+        if(size < slotCount)
+            size <<= 1;
+        this.slotCount = size;
+        this.mask = size - 1;
+        // Keep each slot 8 byte aligned
+        this.slotSize = (slotSize + 7) & ~7;
+        int stride = SLOT_HEADER_SIZE + this.slotSize;
+        buffer = ByteBuffer.allocateDirect(SLOTS_OFFSET + size * stride);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(SLOT_COUNT_OFFSET, size);
+        buffer.putInt(SLOT_SIZE_OFFSET, this.slotSize);
+        buffer.putInt(FLAGS_OFFSET, general ? FLAG_GENERAL : 0);
+
+        frames = new ByteBuffer[size];
+        for (int n = 0; n < size; n++) {
+            int start = SLOTS_OFFSET + n * stride + SLOT_HEADER_SIZE;
+            buffer.limit(start + this.slotSize);
+            buffer.position(start);
+            frames[n] = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the shared buffer holding the ring, to be passed to the native scanner
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public boolean isGeneral() {
+        return (buffer.getInt(FLAGS_OFFSET) & FLAG_GENERAL) != 0;
+    }
+
+    /**
+     * @return the number of frames written by the producer
+     */
+    public long getHead() {
+        return javaProducer ? head.get() : buffer.getLong(HEAD_OFFSET);
+    }
+
+    /**
+     * @return the number of frames consumed
+     */
+    public long getTail() {
+        return tail.get();
+    }
+
+    /**
+     * @return the number of frames written but not yet drained
+     */
+    public int size() {
+        return (int) (getHead() - getTail());
+    }
+
+    /**
+     * @return the number of frames the producer dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return javaProducer ? dropped.get() : buffer.getLong(DROPPED_OFFSET);
+    }
+
+    /**
+     * @return the number of drain calls that found at least one frame
+     */
+    public long getDrainCount() {
+        return drainCount;
+    }
+
+    /**
+     * @return the average number of frames per drain that found frames, the frames delivered per upcall
+     */
+    public double getAverageDrainFrames() {
+        return drainCount > 0 ? (double) drainedFrames / drainCount : 0;
+    }
+
+    public int getMaxDrainFrames() {
+        return maxDrainFrames;
+    }
+
+    /**
+     * Write a frame into the next slot as the native producer does. This must only be called from the single
+     * producer thread.
+     * @param frame - the buffer holding the frame starting at index 0
+     * @param length - the length of the frame, truncated to the slot size
+     * @return true if the frame was written, false if the ring was full and it was dropped
+     */
+    public boolean offer(ByteBuffer frame, int length) {
+        javaProducer = true;
+        // Only this thread writes the head and dropped counters
+        long head = this.head.get();
+        if(head - tail.get() >= slotCount) {
+            buffer.putLong(DROPPED_OFFSET, dropped.incrementAndGet());
+            return false;
+        }
+        int index = (int) (head & mask);
+        length = Math.min(length, slotSize);
+        ByteBuffer slot = frames[index];
+        for (int n = 0; n < length; n++)
+            slot.put(n, frame.get(n));
+        buffer.putInt(SLOTS_OFFSET + index * (SLOT_HEADER_SIZE + slotSize), length);
+        // Publish the slot before the head
+        buffer.putLong(HEAD_OFFSET, head + 1);
+        this.head.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * Dispatch every frame written since the last drain to the handler, in order, and release their slots. This must
+     * only be called from one thread at a time, normally the ringNotification upcall. Draining stops early if the
+     * handler returns true.
+     * @param handler - the consumer of the frames, each passed as a buffer holding the frame at index 0 with its
+     *                limit set to the frame length
+     * @return true if the handler requested that scanning stop
+     */
+    public boolean drain(IRawEventCallback handler) {
+        long head = getHead();
+        long tail = getTail();
+        if(head == tail)
+            return false;
+        boolean stop = false;
+        long position = tail;
+        while (position < head && !stop) {
+            int index = (int) (position & mask);
+            int length = buffer.getInt(SLOTS_OFFSET + index * (SLOT_HEADER_SIZE + slotSize));
+            ByteBuffer frame = frames[index];
+            frame.clear();
+            frame.limit(Math.min(length, slotSize));
+            try {
+                stop = handler.beaconEvent(frame);
+            } catch (Throwable e) {
+                System.err.printf("FrameRing handler failed for frame %d, msg=%s\n", position, e);
+            }
+            position ++;
+        }
+        // Finish reading the slots before releasing them to the producer
+        buffer.putLong(TAIL_OFFSET, position);
+        this.tail.lazySet(position);
+        int drained = (int) (position - tail);
+        drainCount ++;
+        drainedFrames += drained;
+        if(drained > maxDrainFrames)
+            maxDrainFrames = drained;
+        return stop;
+    }
+
+    public String toString() {
+        return String.format("FrameRing(slots=%d, slotSize=%d): head=%d, tail=%d, dropped=%d, drains=%d, avgDrain=%.1f, maxDrain=%d",
+            slotCount, slotSize, getHead(), getTail(), getDroppedCount(), drainCount, getAverageDrainFrames(), maxDrainFrames);
+    }
+}
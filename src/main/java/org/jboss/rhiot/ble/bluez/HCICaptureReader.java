@@ -0,0 +1,239 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the HCI packets of a btsnoop capture, as written by btmon -w or the Android snoop log, or of a pcap capture
+ * with one of the Bluetooth HCI link types, as written by tcpdump/wireshark. The packet array is reused by each
+ * call to next().
+ *
+ * Supported btsnoop datalinks: 1001 (HCI un-encapsulated), 1002 (HCI UART H4), 2001 (Linux monitor).
+ * Supported pcap link types: 187 (DLT_BLUETOOTH_HCI_H4), 201 (DLT_BLUETOOTH_HCI_H4_WITH_PHDR),
+ * 254 (DLT_BLUETOOTH_LINUX_MONITOR).
+ */
+public class HCICaptureReader implements Closeable {
+    public enum Format {
+        BTSNOOP, PCAP
+    }
+
+    /** H4 packet type of an HCI command */
+    public static final int HCI_COMMAND_PKT = 0x01;
+    /** H4 packet type of HCI ACL data */
+    public static final int HCI_ACLDATA_PKT = 0x02;
+    /** H4 packet type of an HCI event */
+    public static final int HCI_EVENT_PKT = 0x04;
+    /** The packet type for a record that is not an HCI packet, for example a monitor index event */
+    public static final int UNKNOWN_PKT = -1;
+
+    static final byte[] BTSNOOP_MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+    /** Microseconds between 0000-01-01 and the unix epoch used by btsnoop timestamps */
+    static final long BTSNOOP_EPOCH_DELTA = 0x00dcddb30f2f8000L;
+    static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    static final int DLT_BLUETOOTH_HCI_H4 = 187;
+    static final int DLT_BLUETOOTH_HCI_H4_WITH_PHDR = 201;
+    static final int DLT_BLUETOOTH_LINUX_MONITOR = 254;
+    static final int BTSNOOP_HCI_UNENCAP = 1001;
+    static final int BTSNOOP_HCI_UART = 1002;
+    static final int BTSNOOP_MONITOR = 2001;
+    /** The monitor opcode of a received HCI event */
+    static final int MONITOR_EVENT_PKT = 3;
+
+    private final DataInputStream in;
+    private final Format format;
+    /** The btsnoop datalink or pcap link type */
+    private final int linkType;
+    private boolean swapped;
+    private boolean nanos;
+    private byte[] record = new byte[1024];
+    private int recordLength;
+    private int packetOffset;
+    private int packetLength;
+    private int packetType;
+    private long timeMicros;
+
+    public HCICaptureReader(File capture) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(capture), 64*1024));
+    }
+
+    public HCICaptureReader(InputStream is) throws IOException {
+        in = new DataInputStream(is);
+        int magic = in.readInt();
+        if(magic == 0x6274736e) {
+            // "btsn"
+            byte[] rest = new byte[4];
+            in.readFully(rest);
+            for (int n = 0; n < 4; n++) {
+                if(rest[n] != BTSNOOP_MAGIC[n + 4])
+                    throw new IOException("Not a btsnoop capture");
+            }
+            format = Format.BTSNOOP;
+            int version = in.readInt();
+            if(version != 1)
+                throw new IOException("Unsupported btsnoop version: "+version);
+            linkType = in.readInt();
+        } else {
+            format = Format.PCAP;
+            if(magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+                swapped = false;
+            } else if(Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+                swapped = true;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                throw new IOException(String.format("Not a btsnoop or pcap capture, magic: 0x%08x", magic));
+            }
+            nanos = magic == PCAP_MAGIC_NANOS;
+            // version major/minor, thiszone, sigfigs, snaplen
+            readInt();
+            readInt();
+            readInt();
+            readInt();
+            linkType = readInt();
+        }
+        if(!isSupportedLinkType())
+            throw new IOException(String.format("Unsupported %s link type: %d", format, linkType));
+    }
+
+    private boolean isSupportedLinkType() {
+        if(format == Format.BTSNOOP)
+            return linkType == BTSNOOP_HCI_UNENCAP || linkType == BTSNOOP_HCI_UART || linkType == BTSNOOP_MONITOR;
+        return linkType == DLT_BLUETOOTH_HCI_H4 || linkType == DLT_BLUETOOTH_HCI_H4_WITH_PHDR || linkType == DLT_BLUETOOTH_LINUX_MONITOR;
+    }
+
+    private int readInt() throws IOException {
+        int value = in.readInt();
+        return swapped ? Integer.reverseBytes(value) : value;
+    }
+
+    /**
+     * Read the next record of the capture
+     * @return true if a record was read, false at the end of the capture
+     * @throws IOException on a read failure
+     */
+    public boolean next() throws IOException {
+        int flags = 0;
+        try {
+            if(format == Format.BTSNOOP) {
+                in.readInt();
+                recordLength = in.readInt();
+                flags = in.readInt();
+                // cumulative drops
+                in.readInt();
+                timeMicros = in.readLong() - BTSNOOP_EPOCH_DELTA;
+            } else {
+                long seconds = readInt() & 0xffffffffL;
+                long fraction = readInt() & 0xffffffffL;
+                recordLength = readInt();
+                // original length
+                readInt();
+                timeMicros = seconds * 1000000 + (nanos ? fraction / 1000 : fraction);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        if(recordLength < 0)
+            throw new IOException("Invalid record length: "+recordLength);
+        if(record.length < recordLength)
+            record = new byte[recordLength];
+        try {
+            in.readFully(record, 0, recordLength);
+        } catch (EOFException e) {
+            // A truncated last record from a capture that was killed
+            return false;
+        }
+        decodePacketType(flags);
+        return true;
+    }
+
+    private void decodePacketType(int flags) {
+        packetType = UNKNOWN_PKT;
+        packetOffset = 0;
+        switch (linkType) {
+            case BTSNOOP_HCI_UNENCAP:
+                // bit 0 = received, bit 1 = command/event rather than data
+                if((flags & 0x2) != 0)
+                    packetType = (flags & 0x1) != 0 ? HCI_EVENT_PKT : HCI_COMMAND_PKT;
+                else
+                    packetType = HCI_ACLDATA_PKT;
+                break;
+            case BTSNOOP_HCI_UART:
+            case DLT_BLUETOOTH_HCI_H4:
+                if(recordLength > 0) {
+                    packetType = record[0] & 0xff;
+                    packetOffset = 1;
+                }
+                break;
+            case DLT_BLUETOOTH_HCI_H4_WITH_PHDR:
+                // 4 byte direction pseudo header precedes the H4 packet
+                if(recordLength > 4) {
+                    packetType = record[4] & 0xff;
+                    packetOffset = 5;
+                }
+                break;
+            case BTSNOOP_MONITOR:
+                // The opcode is the low 16 bits of the flags
+                if((flags & 0xffff) == MONITOR_EVENT_PKT)
+                    packetType = HCI_EVENT_PKT;
+                break;
+            case DLT_BLUETOOTH_LINUX_MONITOR:
+                // 2 byte adapter index and 2 byte opcode, big endian, precede the packet
+                if(recordLength >= 4) {
+                    int opcode = ((record[2] & 0xff) << 8) | (record[3] & 0xff);
+                    if(opcode == MONITOR_EVENT_PKT)
+                        packetType = HCI_EVENT_PKT;
+                    packetOffset = 4;
+                }
+                break;
+        }
+        packetLength = recordLength - packetOffset;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    /**
+     * @return the H4 packet type of the current record, UNKNOWN_PKT if it is not an HCI packet
+     */
+    public int getPacketType() {
+        return packetType;
+    }
+
+    /**
+     * @return the array holding the current HCI packet, excluding the H4 packet type byte
+     */
+    public byte[] getPacket() {
+        return record;
+    }
+
+    public int getPacketOffset() {
+        return packetOffset;
+    }
+
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    /**
+     * @return the capture time of the current record in microseconds since the epoch
+     */
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,20 +1,24 @@
 package org.jboss.rhiot.ble.bluez;
 
-import org.jboss.rhiot.ble.common.Beacon;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This is the Java to native bridge class that exposes the bluez hcidump information as Java objects. It two different
  * modes of running based on what callback type is enabled.
  * {@link #setEventCallback(IEventCallback)} and {@link #setRawEventCallback(IRawEventCallback)} provide iBeacon
- * type of filtering of the data to provide a BeaconInfo callback object.
+ * type of filtering of the data to provide a BeaconInfo callback object, and
+ * {@link #setBeaconViewCallback(IBeaconViewCallback)} provides the same filtering through an allocation free
+ * flyweight view over the native buffer.
  * The {@link #setAdvertEventCallback(IAdvertEventCallback)} is a more general scanning mode that provides all
  * BLE advertising events in a AdEventInfo callback object. This is a superset mode of the ble scanning mode
  * since a ble event is just an AdEventInfo event with a specific structure for the manufacturer specific
  * AdStructure.
+ *
+ * The static methods are a facade over the default {@link HCIScanner} instance. Additional adapters can be scanned
+ * concurrently by creating and starting further HCIScanner instances.
  */
 public class HCIDump {
     static final int beacon_info_SIZEOF = 80;
@@ -85,12 +89,14 @@ public class HCIDump {
         offsetof(ad_data_inline.time) = 16
         offsetof(ad_data_inline.data) = 24
      */
-    private static ByteBuffer theNativeBuffer;
-    private static volatile int eventCount = 0;
-    private static IRawEventCallback rawEventCallback;
-    private static IEventCallback eventCallback;
-    private static IAdvertEventCallback advertEventCallback;
-    private static String scannerID;
+    /** The maximum hci device number that can be registered for device upcalls */
+    static final int MAX_DEVICES = 64;
+    /** The scanner behind the static facade methods and the legacy single scanner native api */
+    private static final HCIScanner defaultScanner = new HCIScanner(null, true);
+    /** The running scanners indexed by device number for the eventNotification(int) upcall */
+    private static final AtomicReferenceArray<HCIScanner> deviceScanners = new AtomicReferenceArray<>(MAX_DEVICES);
+    /** Enable verbose event output from the java side of the scanner */
+    private static boolean debugMode;
 
     /** Map the given ByteBuffer to a direct byte buffer that shares memory
       contents between C/Java so that the native byte[] is read through
@@ -107,6 +113,59 @@ public class HCIDump {
     /** Enable/disable verbose debug mode output from the native scanner
     */
     public native static void enableDebugMode(boolean flag);
+    /** Map the given ByteBuffer for the given device as with allocScanner, but allow several devices to be scanned
+     concurrently. Each device has its own native buffer and scanner thread, and the thread notifies Java of new
+     events through {@link #eventNotification(int)} with its device number. This should not be called directly,
+     rather it is called by {@link HCIScanner#start(int, ByteOrder)}. This is only in a scannerJni library rebuilt
+     with the per device scanner, the original library throws an UnsatisfiedLinkError.
+
+     @param bb - the java ByteBuffer instance to map to a native byte[] address.
+     @param device - the bluetooth hci device number.
+     @param isGeneral - is the scanner running for general BLE ad events or just beacons
+     */
+    public native static void allocDeviceScanner(ByteBuffer bb, int device, boolean isGeneral);
+    /** Stop the scanner thread and free the native buffer mapping for the given device
+     */
+    public native static void freeDeviceScanner(int device);
+    /** Set the filter the native scanner of the given device evaluates on each event before the JNI upcall, so that
+     rejected events are never seen by Java. This should not be called directly, rather it is called by
+     {@link HCIScanner#setScanFilter(ScanFilter)}, which falls back to filtering in Java if the library does not
+     provide it.
+
+     @param device - the bluetooth hci device number.
+     @param spec - the little endian direct buffer holding the {@link ScanFilter#encode() encoded} filter, null to
+     remove the filter
+     */
+    public native static void setScanFilter(int device, ByteBuffer spec);
+    /** Start the native scanner thread for the given device writing frames into a shared multi-frame ring rather
+     than a single buffer. The thread notifies Java through {@link #ringNotification(int)} once maxBatch frames are
+     pending or the oldest pending frame has waited lingerMillis. This should not be called directly, rather it is
+     called by {@link NativeRingEventSource}. This is only in a scannerJni library rebuilt with the ring scanner,
+     the original library throws an UnsatisfiedLinkError.
+
+     @param ring - the direct ByteBuffer holding the {@link FrameRing} layout
+     @param device - the bluetooth hci device number.
+     @param isGeneral - is the scanner running for general BLE ad events or just beacons
+     @param maxBatch - the number of pending frames that triggers an upcall
+     @param lingerMillis - the maximum time a frame waits for an upcall
+     */
+    public native static void allocRingScanner(ByteBuffer ring, int device, boolean isGeneral, int maxBatch, int lingerMillis);
+    /** Stop the ring scanner thread and free the ring mapping for the given device
+     */
+    public native static void freeRingScanner(int device);
+
+    public static boolean isDebugMode() {
+        return debugMode;
+    }
+
+    /**
+     * Enable/disable verbose debug output of the event parsing on the java side of the scanner. This is separate
+     * from the native {@link #enableDebugMode(boolean)} and should be left off when scanning at full rate.
+     * @param flag - true to print the parsed events to the console
+     */
+    public static void setDebugMode(boolean flag) {
+        debugMode = flag;
+    }
 
     public static void loadLibrary() {
         UnsatisfiedLinkError error = null;
@@ -136,36 +195,187 @@ public class HCIDump {
         return false;
     }
 
+    /**
+     * @return the scanner instance behind the static facade methods
+     */
+    public static HCIScanner getDefaultScanner() {
+        return defaultScanner;
+    }
+
+    /**
+     * @param device - the hci device number
+     * @return the running scanner for the device, null if there is none
+     */
+    public static HCIScanner getScanner(int device) {
+        return device >= 0 && device < MAX_DEVICES ? deviceScanners.get(device) : null;
+    }
+
+    static void registerScanner(HCIScanner scanner) {
+        int device = scanner.getDevice();
+        if(device < 0 || device >= MAX_DEVICES)
+            throw new IllegalArgumentException(String.format("Device number must be in [0,%d), was: %d", MAX_DEVICES, device));
+        HCIScanner current = deviceScanners.get(device);
+        if(current != null && current != scanner)
+            throw new IllegalStateException(String.format("hci%d is already in use by: %s", device, current));
+        deviceScanners.set(device, scanner);
+    }
+
+    static void unregisterScanner(HCIScanner scanner) {
+        int device = scanner.getDevice();
+        if(device >= 0 && device < MAX_DEVICES)
+            deviceScanners.compareAndSet(device, scanner, null);
+    }
+
     public static IRawEventCallback getRawEventCallback() {
-        return rawEventCallback;
+        return defaultScanner.getRawEventCallback();
     }
 
     public static void setRawEventCallback(IRawEventCallback rawEventCallback) {
-        HCIDump.rawEventCallback = rawEventCallback;
+        defaultScanner.setRawEventCallback(rawEventCallback);
     }
 
     public static IEventCallback getEventCallback() {
-        return eventCallback;
+        return defaultScanner.getEventCallback();
     }
 
     public static void setEventCallback(IEventCallback eventCallback) {
-        HCIDump.eventCallback = eventCallback;
+        defaultScanner.setEventCallback(eventCallback);
     }
 
     public static IAdvertEventCallback getAdvertEventCallback() {
-        return advertEventCallback;
+        return defaultScanner.getAdvertEventCallback();
     }
 
     public static void setAdvertEventCallback(IAdvertEventCallback advertEventCallback) {
-        HCIDump.advertEventCallback = advertEventCallback;
+        defaultScanner.setAdvertEventCallback(advertEventCallback);
+    }
+
+    public static IBeaconViewCallback getBeaconViewCallback() {
+        return defaultScanner.getBeaconViewCallback();
+    }
+
+    /**
+     * Set the allocation free beacon callback that receives a flyweight view over the native frame. This takes
+     * precedence over the eventCallback.
+     * @param beaconViewCallback - the view callback
+     */
+    public static void setBeaconViewCallback(IBeaconViewCallback beaconViewCallback) {
+        defaultScanner.setBeaconViewCallback(beaconViewCallback);
+    }
+
+    public static ScanFilter getScanFilter() {
+        return defaultScanner.getScanFilter();
+    }
+
+    /**
+     * Set the filter of the default scanner's events
+     * @param scanFilter - the filter, null to receive every event
+     * @see HCIScanner#setScanFilter(ScanFilter)
+     */
+    public static void setScanFilter(ScanFilter scanFilter) {
+        defaultScanner.setScanFilter(scanFilter);
+    }
+
+    public static EventThrottle getEventThrottle() {
+        return defaultScanner.getEventThrottle();
+    }
+
+    /**
+     * Set a stage that suppresses repeated events of the same beacon or advertiser for the default scanner
+     * @param eventThrottle - the throttle, null to dispatch every event
+     * @see HCIScanner#setEventThrottle(EventThrottle)
+     */
+    public static void setEventThrottle(EventThrottle eventThrottle) {
+        defaultScanner.setEventThrottle(eventThrottle);
+    }
+
+    public static IBatchEventCallback getBatchEventCallback() {
+        return defaultScanner.getBatchEventCallback();
+    }
+
+    /**
+     * Set a callback that receives the default scanner's beacon events in batches
+     * @param batchEventCallback - the batch callback, null to remove it
+     * @param maxBatch - the maximum number of events in a batch
+     * @param maxLingerMillis - the maximum time an event waits for its batch to be delivered
+     * @see HCIScanner#setBatchEventCallback(IBatchEventCallback, int, long)
+     */
+    public static void setBatchEventCallback(IBatchEventCallback batchEventCallback, int maxBatch, long maxLingerMillis) {
+        defaultScanner.setBatchEventCallback(batchEventCallback, maxBatch, maxLingerMillis);
+    }
+
+    public static IBatchAdvertEventCallback getBatchAdvertEventCallback() {
+        return defaultScanner.getBatchAdvertEventCallback();
+    }
+
+    /**
+     * Set a callback that receives the default scanner's general BLE advertising events in batches
+     * @param batchAdvertEventCallback - the batch callback, null to remove it
+     * @param maxBatch - the maximum number of events in a batch
+     * @param maxLingerMillis - the maximum time an event waits for its batch to be delivered
+     * @see HCIScanner#setBatchAdvertEventCallback(IBatchAdvertEventCallback, int, long)
+     */
+    public static void setBatchAdvertEventCallback(IBatchAdvertEventCallback batchAdvertEventCallback, int maxBatch,
+                                                   long maxLingerMillis) {
+        defaultScanner.setBatchAdvertEventCallback(batchAdvertEventCallback, maxBatch, maxLingerMillis);
+    }
+
+    /**
+     * Deliver any partial batches of the default scanner now
+     * @return true if a batch callback has requested that scanning stop
+     */
+    public static boolean flushBatches() {
+        return defaultScanner.flushBatches();
+    }
+
+    public static IEventSource getEventSource() {
+        return defaultScanner.getEventSource();
+    }
+
+    /**
+     * Set the source of the default scanner's event frames, for example a {@link ReplayEventSource} to drive the
+     * callbacks from a capture file without a BlueZ adapter.
+     * @param eventSource - the event source, null to restore the native BlueZ scanner
+     */
+    public static void setEventSource(IEventSource eventSource) {
+        defaultScanner.setEventSource(eventSource);
     }
 
     public static String getScannerID() {
-        return scannerID;
+        return defaultScanner.getScannerID();
     }
 
     public static void setScannerID(String scannerID) {
-        HCIDump.scannerID = scannerID;
+        defaultScanner.setScannerID(scannerID);
+    }
+
+    /**
+     * Enable the asynchronous dispatch mode of the default scanner.
+     *
+     * @param ringSize - the number of frames the ring can hold, rounded up to a power of 2
+     * @param consumerThreads - the number of threads invoking the callbacks
+     * @param waitStrategy - how idle consumer threads wait for new frames
+     * @param overflowPolicy - what to do when the consumers fall ringSize frames behind the scanner
+     * @see HCIScanner#enableAsyncDispatch(int, int, DispatchRing.WaitStrategy, DispatchRing.OverflowPolicy)
+     */
+    public static void enableAsyncDispatch(int ringSize, int consumerThreads, DispatchRing.WaitStrategy waitStrategy,
+                                           DispatchRing.OverflowPolicy overflowPolicy) {
+        defaultScanner.enableAsyncDispatch(ringSize, consumerThreads, waitStrategy, overflowPolicy);
+    }
+
+    /**
+     * Stop the dispatch ring consumer threads and return to invoking the callbacks on the native scanner thread.
+     */
+    public static void disableAsyncDispatch() {
+        defaultScanner.disableAsyncDispatch();
+    }
+
+    /**
+     * Access the current dispatch ring for its depth, drop and lag metrics.
+     * @return the active dispatch ring, null if async dispatch is not enabled
+     */
+    public static DispatchRing getDispatchRing() {
+        return defaultScanner.getDispatchRing();
     }
 
     /**
@@ -184,7 +394,8 @@ public class HCIDump {
     /**
      * Setup the native scanner stack for the given hciDev interface. This allocates the direct ByteBuffer used by
      * the native stack and starts the scanner running by calling allocScanner. This invokes the allocScanner
-     * method with an isGeneral flag that is set based on whether the advertEventCallback has been configured.
+     * method with an isGeneral flag that is set based on whether the advertEventCallback or batchAdvertEventCallback
+     * has been configured.
      *
      * @see #allocScanner(ByteBuffer, int, boolean)
      * @see #setAdvertEventCallback(IAdvertEventCallback)
@@ -194,14 +405,7 @@ public class HCIDump {
      * @param order - the endian order of the buffer
      */
     public static void initScanner(String hciDev, int maxBufferSize, ByteOrder order) {
-        char devNumber = hciDev.charAt(hciDev.length()-1);
-        int device = devNumber - '0';
-        ByteBuffer bb = ByteBuffer.allocateDirect(maxBufferSize);
-        bb.order(order);
-        HCIDump.theNativeBuffer = bb;
-        // Set the general scanning mode flag based on whether there is an advertEventCallback
-        boolean isGeneral = advertEventCallback != null;
-        HCIDump.allocScanner(bb, device, isGeneral);
+        defaultScanner.restart(hciDev, maxBufferSize, order);
     }
 
     /**
@@ -210,16 +414,8 @@ public class HCIDump {
      * @param buffer
      */
     public static void freezeBeaconInfo(BeaconInfo info, ByteBuffer buffer) {
-        byte uuid[] = new byte[36];
-        int uuidLength = 0;
-        for (int n = 0; n < uuid.length; n++) {
-            byte bn = buffer.get(n);
-            if(bn == 0)
-                break;
-            uuid[n] = bn;
-            uuidLength ++;
-        }
-        info.uuid = new String(uuid, 0, uuidLength);
+        int uuidLength = UUIDCache.uuidLength(buffer, UUID_OFFSET);
+        info.uuid = UUIDCache.DEFAULT.lookup(buffer, UUID_OFFSET, uuidLength);
         info.isHeartbeat = buffer.getInt(IS_HEARTBEAT_OFFSET) != 0;
         info.count = buffer.getInt(count_OFFSET);
         info.code = buffer.getInt(code_OFFSET);
@@ -238,13 +434,8 @@ public class HCIDump {
      * @param buffer
      */
     public static void freezeAdEventInfo(AdEventInfo info, ByteBuffer buffer) {
-        //System.out.printf("Begin.freezeAdEventInfo\n");
-        int totalLength = buffer.getInt(ADI_total_length_OFFSET);
-        //System.out.printf("totalLength=%d\n", totalLength);
-
         /** The type of the bdaddr; 0 = Public, 1 = Random, other = Reserved */
         int	bdaddr_type = buffer.get(ADI_bdaddr_type_OFFSET);
-        //System.out.printf("bdaddr_type=%d\n", bdaddr_type);
         info.setBdaddrType(bdaddr_type);
 
         /** The address of the advertising packet */
@@ -252,21 +443,20 @@ public class HCIDump {
         for(int n = 0; n < 6; n ++)
             bdaddr[n] = buffer.get(ADI_bdaddr_OFFSET + n);
         info.setBDaddr(bdaddr);
-        //System.out.printf("bdaddr=%2X:%2X:%2X:%2X:%2X:%2X\n", bdaddr[0], bdaddr[1], bdaddr[2], bdaddr[3], bdaddr[4], bdaddr[5]);
 
         /** The count of the data[] elements */
-        int count = buffer.get(ADI_count_OFFSET);
-        System.out.printf("count=%d\n", count);
+        int count = buffer.get(ADI_count_OFFSET) & 0xff;
         info.setCount(count);
 
         /** The rssi of the advertising packet */
         int rssi = buffer.getInt(ADI_rssi_OFFSET);
-        System.out.printf("rssi=%d\n", rssi);
         info.setRssi(rssi);
 
         /** The time the advertising packet was received */
         long time = buffer.getLong(ADI_time_OFFSET);
         info.setTime(time);
+        if(debugMode)
+            System.out.printf("freezeAdEventInfo, count=%d, rssi=%d\n", count, rssi);
 
         /** The advertising data structures in the packet. The actual length the data, overall length of structure is length+2
          typedef struct ad_structure {
@@ -276,11 +466,15 @@ public class HCIDump {
         } ad_structure;
         */
         int offset = ADI_data_OFFSET;
-        ArrayList<AdStructure> adData = new ArrayList<>();
-        //System.out.printf("Freeze: ADS.count=%d\n", count);
-        for(int i = 0; i < count; i ++) {
-            int length = buffer.get(offset ++);
-            int type = buffer.get(offset ++);
+        int limit = buffer.limit();
+        ArrayList<AdStructure> adData = new ArrayList<>(count);
+        // Keep only the structures whose header and data lie within the buffer, as AdEventInfo.wrap does
+        for(int i = 0; i < count && offset + 2 <= limit; i ++) {
+            int length = buffer.get(offset) & 0xff;
+            if(offset + 2 + length > limit)
+                break;
+            offset ++;
+            int type = buffer.get(offset ++) & 0xff;
             byte data[] = new byte[length];
             for(int j = 0; j < length; j ++) {
                 data[j] = buffer.get(offset ++);
@@ -288,79 +482,50 @@ public class HCIDump {
             AdStructure ads = new AdStructure(type, data);
             adData.add(ads);
         }
-        //System.out.printf("End.freezeAdEventInfo\n");
+        info.setCount(adData.size());
         info.setData(adData);
     }
 
     /**
-     * Callback from native code to indicate that theNativeBuffer has been updated with new event data. This happens
-     * from the thread that runs the scanner loop and has attached itself to this JavaVM instance. This will dispatch
-     * to the advertEventCallback, rawEventCallback, or eventCallback in that preferred order.
+     * Callback from native code to indicate that the default scanner's native buffer has been updated with new event
+     * data. This happens from the thread that runs the scanner loop and has attached itself to this JavaVM instance.
+     * @see HCIScanner#eventNotification()
      */
     public static boolean eventNotification() {
-        boolean stop = false;
-        eventCount ++;
-
-        if(advertEventCallback != null) {
-            ByteBuffer readOnly = theNativeBuffer.asReadOnlyBuffer();
-            readOnly.order(ByteOrder.LITTLE_ENDIAN);
-            AdEventInfo info = new AdEventInfo();
-            freezeAdEventInfo(info, readOnly);
-            stop = advertEventCallback.advertEvent(info);
-            return stop;
-        }
+        return defaultScanner.eventNotification();
+    }
 
-        if(rawEventCallback != null) {
-            try {
-                ByteBuffer readOnly = theNativeBuffer.asReadOnlyBuffer();
-                readOnly.order(ByteOrder.LITTLE_ENDIAN);
-                stop = rawEventCallback.beaconEvent(readOnly);
-                return stop;
-            } catch (Throwable e) {
-                System.err.printf("Error during dispatch to rawEventCallback");
-                e.printStackTrace(System.err);
-            }
+    /**
+     * Callback from the native scanner thread of the given device to indicate that its native buffer has been
+     * updated with new event data.
+     * @param device - the hci device number passed to allocDeviceScanner
+     * @return true if scanning should stop, false to continue
+     * @see HCIScanner#eventNotification()
+     */
+    public static boolean eventNotification(int device) {
+        HCIScanner scanner = getScanner(device);
+        if(scanner == null) {
+            System.err.printf("No scanner registered for hci%d, stopping it\n", device);
+            return true;
         }
+        return scanner.eventNotification();
+    }
 
-        // Read the native buffer via theNativeBuffer
-        try {
-            byte uuid[] = new byte[36];
-            int uuidLength = 0;
-            for (int n = 0; n < uuid.length; n++) {
-                byte bn = theNativeBuffer.get(n);
-                if(bn == 0)
-                    break;
-                uuid[n] = bn;
-                uuidLength ++;
-            }
-            String uuidStr = new String(uuid, 0, uuidLength);
-            boolean isHeartbeat = theNativeBuffer.getInt(IS_HEARTBEAT_OFFSET) != 0;
-            int count = theNativeBuffer.getInt(count_OFFSET);
-            int code = theNativeBuffer.getInt(code_OFFSET);
-            int manufacturer = theNativeBuffer.getInt(manufacturer_OFFSET);
-            int major = theNativeBuffer.getInt(major_OFFSET);
-            int minor = theNativeBuffer.getInt(minor_OFFSET);
-            int power = theNativeBuffer.getInt(power_OFFSET);
-            int calibrated_power = theNativeBuffer.getInt(calibrated_power_OFFSET);
-            int rssi = theNativeBuffer.getInt(rssi_OFFSET);
-            long time = theNativeBuffer.getLong(time_OFFSET);
-            if(eventCallback != null) {
-                Beacon beacon = new Beacon(scannerID, uuidStr, code, manufacturer, major, minor, power, rssi, time);
-                beacon.setHeartbeat(isHeartbeat);
-                beacon.setCount(count);
-                stop = eventCallback.beaconEvent(beacon);
-            } else {
-                System.out.printf("event(%d): %s,%d,%d rssi=%d, time=%d\n", System.currentTimeMillis(), uuidStr, major, minor, rssi, time);
-                ByteBuffer readOnly = theNativeBuffer.asReadOnlyBuffer();
-                readOnly.order(ByteOrder.LITTLE_ENDIAN);
-                BeaconInfo info = new BeaconInfo(readOnly);
-                info.setScannerID(scannerID);
-                System.out.printf("%s\n", info);
-            }
-        } catch (Throwable t) {
-            t.printStackTrace();
+    /**
+     * Callback from the native ring scanner thread of the given device to indicate that frames are pending in its
+     * ring. Every pending frame is dispatched before this returns.
+     * @param device - the hci device number passed to allocRingScanner
+     * @return true if scanning should stop, false to continue
+     * @see NativeRingEventSource#drain()
+     */
+    public static boolean ringNotification(int device) {
+        HCIScanner scanner = getScanner(device);
+        IEventSource source = scanner != null ? scanner.getEventSource() : null;
+        if(!(source instanceof NativeRingEventSource)) {
+            System.err.printf("No ring scanner registered for hci%d, stopping it\n", device);
+            return true;
         }
-        return stop;
+        return ((NativeRingEventSource) source).drain();
     }
 
     /**
@@ -378,15 +543,12 @@ public class HCIDump {
             System.setProperty("java.library.path", "/usr/local/lib");
             System.loadLibrary("scannerJni");
 
-            ByteBuffer bb = ByteBuffer.allocateDirect(beacon_info_SIZEOF);
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-            HCIDump.theNativeBuffer = bb;
-            HCIDump.allocScanner(bb, device, false);
-            eventCount = 1;
+            initScanner("hci"+device);
             boolean running = true;
             while (running) {
                 Thread.sleep(10);
-                if(eventCount % 1000 == 0)
+                long eventCount = defaultScanner.getEventCount();
+                if(eventCount > 0 && eventCount % 1000 == 0)
                     System.out.printf("event count=%d\n", eventCount);
             }
             HCIDump.freeScanner();
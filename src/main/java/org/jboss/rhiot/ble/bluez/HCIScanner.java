@@ -0,0 +1,756 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scanner for a single host controller interface. Each scanner has its own native buffer, callbacks, scanner ID
+ * and native scanner thread, so several hciN adapters can be scanned concurrently in one JVM. The static
+ * {@link HCIDump} API is a facade over the default scanner instance returned by {@link HCIDump#getDefaultScanner()}.
+ *
+ * The default scanner is driven by the legacy {@link HCIDump#allocScanner(ByteBuffer, int, boolean)} native entry
+ * point and {@link HCIDump#eventNotification()} upcall. Any other scanner uses
+ * {@link HCIDump#allocDeviceScanner(ByteBuffer, int, boolean)}, whose native thread upcalls
+ * {@link HCIDump#eventNotification(int)} with its device number. A scanner can instead be driven by another
+ * {@link IEventSource}, such as a capture file replay, by calling {@link #setEventSource(IEventSource)}.
+ *
+ * The per device entry points are not in a scannerJni library built from the original native sources, so scanning
+ * any adapter other than the default, or scanning through a {@link NativeRingEventSource}, requires a scannerJni
+ * rebuilt with allocDeviceScanner/freeDeviceScanner, and allocRingScanner/freeRingScanner for the ring. Against the
+ * original library start throws an UnsupportedOperationException saying so, while the default scanner still works.
+ *
+ * @see MergedEventStream
+ */
+public class HCIScanner {
+    /** The native buffer size used by start() in general scanning mode */
+    public static final int DEFAULT_GENERAL_BUFFER_SIZE = 512;
+    /** The dispatch tag of a frame suppressed by the eventThrottle, which only the event taps see */
+    private static final long THROTTLED = -1;
+
+    /** The flyweight views reused by each dispatching thread */
+    private static final ThreadLocal<BeaconView> beaconViews = new ThreadLocal<BeaconView>() {
+        @Override
+        protected BeaconView initialValue() {
+            return new BeaconView();
+        }
+    };
+
+    /** Is this the default scanner driven by the legacy single scanner native api */
+    private final boolean legacyNative;
+    private String hciDev;
+    private int device = -1;
+    private ByteBuffer nativeBuffer;
+    private final ScannerMetrics metrics = new ScannerMetrics();
+    /** The last scannerSequenceNo assigned to a received beacon event */
+    private final AtomicInteger lastSequenceNo = new AtomicInteger();
+    private MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+    private IRawEventCallback rawEventCallback;
+    private IEventCallback eventCallback;
+    private IAdvertEventCallback advertEventCallback;
+    private IBeaconViewCallback beaconViewCallback;
+    /** The optional filter of the events, evaluated by the native scanner if it supports it */
+    private volatile ScanFilter scanFilter;
+    /** Has the scanFilter been passed to the native scanner */
+    private volatile boolean nativeScanFilter;
+    /** The optional dedup and rate limiting stage ahead of the callbacks */
+    private volatile EventThrottle eventThrottle;
+    /** Observers of every dispatched frame ahead of the throttle and callbacks, copied on write */
+    private volatile IRawEventCallback[] eventTaps = new IRawEventCallback[0];
+    /** The batchers of the optional batch callbacks */
+    private volatile EventBatcher beaconBatcher;
+    private volatile EventBatcher advertBatcher;
+    private String scannerID;
+    private IEventSource eventSource = NativeEventSource.INSTANCE;
+    /** The optional recorder of the raw event frames */
+    private volatile FrameDumpWriter frameRecorder;
+    /** Is the native scanner running in general BLE ad event mode */
+    private boolean isGeneral;
+    private boolean running;
+    /** The optional ring used to dispatch events to the callbacks off of the native scanner thread */
+    private volatile DispatchRing dispatchRing;
+    private int asyncRingSize;
+    private int asyncConsumerThreads;
+    private DispatchRing.WaitStrategy asyncWaitStrategy;
+    private DispatchRing.OverflowPolicy asyncOverflowPolicy;
+
+    /**
+     * Create a scanner for the given interface
+     * @param hciDev - the host controller interface (for example, hci1)
+     */
+    public HCIScanner(String hciDev) {
+        this(hciDev, false);
+    }
+
+    HCIScanner(String hciDev, boolean legacyNative) {
+        this.legacyNative = legacyNative;
+        if(hciDev != null)
+            setHciDev(hciDev);
+    }
+
+    /**
+     * Parse the device number from the trailing digits of the interface name
+     * @param hciDev - the host controller interface (for example, hci0)
+     * @return the device number
+     */
+    public static int deviceNumber(String hciDev) {
+        int start = hciDev.length();
+        while (start > 0 && Character.isDigit(hciDev.charAt(start - 1)))
+            start --;
+        if(start == hciDev.length())
+            throw new IllegalArgumentException("No device number in hciDev: "+hciDev);
+        return Integer.parseInt(hciDev.substring(start));
+    }
+
+    public String getHciDev() {
+        return hciDev;
+    }
+
+    synchronized void setHciDev(String hciDev) {
+        if(running)
+            throw new IllegalStateException("Cannot change the device of a running scanner: "+this.hciDev);
+        this.hciDev = hciDev;
+        this.device = deviceNumber(hciDev);
+    }
+
+    /**
+     * @return true if this is the default scanner driven by the legacy single scanner native api
+     */
+    boolean isLegacyNative() {
+        return legacyNative;
+    }
+
+    public int getDevice() {
+        return device;
+    }
+
+    public ByteBuffer getNativeBuffer() {
+        return nativeBuffer;
+    }
+
+    public boolean isGeneral() {
+        return isGeneral;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of events that passed the scan filter
+     */
+    public long getEventCount() {
+        return metrics.getEventCount();
+    }
+
+    /**
+     * @return the scannerSequenceNo of the last beacon event received, 0 before the first
+     */
+    public int getLastSequenceNo() {
+        return lastSequenceNo.get();
+    }
+
+    /**
+     * @return the health and throughput metrics of this scanner
+     */
+    public ScannerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Set the registry the metrics are registered with when the scanner starts, by default
+     * {@link MetricsRegistry#getDefault()}. The metrics are recorded in either case.
+     * @param metricsRegistry - the registry, null to not register the metrics
+     */
+    public synchronized void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        if(metricsRegistry != this.metricsRegistry)
+            metrics.unregister();
+        this.metricsRegistry = metricsRegistry;
+        if(running && metricsRegistry != null)
+            metrics.register(metricsRegistry, this);
+    }
+
+    public IRawEventCallback getRawEventCallback() {
+        return rawEventCallback;
+    }
+
+    public void setRawEventCallback(IRawEventCallback rawEventCallback) {
+        this.rawEventCallback = rawEventCallback;
+    }
+
+    public IEventCallback getEventCallback() {
+        return eventCallback;
+    }
+
+    public void setEventCallback(IEventCallback eventCallback) {
+        this.eventCallback = eventCallback;
+    }
+
+    public IAdvertEventCallback getAdvertEventCallback() {
+        return advertEventCallback;
+    }
+
+    public void setAdvertEventCallback(IAdvertEventCallback advertEventCallback) {
+        this.advertEventCallback = advertEventCallback;
+    }
+
+    public IBeaconViewCallback getBeaconViewCallback() {
+        return beaconViewCallback;
+    }
+
+    /**
+     * Set the allocation free beacon callback that receives a flyweight view over the native frame. This takes
+     * precedence over the eventCallback.
+     * @param beaconViewCallback - the view callback
+     */
+    public void setBeaconViewCallback(IBeaconViewCallback beaconViewCallback) {
+        this.beaconViewCallback = beaconViewCallback;
+    }
+
+    public ScanFilter getScanFilter() {
+        return scanFilter;
+    }
+
+    /**
+     * Set the filter of the events of this scanner. If the event source is the native scanner the encoded filter is
+     * passed to the native library so rejected events never cross JNI, otherwise, or if the library does not support
+     * filtering, the filter is evaluated at the start of eventNotification before the event is counted, recorded or
+     * dispatched. The filter may be set while the scanner is running.
+     * @param scanFilter - the filter, null to receive every event
+     */
+    public synchronized void setScanFilter(ScanFilter scanFilter) {
+        this.scanFilter = scanFilter;
+        if(running)
+            applyScanFilter();
+    }
+
+    /**
+     * @return true if the scan filter is being evaluated by the native scanner
+     */
+    public boolean isNativeScanFilter() {
+        return nativeScanFilter;
+    }
+
+    /**
+     * @return the number of events rejected by the java evaluation of the scan filter
+     */
+    public long getFilteredCount() {
+        return metrics.getFilteredEvents().getCount();
+    }
+
+    private void applyScanFilter() {
+        ScanFilter filter = scanFilter;
+        boolean applied = false;
+        boolean nativeSource = eventSource instanceof NativeEventSource || eventSource instanceof NativeRingEventSource;
+        if(nativeSource && (filter != null || nativeScanFilter)) {
+            try {
+                HCIDump.setScanFilter(device, filter != null ? filter.encode() : null);
+                applied = filter != null;
+            } catch (UnsatisfiedLinkError e) {
+                System.err.printf("Native scan filter not supported for %s, filtering in java: %s\n", hciDev, e.getMessage());
+            }
+        }
+        nativeScanFilter = applied;
+    }
+
+    /**
+     * Add an observer that sees every event frame passed to dispatch, including those the eventThrottle suppresses,
+     * for monitoring such as {@link ScannerHttpServer} and {@link PresenceRegistry}. The tap runs on the dispatching
+     * thread, must not modify or keep the buffer and its return value is ignored.
+     * @param eventTap - the observer
+     */
+    public synchronized void addEventTap(IRawEventCallback eventTap) {
+        IRawEventCallback[] taps = Arrays.copyOf(eventTaps, eventTaps.length + 1);
+        taps[taps.length - 1] = eventTap;
+        eventTaps = taps;
+    }
+
+    /**
+     * @param eventTap - an observer added by {@link #addEventTap(IRawEventCallback)}
+     * @return true if the tap was removed
+     */
+    public synchronized boolean removeEventTap(IRawEventCallback eventTap) {
+        IRawEventCallback[] taps = eventTaps;
+        for (int n = 0; n < taps.length; n++) {
+            if(taps[n] == eventTap) {
+                IRawEventCallback[] copy = new IRawEventCallback[taps.length - 1];
+                System.arraycopy(taps, 0, copy, 0, n);
+                System.arraycopy(taps, n + 1, copy, n, taps.length - n - 1);
+                eventTaps = copy;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public EventThrottle getEventThrottle() {
+        return eventThrottle;
+    }
+
+    /**
+     * Set a stage that suppresses repeated events of the same beacon or advertiser before they are dispatched to the
+     * callbacks. Suppressed events are still counted by getEventCount(), recorded by any frame recorder and seen by the
+     * event taps, but take no scannerSequenceNo. The throttle runs on the event source thread, ahead of any dispatch
+     * ring.
+     * @param eventThrottle - the throttle, null to dispatch every event
+     */
+    public void setEventThrottle(EventThrottle eventThrottle) {
+        this.eventThrottle = eventThrottle;
+    }
+
+    public IBatchEventCallback getBatchEventCallback() {
+        EventBatcher batcher = beaconBatcher;
+        return batcher != null ? batcher.getBeaconCallback() : null;
+    }
+
+    /**
+     * Set a callback that receives the beacon events in batches. A batch is delivered when it holds maxBatch events
+     * or its oldest event has waited maxLingerMillis, and any partial batch is delivered when the scanner stops.
+     * @param batchEventCallback - the batch callback, null to remove the current one after delivering its partial batch
+     * @param maxBatch - the maximum number of events in a batch
+     * @param maxLingerMillis - the maximum time an event waits for its batch to be delivered, <= 0 to only deliver
+     *                        full batches
+     */
+    public synchronized void setBatchEventCallback(IBatchEventCallback batchEventCallback, int maxBatch, long maxLingerMillis) {
+        EventBatcher previous = beaconBatcher;
+        beaconBatcher = batchEventCallback != null ?
+            new EventBatcher(hciDev+"-beacons", maxBatch, maxLingerMillis, batchEventCallback) : null;
+        if(previous != null)
+            previous.close();
+    }
+
+    public IBatchAdvertEventCallback getBatchAdvertEventCallback() {
+        EventBatcher batcher = advertBatcher;
+        return batcher != null ? batcher.getAdvertCallback() : null;
+    }
+
+    /**
+     * Set a callback that receives the general BLE advertising events in batches, as with
+     * {@link #setBatchEventCallback(IBatchEventCallback, int, long)}. Like the advertEventCallback this selects the
+     * general scanning mode when the scanner is started.
+     * @param batchAdvertEventCallback - the batch callback, null to remove the current one after delivering its partial batch
+     * @param maxBatch - the maximum number of events in a batch
+     * @param maxLingerMillis - the maximum time an event waits for its batch to be delivered, <= 0 to only deliver
+     *                        full batches
+     */
+    public synchronized void setBatchAdvertEventCallback(IBatchAdvertEventCallback batchAdvertEventCallback, int maxBatch,
+                                                         long maxLingerMillis) {
+        EventBatcher previous = advertBatcher;
+        advertBatcher = batchAdvertEventCallback != null ?
+            new EventBatcher(hciDev+"-adverts", maxBatch, maxLingerMillis, batchAdvertEventCallback) : null;
+        if(previous != null)
+            previous.close();
+    }
+
+    /**
+     * Deliver any partial batches to the batch callbacks now
+     * @return true if a batch callback has requested that scanning stop
+     */
+    public boolean flushBatches() {
+        boolean stop = false;
+        EventBatcher batcher = beaconBatcher;
+        if(batcher != null)
+            stop = batcher.flush();
+        batcher = advertBatcher;
+        if(batcher != null)
+            stop |= batcher.flush();
+        return stop;
+    }
+
+    public String getScannerID() {
+        return scannerID;
+    }
+
+    public void setScannerID(String scannerID) {
+        this.scannerID = scannerID;
+    }
+
+    public IEventSource getEventSource() {
+        return eventSource;
+    }
+
+    /**
+     * Set the source of the event frames. This must be called before the scanner is started.
+     * @param eventSource - the event source, null to restore the native BlueZ scanner
+     */
+    public synchronized void setEventSource(IEventSource eventSource) {
+        if(running)
+            throw new IllegalStateException("Cannot change the event source of a running scanner: "+hciDev);
+        this.eventSource = eventSource != null ? eventSource : NativeEventSource.INSTANCE;
+    }
+
+    public FrameDumpWriter getFrameRecorder() {
+        return frameRecorder;
+    }
+
+    /**
+     * Record every event frame received from the event source, for later replay with a ReplayEventSource.
+     * @param frameRecorder - the frame dump to write to, null to stop recording
+     */
+    public void setFrameRecorder(FrameDumpWriter frameRecorder) {
+        this.frameRecorder = frameRecorder;
+    }
+
+    /**
+     * Enable the asynchronous dispatch mode where the native scanner thread only copies each event frame into a
+     * preallocated ring and returns, and the configured callbacks are invoked from the ring consumer threads. The
+     * ring is sized to the native buffer, so if the scanner has not been started yet it is created by
+     * start, otherwise it replaces any current ring immediately. Note that with more than one consumer thread
+     * the callbacks are invoked concurrently and events may be delivered out of order.
+     *
+     * @param ringSize - the number of frames the ring can hold, rounded up to a power of 2
+     * @param consumerThreads - the number of threads invoking the callbacks
+     * @param waitStrategy - how idle consumer threads wait for new frames
+     * @param overflowPolicy - what to do when the consumers fall ringSize frames behind the scanner
+     */
+    public synchronized void enableAsyncDispatch(int ringSize, int consumerThreads, DispatchRing.WaitStrategy waitStrategy,
+                                           DispatchRing.OverflowPolicy overflowPolicy) {
+        asyncRingSize = ringSize;
+        asyncConsumerThreads = consumerThreads;
+        asyncWaitStrategy = waitStrategy;
+        asyncOverflowPolicy = overflowPolicy;
+        if(nativeBuffer != null)
+            startDispatchRing(nativeBuffer);
+    }
+
+    /**
+     * Stop the dispatch ring consumer threads and return to invoking the callbacks on the native scanner thread.
+     */
+    public synchronized void disableAsyncDispatch() {
+        asyncRingSize = 0;
+        DispatchRing ring = dispatchRing;
+        dispatchRing = null;
+        if(ring != null)
+            ring.stop();
+    }
+
+    /**
+     * Access the current dispatch ring for its depth, drop and lag metrics.
+     * @return the active dispatch ring, null if async dispatch is not enabled
+     */
+    public DispatchRing getDispatchRing() {
+        return dispatchRing;
+    }
+
+    /**
+     * Start the scanner with a little endian native buffer sized for the scanning mode, which is general if an
+     * advertEventCallback or batchAdvertEventCallback has been set.
+     */
+    public void start() {
+        int size = isGeneralRequested() ? DEFAULT_GENERAL_BUFFER_SIZE : HCIDump.beacon_info_SIZEOF;
+        start(size, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Allocate the direct ByteBuffer used by the native stack and start the event source, by default the native
+     * scanner thread for this scanner's device. The isGeneral flag passed to the native scanner is set based on whether the
+     * advertEventCallback or batchAdvertEventCallback has been configured.
+     *
+     * @param maxBufferSize - the maximum amount of memory to allocate for the native buffer
+     * @param order - the endian order of the buffer
+     */
+    public synchronized void start(int maxBufferSize, ByteOrder order) {
+        if(hciDev == null)
+            throw new IllegalStateException("No hciDev has been set");
+        ByteBuffer bb = ByteBuffer.allocateDirect(maxBufferSize);
+        bb.order(order);
+        nativeBuffer = bb;
+        // Set the general scanning mode flag based on whether there is an advertEventCallback
+        isGeneral = isGeneralRequested();
+        if(asyncRingSize > 0)
+            startDispatchRing(bb);
+        HCIDump.registerScanner(this);
+        running = true;
+        try {
+            eventSource.start(this);
+        } catch (RuntimeException | Error e) {
+            // UnsupportedOperationException if the native library does not support multiple devices
+            running = false;
+            HCIDump.unregisterScanner(this);
+            throw e;
+        }
+        applyScanFilter();
+        if(metricsRegistry != null)
+            metrics.register(metricsRegistry, this);
+    }
+
+    private boolean isGeneralRequested() {
+        return advertEventCallback != null || advertBatcher != null;
+    }
+
+    /**
+     * The legacy HCIDump.initScanner entry point, which may be called again after the native scanner has been freed
+     * through HCIDump.freeScanner without stopping this scanner.
+     */
+    synchronized void restart(String hciDev, int maxBufferSize, ByteOrder order) {
+        if(running) {
+            HCIDump.unregisterScanner(this);
+            running = false;
+        }
+        setHciDev(hciDev);
+        start(maxBufferSize, order);
+    }
+
+    /**
+     * Stop the event source and any dispatch ring consumer threads, and deliver any partial batches
+     */
+    public synchronized void stop() {
+        if(!running)
+            return;
+        running = false;
+        eventSource.stop(this);
+        nativeScanFilter = false;
+        HCIDump.unregisterScanner(this);
+        DispatchRing ring = dispatchRing;
+        if(ring != null) {
+            ring.stop();
+            // Recreate the ring on the next start
+            dispatchRing = null;
+        }
+        EventBatcher batcher = beaconBatcher;
+        if(batcher != null)
+            batcher.close();
+        batcher = advertBatcher;
+        if(batcher != null)
+            batcher.close();
+    }
+
+    private void startDispatchRing(ByteBuffer nativeBuffer) {
+        DispatchRing ring = new DispatchRing(asyncRingSize, nativeBuffer.capacity(), nativeBuffer.order(),
+            asyncConsumerThreads, asyncWaitStrategy, asyncOverflowPolicy, new ITaggedEventCallback() {
+            @Override
+            public boolean frameEvent(ByteBuffer frame, long tag) {
+                return dispatch(frame, tag);
+            }
+        });
+        ring.start();
+        DispatchRing previous = dispatchRing;
+        dispatchRing = ring;
+        if(previous != null)
+            previous.stop();
+    }
+
+    /**
+     * Determine the number of bytes of the current event in the buffer so that only the frame is copied
+     * into the dispatch ring.
+     * @param buffer - the native buffer
+     * @return the length of the frame at the start of the buffer
+     */
+    int frameLength(ByteBuffer buffer) {
+        return frameLength(buffer, isGeneral);
+    }
+
+    /**
+     * Determine the number of bytes of the event frame at the start of a buffer
+     * @param buffer - the buffer holding the frame starting at index 0
+     * @param isGeneral - true for an ad_data_inline frame, false for a beacon_info frame
+     * @return the length of the frame
+     */
+    static int frameLength(ByteBuffer buffer, boolean isGeneral) {
+        if(!isGeneral)
+            return Math.min(HCIDump.beacon_info_SIZEOF, buffer.capacity());
+        // Walk the ad_structure headers to find the end of the ad_data_inline frame
+        int count = buffer.get(HCIDump.ADI_count_OFFSET) & 0xff;
+        int offset = HCIDump.ADI_data_OFFSET;
+        for(int i = 0; i < count && offset + 2 <= buffer.capacity(); i ++) {
+            int length = buffer.get(offset) & 0xff;
+            // Stop at a truncated structure as AdEventInfo does
+            if(offset + 2 + length > buffer.capacity())
+                break;
+            offset += length + 2;
+        }
+        return offset;
+    }
+
+    /**
+     * Called by the event source thread for this scanner's device, normally the native scanner thread, when the native buffer has been updated with
+     * new event data. Events rejected by a scan filter that the native scanner is not evaluating are dropped first. The eventThrottle is then
+     * applied and the beacon events passing it are numbered, see {@link #admit(ByteBuffer)}. If async dispatch is enabled the event frame is copied into the dispatch ring and this
+     * returns immediately, otherwise the event is dispatched on the calling thread.
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean eventNotification() {
+        metrics.getUpcalls().mark();
+        return eventNotification(nativeBuffer);
+    }
+
+    /**
+     * Called by an event source that delivers frames in its own buffers rather than the native buffer, such as the
+     * slots of a {@link FrameRing}, with the same handling as {@link #eventNotification()}.
+     * @param frame - buffer holding the beacon_info or ad_data_inline frame at index 0, valid until this returns
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean eventNotification(ByteBuffer frame) {
+        ScanFilter filter = scanFilter;
+        if(filter != null && !nativeScanFilter) {
+            boolean matches = isGeneral ? filter.matchesAdvert(frame, frameLength(frame))
+                : filter.matchesBeacon(beaconViews.get().wrap(frame));
+            if(!matches) {
+                metrics.getFilteredEvents().mark();
+                return false;
+            }
+        }
+        if(isGeneral)
+            metrics.getAdvertEvents().mark();
+        else
+            metrics.getBeaconEvents().mark();
+        FrameDumpWriter recorder = frameRecorder;
+        if(recorder != null)
+            recorder.write(frame, frameLength(frame), isGeneral);
+        long tag = admit(frame);
+        DispatchRing ring = dispatchRing;
+        if(ring != null) {
+            ring.publish(frame, frameLength(frame), tag);
+            return ring.isStopRequested();
+        }
+        return dispatch(frame, tag);
+    }
+
+    /**
+     * Apply the eventThrottle to an event and number the beacon events that pass it with the next scannerSequenceNo
+     * of this scanner, carried by the BeaconView, Beacon and BeaconInfo forms of the event. The numbers are assigned
+     * in arrival order ahead of any dispatch ring, so events dropped by the ring overflow policy or discarded by stop
+     * leave a gap for consumers to detect. Events for the rawEventCallback are not numbered as it cannot see the number.
+     * @param frame - the buffer holding the event frame
+     * @return the dispatch tag, the scannerSequenceNo as an unsigned int, 0 for an unnumbered event or THROTTLED
+     */
+    private long admit(ByteBuffer frame) {
+        EventThrottle throttle = eventThrottle;
+        if(throttle != null) {
+            boolean accepted = isGeneral ? throttle.acceptAdvert(frame, frameLength(frame))
+                : throttle.accept(beaconViews.get().wrap(frame));
+            if(!accepted) {
+                metrics.getThrottledEvents().mark();
+                return THROTTLED;
+            }
+        }
+        if(isGeneral || rawEventCallback != null)
+            return 0;
+        return nextSequenceNo() & 0xffffffffL;
+    }
+
+    /**
+     * Dispatch the event in the given buffer to the event taps, and then unless the eventThrottle suppressed it to
+     * the advertEventCallback, batchAdvertEventCallback, rawEventCallback, beaconViewCallback, eventCallback or
+     * batchEventCallback in that preferred order. The dispatch is timed into the dispatch latency metric when the
+     * event is sampled.
+     * @param buffer - the native buffer or a dispatch ring slot holding the event frame
+     * @param tag - the dispatch tag assigned by {@link #admit(ByteBuffer)}
+     * @return true if scanning should stop, false to continue
+     */
+    boolean dispatch(ByteBuffer buffer, long tag) {
+        if(!metrics.sampleTiming())
+            return dispatch(buffer, tag, false);
+        long start = System.nanoTime();
+        try {
+            return dispatch(buffer, tag, true);
+        } finally {
+            metrics.getDispatchLatency().record(System.nanoTime() - start);
+        }
+    }
+
+    private boolean dispatch(ByteBuffer buffer, long tag, boolean timed) {
+        boolean stop = false;
+
+        IRawEventCallback[] taps = eventTaps;
+        for (int n = 0; n < taps.length; n++) {
+            try {
+                taps[n].beaconEvent(buffer);
+            } catch (Throwable e) {
+                metrics.getCallbackErrors().mark();
+                System.err.printf("Event tap failed for %s, msg=%s\n", hciDev, e);
+            }
+        }
+
+        if(tag == THROTTLED)
+            return false;
+        int sequenceNo = (int) tag;
+
+        if(advertEventCallback != null) {
+            // Index the frame in place, the AD structure data is only copied if the callback asks for it
+            long start = timed ? System.nanoTime() : 0;
+            AdEventInfo info = new AdEventInfo(buffer);
+            if(timed)
+                metrics.getDecodeTime().record(System.nanoTime() - start);
+            if(HCIDump.isDebugMode())
+                System.out.printf("advertEvent(%s), count=%d, rssi=%d\n", hciDev, info.getCount(), info.getRssi());
+            try {
+                stop = advertEventCallback.advertEvent(info);
+            } catch (RuntimeException | Error e) {
+                metrics.getCallbackErrors().mark();
+                throw e;
+            }
+            return stop;
+        }
+        EventBatcher advertBatcher = this.advertBatcher;
+        if(advertBatcher != null)
+            return advertBatcher.add(buffer, frameLength(buffer));
+
+        if(rawEventCallback != null) {
+            try {
+                ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+                readOnly.order(ByteOrder.LITTLE_ENDIAN);
+                stop = rawEventCallback.beaconEvent(readOnly);
+                return stop;
+            } catch (Throwable e) {
+                metrics.getCallbackErrors().mark();
+                System.err.printf("Error during dispatch to rawEventCallback");
+                e.printStackTrace(System.err);
+            }
+        }
+
+        // Read the native buffer via a flyweight view
+        try {
+            BeaconView view = beaconViews.get().wrap(buffer, sequenceNo);
+            EventBatcher beaconBatcher = this.beaconBatcher;
+            if(beaconViewCallback != null) {
+                stop = beaconViewCallback.beaconEvent(view);
+            } else if(eventCallback != null) {
+                long start = timed ? System.nanoTime() : 0;
+                Beacon beacon = view.toBeacon(scannerID);
+                if(timed)
+                    metrics.getDecodeTime().record(System.nanoTime() - start);
+                stop = eventCallback.beaconEvent(beacon);
+            } else if(beaconBatcher != null) {
+                stop = beaconBatcher.add(view, scannerID);
+            } else {
+                System.out.printf("event(%d): %s,%d,%d rssi=%d, time=%d\n", System.currentTimeMillis(), view.getUUID(),
+                    view.getMajor(), view.getMinor(), view.getRssi(), view.getTime());
+                ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+                readOnly.order(ByteOrder.LITTLE_ENDIAN);
+                BeaconInfo info = new BeaconInfo(readOnly);
+                info.setScannerID(scannerID);
+                info.setScannerSequenceNo(sequenceNo);
+                System.out.printf("%s\n", info);
+            }
+            view.wrap(null);
+        } catch (Throwable t) {
+            metrics.getCallbackErrors().mark();
+            t.printStackTrace();
+        }
+        return stop;
+    }
+
+    /**
+     * @return the next scannerSequenceNo, skipping 0 which marks an unnumbered event when the int wraps
+     */
+    private int nextSequenceNo() {
+        int next = lastSequenceNo.incrementAndGet();
+        while (next == 0)
+            next = lastSequenceNo.incrementAndGet();
+        return next;
+    }
+
+    public String toString() {
+        return String.format("HCIScanner(%s/%s): general=%s, running=%s, events=%d", hciDev, scannerID, isGeneral,
+            running, getEventCount());
+    }
+}
@@ -0,0 +1,19 @@
+package org.jboss.rhiot.ble.bluez;
+
+/**
+ * A general scanner callback that receives the BLE advertising events in batches, delivered when the configured
+ * maximum batch size or linger time is reached.
+ *
+ * @see HCIScanner#setBatchAdvertEventCallback(IBatchAdvertEventCallback, int, long)
+ */
+@FunctionalInterface
+public interface IBatchAdvertEventCallback {
+    /**
+     * Notification of a batch of BLE advertising events. The array, the infos and the frames they read are reused
+     * for the following batches, so use {@link AdEventInfo#copy()} to keep an event beyond this call.
+     * @param infos - array holding the batch in elements 0 to count-1
+     * @param count - the number of events in the batch
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean advertEvents(AdEventInfo[] infos, int count);
+}
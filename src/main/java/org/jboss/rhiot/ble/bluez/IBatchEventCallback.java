@@ -0,0 +1,21 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+
+/**
+ * A beacon callback that receives the events in batches, delivered when the configured maximum batch size or
+ * linger time is reached, so sinks such as broker bridges can amortize their per message costs.
+ *
+ * @see HCIScanner#setBatchEventCallback(IBatchEventCallback, int, long)
+ */
+@FunctionalInterface
+public interface IBatchEventCallback {
+    /**
+     * Notification of a batch of beacon events. The array and the Beacon objects in it are reused for the following
+     * batches, so copy any beacon that is needed beyond this call with {@link Beacon#Beacon(Beacon)}.
+     * @param beacons - array holding the batch in elements 0 to count-1
+     * @param count - the number of beacons in the batch
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean beaconEvents(Beacon[] beacons, int count);
+}
@@ -0,0 +1,15 @@
+package org.jboss.rhiot.ble.bluez;
+
+/**
+ * An allocation free beacon callback that passes a flyweight view over the native beacon_info frame.
+ */
+@FunctionalInterface
+public interface IBeaconViewCallback {
+    /**
+     * Notification of a beacon event. The view is reused for subsequent events, so use
+     * {@link BeaconView#toBeacon(String)} to keep the event beyond this call.
+     * @param view - view over the current beacon_info frame
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean beaconEvent(BeaconView view);
+}
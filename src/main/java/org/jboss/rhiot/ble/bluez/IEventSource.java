@@ -0,0 +1,22 @@
+package org.jboss.rhiot.ble.bluez;
+
+/**
+ * The source of the event frames for a {@link HCIScanner}. A source writes each beacon_info or ad_data_inline frame
+ * into the scanner's native buffer and then calls {@link HCIScanner#eventNotification()}, stopping if it returns
+ * true. The native BlueZ scanner is the default source, and file replay and synthetic sources allow the callbacks
+ * to be driven without an adapter.
+ */
+public interface IEventSource {
+    /**
+     * Begin delivering events to the scanner. This is called by the scanner after its native buffer has been
+     * allocated and its scanning mode determined.
+     * @param scanner - the scanner to deliver events to
+     */
+    public void start(HCIScanner scanner);
+
+    /**
+     * Stop delivering events to the scanner
+     * @param scanner - the scanner passed to start
+     */
+    public void stop(HCIScanner scanner);
+}
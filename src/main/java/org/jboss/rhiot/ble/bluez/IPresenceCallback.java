@@ -0,0 +1,14 @@
+package org.jboss.rhiot.ble.bluez;
+
+/**
+ * Notification that a beacon or device has come into or gone out of range of a {@link PresenceRegistry}
+ */
+@FunctionalInterface
+public interface IPresenceCallback {
+    /**
+     * @param presence - the beacon or device, read only
+     * @param present - true when it entered, the first sighting after being absent, false when it exited, no
+     *                sighting for the registry's exit timeout
+     */
+    public void presenceChanged(Presence presence, boolean present);
+}
@@ -0,0 +1,20 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback passed the frames drained from an {@link EventSpool}, typically to forward them upstream
+ */
+@FunctionalInterface
+public interface ISpoolCallback {
+    /**
+     * Called on the draining thread for each spooled frame in the order they were appended
+     * @param frame - little endian view of the beacon_info or ad_data_inline frame starting at index 0, only valid
+     *              for the duration of the call
+     * @param general - true for an ad_data_inline frame, false for a beacon_info frame
+     * @param time - the time in milliseconds the frame was spooled
+     * @return true if the frame was handled and may be removed from the spool, false to stop draining and retry
+     * this frame on the next drain
+     */
+    public boolean spooledEvent(ByteBuffer frame, boolean general, long time);
+}
@@ -0,0 +1,16 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The handler of the frames of a {@link DispatchRing} that also receives the tag published with each frame
+ */
+public interface ITaggedEventCallback {
+    /**
+     * Handle a frame
+     * @param frame - the ring slot holding the frame, valid until this returns
+     * @param tag - the tag passed to {@link DispatchRing#publish(ByteBuffer, int, long)} with the frame
+     * @return true if scanning should stop, false to continue
+     */
+    boolean frameEvent(ByteBuffer frame, long tag);
+}
@@ -0,0 +1,304 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The most recent event of each beacon and RHIoTTag heard by the scanners, for monitoring. The dispatching threads
+ * update an entry by writing its volatile fields, so once a beacon or tag has been seen its updates neither lock nor
+ * allocate, and readers copy the entries without ever blocking the writers. Because the fields of an entry are
+ * written one at a time a reader may see the rssi of one event with the time of the next.
+ *
+ * The number of identities is bounded by the capacity. Once full, events of new identities are counted as rejected
+ * until {@link #removeOlderThan(long)} makes room.
+ */
+public class LastSeenTable {
+    /** The default maximum number of beacons plus tags */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** The lookup key reused by each dispatching thread */
+    private static final ThreadLocal<BeaconKey> probes = new ThreadLocal<BeaconKey>() {
+        @Override
+        protected BeaconKey initialValue() {
+            return new BeaconKey(null, 0, 0);
+        }
+    };
+
+    private final int capacity;
+    private final ConcurrentHashMap<BeaconKey, BeaconEntry> beacons = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, TagEntry> tags = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile long rejectedCount;
+
+    public LastSeenTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity - the maximum number of beacons plus tags tracked
+     */
+    public LastSeenTable(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be > 0: "+capacity);
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of beacons plus tags tracked
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of events of new identities dropped because the table was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Record a beacon event
+     * @param view - view over the beacon_info frame
+     * @param scannerID - the id of the scanner that received the event
+     */
+    public void update(BeaconView view, String scannerID) {
+        String uuid = view.getUUID();
+        BeaconKey probe = probes.get();
+        probe.set(uuid, view.getMajor(), view.getMinor());
+        BeaconEntry entry = beacons.get(probe);
+        if(entry == null) {
+            if(!reserve())
+                return;
+            BeaconKey key = new BeaconKey(uuid, probe.major, probe.minor);
+            entry = new BeaconEntry(key);
+            BeaconEntry existing = beacons.putIfAbsent(key, entry);
+            if(existing != null) {
+                size.decrementAndGet();
+                entry = existing;
+            }
+        }
+        entry.scannerID = scannerID;
+        entry.code = view.getCode();
+        entry.manufacturer = view.getManufacturer();
+        entry.power = view.getPower();
+        entry.calibratedPower = view.getCalibratedPower();
+        entry.count = view.getCount();
+        entry.rssi = view.getRssi();
+        entry.time = view.getTime();
+        entry.seen ++;
+    }
+
+    /**
+     * Record an RHIoTTag event
+     * @param tag - the decoded tag, which must not be modified after this call
+     * @param rssi - the rssi of the advertising event
+     * @param time - the time of the advertising event
+     */
+    public void update(RHIoTTag tag, int rssi, long time) {
+        Long key = addressKey(tag.getAddress());
+        TagEntry entry = tags.get(key);
+        if(entry == null) {
+            if(!reserve())
+                return;
+            entry = new TagEntry();
+            TagEntry existing = tags.putIfAbsent(key, entry);
+            if(existing != null) {
+                size.decrementAndGet();
+                entry = existing;
+            }
+        }
+        entry.tag = tag;
+        entry.rssi = rssi;
+        entry.time = time;
+        entry.seen ++;
+    }
+
+    private boolean reserve() {
+        if(size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            rejectedCount ++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the beacons seen at or after a time
+     * @param minTime - the earliest event time to include, 0 for all
+     * @return the copies, one per beacon
+     */
+    public List<Seen<Beacon>> getBeacons(long minTime) {
+        List<Seen<Beacon>> copies = new ArrayList<>(beacons.size());
+        for (BeaconEntry entry : beacons.values()) {
+            long time = entry.time;
+            if(time < minTime)
+                continue;
+            BeaconKey key = entry.key;
+            Beacon beacon = new Beacon(entry.scannerID, key.uuid, entry.code, entry.manufacturer, key.major, key.minor,
+                entry.power, entry.rssi, time);
+            beacon.setCalibratedPower(entry.calibratedPower);
+            beacon.setCount(entry.count);
+            copies.add(new Seen<>(beacon, entry.rssi, time, entry.seen));
+        }
+        return copies;
+    }
+
+    /**
+     * Copy the tags seen at or after a time
+     * @param minTime - the earliest event time to include, 0 for all
+     * @return the latest decoded tag of each address
+     */
+    public List<Seen<RHIoTTag>> getTags(long minTime) {
+        List<Seen<RHIoTTag>> copies = new ArrayList<>(tags.size());
+        for (TagEntry entry : tags.values()) {
+            long time = entry.time;
+            if(time >= minTime)
+                copies.add(new Seen<>(entry.tag, entry.rssi, time, entry.seen));
+        }
+        return copies;
+    }
+
+    /**
+     * Forget the beacons and tags last seen before a time
+     * @param time - the event time before which entries are removed
+     * @return the number of entries removed
+     */
+    public int removeOlderThan(long time) {
+        int removed = 0;
+        for (Iterator<BeaconEntry> i = beacons.values().iterator(); i.hasNext(); ) {
+            if(i.next().time < time) {
+                i.remove();
+                removed ++;
+            }
+        }
+        for (Iterator<TagEntry> i = tags.values().iterator(); i.hasNext(); ) {
+            if(i.next().time < time) {
+                i.remove();
+                removed ++;
+            }
+        }
+        size.addAndGet(-removed);
+        return removed;
+    }
+
+    public void clear() {
+        beacons.clear();
+        tags.clear();
+        size.set(0);
+    }
+
+    static Long addressKey(byte[] address) {
+        long key = 0;
+        if(address != null) {
+            for (int n = address.length - 1; n >= 0; n--)
+                key = key << 8 | (address[n] & 0xff);
+        }
+        return key;
+    }
+
+    public String toString() {
+        return String.format("LastSeenTable: beacons=%d, tags=%d, capacity=%d, rejected=%d", beacons.size(), tags.size(),
+            capacity, rejectedCount);
+    }
+
+    /**
+     * A copy of the last event of a beacon or tag
+     * @param <T> - Beacon or RHIoTTag
+     */
+    public static class Seen<T> {
+        private final T event;
+        private final int rssi;
+        private final long time;
+        private final long seenCount;
+
+        Seen(T event, int rssi, long time, long seenCount) {
+            this.event = event;
+            this.rssi = rssi;
+            this.time = time;
+            this.seenCount = seenCount;
+        }
+
+        public T getEvent() {
+            return event;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the number of events recorded for the beacon or tag
+         */
+        public long getSeenCount() {
+            return seenCount;
+        }
+    }
+
+    private static class BeaconKey {
+        String uuid;
+        int major;
+        int minor;
+
+        BeaconKey(String uuid, int major, int minor) {
+            set(uuid, major, minor);
+        }
+
+        void set(String uuid, int major, int minor) {
+            this.uuid = uuid;
+            this.major = major;
+            this.minor = minor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof BeaconKey))
+                return false;
+            BeaconKey key = (BeaconKey) o;
+            return major == key.major && minor == key.minor && uuid.equals(key.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return (uuid.hashCode() * 31 + major) * 31 + minor;
+        }
+    }
+
+    private static class BeaconEntry {
+        final BeaconKey key;
+        volatile String scannerID;
+        volatile int code;
+        volatile int manufacturer;
+        volatile int power;
+        volatile int calibratedPower;
+        volatile int count;
+        volatile int rssi;
+        volatile long time;
+        /** Racy count of the events, concurrent updates of the same beacon may lose increments */
+        volatile long seen;
+
+        BeaconEntry(BeaconKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class TagEntry {
+        volatile RHIoTTag tag;
+        volatile int rssi;
+        volatile long time;
+        volatile long seen;
+    }
+}
@@ -0,0 +1,179 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.Beacon;
+
+/**
+ * Merges the events of several {@link HCIScanner}s into a single stream of callbacks, suppressing the copies of an
+ * advert that are heard by more than one adapter. An event is a copy if an event with the same identity was
+ * forwarded within windowMillis of its event time. The identity of a beacon event is its uuid, major and minor, and
+ * the identity of an advertising event is its bdaddr plus a hash of its AD structures.
+ *
+ * The callbacks of the attached scanners run on different native threads, so the stream serializes access to its
+ * dedup table and the downstream callbacks are invoked by one scanner thread at a time.
+ */
+public class MergedEventStream implements IEventCallback, IAdvertEventCallback {
+    private static final int MAX_PROBES = 8;
+
+    private final long windowMillis;
+    /** Open addressing table of recently forwarded event identities and their event times */
+    private final long[] keys;
+    private final long[] times;
+    private final boolean[] used;
+    private final int mask;
+    private IEventCallback eventCallback;
+    private IAdvertEventCallback advertEventCallback;
+    private long forwardedCount;
+    private long duplicateCount;
+
+    /**
+     * @param windowMillis - the time window within which events with the same identity are duplicates
+     * @param capacity - the number of distinct identities tracked, rounded up to a power of 2. This should exceed
+     *                 the number of distinct devices heard within windowMillis.
+     */
+    public MergedEventStream(long windowMillis, int capacity) {
+        this.windowMillis = windowMillis;
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES));
+        if(size < capacity)
+            size <<= 1;
+        keys = new long[size];
+        times = new long[size];
+        used = new boolean[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Set this stream as the callback of each scanner. For scanners in general mode it is set as the advert
+     * callback, otherwise as the beacon event callback.
+     * @param general - true to attach as the advert event callback
+     * @param scanners - the scanners to merge
+     */
+    public void attach(boolean general, HCIScanner... scanners) {
+        for(HCIScanner scanner : scanners) {
+            if(general)
+                scanner.setAdvertEventCallback(this);
+            else
+                scanner.setEventCallback(this);
+        }
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public IEventCallback getEventCallback() {
+        return eventCallback;
+    }
+
+    /**
+     * @param eventCallback - the downstream callback for deduplicated beacon events
+     */
+    public void setEventCallback(IEventCallback eventCallback) {
+        this.eventCallback = eventCallback;
+    }
+
+    public IAdvertEventCallback getAdvertEventCallback() {
+        return advertEventCallback;
+    }
+
+    /**
+     * @param advertEventCallback - the downstream callback for deduplicated advertising events
+     */
+    public void setAdvertEventCallback(IAdvertEventCallback advertEventCallback) {
+        this.advertEventCallback = advertEventCallback;
+    }
+
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    /**
+     * @return the number of events suppressed as copies of an already forwarded event
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public synchronized boolean beaconEvent(Beacon beacon) {
+        long key = beaconKey(beacon);
+        if(isDuplicate(key, beacon.getTime()))
+            return false;
+        return eventCallback != null && eventCallback.beaconEvent(beacon);
+    }
+
+    @Override
+    public synchronized boolean advertEvent(AdEventInfo info) {
+        long key = advertKey(info);
+        if(isDuplicate(key, info.getTime()))
+            return false;
+        return advertEventCallback != null && advertEventCallback.advertEvent(info);
+    }
+
+    /**
+     * The identity of a beacon event
+     */
+    static long beaconKey(Beacon beacon) {
+        long key = beacon.getUUID() != null ? beacon.getUUID().hashCode() : 0;
+        key = key * 0x9E3779B97F4A7C15L + beacon.getMajor();
+        key = key * 0x9E3779B97F4A7C15L + beacon.getMinor();
+        return mix(key);
+    }
+
+    /**
+     * The identity of an advertising event, computed without copying the AD structure data
+     */
+    static long advertKey(AdEventInfo info) {
+        long hash = 0xcbf29ce484222325L;
+        for (int n = 0; n < 6; n++) {
+            hash ^= info.getBDaddrByte(n) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        int count = info.getCount();
+        for (int i = 0; i < count; i++) {
+            AdStructure ads = info.getADS(i);
+            hash ^= ads.getType();
+            hash *= 0x100000001b3L;
+            int length = ads.getLength();
+            for (int n = 0; n < length; n++) {
+                hash ^= ads.getByte(n) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private boolean isDuplicate(long key, long time) {
+        int index = (int) mix(key) & mask;
+        int oldest = index;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (index + probe) & mask;
+            if(!used[slot]) {
+                oldest = slot;
+                break;
+            }
+            if(keys[slot] == key) {
+                if(Math.abs(time - times[slot]) < windowMillis) {
+                    duplicateCount ++;
+                    return true;
+                }
+                oldest = slot;
+                break;
+            }
+            if(times[slot] < times[oldest])
+                oldest = slot;
+        }
+        // Record the forwarded event, replacing the stalest entry in the probe sequence if there was no match
+        used[oldest] = true;
+        keys[oldest] = key;
+        times[oldest] = time;
+        forwardedCount ++;
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package org.jboss.rhiot.ble.bluez;
+
+/**
+ * The event source backed by the scannerJni BlueZ native library. The default scanner uses the legacy single
+ * scanner allocScanner/freeScanner api, and all other scanners the per device api.
+ */
+public class NativeEventSource implements IEventSource {
+    /** The shared instance, the native library holds the per device state */
+    public static final NativeEventSource INSTANCE = new NativeEventSource();
+
+    @Override
+    public void start(HCIScanner scanner) {
+        if(scanner.isLegacyNative())
+            HCIDump.allocScanner(scanner.getNativeBuffer(), scanner.getDevice(), scanner.isGeneral());
+        else {
+            try {
+                HCIDump.allocDeviceScanner(scanner.getNativeBuffer(), scanner.getDevice(), scanner.isGeneral());
+            } catch (UnsatisfiedLinkError e) {
+                throw new UnsupportedOperationException("Scanning "+scanner.getHciDev()
+                    +" needs a scannerJni library rebuilt with allocDeviceScanner, only the default device is supported: "
+                    +e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void stop(HCIScanner scanner) {
+        if(scanner.isLegacyNative())
+            HCIDump.freeScanner();
+        else
+            HCIDump.freeDeviceScanner(scanner.getDevice());
+    }
+
+    public String toString() {
+        return "NativeEventSource";
+    }
+}
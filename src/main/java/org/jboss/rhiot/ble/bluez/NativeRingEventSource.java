@@ -0,0 +1,123 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The event source backed by the native BlueZ scanner writing into a multi-frame {@link FrameRing} rather than the
+ * scanner's single native buffer. The native scanner thread writes frames into the ring and upcalls
+ * {@link HCIDump#ringNotification(int)} once maxBatch frames are pending or the oldest pending frame has waited
+ * lingerMillis, and the upcall dispatches every pending frame through {@link HCIScanner#eventNotification(ByteBuffer)}.
+ * This replaces one JNI upcall per frame with one per batch, and the native thread no longer waits for Java to
+ * finish with a frame before it can receive the next one.
+ *
+ * Each scanner needs its own instance:
+ * <pre>
+ *     HCIScanner scanner = new HCIScanner("hci0");
+ *     scanner.setEventSource(new NativeRingEventSource(1024, 64, 10));
+ *     scanner.start();
+ * </pre>
+ * This needs a scannerJni library rebuilt with allocRingScanner, otherwise start throws an
+ * UnsupportedOperationException.
+ */
+public class NativeRingEventSource implements IEventSource {
+    public static final int DEFAULT_SLOT_COUNT = 1024;
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final long DEFAULT_LINGER_MILLIS = 10;
+
+    private final int slotCount;
+    private final int maxBatch;
+    private final long lingerMillis;
+    private volatile HCIScanner scanner;
+    private volatile FrameRing ring;
+    private final IRawEventCallback dispatcher = new IRawEventCallback() {
+        @Override
+        public boolean beaconEvent(ByteBuffer frame) {
+            return scanner.eventNotification(frame);
+        }
+    };
+
+    public NativeRingEventSource() {
+        this(DEFAULT_SLOT_COUNT, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * @param slotCount - the number of frames the ring can hold, rounded up to a power of 2
+     * @param maxBatch - the number of pending frames that triggers an upcall
+     * @param lingerMillis - the maximum time a frame waits for an upcall
+     */
+    public NativeRingEventSource(int slotCount, int maxBatch, long lingerMillis) {
+        if(maxBatch < 1 || maxBatch > slotCount)
+            throw new IllegalArgumentException(String.format("maxBatch(%d) must be 1-slotCount(%d)", maxBatch, slotCount));
+        this.slotCount = slotCount;
+        this.maxBatch = maxBatch;
+        this.lingerMillis = lingerMillis;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @return the ring of the running scanner for its occupancy, drop and batch metrics, null if not started
+     */
+    public FrameRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public synchronized void start(HCIScanner scanner) {
+        if(this.scanner != null && this.scanner != scanner)
+            throw new IllegalStateException("NativeRingEventSource is already used by: "+this.scanner.getHciDev());
+        FrameRing ring = new FrameRing(slotCount, scanner.getNativeBuffer().capacity(), scanner.isGeneral());
+        // Bound ahead of the native call as the native thread may upcall as soon as it starts
+        this.scanner = scanner;
+        this.ring = ring;
+        try {
+            HCIDump.allocRingScanner(ring.getBuffer(), scanner.getDevice(), scanner.isGeneral(), maxBatch, (int) lingerMillis);
+        } catch (UnsatisfiedLinkError e) {
+            this.scanner = null;
+            this.ring = null;
+            throw new UnsupportedOperationException("Scanning "+scanner.getHciDev()
+                +" through a ring needs a scannerJni library rebuilt with allocRingScanner: "+e.getMessage(), e);
+        } catch (RuntimeException | Error e) {
+            // Leave the source free for another start
+            this.scanner = null;
+            this.ring = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void stop(HCIScanner scanner) {
+        if(this.scanner != scanner)
+            return;
+        HCIDump.freeRingScanner(scanner.getDevice());
+        this.scanner = null;
+    }
+
+    /**
+     * Dispatch every pending frame of the ring, called from the ringNotification upcall
+     * @return true if scanning should stop, false to continue
+     */
+    public boolean drain() {
+        FrameRing ring = this.ring;
+        HCIScanner scanner = this.scanner;
+        if(ring == null || scanner == null)
+            return true;
+        scanner.getMetrics().getUpcalls().mark();
+        return ring.drain(dispatcher);
+    }
+
+    public String toString() {
+        return String.format("NativeRingEventSource(slots=%d, maxBatch=%d, linger=%d): %s", slotCount, maxBatch,
+            lingerMillis, ring);
+    }
+}
@@ -0,0 +1,138 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The presence state of one beacon, identified by its uuid, major and minor, or one advertising device, identified by
+ * its bdaddr and address type, in a {@link PresenceRegistry}. The fields are written by the dispatching threads
+ * without locking and may be read at any time, so a reader may see the rssi of one sighting with the time of the
+ * next.
+ */
+public class Presence {
+    static final int PRESENT = 0;
+    static final int EXITED = 1;
+    private static final AtomicIntegerFieldUpdater<Presence> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Presence.class, "state");
+
+    /** The beacon uuid, null for a device */
+    final String uuid;
+    /** major << 16 | minor for a beacon, bdaddr | address type << 48 for a device */
+    final long id;
+    final long firstSeen;
+    volatile long lastSeen;
+    volatile int rssi;
+    volatile double smoothedRssi;
+    /** Racy count of the sightings, concurrent updates may lose increments */
+    volatile long count;
+    volatile int state;
+    /** The wheel slot list link and deadline, only accessed by the registry's ticker */
+    Presence nextInSlot;
+    long deadlineTick;
+
+    Presence(String uuid, long id, int rssi, long time) {
+        this.uuid = uuid;
+        this.id = id;
+        this.firstSeen = time;
+        this.lastSeen = time;
+        this.rssi = rssi;
+        this.smoothedRssi = rssi;
+        this.count = 1;
+    }
+
+    boolean exit() {
+        return STATE.compareAndSet(this, PRESENT, EXITED);
+    }
+
+    public boolean isBeacon() {
+        return uuid != null;
+    }
+
+    /**
+     * @return the beacon uuid, null for a device
+     */
+    public String getUUID() {
+        return uuid;
+    }
+
+    public int getMajor() {
+        return uuid != null ? (int) (id >>> 16) & 0xffff : -1;
+    }
+
+    public int getMinor() {
+        return uuid != null ? (int) id & 0xffff : -1;
+    }
+
+    /**
+     * @return the bdaddr of a device with the first byte of the frame in the low bits, 0 for a beacon
+     */
+    public long getAddress() {
+        return uuid == null ? id & 0xffffffffffffL : 0;
+    }
+
+    /**
+     * @return the address type of a device; 0 = Public, 1 = Random
+     */
+    public int getAddressType() {
+        return uuid == null ? (int) (id >>> 48) & 0xff : -1;
+    }
+
+    /**
+     * @return the device address as a colon separated string of the hex values, as in RHIoTTag.getAddressString()
+     */
+    public String getAddressString() {
+        if(uuid != null)
+            return null;
+        StringBuilder tmp = new StringBuilder(17);
+        for (int n = 5; n >= 0; n--) {
+            tmp.append(String.format("%02X", (id >>> (8 * n)) & 0xff));
+            if(n > 0)
+                tmp.append(':');
+        }
+        return tmp.toString();
+    }
+
+    /**
+     * @return the event time of the first sighting of this presence
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * @return the event time of the last sighting
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the rssi of the last sighting
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the rssi
+     */
+    public double getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    /**
+     * @return the number of sightings since entering
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isPresent() {
+        return state == PRESENT;
+    }
+
+    public String toString() {
+        String name = uuid != null ? String.format("%s,%d,%d", uuid, getMajor(), getMinor()) : getAddressString();
+        return String.format("Presence{[%s] present=%s, rssi=%d, smoothedRssi=%.1f, count=%d, firstSeen=%d, lastSeen=%d}",
+            name, isPresent(), rssi, smoothedRssi, count, firstSeen, lastSeen);
+    }
+}
@@ -0,0 +1,475 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.IGauge;
+import org.jboss.rhiot.ble.common.Meter;
+import org.jboss.rhiot.ble.common.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which beacons and advertising devices are currently in range. Each beacon, by uuid, major and minor, or
+ * device, by bdaddr and address type, has a {@link Presence} holding its last seen time, rssi, smoothed rssi and
+ * sighting count. The first sighting of an absent beacon or device is an enter event, delivered on the dispatching
+ * thread, and exitTimeoutMillis without a sighting is an exit event, delivered on the ticker thread.
+ *
+ * A sighting of a present beacon is a lookup with a reused key and a few volatile writes, and reads never lock, so the
+ * registry scales to hundreds of thousands of devices. Expiry uses a hierarchical timing wheel of 256 ticks of
+ * tickMillis and three levels of 64 coarser slots that only the ticker thread touches. Sightings do not move a
+ * presence in the wheel; when its slot comes due the ticker checks the last seen time and either reschedules it for
+ * lastSeen + exitTimeoutMillis or expires it, so each present device costs one wheel operation per exit timeout rather
+ * than a periodic scan of all devices.
+ *
+ * Times are the event times of the frames, which the native scanner takes from the wall clock, and the ticker
+ * advances the wheel with System.currentTimeMillis(). When events carry other times, such as a simulated or replayed
+ * clock, drive the wheel with {@link #advanceTo(long)} instead of {@link #start()}.
+ *
+ * <pre>
+ *     PresenceRegistry presence = new PresenceRegistry();
+ *     presence.addCallback(callback);
+ *     presence.attach(HCIDump.getDefaultScanner());
+ *     presence.start();
+ * </pre>
+ */
+public class PresenceRegistry {
+    public static final long DEFAULT_EXIT_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    /** The default weight of a new rssi in the smoothed rssi */
+    public static final double DEFAULT_RSSI_ALPHA = 0.25;
+    private static final int LEVEL0_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 4;
+    /** The longest delay the wheel can hold, in ticks */
+    private static final long MAX_DELAY_TICKS = (1L << (LEVEL0_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+
+    /** The flyweight views used by each dispatching thread */
+    private static final ThreadLocal<BeaconView> beaconViews = new ThreadLocal<BeaconView>() {
+        @Override
+        protected BeaconView initialValue() {
+            return new BeaconView();
+        }
+    };
+    /** The lookup key reused by each dispatching thread */
+    private static final ThreadLocal<Key> probes = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key(null, 0);
+        }
+    };
+
+    private final long exitTimeoutMillis;
+    private final long tickMillis;
+    private final double rssiAlpha;
+    private final ConcurrentHashMap<Key, Presence> presences = new ConcurrentHashMap<>(1024);
+    /** The presences that entered since the ticker last ran, to be added to the wheel */
+    private final ConcurrentLinkedQueue<Presence> entered = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<IPresenceCallback> callbacks = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<HCIScanner, IRawEventCallback> taps = new ConcurrentHashMap<>();
+    private final AtomicInteger presentCount = new AtomicInteger();
+    private final Meter enters = new Meter();
+    private final Meter exits = new Meter();
+    /** The timing wheel slots, level 0 has 2^LEVEL0_BITS slots and each higher level 2^LEVEL_BITS */
+    private final Presence[][] wheel = new Presence[LEVELS][];
+    /** The current tick of the wheel, -1 until the first advance */
+    private long currentTick = -1;
+    private volatile boolean running;
+    private Thread ticker;
+
+    public PresenceRegistry() {
+        this(DEFAULT_EXIT_TIMEOUT_MILLIS, DEFAULT_TICK_MILLIS, DEFAULT_RSSI_ALPHA);
+    }
+
+    /**
+     * @param exitTimeoutMillis - the time without a sighting after which a beacon or device exits
+     * @param tickMillis - the resolution of the exit time
+     * @param rssiAlpha - the weight of a new rssi in the smoothed rssi, 0-1
+     */
+    public PresenceRegistry(long exitTimeoutMillis, long tickMillis, double rssiAlpha) {
+        if(tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis must be > 0: "+tickMillis);
+        if(exitTimeoutMillis < tickMillis)
+            throw new IllegalArgumentException(String.format("exitTimeoutMillis(%d) must be >= tickMillis(%d)",
+                exitTimeoutMillis, tickMillis));
+        if(rssiAlpha <= 0 || rssiAlpha > 1)
+            throw new IllegalArgumentException("rssiAlpha must be in (0, 1]: "+rssiAlpha);
+        this.exitTimeoutMillis = exitTimeoutMillis;
+        this.tickMillis = tickMillis;
+        this.rssiAlpha = rssiAlpha;
+        wheel[0] = new Presence[1 << LEVEL0_BITS];
+        for (int level = 1; level < LEVELS; level++)
+            wheel[level] = new Presence[1 << LEVEL_BITS];
+    }
+
+    public long getExitTimeoutMillis() {
+        return exitTimeoutMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public double getRssiAlpha() {
+        return rssiAlpha;
+    }
+
+    public void addCallback(IPresenceCallback callback) {
+        callbacks.add(callback);
+    }
+
+    public void removeCallback(IPresenceCallback callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * @return the number of beacons and devices present
+     */
+    public int size() {
+        return presentCount.get();
+    }
+
+    public long getEnterCount() {
+        return enters.getCount();
+    }
+
+    public long getExitCount() {
+        return exits.getCount();
+    }
+
+    /**
+     * @return the presence of a beacon, null if it is not present
+     */
+    public Presence get(String uuid, int major, int minor) {
+        Key probe = probes.get();
+        probe.set(uuid, beaconId(major, minor));
+        return presences.get(probe);
+    }
+
+    /**
+     * @param address - the bdaddr with the first byte of the frame in the low bits
+     * @param addressType - the address type; 0 = Public, 1 = Random
+     * @return the presence of a device, null if it is not present
+     */
+    public Presence getDevice(long address, int addressType) {
+        Key probe = probes.get();
+        probe.set(null, deviceId(address, addressType));
+        return presences.get(probe);
+    }
+
+    /**
+     * @return a copy of the list of beacons and devices present
+     */
+    public List<Presence> getPresent() {
+        List<Presence> present = new ArrayList<>(presentCount.get());
+        for (Presence presence : presences.values()) {
+            if(presence.isPresent())
+                present.add(presence);
+        }
+        return present;
+    }
+
+    /**
+     * Feed the registry from every event of a scanner, beacon events in beacon scanning mode and device events in
+     * general scanning mode
+     * @param scanner - the scanner to observe, for example HCIDump.getDefaultScanner()
+     */
+    public void attach(final HCIScanner scanner) {
+        IRawEventCallback tap = new IRawEventCallback() {
+            @Override
+            public boolean beaconEvent(ByteBuffer frame) {
+                if(scanner.isGeneral()) {
+                    updateAdvert(frame);
+                } else {
+                    BeaconView view = beaconViews.get().wrap(frame);
+                    update(view);
+                    view.wrap(null);
+                }
+                return false;
+            }
+        };
+        if(taps.putIfAbsent(scanner, tap) == null)
+            scanner.addEventTap(tap);
+    }
+
+    public void detach(HCIScanner scanner) {
+        IRawEventCallback tap = taps.remove(scanner);
+        if(tap != null)
+            scanner.removeEventTap(tap);
+    }
+
+    /**
+     * Record a sighting of a beacon
+     * @param view - view over the beacon_info frame
+     */
+    public void update(BeaconView view) {
+        update(view.getUUID(), beaconId(view.getMajor(), view.getMinor()), view.getRssi(), view.getTime());
+    }
+
+    /**
+     * Record a sighting of a beacon
+     */
+    public void update(String uuid, int major, int minor, int rssi, long time) {
+        update(uuid, beaconId(major, minor), rssi, time);
+    }
+
+    /**
+     * Record a sighting of the device of a general advertising event
+     * @param frame - the ad_data_inline frame at the start of the buffer
+     */
+    public void updateAdvert(ByteBuffer frame) {
+        long address = 0;
+        for (int n = 5; n >= 0; n--)
+            address = address << 8 | (frame.get(HCIDump.ADI_bdaddr_OFFSET + n) & 0xff);
+        int addressType = frame.get(HCIDump.ADI_bdaddr_type_OFFSET) & 0xff;
+        update(null, deviceId(address, addressType), AdEventInfo.getIntLE(frame, HCIDump.ADI_rssi_OFFSET),
+            AdEventInfo.getLongLE(frame, HCIDump.ADI_time_OFFSET));
+    }
+
+    /**
+     * Record a sighting of a device
+     * @param address - the bdaddr with the first byte of the frame in the low bits
+     * @param addressType - the address type; 0 = Public, 1 = Random
+     */
+    public void updateDevice(long address, int addressType, int rssi, long time) {
+        update(null, deviceId(address, addressType), rssi, time);
+    }
+
+    private void update(String uuid, long id, int rssi, long time) {
+        Key probe = probes.get();
+        probe.set(uuid, id);
+        while (true) {
+            Presence presence = presences.get(probe);
+            if(presence != null && presence.state == Presence.PRESENT) {
+                if(time > presence.lastSeen)
+                    presence.lastSeen = time;
+                presence.rssi = rssi;
+                presence.smoothedRssi += rssiAlpha * (rssi - presence.smoothedRssi);
+                presence.count ++;
+                return;
+            }
+            // Absent, or exited and not yet removed by the ticker
+            Presence created = new Presence(uuid, id, rssi, time);
+            boolean installed = presence == null ? presences.putIfAbsent(new Key(uuid, id), created) == null
+                : presences.replace(probe, presence, created);
+            if(installed) {
+                presentCount.incrementAndGet();
+                enters.mark();
+                entered.offer(created);
+                notify(created, true);
+                return;
+            }
+        }
+    }
+
+    private void notify(Presence presence, boolean present) {
+        for (IPresenceCallback callback : callbacks) {
+            try {
+                callback.presenceChanged(presence, present);
+            } catch (Throwable e) {
+                System.err.printf("Presence callback failed for %s, msg=%s\n", presence, e);
+            }
+        }
+    }
+
+    /**
+     * Start the daemon ticker thread that advances the wheel to the current time every tickMillis
+     */
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(tickMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    advanceTo(System.currentTimeMillis());
+                }
+            }
+        }, "PresenceRegistry");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if(ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Advance the timing wheel, delivering the exit events of the beacons and devices not seen for exitTimeoutMillis
+     * before the given time. This is called by the ticker thread, or directly when the events use another clock.
+     * @param nowMillis - the current time in the clock of the event times
+     */
+    public synchronized void advanceTo(long nowMillis) {
+        long nowTick = nowMillis / tickMillis;
+        if(currentTick < 0)
+            currentTick = nowTick;
+        Presence presence;
+        while ((presence = entered.poll()) != null) {
+            // The current tick has been processed, so the earliest slot is the next one
+            if(presence.isPresent())
+                schedule(presence, Math.max(deadline(presence), currentTick + 1));
+        }
+        while (currentTick < nowTick)
+            tick(++ currentTick);
+    }
+
+    private long deadline(Presence presence) {
+        return (presence.lastSeen + exitTimeoutMillis) / tickMillis;
+    }
+
+    private void tick(long tick) {
+        // Cascade the due slots of the higher levels down, highest first
+        int level = 0;
+        long t = tick;
+        if((t & ((1 << LEVEL0_BITS) - 1)) == 0) {
+            t >>>= LEVEL0_BITS;
+            level = 1;
+            while (level < LEVELS - 1 && (t & ((1 << LEVEL_BITS) - 1)) == 0) {
+                t >>>= LEVEL_BITS;
+                level ++;
+            }
+        }
+        for (; level > 0; level--)
+            cascade(level, tick);
+
+        int slot = (int) (tick & ((1 << LEVEL0_BITS) - 1));
+        Presence presence = wheel[0][slot];
+        wheel[0][slot] = null;
+        while (presence != null) {
+            Presence next = presence.nextInSlot;
+            presence.nextInSlot = null;
+            long deadline = deadline(presence);
+            if(deadline > tick)
+                schedule(presence, deadline);
+            else
+                expire(presence);
+            presence = next;
+        }
+    }
+
+    private void cascade(int level, long tick) {
+        int shift = LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+        int slot = (int) ((tick >>> shift) & ((1 << LEVEL_BITS) - 1));
+        Presence presence = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (presence != null) {
+            Presence next = presence.nextInSlot;
+            presence.nextInSlot = null;
+            long deadline = deadline(presence);
+            if(deadline >= tick)
+                schedule(presence, deadline);
+            else
+                expire(presence);
+            presence = next;
+        }
+    }
+
+    /**
+     * Add a presence to the wheel slot of its deadline, a deadline of the current tick is only valid while cascading
+     * before the current level 0 slot is processed
+     */
+    private void schedule(Presence presence, long deadline) {
+        long delay = deadline - currentTick;
+        if(delay < 0)
+            delay = 0;
+        else if(delay > MAX_DELAY_TICKS)
+            delay = MAX_DELAY_TICKS;
+        deadline = currentTick + delay;
+        presence.deadlineTick = deadline;
+        int level;
+        int slot;
+        if(delay < (1 << LEVEL0_BITS)) {
+            level = 0;
+            slot = (int) (deadline & ((1 << LEVEL0_BITS) - 1));
+        } else {
+            level = 1;
+            int shift = LEVEL0_BITS;
+            while (level < LEVELS - 1 && delay >= 1L << (shift + LEVEL_BITS)) {
+                level ++;
+                shift += LEVEL_BITS;
+            }
+            slot = (int) ((deadline >>> shift) & ((1 << LEVEL_BITS) - 1));
+        }
+        presence.nextInSlot = wheel[level][slot];
+        wheel[level][slot] = presence;
+    }
+
+    private void expire(Presence presence) {
+        if(!presence.exit())
+            return;
+        presences.remove(new Key(presence.uuid, presence.id), presence);
+        presentCount.decrementAndGet();
+        exits.mark();
+        notify(presence, false);
+    }
+
+    /**
+     * Register the present count and the enter and exit meters
+     * @param registry - the registry to add the metrics to
+     * @param prefix - the metric name prefix, for example "presence."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"present", new IGauge() {
+            @Override
+            public long getValue() {
+                return presentCount.get();
+            }
+        });
+        registry.register(prefix+"enters", enters);
+        registry.register(prefix+"exits", exits);
+    }
+
+    static long beaconId(int major, int minor) {
+        return (long) (major & 0xffff) << 16 | (minor & 0xffff);
+    }
+
+    static long deviceId(long address, int addressType) {
+        return (address & 0xffffffffffffL) | (long) (addressType & 0xff) << 48;
+    }
+
+    public String toString() {
+        return String.format("PresenceRegistry(exitTimeout=%d, tick=%d): present=%d, enters=%d, exits=%d",
+            exitTimeoutMillis, tickMillis, presentCount.get(), enters.getCount(), exits.getCount());
+    }
+
+    private static class Key {
+        String uuid;
+        long id;
+
+        Key(String uuid, long id) {
+            set(uuid, id);
+        }
+
+        void set(String uuid, long id) {
+            this.uuid = uuid;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return id == key.id && (uuid == null ? key.uuid == null : uuid.equals(key.uuid));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (int) (id ^ (id >>> 32));
+            return uuid == null ? h : uuid.hashCode() * 31 + h;
+        }
+    }
+}
@@ -27,7 +27,7 @@ public class RHIoTTag {
         if(tagData != null) {
             if (tagData.startsWith(SERVICE_DATA_PREFIX)) {
                 tag = new RHIoTTag(tagData.getData());
-                tag.setAddress(info.bdaddr);
+                tag.setAddress(info.getBDaddr());
             }
         }
         return tag;
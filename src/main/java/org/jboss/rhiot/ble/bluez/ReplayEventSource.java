@@ -0,0 +1,349 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event source that replays a capture file through a scanner so the callbacks, EventsWindow aggregation and
+ * downstream consumers can be exercised and benchmarked without a BlueZ adapter. The capture can be a btsnoop or
+ * pcap HCI capture, from which the LE advertising reports are converted to beacon_info frames (iBeacons only) or
+ * ad_data_inline frames depending on the scanning mode, or a native frame dump written by {@link FrameDumpWriter}.
+ *
+ * The replay runs on its own thread, which plays the role of the native scanner thread. It can follow the recorded
+ * timing, run at a multiple of the recorded speed, or run as fast as possible with a speed of
+ * {@link #AS_FAST_AS_POSSIBLE}.
+ */
+public class ReplayEventSource implements IEventSource, Runnable {
+    /** The speed value that replays the capture without any delay between events */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    /** The HCI LE meta event code */
+    static final int EVT_LE_META_EVENT = 0x3E;
+    /** The LE meta subevent for an advertising report */
+    static final int EVT_LE_ADVERTISING_REPORT = 0x02;
+    /** The LE meta subevent for an extended advertising report */
+    static final int EVT_LE_EXTENDED_ADVERTISING_REPORT = 0x0D;
+
+    private final File capture;
+    private double speed = 1.0;
+    private boolean retime = true;
+    private int loopCount = 1;
+    private volatile boolean running;
+    private Thread thread;
+    private HCIScanner scanner;
+    private ByteBuffer frame;
+    private boolean general;
+    /** The capture time of the first record of the current loop */
+    private long baseMicros = -1;
+    /** The wall clock time of the first record of the current loop */
+    private long startNanos;
+    private long startMillis;
+    private volatile long recordCount;
+    private volatile long deliveredCount;
+    private volatile long skippedCount;
+    private volatile long elapsedNanos;
+    private volatile IOException failure;
+
+    /**
+     * @param capture - btsnoop, pcap or native frame dump file
+     */
+    public ReplayEventSource(File capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * @param capture - btsnoop, pcap or native frame dump file
+     * @param speed - multiple of the recorded speed to replay at, or AS_FAST_AS_POSSIBLE
+     */
+    public ReplayEventSource(File capture, double speed) {
+        this.capture = capture;
+        this.speed = speed;
+    }
+
+    public File getCapture() {
+        return capture;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @param speed - multiple of the recorded speed to replay at, 1.0 for the recorded timing, or AS_FAST_AS_POSSIBLE
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    public boolean isRetime() {
+        return retime;
+    }
+
+    /**
+     * Control the time written into the replayed frames. When true, the default, the frame times are shifted to
+     * the replay wall clock so time based consumers such as EventsWindow behave as they would live. When false the
+     * recorded capture times are used.
+     * @param retime - true to shift frame times to the replay clock
+     */
+    public void setRetime(boolean retime) {
+        this.retime = retime;
+    }
+
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * @param loopCount - the number of times to replay the capture, 0 to loop until stopped
+     */
+    public void setLoopCount(int loopCount) {
+        this.loopCount = loopCount;
+    }
+
+    /**
+     * @return the number of capture records read
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of frames delivered to the scanner
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return the number of advertising reports or frames that did not match the scanning mode
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * @return the wall clock time the replay has run for
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the error that ended the replay, null if there was none
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Wait for the replay to finish
+     * @param millis - the maximum time to wait, 0 to wait forever
+     * @throws InterruptedException
+     */
+    public void join(long millis) throws InterruptedException {
+        Thread t = thread;
+        if(t != null)
+            t.join(millis);
+    }
+
+    @Override
+    public synchronized void start(HCIScanner scanner) {
+        if(running)
+            throw new IllegalStateException("Replay is already running for: "+this.scanner);
+        this.scanner = scanner;
+        this.frame = scanner.getNativeBuffer();
+        this.general = scanner.isGeneral();
+        running = true;
+        thread = new Thread(this, "ReplayEventSource-" + scanner.getHciDev());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop(HCIScanner scanner) {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if(t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long begin = System.nanoTime();
+        try {
+            for (int loop = 0; running && (loopCount == 0 || loop < loopCount); loop++) {
+                baseMicros = -1;
+                replayOnce();
+            }
+        } catch (IOException e) {
+            failure = e;
+            System.err.printf("Replay of %s failed, msg=%s\n", capture, e.getMessage());
+        } finally {
+            elapsedNanos = System.nanoTime() - begin;
+            running = false;
+        }
+    }
+
+    private void replayOnce() throws IOException {
+        try(InputStream is = new BufferedInputStream(new FileInputStream(capture), 64*1024)) {
+            is.mark(FrameDumpWriter.MAGIC.length);
+            byte[] magic = new byte[FrameDumpWriter.MAGIC.length];
+            int read = is.read(magic);
+            is.reset();
+            if(read == magic.length && Arrays.equals(magic, FrameDumpWriter.MAGIC))
+                replayDump(new FrameDumpReader(is));
+            else
+                replayCapture(new HCICaptureReader(is));
+        }
+    }
+
+    private void replayDump(FrameDumpReader reader) throws IOException {
+        while (running && reader.next()) {
+            recordCount ++;
+            int length = reader.getLength();
+            if(reader.isGeneral() != general || length > frame.capacity()) {
+                skippedCount ++;
+                continue;
+            }
+            long replayTime = pace(reader.getTimeMicros());
+            byte[] data = reader.getFrame();
+            for (int n = 0; n < length; n++)
+                frame.put(n, data[n]);
+            if(retime)
+                FrameEncoder.setTime(frame, general, replayTime);
+            deliver();
+        }
+    }
+
+    private void replayCapture(HCICaptureReader reader) throws IOException {
+        while (running && reader.next()) {
+            recordCount ++;
+            if(reader.getPacketType() != HCICaptureReader.HCI_EVENT_PKT)
+                continue;
+            byte[] packet = reader.getPacket();
+            int offset = reader.getPacketOffset();
+            int length = reader.getPacketLength();
+            // evt code, param length, subevent, num reports
+            if(length < 4 || (packet[offset] & 0xff) != EVT_LE_META_EVENT)
+                continue;
+            int subevent = packet[offset + 2] & 0xff;
+            if(subevent == EVT_LE_ADVERTISING_REPORT)
+                replayAdvertisingReports(packet, offset + 3, offset + length, reader.getTimeMicros());
+            else if(subevent == EVT_LE_EXTENDED_ADVERTISING_REPORT)
+                replayExtendedAdvertisingReports(packet, offset + 3, offset + length, reader.getTimeMicros());
+        }
+    }
+
+    /**
+     * Replay the reports of an LE Advertising Report event, whose parameters are arrays of each report field.
+     */
+    private void replayAdvertisingReports(byte[] packet, int offset, int end, long timeMicros) {
+        int numReports = packet[offset] & 0xff;
+        int eventTypes = offset + 1;
+        int addrTypes = eventTypes + numReports;
+        int addrs = addrTypes + numReports;
+        int dataLengths = addrs + 6 * numReports;
+        int data = dataLengths + numReports;
+        int totalData = 0;
+        for (int i = 0; i < numReports && dataLengths + i < end; i++)
+            totalData += packet[dataLengths + i] & 0xff;
+        int rssis = data + totalData;
+        if(rssis + numReports > end)
+            return;
+        for (int i = 0; i < numReports && running; i++) {
+            int dataLength = packet[dataLengths + i] & 0xff;
+            replayReport(packet[addrTypes + i] & 0xff, packet, addrs + 6 * i, packet[rssis + i], packet, data, dataLength, timeMicros);
+            data += dataLength;
+        }
+    }
+
+    /**
+     * Replay the reports of an LE Extended Advertising Report event, whose reports are sequential.
+     */
+    private void replayExtendedAdvertisingReports(byte[] packet, int offset, int end, long timeMicros) {
+        int numReports = packet[offset] & 0xff;
+        int report = offset + 1;
+        for (int i = 0; i < numReports && running; i++) {
+            // event_type(2), addr_type(1), addr(6), primary/secondary phy(2), sid(1), tx power(1), rssi(1),
+            // interval(2), direct addr type(1), direct addr(6), data length(1)
+            if(report + 24 > end)
+                return;
+            int addrType = packet[report + 2] & 0xff;
+            int rssi = packet[report + 13];
+            int dataLength = packet[report + 23] & 0xff;
+            if(report + 24 + dataLength > end)
+                return;
+            replayReport(addrType, packet, report + 3, rssi, packet, report + 24, dataLength, timeMicros);
+            report += 24 + dataLength;
+        }
+    }
+
+    private void replayReport(int addrType, byte[] addr, int addrOffset, int rssi, byte[] data, int dataOffset,
+                              int dataLength, long timeMicros) {
+        long replayTime = pace(timeMicros);
+        long time = retime ? replayTime : timeMicros / 1000;
+        int length;
+        if(general)
+            length = FrameEncoder.encodeAdvert(frame, addrType, addr, addrOffset, rssi, time, data, dataOffset, dataLength);
+        else
+            length = FrameEncoder.encodeIBeacon(frame, data, dataOffset, dataLength, rssi, time);
+        if(length == 0) {
+            skippedCount ++;
+            return;
+        }
+        deliver();
+    }
+
+    /**
+     * Wait until the replay time of a record
+     * @param timeMicros - the capture time of the record
+     * @return the replay wall clock time of the record in milliseconds
+     */
+    private long pace(long timeMicros) {
+        if(baseMicros < 0) {
+            baseMicros = timeMicros;
+            startNanos = System.nanoTime();
+            startMillis = System.currentTimeMillis();
+        }
+        if(speed <= AS_FAST_AS_POSSIBLE)
+            return System.currentTimeMillis();
+
+        long offsetNanos = (long) ((timeMicros - baseMicros) * 1000 / speed);
+        long waitNanos = startNanos + offsetNanos - System.nanoTime();
+        while (waitNanos > 0 && running) {
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = startNanos + offsetNanos - System.nanoTime();
+        }
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(offsetNanos);
+    }
+
+    private void deliver() {
+        deliveredCount ++;
+        if(scanner.eventNotification())
+            running = false;
+    }
+
+    public String toString() {
+        return String.format("ReplayEventSource(%s, speed=%.2f): records=%d, delivered=%d, skipped=%d", capture.getName(),
+            speed, recordCount, deliveredCount, skippedCount);
+    }
+}
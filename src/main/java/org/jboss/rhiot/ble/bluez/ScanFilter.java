@@ -0,0 +1,328 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.GAP_UUIDs;
+import org.jboss.rhiot.ble.common.UUIDCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A filter spec for the events of a scanner, meant to be evaluated by the native scanner before the JNI upcall so
+ * that irrelevant traffic never crosses into Java. {@link HCIScanner#setScanFilter(ScanFilter)} passes the
+ * {@link #encode() encoded} spec to the native library through {@link HCIDump#setScanFilter(int, ByteBuffer)}, and
+ * when the library or the event source does not support it the scanner evaluates {@link #matches(ByteBuffer, int, boolean)}
+ * at the start of the upcall instead, before the frame is recorded or copied into a dispatch ring.
+ *
+ * An event passes if it satisfies every configured criterion, and a criterion with several values is satisfied by
+ * any one of them:
+ * <ul>
+ *     <li>rssi at or above the rssi floor</li>
+ *     <li>bdaddr not in the deny list, and in the allow list if that is not empty (general events)</li>
+ *     <li>an AD structure of one of the required types (general events)</li>
+ *     <li>a ServiceData AD structure starting with one of the service data prefixes, for example
+ *     {@link RHIoTTag#SERVICE_DATA_PREFIX} (general events)</li>
+ *     <li>a manufacturer id, the company id of a ManufacturerSpecificData AD structure for general events or the
+ *     manufacturer field of a beacon</li>
+ *     <li>one of the proximity uuids (beacon events)</li>
+ * </ul>
+ * Criteria that do not apply to the scanning mode are ignored.
+ *
+ * The encoded spec is little endian:
+ * <pre>
+ *     int32   version = 1
+ *     int32   rssi floor, Integer.MIN_VALUE if not set
+ *     int32   allow, deny, prefix, manufacturer and uuid counts
+ *     int32   reserved = 0
+ *     uint8   ad type mask[32], bit t%8 of byte t/8 set if AD type t is required
+ *     { uint8 bdaddr[6] in frame order, uint8 pad[2] }        for each allowed address
+ *     { uint8 bdaddr[6] in frame order, uint8 pad[2] }        for each denied address
+ *     { uint8 length, uint8 prefix[MAX_PREFIX_LENGTH] }        for each service data prefix
+ *     { uint16 manufacturer id, uint8 pad[2] }                 for each manufacturer id
+ *     { uint8 uuid[32] ascii hex digits as in beacon_info }    for each uuid
+ * </pre>
+ * The filter is not thread safe to modify, call setScanFilter again after changing a filter in use.
+ */
+public class ScanFilter {
+    /** The version of the encoded spec */
+    public static final int VERSION = 1;
+    /** The maximum length of a service data prefix */
+    public static final int MAX_PREFIX_LENGTH = 31;
+    /** The size of the fixed header of the encoded spec */
+    public static final int HEADER_SIZE = 8*4 + 32;
+    private static final int ADDRESS_SIZE = 8;
+    private static final int PREFIX_SIZE = 1 + MAX_PREFIX_LENGTH;
+    private static final int MANUFACTURER_SIZE = 4;
+    private static final int UUID_SIZE = 32;
+
+    private int rssiFloor = Integer.MIN_VALUE;
+    private long[] allowed = new long[0];
+    private long[] denied = new long[0];
+    private final byte[] adTypeMask = new byte[32];
+    private int adTypeCount;
+    private byte[][] prefixes = new byte[0][];
+    private int[] manufacturers = new int[0];
+    /** The packed high/low longs of each uuid */
+    private long[] uuids = new long[0];
+
+    public int getRssiFloor() {
+        return rssiFloor;
+    }
+
+    /**
+     * @param rssiFloor - the minimum rssi of events that pass, Integer.MIN_VALUE for no floor
+     * @return this filter
+     */
+    public ScanFilter setRssiFloor(int rssiFloor) {
+        this.rssiFloor = rssiFloor;
+        return this;
+    }
+
+    /**
+     * @param address - a bdaddr in the AA:BB:CC:DD:EE:FF form
+     * @return this filter
+     */
+    public ScanFilter allowAddress(String address) {
+        allowed = append(allowed, addressKey(RHIoTTag.fromStringAddress(address)));
+        return this;
+    }
+
+    /**
+     * @param address - a bdaddr in the AA:BB:CC:DD:EE:FF form
+     * @return this filter
+     */
+    public ScanFilter denyAddress(String address) {
+        denied = append(denied, addressKey(RHIoTTag.fromStringAddress(address)));
+        return this;
+    }
+
+    /**
+     * @param adType - a GAP AD type, see {@link GAP_UUIDs}
+     * @return this filter
+     */
+    public ScanFilter requireAdType(int adType) {
+        if(adType < 0 || adType > 255)
+            throw new IllegalArgumentException("Invalid AD type: "+adType);
+        if((adTypeMask[adType >> 3] & (1 << (adType & 7))) == 0) {
+            adTypeMask[adType >> 3] |= 1 << (adType & 7);
+            adTypeCount ++;
+        }
+        return this;
+    }
+
+    /**
+     * @param prefix - the leading bytes of the ServiceData AD structure, starting with the 16 bit service uuid
+     * @return this filter
+     */
+    public ScanFilter addServiceDataPrefix(byte[] prefix) {
+        if(prefix.length == 0 || prefix.length > MAX_PREFIX_LENGTH)
+            throw new IllegalArgumentException("Service data prefix length must be 1-"+MAX_PREFIX_LENGTH+": "+prefix.length);
+        prefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+        prefixes[prefixes.length - 1] = prefix.clone();
+        return this;
+    }
+
+    /**
+     * @param manufacturer - a 16 bit bluetooth company id
+     * @return this filter
+     */
+    public ScanFilter addManufacturer(int manufacturer) {
+        manufacturers = Arrays.copyOf(manufacturers, manufacturers.length + 1);
+        manufacturers[manufacturers.length - 1] = manufacturer & 0xffff;
+        return this;
+    }
+
+    /**
+     * @param uuid - a beacon proximity uuid of 32 hex digits, with or without dashes
+     * @return this filter
+     */
+    public ScanFilter addUUID(String uuid) {
+        if(!UUIDCodec.isPackable(uuid))
+            throw new IllegalArgumentException("Not a 32 hex digit uuid: "+uuid);
+        uuids = append(append(uuids, UUIDCodec.high(uuid)), UUIDCodec.low(uuid));
+        return this;
+    }
+
+    /**
+     * @return the size of the encoded spec
+     */
+    public int encodedSize() {
+        return HEADER_SIZE + (allowed.length + denied.length) * ADDRESS_SIZE + prefixes.length * PREFIX_SIZE
+            + manufacturers.length * MANUFACTURER_SIZE + uuids.length / 2 * UUID_SIZE;
+    }
+
+    /**
+     * @return the spec encoded into a new little endian direct buffer for the native scanner
+     */
+    public ByteBuffer encode() {
+        ByteBuffer spec = ByteBuffer.allocateDirect(encodedSize());
+        spec.order(ByteOrder.LITTLE_ENDIAN);
+        encode(spec);
+        spec.flip();
+        return spec;
+    }
+
+    /**
+     * Encode the spec at the position of the buffer, which must be little endian
+     * @param spec - the destination buffer
+     */
+    public void encode(ByteBuffer spec) {
+        spec.putInt(VERSION);
+        spec.putInt(rssiFloor);
+        spec.putInt(allowed.length);
+        spec.putInt(denied.length);
+        spec.putInt(prefixes.length);
+        spec.putInt(manufacturers.length);
+        spec.putInt(uuids.length / 2);
+        spec.putInt(0);
+        spec.put(adTypeMask);
+        for (long address : allowed)
+            spec.putLong(address);
+        for (long address : denied)
+            spec.putLong(address);
+        for (byte[] prefix : prefixes) {
+            spec.put((byte) prefix.length);
+            spec.put(prefix);
+            for (int n = prefix.length; n < MAX_PREFIX_LENGTH; n++)
+                spec.put((byte) 0);
+        }
+        for (int manufacturer : manufacturers)
+            spec.putInt(manufacturer);
+        for (int n = 0; n < uuids.length; n += 2) {
+            // The ascii form of the native beacon_info uuid
+            String uuid = UUIDCodec.toString(uuids[n], uuids[n + 1]);
+            for (int c = 0; c < UUID_SIZE; c++)
+                spec.put((byte) uuid.charAt(c));
+        }
+    }
+
+    /**
+     * Evaluate the filter on an event frame in Java, as the native scanner does with the encoded spec. This creates a
+     * BeaconView for beacon frames, use {@link #matchesBeacon(BeaconView)} to reuse one.
+     * @param frame - the beacon_info or ad_data_inline frame at the start of the buffer
+     * @param length - the length of the frame
+     * @param general - true if the frame is an ad_data_inline general advertising event
+     * @return true if the event passes the filter
+     */
+    public boolean matches(ByteBuffer frame, int length, boolean general) {
+        return general ? matchesAdvert(frame, length) : matchesBeacon(new BeaconView(frame));
+    }
+
+    /**
+     * Evaluate the filter on a beacon event
+     * @param view - view over the beacon_info frame
+     * @return true if the event passes the filter
+     */
+    public boolean matchesBeacon(BeaconView view) {
+        if(view.getRssi() < rssiFloor)
+            return false;
+        if(manufacturers.length > 0 && !contains(manufacturers, view.getManufacturer() & 0xffff))
+            return false;
+        if(uuids.length > 0) {
+            String uuid = view.getUUID();
+            if(!UUIDCodec.isPackable(uuid))
+                return false;
+            long high = UUIDCodec.high(uuid);
+            long low = UUIDCodec.low(uuid);
+            boolean found = false;
+            for (int n = 0; n < uuids.length && !found; n += 2)
+                found = uuids[n] == high && uuids[n + 1] == low;
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the filter on a general advertising event
+     * @param frame - the ad_data_inline frame at the start of the buffer
+     * @param length - the length of the frame
+     * @return true if the event passes the filter
+     */
+    public boolean matchesAdvert(ByteBuffer frame, int length) {
+        if(AdEventInfo.getIntLE(frame, HCIDump.ADI_rssi_OFFSET) < rssiFloor)
+            return false;
+        if(allowed.length > 0 || denied.length > 0) {
+            long address = 0;
+            for (int n = 5; n >= 0; n--)
+                address = address << 8 | (frame.get(HCIDump.ADI_bdaddr_OFFSET + n) & 0xff);
+            if(contains(denied, address) || (allowed.length > 0 && !contains(allowed, address)))
+                return false;
+        }
+        if(adTypeCount == 0 && prefixes.length == 0 && manufacturers.length == 0)
+            return true;
+
+        boolean typeFound = adTypeCount == 0;
+        boolean prefixFound = prefixes.length == 0;
+        boolean manufacturerFound = manufacturers.length == 0;
+        int count = frame.get(HCIDump.ADI_count_OFFSET) & 0xff;
+        int offset = HCIDump.ADI_data_OFFSET;
+        for (int i = 0; i < count && offset + 1 < length; i++) {
+            // ad_structure: uint8 length, uint8 type, data[length]
+            int adsLength = frame.get(offset) & 0xff;
+            int type = frame.get(offset + 1) & 0xff;
+            int data = offset + 2;
+            int dataLength = Math.min(adsLength, length - data);
+            if(!typeFound)
+                typeFound = (adTypeMask[type >> 3] & (1 << (type & 7))) != 0;
+            if(!prefixFound && type == GAP_UUIDs.ServiceData)
+                prefixFound = startsWithPrefix(frame, data, dataLength);
+            if(!manufacturerFound && type == GAP_UUIDs.ManufacturerSpecificData && dataLength >= 2) {
+                int company = (frame.get(data) & 0xff) | (frame.get(data + 1) & 0xff) << 8;
+                manufacturerFound = contains(manufacturers, company);
+            }
+            offset += adsLength + 2;
+        }
+        return typeFound && prefixFound && manufacturerFound;
+    }
+
+    private boolean startsWithPrefix(ByteBuffer frame, int data, int dataLength) {
+        for (byte[] prefix : prefixes) {
+            if(prefix.length > dataLength)
+                continue;
+            int n = 0;
+            while (n < prefix.length && frame.get(data + n) == prefix[n])
+                n ++;
+            if(n == prefix.length)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the bdaddr bytes in frame order packed into a long
+     */
+    private static long addressKey(byte[] bdaddr) {
+        long key = 0;
+        for (int n = 5; n >= 0; n--)
+            key = key << 8 | (bdaddr[n] & 0xff);
+        return key;
+    }
+
+    private static long[] append(long[] array, long value) {
+        long[] bigger = Arrays.copyOf(array, array.length + 1);
+        bigger[array.length] = value;
+        return bigger;
+    }
+
+    private static boolean contains(long[] array, long value) {
+        for (long v : array) {
+            if(v == value)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int v : array) {
+            if(v == value)
+                return true;
+        }
+        return false;
+    }
+
+    public String toString() {
+        return String.format("ScanFilter(rssiFloor=%d, allowed=%d, denied=%d, adTypes=%d, prefixes=%d, manufacturers=%d, uuids=%d)",
+            rssiFloor, allowed.length, denied.length, adTypeCount, prefixes.length, manufacturers.length, uuids.length / 2);
+    }
+}
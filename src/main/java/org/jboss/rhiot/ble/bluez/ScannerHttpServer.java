@@ -0,0 +1,567 @@
+package org.jboss.rhiot.ble.bluez;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.BeaconJsonWriter;
+import org.jboss.rhiot.ble.common.EventsBucket;
+import org.jboss.rhiot.ble.common.IBucketCallback;
+import org.jboss.rhiot.ble.common.IGauge;
+import org.jboss.rhiot.ble.common.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An optional embedded HTTP server, built on the JDK's com.sun.net.httpserver, that lets operators see what a gateway
+ * hears. The endpoints are:
+ * <pre>
+ *     /metrics     the {@link MetricsRegistry} in the Prometheus text format, hciN metrics labelled adapter="hciN"
+ *     /bucket      the last closed EventsWindow bucket as JSON, passed in through {@link #bucketEvent(EventsBucket)}
+ *     /lastseen    the {@link LastSeenTable} of beacons and RHIoTTags as JSON, ?maxAge=millis to limit the age
+ *     /events      a server-sent-events stream of live beacon and tag events, filtered by the query parameters
+ *                  type=beacon|tag, uuid, major, minor, minRssi and address
+ * </pre>
+ * Every response is built from a snapshot: the metric values are atomic reads, the last seen table is copied without
+ * locking, and the bucket JSON is serialized once when the bucket is published. The scanners feed the last seen table
+ * and the event streams through the event tap installed by {@link #attach(HCIScanner)}, and an event is only
+ * serialized when a connected stream's filter matches it. Each stream has a bounded queue and events that do not fit
+ * are dropped and reported to the client as a dropped event, so a slow client never holds up the dispatching thread.
+ *
+ * <pre>
+ *     ScannerHttpServer http = new ScannerHttpServer(8080);
+ *     http.attach(scanner);
+ *     http.start();
+ *     window.enableAsyncRollover(4, http);
+ * </pre>
+ */
+public class ScannerHttpServer implements IBucketCallback {
+    public static final int DEFAULT_MAX_STREAMS = 16;
+    public static final int DEFAULT_STREAM_QUEUE_SIZE = 1024;
+    /** How often an idle event stream sends a comment to detect closed connections */
+    static final long KEEPALIVE_MILLIS = 15000;
+    static final String PROMETHEUS_PREFIX = "rhiot_ble_";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The flyweight views and writers used by each dispatching thread */
+    private static final ThreadLocal<BeaconView> beaconViews = new ThreadLocal<BeaconView>() {
+        @Override
+        protected BeaconView initialValue() {
+            return new BeaconView();
+        }
+    };
+    private static final ThreadLocal<BeaconJsonWriter> writers = new ThreadLocal<BeaconJsonWriter>() {
+        @Override
+        protected BeaconJsonWriter initialValue() {
+            return new BeaconJsonWriter();
+        }
+    };
+
+    private final InetSocketAddress address;
+    private final LastSeenTable lastSeen;
+    private final CopyOnWriteArrayList<EventStream> streams = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<HCIScanner, IRawEventCallback> taps = new ConcurrentHashMap<>();
+    private MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+    private int maxStreams = DEFAULT_MAX_STREAMS;
+    private int streamQueueSize = DEFAULT_STREAM_QUEUE_SIZE;
+    private volatile String bucketJson;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param port - the port to listen on all interfaces, 0 for an ephemeral port
+     */
+    public ScannerHttpServer(int port) {
+        this(new InetSocketAddress(port), new LastSeenTable());
+    }
+
+    /**
+     * @param address - the address to listen on
+     * @param lastSeen - the table the attached scanners update
+     */
+    public ScannerHttpServer(InetSocketAddress address, LastSeenTable lastSeen) {
+        this.address = address;
+        this.lastSeen = lastSeen;
+    }
+
+    public LastSeenTable getLastSeen() {
+        return lastSeen;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * @param metricsRegistry - the registry served by /metrics, by default {@link MetricsRegistry#getDefault()}
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    /**
+     * @param maxStreams - the maximum number of concurrent /events clients, each of which holds a server thread
+     */
+    public void setMaxStreams(int maxStreams) {
+        this.maxStreams = maxStreams;
+    }
+
+    public int getStreamQueueSize() {
+        return streamQueueSize;
+    }
+
+    /**
+     * @param streamQueueSize - the number of events buffered for each /events client before events are dropped
+     */
+    public void setStreamQueueSize(int streamQueueSize) {
+        this.streamQueueSize = streamQueueSize;
+    }
+
+    /**
+     * @return the number of connected /events clients
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * @return the bound address, which has the actual port once started
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : address;
+    }
+
+    /**
+     * Bind and start serving. The JDK server's dispatcher thread is not a daemon thread, so call stop() to let the JVM
+     * exit.
+     * @throws IOException if the address cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if(server != null)
+            return;
+        HttpServer server = HttpServer.create(address, 0);
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ScannerHttpServer-"+threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", formatPrometheus(metricsRegistry.snapshot()));
+            }
+        });
+        server.createContext("/bucket", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String json = bucketJson;
+                if(json != null)
+                    send(exchange, 200, "application/json", json);
+                else
+                    send(exchange, 404, "text/plain", "No bucket has been published\n");
+            }
+        });
+        server.createContext("/lastseen", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String maxAge = query.get("maxAge");
+                long minTime = 0;
+                try {
+                    if(maxAge != null)
+                        minTime = System.currentTimeMillis() - Long.parseLong(maxAge);
+                } catch (NumberFormatException e) {
+                    send(exchange, 400, "text/plain", "maxAge must be an integer: "+maxAge+"\n");
+                    return;
+                }
+                send(exchange, 200, "application/json", lastSeenJson(minTime));
+            }
+        });
+        server.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                streamEvents(exchange);
+            }
+        });
+        server.start();
+        this.server = server;
+        metricsRegistry.register("http.streams", new IGauge() {
+            @Override
+            public long getValue() {
+                return streams.size();
+            }
+        });
+        metricsRegistry.register("lastSeen.size", new IGauge() {
+            @Override
+            public long getValue() {
+                return lastSeen.size();
+            }
+        });
+        metricsRegistry.register("lastSeen.rejected", new IGauge() {
+            @Override
+            public long getValue() {
+                return lastSeen.getRejectedCount();
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if(server == null)
+            return;
+        for (EventStream stream : streams)
+            stream.closed = true;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+        metricsRegistry.remove("http.streams");
+        metricsRegistry.remove("lastSeen.size");
+        metricsRegistry.remove("lastSeen.rejected");
+    }
+
+    /**
+     * Install the event tap that feeds the last seen table and event streams from a scanner
+     * @param scanner - the scanner to observe
+     */
+    public void attach(final HCIScanner scanner) {
+        IRawEventCallback tap = new IRawEventCallback() {
+            @Override
+            public boolean beaconEvent(ByteBuffer frame) {
+                observe(scanner, frame);
+                return false;
+            }
+        };
+        if(taps.putIfAbsent(scanner, tap) == null)
+            scanner.addEventTap(tap);
+    }
+
+    public void detach(HCIScanner scanner) {
+        IRawEventCallback tap = taps.remove(scanner);
+        if(tap != null)
+            scanner.removeEventTap(tap);
+    }
+
+    /**
+     * Record an event frame of a scanner, called on the scanner's dispatching thread
+     */
+    void observe(HCIScanner scanner, ByteBuffer frame) {
+        if(scanner.isGeneral()) {
+            AdEventInfo info = new AdEventInfo(frame);
+            RHIoTTag tag = RHIoTTag.create(info);
+            if(tag == null)
+                return;
+            lastSeen.update(tag, info.getRssi(), info.getTime());
+            if(!streams.isEmpty())
+                publish(tag, info.getRssi(), info.getTime());
+        } else {
+            BeaconView view = beaconViews.get().wrap(frame);
+            lastSeen.update(view, scanner.getScannerID());
+            if(!streams.isEmpty())
+                publish(view, scanner.getScannerID());
+            view.wrap(null);
+        }
+    }
+
+    private void publish(BeaconView view, String scannerID) {
+        String event = null;
+        for (EventStream stream : streams) {
+            if(!stream.filter.matches(view))
+                continue;
+            if(event == null) {
+                BeaconJsonWriter writer = writers.get();
+                writer.reset();
+                writer.write(view.toBeacon(scannerID));
+                event = "event: beacon\ndata: "+writer+"\n\n";
+            }
+            stream.offer(event);
+        }
+    }
+
+    private void publish(RHIoTTag tag, int rssi, long time) {
+        String event = null;
+        for (EventStream stream : streams) {
+            if(!stream.filter.matches(tag, rssi))
+                continue;
+            if(event == null) {
+                BeaconJsonWriter writer = writers.get();
+                writer.reset();
+                appendTag(writer, tag, rssi, time, -1);
+                event = "event: tag\ndata: "+writer+"\n\n";
+            }
+            stream.offer(event);
+        }
+    }
+
+    /**
+     * Publish a closed bucket to /bucket. The bucket is serialized during the call, so this can be used directly as
+     * the async rollover callback of an EventsWindow.
+     * @param bucket - the closed bucket
+     */
+    @Override
+    public void bucketEvent(EventsBucket bucket) {
+        BeaconJsonWriter writer = writers.get();
+        writer.reset();
+        writer.write(bucket);
+        bucketJson = writer.toString();
+    }
+
+    String lastSeenJson(long minTime) {
+        BeaconJsonWriter writer = writers.get();
+        writer.reset();
+        StringBuilder sb = writer.getBuffer();
+        sb.append("{\"beacons\":[");
+        List<LastSeenTable.Seen<Beacon>> beacons = lastSeen.getBeacons(minTime);
+        for (int n = 0; n < beacons.size(); n++) {
+            LastSeenTable.Seen<Beacon> seen = beacons.get(n);
+            if(n > 0)
+                sb.append(',');
+            sb.append("{\"seen\":").append(seen.getSeenCount()).append(",\"beacon\":");
+            writer.write(seen.getEvent());
+            sb.append('}');
+        }
+        sb.append("],\"tags\":[");
+        List<LastSeenTable.Seen<RHIoTTag>> tags = lastSeen.getTags(minTime);
+        for (int n = 0; n < tags.size(); n++) {
+            LastSeenTable.Seen<RHIoTTag> seen = tags.get(n);
+            if(n > 0)
+                sb.append(',');
+            appendTag(writer, seen.getEvent(), seen.getRssi(), seen.getTime(), seen.getSeenCount());
+        }
+        sb.append("]}");
+        return writer.toString();
+    }
+
+    private static void appendTag(BeaconJsonWriter writer, RHIoTTag tag, int rssi, long time, long seenCount) {
+        StringBuilder sb = writer.getBuffer();
+        sb.append('{');
+        if(seenCount >= 0)
+            sb.append("\"seen\":").append(seenCount).append(',');
+        sb.append("\"address\":\"").append(tag.getAddressString()).append("\",\"rssi\":").append(rssi)
+            .append(",\"time\":").append(time).append(",\"tag\":");
+        writer.write(tag);
+        sb.append('}');
+    }
+
+    /**
+     * Format metric values in the Prometheus text exposition format. Names are prefixed with rhiot_ble_ and have any
+     * character other than letters, digits and _ replaced by _. A leading hciN component becomes an adapter label.
+     * @param values - the metric values by dotted name
+     * @return the exposition text
+     */
+    static String formatPrometheus(SortedMap<String, Number> values) {
+        StringBuilder sb = new StringBuilder(values.size() * 48);
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            String name = entry.getKey();
+            String adapter = null;
+            int dot = name.indexOf('.');
+            if(dot > 3 && name.startsWith("hci") && isDigits(name, 3, dot)) {
+                adapter = name.substring(0, dot);
+                name = name.substring(dot + 1);
+            }
+            sb.append(PROMETHEUS_PREFIX);
+            for (int n = 0; n < name.length(); n++) {
+                char c = name.charAt(n);
+                boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+                sb.append(valid ? c : '_');
+            }
+            if(adapter != null)
+                sb.append("{adapter=\"").append(adapter).append("\"}");
+            sb.append(' ');
+            Number value = entry.getValue();
+            if(value instanceof Double || value instanceof Float) {
+                double d = value.doubleValue();
+                if(Double.isNaN(d))
+                    sb.append("NaN");
+                else if(Double.isInfinite(d))
+                    sb.append(d > 0 ? "+Inf" : "-Inf");
+                else
+                    sb.append(d);
+            } else {
+                sb.append(value.longValue());
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+        for (int n = start; n < end; n++) {
+            if(!Character.isDigit(s.charAt(n)))
+                return false;
+        }
+        return true;
+    }
+
+    private void streamEvents(HttpExchange exchange) throws IOException {
+        EventFilter filter;
+        try {
+            filter = new EventFilter(parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, "text/plain", e.getMessage()+"\n");
+            return;
+        }
+        if(streams.size() >= maxStreams) {
+            send(exchange, 503, "text/plain", "Too many event streams\n");
+            return;
+        }
+        EventStream stream = new EventStream(filter, streamQueueSize);
+        streams.add(stream);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(": connected\n\n".getBytes(UTF8));
+            out.flush();
+            long reportedDrops = 0;
+            while (!stream.closed) {
+                String event = stream.queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                if(event == null) {
+                    out.write(":\n\n".getBytes(UTF8));
+                } else {
+                    // Write whatever else is queued before flushing
+                    do {
+                        out.write(event.getBytes(UTF8));
+                        event = stream.queue.poll();
+                    } while (event != null);
+                }
+                long drops = stream.droppedCount;
+                if(drops != reportedDrops) {
+                    out.write(("event: dropped\ndata: {\"dropped\":"+drops+"}\n\n").getBytes(UTF8));
+                    reportedDrops = drops;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client disconnected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.remove(stream);
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if(rawQuery == null || rawQuery.isEmpty())
+            return query;
+        try {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return query;
+    }
+
+    /**
+     * The server side filter of an /events stream
+     */
+    static class EventFilter {
+        final boolean beacons;
+        final boolean tags;
+        final String uuid;
+        final int major;
+        final int minor;
+        final int minRssi;
+        final Long address;
+
+        EventFilter(Map<String, String> query) {
+            String type = query.get("type");
+            if(type != null && !type.equals("beacon") && !type.equals("tag"))
+                throw new IllegalArgumentException("type must be beacon or tag: "+type);
+            beacons = type == null || type.equals("beacon");
+            tags = type == null || type.equals("tag");
+            uuid = query.get("uuid");
+            major = intParam(query, "major", -1);
+            minor = intParam(query, "minor", -1);
+            minRssi = intParam(query, "minRssi", Integer.MIN_VALUE);
+            String addressString = query.get("address");
+            address = addressString != null ? LastSeenTable.addressKey(RHIoTTag.fromStringAddress(addressString)) : null;
+        }
+
+        private static int intParam(Map<String, String> query, String name, int defaultValue) {
+            String value = query.get(name);
+            if(value == null)
+                return defaultValue;
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name+" must be an integer: "+value);
+            }
+        }
+
+        boolean matches(BeaconView view) {
+            return beacons && view.getRssi() >= minRssi && (major < 0 || view.getMajor() == major)
+                && (minor < 0 || view.getMinor() == minor) && (uuid == null || uuid.equals(view.getUUID()));
+        }
+
+        boolean matches(RHIoTTag tag, int rssi) {
+            return tags && rssi >= minRssi && (address == null || address.equals(LastSeenTable.addressKey(tag.getAddress())));
+        }
+    }
+
+    /**
+     * A connected /events client and its bounded event queue
+     */
+    static class EventStream {
+        final EventFilter filter;
+        final ArrayBlockingQueue<String> queue;
+        volatile boolean closed;
+        volatile long droppedCount;
+
+        EventStream(EventFilter filter, int queueSize) {
+            this.filter = filter;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        void offer(String event) {
+            if(!queue.offer(event))
+                droppedCount ++;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.jboss.rhiot.ble.bluez;
+
+import org.jboss.rhiot.ble.common.IGauge;
+import org.jboss.rhiot.ble.common.LatencyHistogram;
+import org.jboss.rhiot.ble.common.Meter;
+import org.jboss.rhiot.ble.common.MetricsRegistry;
+
+/**
+ * The health and throughput metrics of one {@link HCIScanner}. The counts are always recorded with one atomic
+ * increment per event, while the dispatch latency and decode time are timed on one of every timingSampleInterval
+ * events to keep the System.nanoTime calls off most events, so the metrics can be left on in production.
+ *
+ * When the scanner starts the metrics are registered with its {@link MetricsRegistry} under the prefix "hciN." and
+ * exposed through JMX as org.jboss.rhiot.ble:type=Scanner,name=hciN. The registered metrics are:
+ * <pre>
+ *     upcalls              notifications from the event source, one per native upcall or ring drain
+ *     events.beacon        beacon_info events that passed the scan filter
+ *     events.advert        ad_data_inline events that passed the scan filter
+ *     events.filtered      events rejected by the java evaluation of the scan filter
+ *     events.throttled     events suppressed by the event throttle
+ *     callback.errors      exceptions thrown by the callbacks
+ *     dispatch.latency     time from dispatch to the callback returning, in ns, sampled
+ *     decode.time          time to decode a frame into an AdEventInfo or Beacon, in ns, sampled
+ *     dispatchRing.depth, dispatchRing.dropped, dispatchRing.maxLagNanos   when async dispatch is enabled
+ *     frameRing.occupancy, frameRing.dropped   when the event source is a NativeRingEventSource
+ * </pre>
+ */
+public class ScannerMetrics {
+    /** Time one of every this many events by default */
+    public static final int DEFAULT_TIMING_SAMPLE_INTERVAL = 16;
+    static final String MBEAN_NAME = "org.jboss.rhiot.ble:type=Scanner,name=";
+
+    private final Meter upcalls = new Meter();
+    private final Meter beaconEvents = new Meter();
+    private final Meter advertEvents = new Meter();
+    private final Meter filteredEvents = new Meter();
+    private final Meter throttledEvents = new Meter();
+    private final Meter callbackErrors = new Meter();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private volatile int timingSampleInterval = DEFAULT_TIMING_SAMPLE_INTERVAL;
+    /** Racy counter for choosing the timed events, a lost update only shifts which events are sampled */
+    private int timingCounter;
+    private MetricsRegistry registry;
+    private String prefix;
+
+    public Meter getUpcalls() {
+        return upcalls;
+    }
+
+    public Meter getBeaconEvents() {
+        return beaconEvents;
+    }
+
+    public Meter getAdvertEvents() {
+        return advertEvents;
+    }
+
+    public Meter getFilteredEvents() {
+        return filteredEvents;
+    }
+
+    public Meter getThrottledEvents() {
+        return throttledEvents;
+    }
+
+    public Meter getCallbackErrors() {
+        return callbackErrors;
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @return the number of events that passed the scan filter
+     */
+    public long getEventCount() {
+        return beaconEvents.getCount() + advertEvents.getCount();
+    }
+
+    public int getTimingSampleInterval() {
+        return timingSampleInterval;
+    }
+
+    /**
+     * @param timingSampleInterval - time one of every this many events, 1 to time every event, 0 to disable timing
+     */
+    public void setTimingSampleInterval(int timingSampleInterval) {
+        if(timingSampleInterval < 0)
+            throw new IllegalArgumentException("timingSampleInterval must be >= 0: "+timingSampleInterval);
+        this.timingSampleInterval = timingSampleInterval;
+    }
+
+    /**
+     * @return true if the next event should be timed
+     */
+    boolean sampleTiming() {
+        int interval = timingSampleInterval;
+        if(interval == 0)
+            return false;
+        int count = ++timingCounter;
+        return count % interval == 0;
+    }
+
+    /**
+     * Register the metrics of the scanner, replacing any previous registration, and expose them as an MBean
+     * @param registry - the registry to add the metrics to
+     * @param scanner - the scanner whose rings and throttle the gauges read
+     */
+    synchronized void register(MetricsRegistry registry, final HCIScanner scanner) {
+        unregister();
+        String prefix = scanner.getHciDev()+".";
+        registry.register(prefix+"upcalls", upcalls);
+        registry.register(prefix+"events.beacon", beaconEvents);
+        registry.register(prefix+"events.advert", advertEvents);
+        registry.register(prefix+"events.filtered", filteredEvents);
+        registry.register(prefix+"events.throttled", throttledEvents);
+        registry.register(prefix+"callback.errors", callbackErrors);
+        registry.register(prefix+"dispatch.latency", dispatchLatency);
+        registry.register(prefix+"decode.time", decodeTime);
+        registry.register(prefix+"sequenceNo", new IGauge() {
+            @Override
+            public long getValue() {
+                return scanner.getLastSequenceNo();
+            }
+        });
+        registry.register(prefix+"dispatchRing.depth", new IGauge() {
+            @Override
+            public long getValue() {
+                DispatchRing ring = scanner.getDispatchRing();
+                return ring != null ? ring.getDepth() : 0;
+            }
+        });
+        registry.register(prefix+"dispatchRing.dropped", new IGauge() {
+            @Override
+            public long getValue() {
+                DispatchRing ring = scanner.getDispatchRing();
+                return ring != null ? ring.getDroppedCount() : 0;
+            }
+        });
+        registry.register(prefix+"dispatchRing.maxLagNanos", new IGauge() {
+            @Override
+            public long getValue() {
+                DispatchRing ring = scanner.getDispatchRing();
+                return ring != null ? ring.getMaxLagNanos() : 0;
+            }
+        });
+        registry.register(prefix+"frameRing.occupancy", new IGauge() {
+            @Override
+            public long getValue() {
+                FrameRing ring = frameRing(scanner);
+                return ring != null ? ring.size() : 0;
+            }
+        });
+        registry.register(prefix+"frameRing.dropped", new IGauge() {
+            @Override
+            public long getValue() {
+                FrameRing ring = frameRing(scanner);
+                return ring != null ? ring.getDroppedCount() : 0;
+            }
+        });
+        this.registry = registry;
+        this.prefix = prefix;
+        try {
+            registry.registerMBean(MBEAN_NAME+scanner.getHciDev(), prefix);
+        } catch (Exception e) {
+            System.err.printf("Failed to register the metrics MBean for %s, msg=%s\n", scanner.getHciDev(), e);
+        }
+    }
+
+    /**
+     * Remove the metrics and MBean added by the last register call
+     */
+    synchronized void unregister() {
+        if(registry == null)
+            return;
+        registry.removeAll(prefix);
+        try {
+            registry.unregisterMBean(MBEAN_NAME+prefix.substring(0, prefix.length() - 1));
+        } catch (Exception e) {
+            System.err.printf("Failed to unregister the metrics MBean for %s, msg=%s\n", prefix, e);
+        }
+        registry = null;
+        prefix = null;
+    }
+
+    private static FrameRing frameRing(HCIScanner scanner) {
+        IEventSource source = scanner.getEventSource();
+        return source instanceof NativeRingEventSource ? ((NativeRingEventSource) source).getRing() : null;
+    }
+
+    public String toString() {
+        return String.format("ScannerMetrics: upcalls=%d, beacons=%d, adverts=%d, filtered=%d, throttled=%d, errors=%d, dispatch(%s), decode(%s)",
+            upcalls.getCount(), beaconEvents.getCount(), advertEvents.getCount(), filteredEvents.getCount(),
+            throttledEvents.getCount(), callbackErrors.getCount(), dispatchLatency, decodeTime);
+    }
+}
@@ -0,0 +1,465 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event source that simulates a large population of iBeacons and RHIoTTags advertising around a scanner, for
+ * finding the throughput ceiling of the dispatch path, EventsWindow aggregation and downstream consumers. Each
+ * device advertises on its own interval with jitter, and the next device to advertise is taken from a binary heap
+ * of advertising times held in primitive arrays, so the generator does not allocate per event.
+ *
+ * Device i is an iBeacon with uuid uuids[i % uuidCount], major majorBase + (i / uuidCount) % majorCount and minor
+ * i / (uuidCount * majorCount), unless it is one of the RHIoTTags, which are spread through the population
+ * according to the tag fraction and advertise the TLM ServiceData parsed by {@link RHIoTTag#create(AdEventInfo)}.
+ * Tags are only generated in general scanning mode, since the beacon mode frames only carry iBeacons.
+ *
+ * Each device has a base rssi drawn uniformly from [rssiMin, rssiMax] to model its distance, and every advert adds
+ * gaussian noise with rssiSigma plus an occasional fade of fadeDepth dB with probability fadeProbability.
+ *
+ * The simulated timeline runs at a multiple of real time given by the speed, or as fast as possible with a speed
+ * of {@link #AS_FAST_AS_POSSIBLE}, which goes well beyond real radio rates.
+ */
+public class SyntheticEventSource implements IEventSource, Runnable {
+    /** The speed value that generates events without any delay between them */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    private static final int FLAGS_LE_GENERAL_DISCOVERABLE = 0x06;
+
+    private int populationSize = 1000;
+    private double tagFraction = 0;
+    private byte[][] uuids = {uuidBytes("DAF246CEF20311E4B116123B93F75CBA")};
+    private int majorBase = 1;
+    private int majorCount = 1;
+    private long beaconIntervalMillis = 100;
+    private long tagIntervalMillis = 1000;
+    private double intervalJitter = 0.1;
+    private int txPower = -59;
+    private int rssiMin = -95;
+    private int rssiMax = -45;
+    private double rssiSigma = 4.0;
+    private double fadeProbability = 0.01;
+    private int fadeDepth = 20;
+    private double keyPressProbability = 0.001;
+    private double speed = 1.0;
+    private boolean simulatedTime = false;
+    private long maxEvents;
+    private long seed = 0x5eed;
+
+    // Per device state indexed by device number
+    private long[] nextTime;
+    private int[] baseRssi;
+    private int[] advCount;
+    private boolean[] isTag;
+    /** Min heap of device numbers ordered by nextTime */
+    private int[] heap;
+    private Random random;
+    private byte[] adData = new byte[31];
+    private byte[] bdaddr = new byte[6];
+
+    private volatile boolean running;
+    private Thread thread;
+    private HCIScanner scanner;
+    private ByteBuffer frame;
+    private boolean general;
+    private long startNanos;
+    private long startMillis;
+    private volatile long generatedCount;
+    private volatile long elapsedNanos;
+
+    public SyntheticEventSource() {
+    }
+
+    /**
+     * @param populationSize - the number of simulated devices
+     * @param speed - multiple of real time to generate at, or AS_FAST_AS_POSSIBLE
+     */
+    public SyntheticEventSource(int populationSize, double speed) {
+        this.populationSize = populationSize;
+        this.speed = speed;
+    }
+
+    /**
+     * Parse a uuid of 32 hex chars, with optional dashes, into its 16 bytes
+     * @param uuid - the uuid string
+     * @return the raw uuid bytes
+     */
+    public static byte[] uuidBytes(String uuid) {
+        String hex = uuid.replace("-", "");
+        if(hex.length() != 32)
+            throw new IllegalArgumentException("uuid must have 32 hex digits: "+uuid);
+        byte[] bytes = new byte[16];
+        for (int n = 0; n < 16; n++)
+            bytes[n] = (byte) Integer.parseInt(hex.substring(2*n, 2*n + 2), 16);
+        return bytes;
+    }
+
+    public int getPopulationSize() {
+        return populationSize;
+    }
+
+    public void setPopulationSize(int populationSize) {
+        this.populationSize = populationSize;
+    }
+
+    public double getTagFraction() {
+        return tagFraction;
+    }
+
+    /**
+     * @param tagFraction - fraction of the population that are RHIoTTags in general scanning mode, 0-1
+     */
+    public void setTagFraction(double tagFraction) {
+        this.tagFraction = tagFraction;
+    }
+
+    /**
+     * @param uuids - the proximity uuids to distribute the iBeacons over
+     */
+    public void setUUIDs(String... uuids) {
+        byte[][] bytes = new byte[uuids.length][];
+        for (int n = 0; n < uuids.length; n++)
+            bytes[n] = uuidBytes(uuids[n]);
+        this.uuids = bytes;
+    }
+
+    public int getUUIDCount() {
+        return uuids.length;
+    }
+
+    /**
+     * @param majorBase - the first major id
+     * @param majorCount - the number of major ids per uuid the iBeacons are distributed over
+     */
+    public void setMajorRange(int majorBase, int majorCount) {
+        this.majorBase = majorBase;
+        this.majorCount = majorCount;
+    }
+
+    public long getBeaconIntervalMillis() {
+        return beaconIntervalMillis;
+    }
+
+    public void setBeaconIntervalMillis(long beaconIntervalMillis) {
+        this.beaconIntervalMillis = beaconIntervalMillis;
+    }
+
+    public long getTagIntervalMillis() {
+        return tagIntervalMillis;
+    }
+
+    public void setTagIntervalMillis(long tagIntervalMillis) {
+        this.tagIntervalMillis = tagIntervalMillis;
+    }
+
+    /**
+     * @param intervalJitter - the +/- fraction of the advertising interval each advert is randomly offset by
+     */
+    public void setIntervalJitter(double intervalJitter) {
+        this.intervalJitter = intervalJitter;
+    }
+
+    /**
+     * @param txPower - the iBeacon measured power at 1m
+     */
+    public void setTxPower(int txPower) {
+        this.txPower = txPower;
+    }
+
+    /**
+     * Configure the rssi noise model
+     * @param rssiMin - the weakest device base rssi
+     * @param rssiMax - the strongest device base rssi
+     * @param rssiSigma - the standard deviation of the gaussian noise added to each advert
+     * @param fadeProbability - the probability an advert is attenuated by a fade
+     * @param fadeDepth - the attenuation of a fade in dB
+     */
+    public void setRssiModel(int rssiMin, int rssiMax, double rssiSigma, double fadeProbability, int fadeDepth) {
+        this.rssiMin = rssiMin;
+        this.rssiMax = rssiMax;
+        this.rssiSigma = rssiSigma;
+        this.fadeProbability = fadeProbability;
+        this.fadeDepth = fadeDepth;
+    }
+
+    /**
+     * @param keyPressProbability - the probability a tag advert reports a pressed key or reed relay
+     */
+    public void setKeyPressProbability(double keyPressProbability) {
+        this.keyPressProbability = keyPressProbability;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @param speed - multiple of real time to generate at, or AS_FAST_AS_POSSIBLE
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Control the time written into the frames. When false, the default, frames carry the wall clock time they
+     * were generated at, which keeps time based consumers such as EventsWindow consistent when generating faster
+     * than real time. When true the simulated advertising time is used.
+     * @param simulatedTime - true to use the simulated advertising time
+     */
+    public void setSimulatedTime(boolean simulatedTime) {
+        this.simulatedTime = simulatedTime;
+    }
+
+    public long getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * @param maxEvents - stop after this many events, 0 to run until stopped
+     */
+    public void setMaxEvents(long maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * @param seed - the random seed, so runs are repeatable
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getGeneratedCount() {
+        return generatedCount;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the generation rate since start
+     */
+    public double getEventsPerSecond() {
+        long elapsed = running ? System.nanoTime() - startNanos : elapsedNanos;
+        return elapsed > 0 ? generatedCount * 1e9 / elapsed : 0;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Wait for the generator to finish
+     * @param millis - the maximum time to wait, 0 to wait forever
+     * @throws InterruptedException
+     */
+    public void join(long millis) throws InterruptedException {
+        Thread t = thread;
+        if(t != null)
+            t.join(millis);
+    }
+
+    @Override
+    public synchronized void start(HCIScanner scanner) {
+        if(running)
+            throw new IllegalStateException("Generator is already running for: "+this.scanner);
+        this.scanner = scanner;
+        this.frame = scanner.getNativeBuffer();
+        this.general = scanner.isGeneral();
+        initPopulation();
+        running = true;
+        thread = new Thread(this, "SyntheticEventSource-" + scanner.getHciDev());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop(HCIScanner scanner) {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if(t != null && t != Thread.currentThread()) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void initPopulation() {
+        random = new Random(seed);
+        nextTime = new long[populationSize];
+        baseRssi = new int[populationSize];
+        advCount = new int[populationSize];
+        isTag = new boolean[populationSize];
+        heap = new int[populationSize];
+        int tagStride = general && tagFraction > 0 ? (int) Math.max(1, Math.round(1 / tagFraction)) : 0;
+        for (int i = 0; i < populationSize; i++) {
+            isTag[i] = tagStride > 0 && i % tagStride == 0;
+            baseRssi[i] = rssiMin + random.nextInt(rssiMax - rssiMin + 1);
+            // Spread the first adverts over one interval
+            nextTime[i] = (long) (random.nextDouble() * interval(i));
+            heap[i] = i;
+        }
+        for (int n = populationSize / 2 - 1; n >= 0; n--)
+            siftDown(n);
+    }
+
+    private long interval(int device) {
+        return isTag[device] ? tagIntervalMillis : beaconIntervalMillis;
+    }
+
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        try {
+            while (running && populationSize > 0 && (maxEvents == 0 || generatedCount < maxEvents)) {
+                int device = heap[0];
+                long offsetMillis = nextTime[device];
+                pace(offsetMillis);
+                long time = simulatedTime ? startMillis + offsetMillis : System.currentTimeMillis();
+                if(encode(device, offsetMillis, time) > 0) {
+                    generatedCount ++;
+                    if(scanner.eventNotification())
+                        running = false;
+                }
+                // Schedule the next advert of this device
+                long interval = interval(device);
+                long jitter = (long) ((random.nextDouble() * 2 - 1) * intervalJitter * interval);
+                nextTime[device] = offsetMillis + Math.max(1, interval + jitter);
+                siftDown(0);
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - startNanos;
+            running = false;
+        }
+    }
+
+    private void pace(long offsetMillis) {
+        if(speed <= AS_FAST_AS_POSSIBLE)
+            return;
+        long offsetNanos = (long) (TimeUnit.MILLISECONDS.toNanos(offsetMillis) / speed);
+        long waitNanos = startNanos + offsetNanos - System.nanoTime();
+        while (waitNanos > 0 && running) {
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = startNanos + offsetNanos - System.nanoTime();
+        }
+    }
+
+    private int sampleRssi(int device) {
+        double rssi = baseRssi[device] + random.nextGaussian() * rssiSigma;
+        if(fadeProbability > 0 && random.nextDouble() < fadeProbability)
+            rssi -= fadeDepth;
+        return (int) Math.max(-127, Math.min(0, Math.round(rssi)));
+    }
+
+    private int encode(int device, long offsetMillis, long time) {
+        int rssi = sampleRssi(device);
+        int uuidIndex = device % uuids.length;
+        int major = majorBase + (device / uuids.length) % majorCount;
+        int minor = (device / (uuids.length * majorCount)) & 0xffff;
+        advCount[device] ++;
+        if(!general) {
+            return FrameEncoder.encodeBeacon(frame, uuids[uuidIndex], 0, false, 1, FrameEncoder.IBEACON_CODE,
+                FrameEncoder.IBEACON_MANUFACTURER, major, minor, txPower, txPower, rssi, time);
+        }
+
+        // A random static address derived from the device number, stored in HCI little endian order
+        bdaddr[0] = (byte) device;
+        bdaddr[1] = (byte) (device >> 8);
+        bdaddr[2] = (byte) (device >> 16);
+        bdaddr[3] = (byte) (device >> 24);
+        bdaddr[4] = (byte) 0x5A;
+        bdaddr[5] = (byte) 0xC0;
+        int n = 0;
+        adData[n++] = 2;
+        adData[n++] = 0x01;
+        adData[n++] = FLAGS_LE_GENERAL_DISCOVERABLE;
+        if(isTag[device]) {
+            n = encodeTag(device, offsetMillis, n);
+        } else {
+            adData[n++] = 26;
+            adData[n++] = (byte) 0xFF;
+            adData[n++] = (byte) FrameEncoder.IBEACON_MANUFACTURER;
+            adData[n++] = (byte) (FrameEncoder.IBEACON_MANUFACTURER >> 8);
+            adData[n++] = (byte) (FrameEncoder.IBEACON_CODE >> 8);
+            adData[n++] = (byte) FrameEncoder.IBEACON_CODE;
+            System.arraycopy(uuids[uuidIndex], 0, adData, n, 16);
+            n += 16;
+            adData[n++] = (byte) (major >> 8);
+            adData[n++] = (byte) major;
+            adData[n++] = (byte) (minor >> 8);
+            adData[n++] = (byte) minor;
+            adData[n++] = (byte) txPower;
+        }
+        return FrameEncoder.encodeAdvert(frame, 1, bdaddr, 0, rssi, time, adData, 0, n);
+    }
+
+    /**
+     * Write the RHIoTTag TLM ServiceData structure
+     */
+    private int encodeTag(int device, long offsetMillis, int n) {
+        byte[] prefix = RHIoTTag.SERVICE_DATA_PREFIX;
+        adData[n++] = (byte) (1 + prefix.length + 16);
+        adData[n++] = 0x16;
+        for (byte b : prefix)
+            adData[n++] = b;
+        // version
+        adData[n++] = 0;
+        // battery mV, drifting down slowly per device
+        int vBatt = 3000 - (device % 300);
+        adData[n++] = (byte) (vBatt >> 8);
+        adData[n++] = (byte) vBatt;
+        // temperature 8.8 fixed point around 20-25C
+        adData[n++] = (byte) (20 + device % 5);
+        adData[n++] = (byte) random.nextInt(128);
+        int advCnt = advCount[device];
+        adData[n++] = (byte) (advCnt >> 24);
+        adData[n++] = (byte) (advCnt >> 16);
+        adData[n++] = (byte) (advCnt >> 8);
+        adData[n++] = (byte) advCnt;
+        // uptime in 0.1 seconds
+        int secCnt = (int) (offsetMillis / 100);
+        adData[n++] = (byte) (secCnt >> 24);
+        adData[n++] = (byte) (secCnt >> 16);
+        adData[n++] = (byte) (secCnt >> 8);
+        adData[n++] = (byte) secCnt;
+        int keys = 0;
+        if(keyPressProbability > 0 && random.nextDouble() < keyPressProbability)
+            keys = 1 << random.nextInt(3);
+        adData[n++] = (byte) keys;
+        int lux = Math.max(0, 200 + (device % 500) + (int) (random.nextGaussian() * 20));
+        adData[n++] = (byte) (lux >> 8);
+        adData[n++] = (byte) lux;
+        return n;
+    }
+
+    private void siftDown(int n) {
+        int size = heap.length;
+        int device = heap[n];
+        long time = nextTime[device];
+        while (true) {
+            int child = 2 * n + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && nextTime[heap[child + 1]] < nextTime[heap[child]])
+                child ++;
+            if(nextTime[heap[child]] >= time)
+                break;
+            heap[n] = heap[child];
+            n = child;
+        }
+        heap[n] = device;
+    }
+
+    public String toString() {
+        return String.format("SyntheticEventSource(population=%d, tags=%.2f, speed=%.2f): generated=%d, rate=%.0f/s",
+            populationSize, tagFraction, speed, generatedCount, getEventsPerSecond());
+    }
+}
@@ -0,0 +1,137 @@
+package org.jboss.rhiot.ble.bluez;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A bounded cache of the uuid String for the raw uuid bytes of a beacon_info frame. The native scanner writes the
+ * uuid as up to 36 ascii characters, and a venue only has a handful of distinct proximity uuids, so looking the
+ * String up by the raw bytes avoids allocating a byte[] and String for every event. A lookup that hits the cache
+ * does not allocate.
+ *
+ * The cache is safe to use from multiple threads. Entries are immutable and a racing insert simply replaces
+ * another thread's equivalent entry.
+ */
+public class UUIDCache {
+    /** The cache shared by the HCIDump dispatch path */
+    public static final UUIDCache DEFAULT = new UUIDCache(256);
+    /** The maximum number of uuid bytes in the beacon_info struct */
+    public static final int MAX_UUID_LENGTH = 36;
+    private static final int MAX_PROBES = 4;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static class Entry {
+        final int hash;
+        final byte[] key;
+        final String uuid;
+
+        Entry(int hash, byte[] key, String uuid) {
+            this.hash = hash;
+            this.key = key;
+            this.uuid = uuid;
+        }
+    }
+
+    private final Entry[] table;
+    private final int mask;
+
+    /**
+     * @param capacity - the number of distinct uuids to cache, rounded up to a power of 2
+     */
+    public UUIDCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES));
+        if(size < capacity)
+            size <<= 1;
+        table = new Entry[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Get the length of the null terminated uuid starting at offset
+     * @param buffer - buffer containing the uuid chars
+     * @param offset - the offset of the first uuid char
+     * @return the number of uuid chars, at most MAX_UUID_LENGTH
+     */
+    public static int uuidLength(ByteBuffer buffer, int offset) {
+        int length = 0;
+        while (length < MAX_UUID_LENGTH && buffer.get(offset + length) != 0)
+            length ++;
+        return length;
+    }
+
+    /**
+     * Hash the raw uuid chars without copying them
+     * @param buffer - buffer containing the uuid chars
+     * @param offset - the offset of the first uuid char
+     * @param length - the number of uuid chars
+     * @return FNV-1a hash of the uuid bytes
+     */
+    public static int hash(ByteBuffer buffer, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int n = 0; n < length; n++) {
+            hash ^= buffer.get(offset + n) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * Lookup the String form of the uuid chars in the buffer, creating and caching it on a miss.
+     * @param buffer - buffer containing the uuid chars
+     * @param offset - the offset of the first uuid char
+     * @param length - the number of uuid chars
+     * @return the uuid String
+     */
+    public String lookup(ByteBuffer buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length);
+        int index = hash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Entry entry = table[(index + probe) & mask];
+            if(entry == null)
+                break;
+            if(entry.hash == hash && matches(entry.key, buffer, offset, length))
+                return entry.uuid;
+        }
+
+        // Miss, copy the bytes and insert into the first empty probe slot or replace the home slot
+        byte[] key = new byte[length];
+        for (int n = 0; n < length; n++)
+            key[n] = buffer.get(offset + n);
+        Entry entry = new Entry(hash, key, new String(key, ASCII));
+        int slot = index;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            if(table[(index + probe) & mask] == null) {
+                slot = (index + probe) & mask;
+                break;
+            }
+        }
+        table[slot] = entry;
+        return entry.uuid;
+    }
+
+    /**
+     * Compare the uuid chars in the buffer to the given uuid without creating a String
+     * @param uuid - the ascii bytes of the uuid to compare against
+     * @param buffer - buffer containing the uuid chars
+     * @param offset - the offset of the first uuid char
+     * @param length - the number of uuid chars
+     * @return true if the uuid chars equal the uuid bytes
+     */
+    public static boolean matches(byte[] uuid, ByteBuffer buffer, int offset, int length) {
+        if(uuid.length != length)
+            return false;
+        for (int n = 0; n < length; n++) {
+            if(uuid[n] != buffer.get(offset + n))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove all cached uuids
+     */
+    public void clear() {
+        for (int n = 0; n < table.length; n++)
+            table[n] = null;
+    }
+}
@@ -1,18 +1,17 @@
 package org.jboss.rhiot.ble.common;
 
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -25,6 +24,19 @@ public class Beacon implements Serializable {
 
     /** The current byte[] version */
     private static final int VERSION = 4;
+    /** Per thread writers reused by toJSON/toJSONSimple */
+    private static final ThreadLocal<BeaconJsonWriter> prettyWriters = new ThreadLocal<BeaconJsonWriter>() {
+        @Override
+        protected BeaconJsonWriter initialValue() {
+            return new BeaconJsonWriter(true);
+        }
+    };
+    private static final ThreadLocal<BeaconJsonWriter> simpleWriters = new ThreadLocal<BeaconJsonWriter>() {
+        @Override
+        protected BeaconJsonWriter initialValue() {
+            return new BeaconJsonWriter(false);
+        }
+    };
     private String scannerID;
     private String uuid;
     private int code;
@@ -89,6 +101,7 @@ public class Beacon implements Serializable {
         this.rssi = orig.rssi;
         this.time = orig.time;
         this.messageType = orig.messageType;
+        this.scannerSequenceNo = orig.scannerSequenceNo;
     }
 
     public String getScannerID() {
@@ -208,6 +221,12 @@ public class Beacon implements Serializable {
             case VERSION:
                 beacon = readVersion4(dis);
                 break;
+            case BeaconCodec.VERSION:
+                List<Beacon> beacons = BeaconCodec.decode(ByteBuffer.wrap(msg));
+                if(beacons.size() != 1)
+                    throw new IOException(String.format("Msg holds a batch of %d beacons, use BeaconCodec.decode", beacons.size()));
+                beacon = beacons.get(0);
+                break;
             case 3:
                 // TODO?
             default:
@@ -230,6 +249,9 @@ public class Beacon implements Serializable {
         beacon.setRssi((Integer) beaconProps.get("rssi"));
         beacon.setTime((Long) beaconProps.get("time"));
         beacon.setMessageType((Integer) beaconProps.get("messageType"));
+        Object sequenceNo = beaconProps.get("scannerSequenceNo");
+        if(sequenceNo != null)
+            beacon.setScannerSequenceNo((Integer) sequenceNo);
         return beacon;
     }
 
@@ -237,6 +259,9 @@ public class Beacon implements Serializable {
      * Write the current ble to a serialized binary form using a DataOutputStream for use as the form to send
      * to a mqtt broker. To unserialize a msg use #fromByteMsg()
      *
+     * The scannerSequenceNo is appended after the version 4 fields, where readers that predate it ignore it, and
+     * messages without it read as 0.
+     *
      * @return byte array serialized form
      * @throws IOException
      */
@@ -257,19 +282,26 @@ public class Beacon implements Serializable {
         dos.writeInt(rssi);
         dos.writeLong(time);
         dos.writeInt(messageType);
+        dos.writeInt(scannerSequenceNo);
         dos.close();
         return baos.toByteArray();
     }
 
+    /**
+     * @return the pretty printed JSON form of the beacon, as Gson with setPrettyPrinting() would write it
+     */
     public String toJSON() {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String jsonOutput = gson.toJson(this);
-        return jsonOutput;
+        BeaconJsonWriter writer = prettyWriters.get();
+        writer.reset();
+        return writer.write(this).toString();
     }
+    /**
+     * @return the compact JSON form of the beacon, as Gson would write it
+     */
     public String toJSONSimple() {
-        Gson gson = new GsonBuilder().create();
-        String jsonOutput = gson.toJson(this);
-        return jsonOutput;
+        BeaconJsonWriter writer = simpleWriters.get();
+        writer.reset();
+        return writer.write(this).toString();
     }
 
     public Map<String, Object> toProperties() {
@@ -285,6 +317,7 @@ public class Beacon implements Serializable {
         beaconProps.put("rssi", getRssi());
         beaconProps.put("time", getTime());
         beaconProps.put("messageType", getMessageType());
+        beaconProps.put("scannerSequenceNo", getScannerSequenceNo());
         return beaconProps;
     }
 
@@ -311,10 +344,12 @@ public class Beacon implements Serializable {
         int rssi = dis.readInt();
         long time = dis.readLong();
         int messageType = dis.readInt();
+        int scannerSequenceNo = dis.available() >= 4 ? dis.readInt() : 0;
         dis.close();
         Beacon beacon = new Beacon(scannerID, uuid, code, manufacturer, major, minor, power, rssi, time);
         beacon.setCalibratedPower(calibratedPower);
         beacon.setMessageType(messageType);
+        beacon.setScannerSequenceNo(scannerSequenceNo);
         return beacon;
     }
 
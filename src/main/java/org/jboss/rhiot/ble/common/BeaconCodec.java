@@ -0,0 +1,385 @@
+package org.jboss.rhiot.ble.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The version 5 binary Beacon message format, a compact alternative to the version 4 format of
+ * {@link Beacon#toByteMsg()} that can carry a batch of beacons and is written directly into a caller supplied
+ * ByteBuffer. {@link Beacon#fromByteMsg(byte[])} reads single beacon version 5 messages as well as version 4.
+ *
+ * The layout, where varint is an unsigned LEB128 varint and zigzag a zigzag encoded varint, is:
+ * <pre>
+ *     int32   version = 5, big endian as in version 4
+ *     varint  number of scanner ids defined in the message
+ *             { varint index, varint length, utf-8 bytes } for each scanner id used by the records
+ *     varint  number of records
+ *     int64   base time in milliseconds, big endian
+ *     records {
+ *         byte    flags, FLAG_UUID_BYTES if the uuid is 16 raw bytes, else a varint length and utf-8 bytes,
+ *                 FLAG_SAME_UUID if the uuid is that of the previous record and omitted,
+ *                 FLAG_SEQUENCE if the record ends with a scannerSequenceNo
+ *         varint  scanner id index
+ *         uuid    as given by the flags
+ *         varint  code, manufacturer, major, minor
+ *         zigzag  power, calibratedPower, rssi
+ *         zigzag  time delta from the previous record, or the base time for the first record
+ *         varint  messageType
+ *         varint  scannerSequenceNo if FLAG_SEQUENCE is set, which it is not for the unnumbered value 0
+ *     }
+ * </pre>
+ * The scanner id indexes are assigned by the encoder and stay stable for its lifetime, but every message defines
+ * the ids its records use so messages can be decoded independently. Uuids in the 32 uppercase hex digit form
+ * written by the native scanner are sent as 16 bytes, anything else as a string so it decodes unchanged.
+ *
+ * An encoder is not thread safe, use one per publishing thread.
+ */
+public class BeaconCodec {
+    /** The byte[] version of this format */
+    public static final int VERSION = 5;
+    /** The record uuid is 16 raw bytes */
+    public static final int FLAG_UUID_BYTES = 0x01;
+    /** The record uuid is the same as the previous record and omitted */
+    public static final int FLAG_SAME_UUID = 0x02;
+    /** The record ends with a non-zero scannerSequenceNo */
+    public static final int FLAG_SEQUENCE = 0x04;
+    /** The fixed bytes of a message, the version and base time, excluding the varint counts */
+    public static final int BATCH_HEADER_SIZE = 12;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HashMap<String, Integer> scannerIndexes = new HashMap<>();
+    /** The utf-8 bytes of each scanner id by index */
+    private byte[][] scannerIDs = new byte[8][];
+    /** The scratch list of scanner id indexes used by the message being encoded */
+    private int[] used = new int[8];
+    private final Beacon[] single = new Beacon[1];
+
+    /**
+     * Encode a single beacon message
+     * @param beacon - the beacon to encode
+     * @param out - buffer to write the message to at its position
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the message does not fit in the remaining buffer
+     */
+    public int encode(Beacon beacon, ByteBuffer out) {
+        single[0] = beacon;
+        try {
+            return encodeBatch(single, 0, 1, out);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    /**
+     * Encode a batch of beacons as one message
+     * @param beacons - the beacons to encode
+     * @param out - buffer to write the message to at its position
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the message does not fit in the remaining buffer
+     */
+    public int encodeBatch(List<Beacon> beacons, ByteBuffer out) {
+        return encodeBatch(beacons.toArray(new Beacon[beacons.size()]), 0, beacons.size(), out);
+    }
+
+    /**
+     * Encode a batch of beacons as one message
+     * @param beacons - array holding the beacons to encode
+     * @param offset - index of the first beacon
+     * @param count - the number of beacons
+     * @param out - buffer to write the message to at its position
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the message does not fit in the remaining buffer
+     */
+    public int encodeBatch(Beacon[] beacons, int offset, int count, ByteBuffer out) {
+        int start = out.position();
+        putInt(out, VERSION);
+
+        // Define the scanner ids used by the batch
+        int usedCount = 0;
+        for (int n = offset; n < offset + count; n++) {
+            int index = scannerIndex(beacons[n].getScannerID());
+            boolean seen = false;
+            for (int u = 0; u < usedCount && !seen; u++)
+                seen = used[u] == index;
+            if(!seen) {
+                if(usedCount == used.length)
+                    used = grow(used);
+                used[usedCount ++] = index;
+            }
+        }
+        putVarint(out, usedCount);
+        for (int u = 0; u < usedCount; u++) {
+            byte[] id = scannerIDs[used[u]];
+            putVarint(out, used[u]);
+            putVarint(out, id.length);
+            out.put(id);
+        }
+
+        putVarint(out, count);
+        long previousTime = count > 0 ? beacons[offset].getTime() : 0;
+        putLong(out, previousTime);
+        String previousUUID = null;
+        for (int n = offset; n < offset + count; n++) {
+            Beacon beacon = beacons[n];
+            String uuid = beacon.getUUID();
+            int flags = 0;
+            if(uuid != null && uuid.equals(previousUUID))
+                flags |= FLAG_SAME_UUID;
+            if(uuid != null && UUIDCodec.isCanonical(uuid))
+                flags |= FLAG_UUID_BYTES;
+            if(beacon.getScannerSequenceNo() != 0)
+                flags |= FLAG_SEQUENCE;
+            out.put((byte) flags);
+            putVarint(out, scannerIndex(beacon.getScannerID()));
+            if((flags & FLAG_SAME_UUID) == 0) {
+                if((flags & FLAG_UUID_BYTES) != 0) {
+                    putLong(out, UUIDCodec.high(uuid));
+                    putLong(out, UUIDCodec.low(uuid));
+                } else {
+                    putString(out, uuid == null ? "" : uuid);
+                }
+            }
+            putVarint(out, beacon.getCode());
+            putVarint(out, beacon.getManufacturer());
+            putVarint(out, beacon.getMajor());
+            putVarint(out, beacon.getMinor());
+            putZigzag(out, beacon.getPower());
+            putZigzag(out, beacon.getCalibratedPower());
+            putZigzag(out, beacon.getRssi());
+            putZigzag(out, beacon.getTime() - previousTime);
+            putVarint(out, beacon.getMessageType());
+            if((flags & FLAG_SEQUENCE) != 0)
+                putVarint(out, beacon.getScannerSequenceNo());
+            previousTime = beacon.getTime();
+            previousUUID = uuid;
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * The exact number of bytes encodeBatch writes for the record of a beacon, so a batch can be packed to a size
+     * limit without encoding it. A batch also writes the fixed {@link #BATCH_HEADER_SIZE} plus the varint counts, and
+     * a {@link #definitionSize(String)} for each distinct scanner id.
+     * @param beacon - the beacon of the record
+     * @param previous - the beacon before it in the batch, null for the first
+     * @return the record size in bytes
+     */
+    public int recordSize(Beacon beacon, Beacon previous) {
+        String uuid = beacon.getUUID();
+        int size = 1 + varintSize(scannerIndex(beacon.getScannerID()) & 0xffffffffL);
+        if(previous == null || uuid == null || !uuid.equals(previous.getUUID())) {
+            if(uuid != null && UUIDCodec.isCanonical(uuid)) {
+                size += 16;
+            } else {
+                int length = uuid == null ? 0 : uuid.getBytes(UTF8).length;
+                size += varintSize(length) + length;
+            }
+        }
+        size += varintSize(beacon.getCode() & 0xffffffffL) + varintSize(beacon.getManufacturer() & 0xffffffffL);
+        size += varintSize(beacon.getMajor() & 0xffffffffL) + varintSize(beacon.getMinor() & 0xffffffffL);
+        size += zigzagSize(beacon.getPower()) + zigzagSize(beacon.getCalibratedPower()) + zigzagSize(beacon.getRssi());
+        size += zigzagSize(previous != null ? beacon.getTime() - previous.getTime() : 0);
+        size += varintSize(beacon.getMessageType() & 0xffffffffL);
+        if(beacon.getScannerSequenceNo() != 0)
+            size += varintSize(beacon.getScannerSequenceNo() & 0xffffffffL);
+        return size;
+    }
+
+    /**
+     * @param scannerID - a scanner id used by a batch
+     * @return the number of bytes a batch spends defining the scanner id
+     */
+    public int definitionSize(String scannerID) {
+        int index = scannerIndex(scannerID);
+        byte[] id = scannerIDs[index];
+        return varintSize(index) + varintSize(id.length) + id.length;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size ++;
+        }
+        return size;
+    }
+
+    static int zigzagSize(long value) {
+        return varintSize((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * @return the stable index of a scanner id, assigning one if it is new
+     */
+    private int scannerIndex(String scannerID) {
+        if(scannerID == null)
+            scannerID = "";
+        Integer index = scannerIndexes.get(scannerID);
+        if(index == null) {
+            index = scannerIndexes.size();
+            scannerIndexes.put(scannerID, index);
+            if(index == scannerIDs.length) {
+                byte[][] ids = new byte[2 * scannerIDs.length][];
+                System.arraycopy(scannerIDs, 0, ids, 0, scannerIDs.length);
+                scannerIDs = ids;
+            }
+            scannerIDs[index] = scannerID.getBytes(UTF8);
+        }
+        return index;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[2 * array.length];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    /**
+     * Decode a version 5 message
+     * @param in - buffer holding the message at its position, which is advanced past the message
+     * @return the beacons of the message
+     * @throws IOException if the message is not version 5 or is malformed
+     */
+    public static List<Beacon> decode(ByteBuffer in) throws IOException {
+        ArrayList<Beacon> beacons = new ArrayList<>();
+        decode(in, beacons);
+        return beacons;
+    }
+
+    /**
+     * Decode a version 5 message, adding the beacons to the given list
+     * @param in - buffer holding the message at its position, which is advanced past the message
+     * @param beacons - list the decoded beacons are added to
+     * @return the number of beacons decoded
+     * @throws IOException if the message is not version 5 or is malformed
+     */
+    public static int decode(ByteBuffer in, List<Beacon> beacons) throws IOException {
+        try {
+            int version = getInt(in);
+            if(version != VERSION)
+                throw new IOException(String.format("Msg version: %d does not match version: %d", version, VERSION));
+            int definitions = getVarint(in);
+            HashMap<Integer, String> ids = new HashMap<>();
+            for (int n = 0; n < definitions; n++) {
+                int index = getVarint(in);
+                ids.put(index, getString(in));
+            }
+            int count = getVarint(in);
+            long time = getLong(in);
+            String uuid = null;
+            for (int n = 0; n < count; n++) {
+                int flags = in.get() & 0xff;
+                int index = getVarint(in);
+                String scannerID = ids.get(index);
+                if(scannerID == null)
+                    throw new IOException("Undefined scanner id index: "+index);
+                if((flags & FLAG_SAME_UUID) == 0) {
+                    if((flags & FLAG_UUID_BYTES) != 0) {
+                        long high = getLong(in);
+                        uuid = UUIDCodec.toString(high, getLong(in));
+                    } else {
+                        uuid = getString(in);
+                    }
+                }
+                int code = getVarint(in);
+                int manufacturer = getVarint(in);
+                int major = getVarint(in);
+                int minor = getVarint(in);
+                int power = (int) getZigzag(in);
+                int calibratedPower = (int) getZigzag(in);
+                int rssi = (int) getZigzag(in);
+                time += getZigzag(in);
+                int messageType = getVarint(in);
+                int scannerSequenceNo = (flags & FLAG_SEQUENCE) != 0 ? getVarint(in) : 0;
+                Beacon beacon = new Beacon(scannerID, uuid, code, manufacturer, major, minor, power, rssi, time);
+                beacon.setCalibratedPower(calibratedPower);
+                beacon.setMessageType(messageType);
+                beacon.setScannerSequenceNo(scannerSequenceNo);
+                beacons.add(beacon);
+            }
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated version 5 msg", e);
+        }
+    }
+
+    static void putInt(ByteBuffer out, int value) {
+        out.put((byte) (value >> 24));
+        out.put((byte) (value >> 16));
+        out.put((byte) (value >> 8));
+        out.put((byte) value);
+    }
+
+    static void putLong(ByteBuffer out, long value) {
+        putInt(out, (int) (value >> 32));
+        putInt(out, (int) value);
+    }
+
+    static int getInt(ByteBuffer in) {
+        return (in.get() & 0xff) << 24 | (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+    }
+
+    static long getLong(ByteBuffer in) {
+        long high = getInt(in);
+        return high << 32 | (getInt(in) & 0xffffffffL);
+    }
+
+    /**
+     * Write an unsigned LEB128 varint, negative ints take 5 bytes
+     */
+    static void putVarint(ByteBuffer out, int value) {
+        putVarLong(out, value & 0xffffffffL);
+    }
+
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static void putZigzag(ByteBuffer out, long value) {
+        putVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static int getVarint(ByteBuffer in) throws IOException {
+        return (int) getVarLong(in);
+    }
+
+    static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xff;
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long getZigzag(ByteBuffer in) throws IOException {
+        long value = getVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        putVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    static String getString(ByteBuffer in) throws IOException {
+        int length = getVarint(in);
+        if(length < 0 || length > in.remaining())
+            throw new IOException("Invalid string length: "+length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,458 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.IEventCallback;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the datagrams of {@link BeaconDatagramSender}s on a NIO DatagramChannel, on unicast and any multicast
+ * groups joined, and passes each decoded beacon to an {@link IEventCallback}. Each datagram is received into one
+ * direct buffer and the header and BeaconCodec batch are decoded in place; an unconnected channel cannot scatter
+ * its reads, and the single buffer costs no copy.
+ *
+ * The packet sequence of each sender session is tracked with a {@link SequenceTracker} to report lost, reordered
+ * and duplicate packets. Duplicate packets are dropped rather than delivered again, as are stale packets, those
+ * further behind the highest than the tracker's window, which cannot be told from duplicates. The scannerSequenceNo range
+ * in the header of the packets either side of a gap gives the number of scanner events the lost packets held, for a
+ * sender forwarding a single scanner. Loss ahead of the sender, such as events dropped by a scanner's dispatch ring,
+ * shows up as gaps in the scannerSequenceNos of the delivered beacons, which an optional {@link GapTracker} counts
+ * per scanner. The number of sessions tracked is bounded, the least recently heard session being forgotten to make
+ * room for a new one.
+ */
+public class BeaconDatagramReceiver implements AutoCloseable {
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramChannel channel;
+    private final IEventCallback callback;
+    private final List<MembershipKey> memberships = new ArrayList<>();
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final int maxSessions;
+    private volatile GapTracker gapTracker;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long packetCount;
+    private volatile long beaconCount;
+    private volatile long byteCount;
+    private volatile long malformedCount;
+    private volatile long callbackErrorCount;
+    private volatile long evictedSessionCount;
+    private volatile long duplicateDroppedCount;
+    private volatile long staleDroppedCount;
+    private volatile long lostEventCount;
+
+    /**
+     * @param port - the local port to listen on, 0 for an ephemeral port
+     * @param callback - the callback passed each decoded beacon
+     * @throws IOException if the port cannot be bound
+     */
+    public BeaconDatagramReceiver(int port, IEventCallback callback) throws IOException {
+        this(new InetSocketAddress(port), callback, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * Bind an IPv4 channel with SO_REUSEADDR, so several aggregators on a host can listen for the same multicast
+     * group and port
+     * @param address - the local address to listen on
+     * @param callback - the callback passed each decoded beacon
+     * @param maxSessions - the maximum number of sender sessions tracked
+     * @throws IOException if the address cannot be bound
+     */
+    public BeaconDatagramReceiver(InetSocketAddress address, IEventCallback callback, int maxSessions)
+        throws IOException {
+        if(maxSessions <= 0)
+            throw new IllegalArgumentException("maxSessions must be > 0: "+maxSessions);
+        this.callback = callback;
+        this.maxSessions = maxSessions;
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the bound local port
+     */
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Receive the packets sent to a multicast group
+     * @param group - the IPv4 multicast group address
+     * @param networkInterface - the interface to join the group on
+     * @throws IOException if the group cannot be joined
+     */
+    public synchronized void joinGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        memberships.add(channel.join(group, networkInterface));
+    }
+
+    public GapTracker getGapTracker() {
+        return gapTracker;
+    }
+
+    /**
+     * @param gapTracker - the tracker passed the scannerID and scannerSequenceNo of every delivered beacon, null for
+     *                   none
+     */
+    public void setGapTracker(GapTracker gapTracker) {
+        this.gapTracker = gapTracker;
+    }
+
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "BeaconDatagramReceiver-"+getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop receiving, leave the groups joined and close the channel
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        for (MembershipKey key : memberships)
+            key.drop();
+        memberships.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.printf("Failed to close channel: %s\n", e);
+        }
+        if(thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        List<Beacon> beacons = new ArrayList<>();
+        while (running) {
+            SocketAddress source;
+            buffer.clear();
+            try {
+                source = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if(running)
+                    System.err.printf("BeaconDatagramReceiver receive failed: %s\n", e);
+                break;
+            }
+            buffer.flip();
+            packetCount ++;
+            byteCount += buffer.remaining();
+            beacons.clear();
+            try {
+                if(!decode(buffer, beacons))
+                    continue;
+            } catch (IOException e) {
+                malformedCount ++;
+                System.err.printf("Dropping malformed datagram from %s: %s\n", source, e);
+                continue;
+            }
+            GapTracker gaps = gapTracker;
+            long now = System.currentTimeMillis();
+            for (int n = 0; n < beacons.size(); n++) {
+                Beacon beacon = beacons.get(n);
+                beaconCount ++;
+                if(gaps != null)
+                    gaps.record(beacon.getScannerID(), beacon.getScannerSequenceNo(), now);
+                try {
+                    callback.beaconEvent(beacon);
+                } catch (Throwable e) {
+                    callbackErrorCount ++;
+                    System.err.printf("BeaconDatagramReceiver callback failed: %s\n", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a datagram unless it is a duplicate of one already received or too old to tell
+     * @return true if the beacons were decoded, false for a duplicate or stale packet
+     */
+    private boolean decode(ByteBuffer buffer, List<Beacon> beacons) throws IOException {
+        if(buffer.remaining() < BeaconDatagramSender.HEADER_SIZE)
+            throw new IOException("Datagram shorter than the header: "+buffer.remaining());
+        int magic = buffer.getInt();
+        if(magic != BeaconDatagramSender.MAGIC)
+            throw new IOException(String.format("Bad magic: %x", magic));
+        int version = buffer.get() & 0xff;
+        if(version != BeaconDatagramSender.HEADER_VERSION)
+            throw new IOException("Unsupported header version: "+version);
+        buffer.get();
+        long id = buffer.getLong();
+        long sequence = buffer.getLong();
+        int firstNo = buffer.getInt();
+        int lastNo = buffer.getInt();
+        Session session = session(id);
+        long skipped = session.tracker.record(sequence, System.currentTimeMillis());
+        if(skipped == SequenceTracker.DUPLICATE) {
+            duplicateDroppedCount ++;
+            return false;
+        }
+        if(skipped == SequenceTracker.STALE) {
+            // Older than the window, so it may be a duplicate of a packet already delivered
+            staleDroppedCount ++;
+            return false;
+        }
+        if(skipped >= 0) {
+            // The scanner events between the last packet in order and this one were in the packets skipped
+            if(skipped > 0 && session.lastNo != 0 && firstNo != 0) {
+                int events = firstNo - session.lastNo - 1;
+                if(events > 0)
+                    lostEventCount += events;
+            }
+            session.lastNo = lastNo;
+        } else if(skipped == SequenceTracker.REORDERED && firstNo != 0 && lastNo != 0) {
+            // The late packet's events were counted lost when the packet after it arrived
+            int events = lastNo - firstNo + 1;
+            if(events > 0)
+                lostEventCount -= Math.min(events, lostEventCount);
+        }
+        BeaconCodec.decode(buffer, beacons);
+        return true;
+    }
+
+    private Session session(long id) {
+        Session session = sessions.get(id);
+        if(session == null) {
+            if(sessions.size() >= maxSessions)
+                evictOldestSession();
+            session = new Session();
+            sessions.put(id, session);
+        }
+        return session;
+    }
+
+    private void evictOldestSession() {
+        Long oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+            long time = entry.getValue().tracker.getLastTime();
+            if(time < oldestTime) {
+                oldestTime = time;
+                oldest = entry.getKey();
+            }
+        }
+        if(oldest != null && sessions.remove(oldest) != null)
+            evictedSessionCount ++;
+    }
+
+    /**
+     * @return a snapshot of the tracker of each sender session heard, by session id
+     */
+    public Map<Long, SequenceTracker> getSessions() {
+        Map<Long, SequenceTracker> trackers = new HashMap<>();
+        for (Map.Entry<Long, Session> entry : sessions.entrySet())
+            trackers.put(entry.getKey(), entry.getValue().tracker);
+        return trackers;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public long getBeaconCount() {
+        return beaconCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    public long getCallbackErrorCount() {
+        return callbackErrorCount;
+    }
+
+    public long getEvictedSessionCount() {
+        return evictedSessionCount;
+    }
+
+    /**
+     * @return the number of duplicate packets dropped
+     */
+    public long getDuplicateDroppedCount() {
+        return duplicateDroppedCount;
+    }
+
+    /**
+     * @return the number of packets dropped as further behind the highest than the SequenceTracker.WINDOW
+     */
+    public long getStaleDroppedCount() {
+        return staleDroppedCount;
+    }
+
+    /**
+     * @return the number of scanner events held by lost packets, from the scannerSequenceNo ranges either side
+     */
+    public long getLostEventCount() {
+        return lostEventCount;
+    }
+
+    /**
+     * @return the packets lost over the tracked sessions
+     */
+    public long getLostPacketCount() {
+        long count = 0;
+        for (Session session : sessions.values())
+            count += session.tracker.getLostCount();
+        return count;
+    }
+
+    public long getReorderedPacketCount() {
+        long count = 0;
+        for (Session session : sessions.values())
+            count += session.tracker.getReorderedCount();
+        return count;
+    }
+
+    public long getDuplicatePacketCount() {
+        long count = 0;
+        for (Session session : sessions.values())
+            count += session.tracker.getDuplicateCount();
+        return count;
+    }
+
+    /**
+     * Forget the sessions not heard from since a time
+     * @param time - the receive time before which sessions are removed
+     * @return the number of sessions removed
+     */
+    public int removeSessionsOlderThan(long time) {
+        int removed = 0;
+        for (Iterator<Session> i = sessions.values().iterator(); i.hasNext(); ) {
+            if(i.next().tracker.getLastTime() < time) {
+                i.remove();
+                removed ++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Register the receive and gap counters as gauges
+     * @param registry - the registry to add the gauges to
+     * @param prefix - the prefix of the gauge names, e.g. "udp.receive."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"packets", new IGauge() {
+            @Override
+            public long getValue() {
+                return packetCount;
+            }
+        });
+        registry.register(prefix+"beacons", new IGauge() {
+            @Override
+            public long getValue() {
+                return beaconCount;
+            }
+        });
+        registry.register(prefix+"bytes", new IGauge() {
+            @Override
+            public long getValue() {
+                return byteCount;
+            }
+        });
+        registry.register(prefix+"malformed", new IGauge() {
+            @Override
+            public long getValue() {
+                return malformedCount;
+            }
+        });
+        registry.register(prefix+"sessions", new IGauge() {
+            @Override
+            public long getValue() {
+                return sessions.size();
+            }
+        });
+        registry.register(prefix+"lostPackets", new IGauge() {
+            @Override
+            public long getValue() {
+                return getLostPacketCount();
+            }
+        });
+        registry.register(prefix+"reorderedPackets", new IGauge() {
+            @Override
+            public long getValue() {
+                return getReorderedPacketCount();
+            }
+        });
+        registry.register(prefix+"duplicatePackets", new IGauge() {
+            @Override
+            public long getValue() {
+                return getDuplicatePacketCount();
+            }
+        });
+        registry.register(prefix+"staleDropped", new IGauge() {
+            @Override
+            public long getValue() {
+                return staleDroppedCount;
+            }
+        });
+        registry.register(prefix+"lostEvents", new IGauge() {
+            @Override
+            public long getValue() {
+                return lostEventCount;
+            }
+        });
+    }
+
+    public String toString() {
+        return String.format("BeaconDatagramReceiver: port=%d, packets=%d, beacons=%d, sessions=%d, lost=%d, lostEvents=%d, reordered=%d, duplicates=%d, stale=%d, malformed=%d",
+            getLocalPort(), packetCount, beaconCount, sessions.size(), getLostPacketCount(), lostEventCount,
+            getReorderedPacketCount(), getDuplicatePacketCount(), staleDroppedCount, malformedCount);
+    }
+
+    /**
+     * The packet sequence of a sender session and the scannerSequenceNo range of its highest packet
+     */
+    private static final class Session {
+        final SequenceTracker tracker = new SequenceTracker();
+        /** The scannerSequenceNo of the last beacon of the highest packet, 0 if unnumbered */
+        int lastNo;
+    }
+}
@@ -0,0 +1,359 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.IEventCallback;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends beacons over UDP, packing as many as fit in a datagram of at most the max datagram size as one BeaconCodec
+ * batch. Each target, a unicast aggregator or a multicast group, has its own connected NIO DatagramChannel, and a
+ * packet is written to each with a gathering write of a direct header buffer and the direct payload buffer the
+ * batch is encoded into once, so fanning out costs no copies.
+ *
+ * Every datagram starts with a header:
+ * <pre>
+ *     int32   magic = {@link #MAGIC}
+ *     byte    header version = {@link #HEADER_VERSION}
+ *     byte    flags, reserved
+ *     int64   session, random for each sender so receivers can tell a restart from loss
+ *     int64   packet sequence, from 0 for each session
+ *     int32   scannerSequenceNo of the first beacon
+ *     int32   scannerSequenceNo of the last beacon
+ * </pre>
+ * followed by the BeaconCodec version 5 message. Receivers detect lost packets from the packet sequence; the
+ * scannerSequenceNo range tells which scanner events a lost packet held when the sender forwards a single scanner.
+ *
+ * A partial batch is sent once its first beacon has waited the linger time, by the next event or by the flush
+ * thread {@link #start()} runs, or by {@link #flush()}. The sender is synchronized so several dispatching threads
+ * may share it.
+ */
+public class BeaconDatagramSender implements IEventCallback, AutoCloseable {
+    /** "RHBT" */
+    public static final int MAGIC = 0x52484254;
+    public static final int HEADER_VERSION = 1;
+    public static final int HEADER_SIZE = 30;
+    /** The largest UDP payload that fits a 1500 byte Ethernet MTU over IPv4 without fragmenting */
+    public static final int DEFAULT_MAX_DATAGRAM = 1472;
+    public static final long DEFAULT_LINGER_MILLIS = 20;
+    /** The bytes reserved for the scanner id and record count varints of a batch */
+    private static final int COUNT_RESERVE = 4;
+    private static final int MAX_RECORDS = 16383;
+
+    private final List<InetSocketAddress> targets;
+    private final DatagramChannel[] channels;
+    private final int maxDatagram;
+    private final ByteBuffer header;
+    private final ByteBuffer payload;
+    private final ByteBuffer[] gather;
+    private final BeaconCodec codec = new BeaconCodec();
+    private final long session;
+    private long packetSequence;
+    private Beacon[] pending = new Beacon[64];
+    private int pendingCount;
+    private int pendingBytes;
+    private long pendingSince;
+    /** The distinct scanner ids of the pending batch */
+    private final List<String> pendingIDs = new ArrayList<>();
+    private long lingerMillis = DEFAULT_LINGER_MILLIS;
+    private Thread flusher;
+    private volatile boolean running;
+    private volatile long packetCount;
+    private volatile long beaconCount;
+    private volatile long byteCount;
+    private volatile long errorCount;
+
+    /**
+     * Create a sender of datagrams of at most {@link #DEFAULT_MAX_DATAGRAM} bytes
+     * @param targets - the aggregator and multicast group addresses to send each packet to
+     * @throws IOException if a channel cannot be opened or connected
+     */
+    public BeaconDatagramSender(InetSocketAddress... targets) throws IOException {
+        this(DEFAULT_MAX_DATAGRAM, null, 1, targets);
+    }
+
+    /**
+     * @param maxDatagram - the largest datagram to send, the path MTU less the IP and UDP headers
+     * @param multicastInterface - the interface multicast packets are sent from, null for the system default
+     * @param multicastTtl - the time to live of multicast packets, 1 to stay on the local network
+     * @param targets - the aggregator and multicast group addresses to send each packet to
+     * @throws IOException if a channel cannot be opened or connected
+     */
+    public BeaconDatagramSender(int maxDatagram, NetworkInterface multicastInterface, int multicastTtl,
+                                InetSocketAddress... targets) throws IOException {
+        if(targets.length == 0)
+            throw new IllegalArgumentException("No targets");
+        if(maxDatagram < HEADER_SIZE + 256 || maxDatagram > 65507)
+            throw new IllegalArgumentException("maxDatagram must be in [286, 65507]: "+maxDatagram);
+        this.targets = Arrays.asList(targets.clone());
+        this.maxDatagram = maxDatagram;
+        header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        payload = ByteBuffer.allocateDirect(maxDatagram - HEADER_SIZE);
+        gather = new ByteBuffer[] {header, payload};
+        session = new SecureRandom().nextLong();
+        channels = new DatagramChannel[targets.length];
+        try {
+            for (int n = 0; n < targets.length; n++) {
+                InetSocketAddress target = targets[n];
+                boolean ipv6 = target.getAddress() instanceof java.net.Inet6Address;
+                DatagramChannel channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+                channels[n] = channel;
+                if(target.getAddress().isMulticastAddress()) {
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+                    if(multicastInterface != null)
+                        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+                }
+                channel.connect(target);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public List<InetSocketAddress> getTargets() {
+        return targets;
+    }
+
+    public int getMaxDatagram() {
+        return maxDatagram;
+    }
+
+    /**
+     * @return the random session id sent in each packet header
+     */
+    public long getSession() {
+        return session;
+    }
+
+    public synchronized long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @param lingerMillis - how long the first beacon of a partial batch may wait to be sent, 0 to send each event
+     *                     immediately
+     */
+    public synchronized void setLingerMillis(long lingerMillis) {
+        if(lingerMillis < 0)
+            throw new IllegalArgumentException("lingerMillis must be >= 0: "+lingerMillis);
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Start a daemon thread that sends partial batches that have waited the linger time when no further events
+     * arrive to send them
+     */
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    long linger;
+                    synchronized (BeaconDatagramSender.this) {
+                        linger = lingerMillis;
+                        if(pendingCount > 0 && System.currentTimeMillis() - pendingSince >= linger)
+                            sendPending();
+                    }
+                    try {
+                        Thread.sleep(Math.max(linger / 2, 1));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }, "BeaconDatagramSender-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * IEventCallback implementation that adds the beacon so a scanner can forward its events directly
+     * @param beacon - the beacon to send
+     * @return false so the beacon is not considered consumed
+     */
+    @Override
+    public boolean beaconEvent(Beacon beacon) {
+        send(beacon);
+        return false;
+    }
+
+    /**
+     * Add a beacon to the pending batch, sending the batch first if the beacon does not fit, and after if the batch
+     * has waited the linger time. Failures are counted and logged rather than thrown.
+     * @param beacon - the beacon, which must not be modified until sent
+     */
+    public synchronized void send(Beacon beacon) {
+        Beacon previous = pendingCount > 0 ? pending[pendingCount - 1] : null;
+        int size = codec.recordSize(beacon, previous) + definitionSize(beacon.getScannerID());
+        if(pendingCount > 0 && (pendingBytes + size > payload.capacity() || pendingCount == MAX_RECORDS)) {
+            sendPending();
+            size = codec.recordSize(beacon, null) + definitionSize(beacon.getScannerID());
+        }
+        if(pendingCount == 0) {
+            pendingBytes = BeaconCodec.BATCH_HEADER_SIZE + COUNT_RESERVE;
+            pendingSince = System.currentTimeMillis();
+            if(pendingBytes + size > payload.capacity()) {
+                errorCount ++;
+                System.err.printf("Beacon too large for a %d byte datagram: %s\n", maxDatagram, beacon);
+                return;
+            }
+        }
+        if(pendingCount == pending.length)
+            pending = Arrays.copyOf(pending, 2 * pending.length);
+        if(!pendingIDs.contains(beacon.getScannerID()))
+            pendingIDs.add(beacon.getScannerID());
+        pending[pendingCount ++] = beacon;
+        pendingBytes += size;
+        if(System.currentTimeMillis() - pendingSince >= lingerMillis)
+            sendPending();
+    }
+
+    private int definitionSize(String scannerID) {
+        return pendingIDs.contains(scannerID) ? 0 : codec.definitionSize(scannerID);
+    }
+
+    /**
+     * Send the pending batch now
+     */
+    public synchronized void flush() {
+        if(pendingCount > 0)
+            sendPending();
+    }
+
+    private void sendPending() {
+        payload.clear();
+        codec.encodeBatch(pending, 0, pendingCount, payload);
+        payload.flip();
+        header.clear();
+        header.putInt(MAGIC);
+        header.put((byte) HEADER_VERSION);
+        header.put((byte) 0);
+        header.putLong(session);
+        header.putLong(packetSequence ++);
+        header.putInt(pending[0].getScannerSequenceNo());
+        header.putInt(pending[pendingCount - 1].getScannerSequenceNo());
+        header.flip();
+        int length = header.remaining() + payload.remaining();
+        for (int n = 0; n < channels.length; n++) {
+            header.rewind();
+            payload.rewind();
+            try {
+                channels[n].write(gather);
+                byteCount += length;
+            } catch (IOException e) {
+                // An unreachable aggregator shows up as a refused send on the connected channel; keep sending
+                errorCount ++;
+                System.err.printf("Failed to send %d beacons to %s: %s\n", pendingCount, targets.get(n), e);
+            }
+        }
+        packetCount ++;
+        beaconCount += pendingCount;
+        Arrays.fill(pending, 0, pendingCount, null);
+        pendingCount = 0;
+        pendingIDs.clear();
+    }
+
+    /**
+     * @return the number of packets sent, each to every target
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public long getBeaconCount() {
+        return beaconCount;
+    }
+
+    /**
+     * @return the bytes written over all targets
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Register the send counters as gauges
+     * @param registry - the registry to add the gauges to
+     * @param prefix - the prefix of the gauge names, e.g. "udp.send."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"packets", new IGauge() {
+            @Override
+            public long getValue() {
+                return packetCount;
+            }
+        });
+        registry.register(prefix+"beacons", new IGauge() {
+            @Override
+            public long getValue() {
+                return beaconCount;
+            }
+        });
+        registry.register(prefix+"bytes", new IGauge() {
+            @Override
+            public long getValue() {
+                return byteCount;
+            }
+        });
+        registry.register(prefix+"errors", new IGauge() {
+            @Override
+            public long getValue() {
+                return errorCount;
+            }
+        });
+    }
+
+    /**
+     * Send any pending batch, stop the flush thread and close the channels
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = flusher;
+            flusher = null;
+            if(channels[0] != null && channels[0].isOpen())
+                flush();
+        }
+        if(thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (DatagramChannel channel : channels) {
+            if(channel == null)
+                continue;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.printf("Failed to close channel: %s\n", e);
+            }
+        }
+    }
+
+    public String toString() {
+        return String.format("BeaconDatagramSender: targets=%s, session=%x, packets=%d, beacons=%d, bytes=%d, errors=%d",
+            targets, session, packetCount, beaconCount, byteCount, errorCount);
+    }
+}
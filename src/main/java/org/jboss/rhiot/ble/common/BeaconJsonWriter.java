@@ -0,0 +1,474 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hand written JSON writer for Beacon, BeaconInfo, RHIoTTag and EventsBucket that appends to a reusable
+ * StringBuilder rather than building a Gson instance and reflecting over the object for each message. The output is
+ * the same as Gson's default output for these classes: the same field names in declaration order, null fields
+ * omitted, the html safe string escaping and, when enabled, the same two space pretty printing.
+ * The one difference is the order of the entries of an EventsBucket map, which follow the order the beacons were
+ * added rather than HashMap iteration order.
+ *
+ * With newline delimited mode each record is followed by a '\n' so many records can be batched into the buffer as
+ * NDJSON and written out in one call:
+ * <pre>
+ *     BeaconJsonWriter writer = new BeaconJsonWriter();
+ *     writer.setNewlineDelimited(true);
+ *     for(Beacon beacon : beacons)
+ *         writer.write(beacon);
+ *     writer.writeTo(out);
+ *     writer.reset();
+ * </pre>
+ * A writer is not thread safe, use one per publishing thread.
+ */
+public class BeaconJsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder buffer;
+    private boolean prettyPrinting;
+    private boolean newlineDelimited;
+    /** The nesting depth used for pretty printing indentation */
+    private int depth;
+    /** True until the first member of the current object or array is written */
+    private boolean first;
+    /** Scratch (minor << 32 | insertion index) keys used to find the last beacon for each minor of a bucket */
+    private long[] minorKeys = new long[64];
+    /** The index of the first beacon of each minor id, and the sums of the beacons sharing it by that index */
+    private int[] firstForMinor = new int[64];
+    private long[] minorCounts = new long[64];
+    private long[] minorRssiSums = new long[64];
+    private long[] minorTimeSums = new long[64];
+
+    public BeaconJsonWriter() {
+        this(false);
+    }
+
+    /**
+     * @param prettyPrinting - true for the output of Gson with setPrettyPrinting(), false for the compact output
+     */
+    public BeaconJsonWriter(boolean prettyPrinting) {
+        this.buffer = new StringBuilder(256);
+        this.prettyPrinting = prettyPrinting;
+    }
+
+    public boolean isPrettyPrinting() {
+        return prettyPrinting;
+    }
+
+    public void setPrettyPrinting(boolean prettyPrinting) {
+        if(prettyPrinting && newlineDelimited)
+            throw new IllegalStateException("Pretty printing cannot be used with newline delimited records");
+        this.prettyPrinting = prettyPrinting;
+    }
+
+    public boolean isNewlineDelimited() {
+        return newlineDelimited;
+    }
+
+    /**
+     * @param newlineDelimited - true to follow each record with a '\n' to produce NDJSON
+     */
+    public void setNewlineDelimited(boolean newlineDelimited) {
+        if(newlineDelimited && prettyPrinting)
+            throw new IllegalStateException("Newline delimited records cannot be pretty printed");
+        this.newlineDelimited = newlineDelimited;
+    }
+
+    /**
+     * @return the buffer holding the records written since the last reset
+     */
+    public StringBuilder getBuffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return buffer.length();
+    }
+
+    /**
+     * Clear the buffer for the next record or batch, keeping its capacity
+     */
+    public void reset() {
+        buffer.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    /**
+     * Append the buffer contents to an Appendable such as a Writer
+     * @param out - the destination
+     * @throws IOException on failure to write to out
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append(buffer);
+    }
+
+    /**
+     * Write the buffer contents as utf-8 at the position of a ByteBuffer
+     * @param out - the destination
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the contents do not fit in the remaining buffer, in which case nothing is
+     * written
+     */
+    public int writeTo(ByteBuffer out) {
+        int length = buffer.length();
+        int size = 0;
+        for (int n = 0; n < length; n++) {
+            char c = buffer.charAt(n);
+            if(c < 0x80)
+                size ++;
+            else if(c < 0x800)
+                size += 2;
+            else if(Character.isHighSurrogate(c) && n + 1 < length && Character.isLowSurrogate(buffer.charAt(n + 1))) {
+                size += 4;
+                n ++;
+            } else
+                size += 3;
+        }
+        if(size > out.remaining())
+            throw new BufferOverflowException();
+
+        for (int n = 0; n < length; n++) {
+            char c = buffer.charAt(n);
+            if(c < 0x80) {
+                out.put((byte) c);
+            } else if(c < 0x800) {
+                out.put((byte) (0xc0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3f));
+            } else if(Character.isHighSurrogate(c) && n + 1 < length && Character.isLowSurrogate(buffer.charAt(n + 1))) {
+                int cp = Character.toCodePoint(c, buffer.charAt(++ n));
+                out.put((byte) (0xf0 | cp >> 18));
+                out.put((byte) (0x80 | cp >> 12 & 0x3f));
+                out.put((byte) (0x80 | cp >> 6 & 0x3f));
+                out.put((byte) (0x80 | cp & 0x3f));
+            } else {
+                // Unpaired surrogates are replaced as String.getBytes does
+                if(Character.isSurrogate(c))
+                    c = '?';
+                out.put((byte) (0xe0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3f));
+                out.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+        return size;
+    }
+
+    public BeaconJsonWriter write(Beacon beacon) {
+        beginObject();
+        field("scannerID", beacon.getScannerID());
+        field("uuid", beacon.getUUID());
+        field("code", beacon.getCode());
+        field("manufacturer", beacon.getManufacturer());
+        field("major", beacon.getMajor());
+        field("minor", beacon.getMinor());
+        field("power", beacon.getPower());
+        field("calibratedPower", beacon.getCalibratedPower());
+        field("rssi", beacon.getRssi());
+        field("messageType", beacon.getMessageType());
+        field("count", beacon.getCount());
+        field("time", beacon.getTime());
+        field("scannerSequenceNo", beacon.getScannerSequenceNo());
+        endObject();
+        return endRecord();
+    }
+
+    /**
+     * Write a batch of beacons as consecutive records, normally used with newline delimited mode
+     * @param beacons - the beacons to write
+     * @return this writer
+     */
+    public BeaconJsonWriter write(List<Beacon> beacons) {
+        for (int n = 0; n < beacons.size(); n++)
+            write(beacons.get(n));
+        return this;
+    }
+
+    public BeaconJsonWriter write(BeaconInfo info) {
+        writeInfo(info);
+        return endRecord();
+    }
+
+    public BeaconJsonWriter write(RHIoTTag tag) {
+        beginObject();
+        field("vBatt", tag.getvBatt());
+        field("tempC", tag.getTempC());
+        field("advCnt", tag.getAdvCnt());
+        field("secCnt", tag.getSecCnt());
+        field("keys", tag.getKeys());
+        field("lux", tag.getLux());
+        byte[] address = tag.getAddress();
+        if(address != null) {
+            name("address");
+            beginArray();
+            for (byte b : address) {
+                element();
+                buffer.append(b);
+            }
+            endArray();
+        }
+        field("name", tag.getName());
+        endObject();
+        return endRecord();
+    }
+
+    /**
+     * Write a bucket in the form of its legacy minor id keyed map. If the bucket has not been released the entries
+     * are written from its statistics table without creating the map.
+     * @param bucket - the bucket to write
+     * @return this writer
+     */
+    public BeaconJsonWriter write(EventsBucket bucket) {
+        beginObject();
+        field("bucketStart", bucket.getBucketStart());
+        field("bucketEnd", bucket.getBucketEnd());
+        field("eventCount", bucket.getEventCount());
+        field("firstSequenceNo", bucket.getFirstSequenceNo());
+        field("lastSequenceNo", bucket.getLastSequenceNo());
+        if(bucket.bucket != null) {
+            name("bucket");
+            beginObject();
+            for (Map.Entry<Integer, BeaconInfo> entry : bucket.bucket.entrySet()) {
+                name(entry.getKey().toString());
+                writeInfo(entry.getValue());
+            }
+            endObject();
+        } else if(!bucket.isReleased()) {
+            name("bucket");
+            writeStats(bucket.getStats());
+        }
+        endObject();
+        return endRecord();
+    }
+
+    private void writeInfo(BeaconInfo info) {
+        beginObject();
+        field("scannerID", info.scannerID);
+        field("uuid", info.uuid);
+        field("isHeartbeat", info.isHeartbeat);
+        field("count", info.count);
+        field("code", info.code);
+        field("manufacturer", info.manufacturer);
+        field("major", info.major);
+        field("minor", info.minor);
+        field("power", info.power);
+        field("calibrated_power", info.calibrated_power);
+        field("rssi", info.rssi);
+        field("time", info.time);
+        field("scannerSequenceNo", info.scannerSequenceNo);
+        endObject();
+    }
+
+    /**
+     * Write the table as the minor id keyed object toMinorMap() would give, where the beacons that share a minor id
+     * are merged into the first added with the counts and rssi/time averages of them all
+     */
+    private void writeStats(BeaconStatsTable stats) {
+        int size = stats.size();
+        if(minorKeys.length < size) {
+            minorKeys = new long[Math.max(size, 2 * minorKeys.length)];
+            firstForMinor = new int[minorKeys.length];
+            minorCounts = new long[minorKeys.length];
+            minorRssiSums = new long[minorKeys.length];
+            minorTimeSums = new long[minorKeys.length];
+        }
+        for (int i = 0; i < size; i++) {
+            minorKeys[i] = (long) stats.getMinor(stats.slotAt(i)) << 32 | i;
+            minorCounts[i] = 0;
+            minorRssiSums[i] = 0;
+            minorTimeSums[i] = 0;
+        }
+        // Sorted by minor id and then index, so each run of a minor id starts with the first added
+        Arrays.sort(minorKeys, 0, size);
+        int first = 0;
+        for (int k = 0; k < size; k++) {
+            int i = (int) minorKeys[k];
+            if(k == 0 || minorKeys[k] >>> 32 != minorKeys[k - 1] >>> 32)
+                first = i;
+            firstForMinor[i] = first;
+            int slot = stats.slotAt(i);
+            minorCounts[first] += stats.getCount(slot);
+            minorRssiSums[first] += stats.getRssiSum(slot);
+            minorTimeSums[first] += stats.getTimeSum(slot);
+        }
+
+        beginObject();
+        for (int i = 0; i < size; i++) {
+            if(firstForMinor[i] != i)
+                continue;
+            int slot = stats.slotAt(i);
+            name(Integer.toString(stats.getMinor(slot)));
+            beginObject();
+            field("scannerID", stats.getScannerID(slot));
+            field("uuid", stats.getUUID(slot));
+            field("isHeartbeat", stats.isHeartbeat(slot));
+            field("count", (int) minorCounts[i]);
+            field("code", stats.getCode(slot));
+            field("manufacturer", stats.getManufacturer(slot));
+            field("major", stats.getMajor(slot));
+            field("minor", stats.getMinor(slot));
+            field("power", stats.getPower(slot));
+            field("calibrated_power", stats.getCalibratedPower(slot));
+            field("rssi", (int) (minorRssiSums[i] / minorCounts[i]));
+            field("time", minorTimeSums[i] / minorCounts[i]);
+            field("scannerSequenceNo", stats.getSequenceNo(slot));
+            endObject();
+        }
+        endObject();
+    }
+
+    private BeaconJsonWriter endRecord() {
+        if(newlineDelimited)
+            buffer.append('\n');
+        return this;
+    }
+
+    private void beginObject() {
+        buffer.append('{');
+        depth ++;
+        first = true;
+    }
+
+    private void endObject() {
+        close('}');
+    }
+
+    private void beginArray() {
+        buffer.append('[');
+        depth ++;
+        first = true;
+    }
+
+    private void endArray() {
+        close(']');
+    }
+
+    private void close(char c) {
+        depth --;
+        if(!first)
+            newline();
+        buffer.append(c);
+        first = false;
+    }
+
+    /**
+     * Start the next member of the current array
+     */
+    private void element() {
+        if(!first)
+            buffer.append(',');
+        newline();
+        first = false;
+    }
+
+    private void name(String name) {
+        element();
+        string(name);
+        buffer.append(prettyPrinting ? ": " : ":");
+    }
+
+    private void field(String name, String value) {
+        if(value != null) {
+            name(name);
+            string(value);
+        }
+    }
+
+    private void field(String name, int value) {
+        name(name);
+        buffer.append(value);
+    }
+
+    private void field(String name, long value) {
+        name(name);
+        buffer.append(value);
+    }
+
+    private void field(String name, boolean value) {
+        name(name);
+        buffer.append(value);
+    }
+
+    private void field(String name, double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+            throw new IllegalArgumentException(name+" is not a valid JSON number: "+value);
+        name(name);
+        buffer.append(value);
+    }
+
+    private void newline() {
+        if(prettyPrinting) {
+            buffer.append('\n');
+            for (int n = 0; n < depth; n++)
+                buffer.append("  ");
+        }
+    }
+
+    /**
+     * Append a quoted string with the escaping of Gson's default html safe JsonWriter
+     */
+    private void string(String value) {
+        buffer.append('"');
+        int length = value.length();
+        for (int n = 0; n < length; n++) {
+            char c = value.charAt(n);
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\b':
+                    buffer.append("\\b");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\f':
+                    buffer.append("\\f");
+                    break;
+                case '<':
+                case '>':
+                case '&':
+                case '=':
+                case '\'':
+                case '\u2028':
+                case '\u2029':
+                    unicodeEscape(c);
+                    break;
+                default:
+                    if(c < 0x20)
+                        unicodeEscape(c);
+                    else
+                        buffer.append(c);
+            }
+        }
+        buffer.append('"');
+    }
+
+    private void unicodeEscape(char c) {
+        buffer.append("\\u")
+            .append(HEX[c >> 12 & 0xf])
+            .append(HEX[c >> 8 & 0xf])
+            .append(HEX[c >> 4 & 0xf])
+            .append(HEX[c & 0xf]);
+    }
+}
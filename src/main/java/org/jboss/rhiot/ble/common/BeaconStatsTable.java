@@ -0,0 +1,610 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.BeaconView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An open addressing table of the per beacon statistics of a time window, keyed on the full (uuid, major, minor)
+ * beacon identity with the uuid packed into two longs by {@link UUIDCodec}. The key and statistics are held in
+ * parallel primitive arrays, so adding an event does not allocate once the table has grown to the population size.
+ *
+ * The table is cleared in O(1) by advancing a generation stamp, which keeps the capacity for the next window. The
+ * occupied slots are also kept in insertion order so iteration is proportional to the number of beacons rather than
+ * the capacity:
+ * <pre>
+ *     for(int i = 0; i &lt; table.size(); i ++) {
+ *         int slot = table.slotAt(i);
+ *         ... table.getMinor(slot), table.getAverageRssi(slot) ...
+ *     }
+ * </pre>
+ * Uuids that are not 32 hex digits are keyed on a hash of the string and compared with equals on a key match.
+ * The table is not thread safe.
+ */
+public class BeaconStatsTable {
+    public static final int DEFAULT_EXPECTED_BEACONS = 512;
+
+    private int capacity;
+    private int mask;
+    private int generation = 1;
+    private int size;
+    private int eventCount;
+    /** The generation a slot was last written in, a slot is empty if this is not the current generation */
+    private int[] stamps;
+    /** The occupied slots in insertion order */
+    private int[] order;
+    private long[] uuidHighs;
+    private long[] uuidLows;
+    private boolean[] packed;
+    private int[] majors;
+    private int[] minors;
+    private String[] uuids;
+    private String[] scannerIDs;
+    private boolean[] heartbeats;
+    private int[] codes;
+    private int[] manufacturers;
+    private int[] powers;
+    private int[] calibratedPowers;
+    private int[] counts;
+    private long[] rssiSums;
+    private int[] rssiMins;
+    private int[] rssiMaxs;
+    private long[] timeSums;
+    private long[] timeMins;
+    private long[] timeMaxs;
+    /** The scannerSequenceNo of the last numbered event of each beacon */
+    private int[] sequenceNos;
+    /** The scannerSequenceNo of the first and last numbered events added, 0 if none were numbered */
+    private int firstSequenceNo;
+    private int lastSequenceNo;
+
+    // The last uuid seen and its packed form, the uuid strings from UUIDCache are shared so this usually hits
+    private String lastUUID;
+    private long lastHigh;
+    private long lastLow;
+    private boolean lastPacked;
+
+    public BeaconStatsTable() {
+        this(DEFAULT_EXPECTED_BEACONS);
+    }
+
+    /**
+     * @param expectedBeacons - the number of distinct beacons expected in a window
+     */
+    public BeaconStatsTable(int expectedBeacons) {
+        allocate(tableSizeFor(expectedBeacons));
+    }
+
+    /**
+     * A view sharing the arrays of another table, used to rehash from during a resize
+     */
+    private BeaconStatsTable(BeaconStatsTable from) {
+        capacity = from.capacity;
+        mask = from.mask;
+        stamps = from.stamps;
+        order = from.order;
+        uuidHighs = from.uuidHighs;
+        uuidLows = from.uuidLows;
+        packed = from.packed;
+        majors = from.majors;
+        minors = from.minors;
+        uuids = from.uuids;
+        scannerIDs = from.scannerIDs;
+        heartbeats = from.heartbeats;
+        codes = from.codes;
+        manufacturers = from.manufacturers;
+        powers = from.powers;
+        calibratedPowers = from.calibratedPowers;
+        counts = from.counts;
+        rssiSums = from.rssiSums;
+        rssiMins = from.rssiMins;
+        rssiMaxs = from.rssiMaxs;
+        timeSums = from.timeSums;
+        timeMins = from.timeMins;
+        timeMaxs = from.timeMaxs;
+        sequenceNos = from.sequenceNos;
+    }
+
+    private static int tableSizeFor(int expectedBeacons) {
+        // Keep the load factor at or below 0.5
+        int capacity = 16;
+        while (capacity < 2L * expectedBeacons && capacity < (1 << 30))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        stamps = new int[capacity];
+        order = new int[capacity / 2 + 1];
+        uuidHighs = new long[capacity];
+        uuidLows = new long[capacity];
+        packed = new boolean[capacity];
+        majors = new int[capacity];
+        minors = new int[capacity];
+        uuids = new String[capacity];
+        scannerIDs = new String[capacity];
+        heartbeats = new boolean[capacity];
+        codes = new int[capacity];
+        manufacturers = new int[capacity];
+        powers = new int[capacity];
+        calibratedPowers = new int[capacity];
+        counts = new int[capacity];
+        rssiSums = new long[capacity];
+        rssiMins = new int[capacity];
+        rssiMaxs = new int[capacity];
+        timeSums = new long[capacity];
+        timeMins = new long[capacity];
+        timeMaxs = new long[capacity];
+        sequenceNos = new int[capacity];
+    }
+
+    /**
+     * @return the number of slots in the table
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of distinct beacons in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of events added since the last clear
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Remove all entries in O(1), keeping the capacity. The uuid and scannerID references of the old entries are
+     * retained until their slots are reused.
+     */
+    public void clear() {
+        generation ++;
+        if(generation == 0) {
+            // The stamps wrapped, so stale slots could look current
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        size = 0;
+        eventCount = 0;
+        firstSequenceNo = 0;
+        lastSequenceNo = 0;
+    }
+
+    /**
+     * @param i - index of the occupied slot in insertion order, 0 to size()-1
+     * @return the slot of the i-th beacon added
+     */
+    public int slotAt(int i) {
+        return order[i];
+    }
+
+    /**
+     * Add an event to the statistics of its beacon
+     * @param info - the beacon event
+     * @param isHeartbeat - the heartbeat flag recorded if this is the first event of the beacon
+     * @return the slot of the beacon
+     */
+    public int add(BeaconInfo info, boolean isHeartbeat) {
+        return add(info.scannerID, info.uuid, isHeartbeat, info.code, info.manufacturer, info.major, info.minor,
+            info.power, info.calibrated_power, info.rssi, info.time, info.scannerSequenceNo);
+    }
+
+    /**
+     * Add an event read from a beacon_info frame without creating a BeaconInfo
+     * @param scannerID - the id of the scanner that saw the event
+     * @param view - view wrapping the beacon_info frame
+     * @param isHeartbeat - the heartbeat flag recorded if this is the first event of the beacon
+     * @return the slot of the beacon
+     */
+    public int add(String scannerID, BeaconView view, boolean isHeartbeat) {
+        return add(scannerID, view.getUUID(), isHeartbeat, view.getCode(), view.getManufacturer(), view.getMajor(),
+            view.getMinor(), view.getPower(), view.getCalibratedPower(), view.getRssi(), view.getTime(),
+            view.getScannerSequenceNo());
+    }
+
+    /**
+     * Add an unnumbered event to the statistics of its beacon. The descriptive fields are taken from the first event
+     * of the beacon in the window.
+     * @return the slot of the beacon
+     */
+    public int add(String scannerID, String uuid, boolean isHeartbeat, int code, int manufacturer, int major,
+                   int minor, int power, int calibratedPower, int rssi, long time) {
+        return add(scannerID, uuid, isHeartbeat, code, manufacturer, major, minor, power, calibratedPower, rssi, time, 0);
+    }
+
+    /**
+     * Add an event to the statistics of its beacon. The descriptive fields are taken from the first event of the
+     * beacon in the window.
+     * @param sequenceNo - the scannerSequenceNo of the event, 0 if unnumbered
+     * @return the slot of the beacon
+     */
+    public int add(String scannerID, String uuid, boolean isHeartbeat, int code, int manufacturer, int major,
+                   int minor, int power, int calibratedPower, int rssi, long time, int sequenceNo) {
+        packKey(uuid);
+        int slot = findSlot(lastHigh, lastLow, lastPacked, uuid, major, minor);
+        if(stamps[slot] == generation) {
+            counts[slot] ++;
+            rssiSums[slot] += rssi;
+            if(rssi < rssiMins[slot])
+                rssiMins[slot] = rssi;
+            if(rssi > rssiMaxs[slot])
+                rssiMaxs[slot] = rssi;
+            timeSums[slot] += time;
+            if(time < timeMins[slot])
+                timeMins[slot] = time;
+            if(time > timeMaxs[slot])
+                timeMaxs[slot] = time;
+            if(sequenceNo != 0)
+                sequenceNos[slot] = sequenceNo;
+        } else {
+            if(2 * (size + 1) > capacity) {
+                resize(capacity * 2);
+                slot = findSlot(lastHigh, lastLow, lastPacked, uuid, major, minor);
+            }
+            stamps[slot] = generation;
+            order[size ++] = slot;
+            uuidHighs[slot] = lastHigh;
+            uuidLows[slot] = lastLow;
+            packed[slot] = lastPacked;
+            majors[slot] = major;
+            minors[slot] = minor;
+            uuids[slot] = uuid;
+            scannerIDs[slot] = scannerID;
+            heartbeats[slot] = isHeartbeat;
+            codes[slot] = code;
+            manufacturers[slot] = manufacturer;
+            powers[slot] = power;
+            calibratedPowers[slot] = calibratedPower;
+            counts[slot] = 1;
+            rssiSums[slot] = rssi;
+            rssiMins[slot] = rssi;
+            rssiMaxs[slot] = rssi;
+            timeSums[slot] = time;
+            timeMins[slot] = time;
+            timeMaxs[slot] = time;
+            sequenceNos[slot] = sequenceNo;
+        }
+        if(sequenceNo != 0) {
+            if(firstSequenceNo == 0)
+                firstSequenceNo = sequenceNo;
+            lastSequenceNo = sequenceNo;
+        }
+        eventCount ++;
+        return slot;
+    }
+
+    /**
+     * Find the slot of a beacon
+     * @return the slot of the beacon, -1 if it is not in the table
+     */
+    public int find(String uuid, int major, int minor) {
+        packKey(uuid);
+        int slot = findSlot(lastHigh, lastLow, lastPacked, uuid, major, minor);
+        return stamps[slot] == generation ? slot : -1;
+    }
+
+    private void packKey(String uuid) {
+        if(uuid == lastUUID)
+            return;
+        lastUUID = uuid;
+        if(uuid == null) {
+            lastPacked = false;
+            lastHigh = 0;
+            lastLow = 0;
+        } else if(UUIDCodec.isPackable(uuid)) {
+            lastPacked = true;
+            lastHigh = UUIDCodec.high(uuid);
+            lastLow = UUIDCodec.low(uuid);
+        } else {
+            lastPacked = false;
+            lastHigh = uuid.hashCode();
+            lastLow = uuid.length();
+        }
+    }
+
+    /**
+     * Linear probe for the slot holding the key or the first empty slot
+     */
+    private int findSlot(long high, long low, boolean isPacked, String uuid, int major, int minor) {
+        int slot = hash(high, low, major, minor) & mask;
+        while (stamps[slot] == generation) {
+            if(uuidHighs[slot] == high && uuidLows[slot] == low && majors[slot] == major && minors[slot] == minor
+                && packed[slot] == isPacked && (isPacked || equals(uuids[slot], uuid)))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static int hash(long high, long low, int major, int minor) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h = h * 0x9E3779B97F4A7C15L + (((long) major << 32) | (minor & 0xffffffffL));
+        // murmur3 fmix64
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private void resize(int newCapacity) {
+        BeaconStatsTable old = new BeaconStatsTable(this);
+        int oldSize = size;
+        allocate(newCapacity);
+        generation = 1;
+        size = 0;
+        for (int i = 0; i < oldSize; i++) {
+            int from = old.order[i];
+            int slot = findSlot(old.uuidHighs[from], old.uuidLows[from], old.packed[from], old.uuids[from],
+                old.majors[from], old.minors[from]);
+            insert(old, from, slot);
+        }
+    }
+
+    /**
+     * Copy a slot of another table into an empty slot of this one
+     */
+    private void insert(BeaconStatsTable from, int fromSlot, int slot) {
+        stamps[slot] = generation;
+        order[size ++] = slot;
+        uuidHighs[slot] = from.uuidHighs[fromSlot];
+        uuidLows[slot] = from.uuidLows[fromSlot];
+        packed[slot] = from.packed[fromSlot];
+        majors[slot] = from.majors[fromSlot];
+        minors[slot] = from.minors[fromSlot];
+        uuids[slot] = from.uuids[fromSlot];
+        scannerIDs[slot] = from.scannerIDs[fromSlot];
+        heartbeats[slot] = from.heartbeats[fromSlot];
+        codes[slot] = from.codes[fromSlot];
+        manufacturers[slot] = from.manufacturers[fromSlot];
+        powers[slot] = from.powers[fromSlot];
+        calibratedPowers[slot] = from.calibratedPowers[fromSlot];
+        counts[slot] = from.counts[fromSlot];
+        rssiSums[slot] = from.rssiSums[fromSlot];
+        rssiMins[slot] = from.rssiMins[fromSlot];
+        rssiMaxs[slot] = from.rssiMaxs[fromSlot];
+        timeSums[slot] = from.timeSums[fromSlot];
+        timeMins[slot] = from.timeMins[fromSlot];
+        timeMaxs[slot] = from.timeMaxs[fromSlot];
+        sequenceNos[slot] = from.sequenceNos[fromSlot];
+    }
+
+    /**
+     * Add the statistics of every beacon of another table to this one. Beacons new to this table take their
+     * descriptive fields from the other table.
+     * @param from - the table to merge, which is not modified
+     */
+    public void merge(BeaconStatsTable from) {
+        for (int i = 0; i < from.size; i++) {
+            int s = from.order[i];
+            int slot = findSlot(from.uuidHighs[s], from.uuidLows[s], from.packed[s], from.uuids[s], from.majors[s], from.minors[s]);
+            if(stamps[slot] == generation) {
+                counts[slot] += from.counts[s];
+                rssiSums[slot] += from.rssiSums[s];
+                rssiMins[slot] = Math.min(rssiMins[slot], from.rssiMins[s]);
+                rssiMaxs[slot] = Math.max(rssiMaxs[slot], from.rssiMaxs[s]);
+                timeSums[slot] += from.timeSums[s];
+                timeMins[slot] = Math.min(timeMins[slot], from.timeMins[s]);
+                timeMaxs[slot] = Math.max(timeMaxs[slot], from.timeMaxs[s]);
+                if(from.sequenceNos[s] != 0)
+                    sequenceNos[slot] = from.sequenceNos[s];
+            } else {
+                if(2 * (size + 1) > capacity) {
+                    resize(capacity * 2);
+                    slot = findSlot(from.uuidHighs[s], from.uuidLows[s], from.packed[s], from.uuids[s], from.majors[s], from.minors[s]);
+                }
+                insert(from, s, slot);
+            }
+        }
+        eventCount += from.eventCount;
+        if(firstSequenceNo == 0)
+            firstSequenceNo = from.firstSequenceNo;
+        if(from.lastSequenceNo != 0)
+            lastSequenceNo = from.lastSequenceNo;
+    }
+
+    public long getUUIDHigh(int slot) {
+        return uuidHighs[slot];
+    }
+
+    public long getUUIDLow(int slot) {
+        return uuidLows[slot];
+    }
+
+    /**
+     * @return true if the uuid of the slot was packed into getUUIDHigh/getUUIDLow, false if they hold a hash
+     */
+    public boolean isUUIDPacked(int slot) {
+        return packed[slot];
+    }
+
+    public String getUUID(int slot) {
+        return uuids[slot];
+    }
+
+    public int getMajor(int slot) {
+        return majors[slot];
+    }
+
+    public int getMinor(int slot) {
+        return minors[slot];
+    }
+
+    public String getScannerID(int slot) {
+        return scannerIDs[slot];
+    }
+
+    public boolean isHeartbeat(int slot) {
+        return heartbeats[slot];
+    }
+
+    public int getCode(int slot) {
+        return codes[slot];
+    }
+
+    public int getManufacturer(int slot) {
+        return manufacturers[slot];
+    }
+
+    public int getPower(int slot) {
+        return powers[slot];
+    }
+
+    public int getCalibratedPower(int slot) {
+        return calibratedPowers[slot];
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    public long getRssiSum(int slot) {
+        return rssiSums[slot];
+    }
+
+    public int getRssiMin(int slot) {
+        return rssiMins[slot];
+    }
+
+    public int getRssiMax(int slot) {
+        return rssiMaxs[slot];
+    }
+
+    public int getAverageRssi(int slot) {
+        return (int) (rssiSums[slot] / counts[slot]);
+    }
+
+    public long getTimeSum(int slot) {
+        return timeSums[slot];
+    }
+
+    public long getTimeMin(int slot) {
+        return timeMins[slot];
+    }
+
+    public long getTimeMax(int slot) {
+        return timeMaxs[slot];
+    }
+
+    public long getAverageTime(int slot) {
+        return timeSums[slot] / counts[slot];
+    }
+
+    /**
+     * @return the scannerSequenceNo of the last numbered event of the beacon, 0 if none were numbered
+     */
+    public int getSequenceNo(int slot) {
+        return sequenceNos[slot];
+    }
+
+    /**
+     * @return the scannerSequenceNo of the first numbered event added since the last clear, 0 if none
+     */
+    public int getFirstSequenceNo() {
+        return firstSequenceNo;
+    }
+
+    /**
+     * @return the scannerSequenceNo of the last numbered event added since the last clear, 0 if none
+     */
+    public int getLastSequenceNo() {
+        return lastSequenceNo;
+    }
+
+    /**
+     * Create the BeaconInfo form of a slot as EventsWindow used to aggregate it, with the count of events and the
+     * average rssi and time.
+     */
+    public BeaconInfo toBeaconInfo(int slot) {
+        BeaconInfo info = new BeaconInfo(scannerIDs[slot], heartbeats[slot], majors[slot], minors[slot], getAverageTime(slot));
+        info.uuid = uuids[slot];
+        info.count = counts[slot];
+        info.code = codes[slot];
+        info.manufacturer = manufacturers[slot];
+        info.power = powers[slot];
+        info.calibrated_power = calibratedPowers[slot];
+        info.rssi = getAverageRssi(slot);
+        info.scannerSequenceNo = sequenceNos[slot];
+        return info;
+    }
+
+    /**
+     * Create the legacy minor id keyed map of the table with the rssi and time averages a closed bucket holds
+     * @return map of minor id to the BeaconInfo form of the beacons with that minor id
+     * @see #toMinorMap(boolean)
+     */
+    public Map<Integer, BeaconInfo> toMinorMap() {
+        return toMinorMap(true);
+    }
+
+    /**
+     * Create the legacy minor id keyed map of the table. Beacons that share a minor id are merged as EventsWindow
+     * used to merge their events, into the BeaconInfo of the first added with the counts and the rssi and time sums
+     * of them all. Use the slot accessors to see every beacon.
+     * @param averaged - true for the rssi and time averages of a closed bucket, false for the running sums the map
+     *                 of the current window held
+     * @return map of minor id to the BeaconInfo form of the beacons with that minor id
+     */
+    public Map<Integer, BeaconInfo> toMinorMap(boolean averaged) {
+        HashMap<Integer, Integer> firstSlots = new HashMap<>(2 * size);
+        // The sums of the beacons sharing a minor id by the slot of the first of them, only created if one is shared
+        long[] mergedCounts = null;
+        long[] mergedRssiSums = null;
+        long[] mergedTimeSums = null;
+        for (int i = 0; i < size; i++) {
+            int slot = order[i];
+            Integer first = firstSlots.get(minors[slot]);
+            if(first == null) {
+                firstSlots.put(minors[slot], slot);
+                continue;
+            }
+            if(mergedCounts == null) {
+                mergedCounts = new long[counts.length];
+                mergedRssiSums = new long[counts.length];
+                mergedTimeSums = new long[counts.length];
+            }
+            if(mergedCounts[first] == 0) {
+                mergedCounts[first] = counts[first];
+                mergedRssiSums[first] = rssiSums[first];
+                mergedTimeSums[first] = timeSums[first];
+            }
+            mergedCounts[first] += counts[slot];
+            mergedRssiSums[first] += rssiSums[slot];
+            mergedTimeSums[first] += timeSums[slot];
+        }
+        HashMap<Integer, BeaconInfo> map = new HashMap<>(2 * firstSlots.size());
+        for (Map.Entry<Integer, Integer> entry : firstSlots.entrySet()) {
+            int slot = entry.getValue();
+            BeaconInfo info = toBeaconInfo(slot);
+            long count = counts[slot];
+            long rssiSum = rssiSums[slot];
+            long timeSum = timeSums[slot];
+            if(mergedCounts != null && mergedCounts[slot] != 0) {
+                count = mergedCounts[slot];
+                rssiSum = mergedRssiSums[slot];
+                timeSum = mergedTimeSums[slot];
+            }
+            info.count = (int) count;
+            info.rssi = (int) (averaged ? rssiSum / count : rssiSum);
+            info.time = averaged ? timeSum / count : timeSum;
+            map.put(entry.getKey(), info);
+        }
+        return map;
+    }
+}
@@ -3,29 +3,79 @@ package org.jboss.rhiot.ble.common;
 import org.jboss.rhiot.ble.bluez.BeaconInfo;
 
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Snapshot of BeaconInfo events into a time window
+ * Snapshot of BeaconInfo events into a time window. The bucket holds the statistics table the window aggregated
+ * into, and the legacy minor id keyed map is only created if {@link #getBucket()} is called. Calling
+ * {@link #release()} once the bucket has been consumed returns the table to the window for reuse, after which only
+ * an already created map remains available.
  */
 public class EventsBucket {
     long bucketStart;
     long bucketEnd;
     int eventCount;
+    /** The scannerSequenceNo range of the numbered events of the bucket, 0 if none were numbered */
+    int firstSequenceNo;
+    int lastSequenceNo;
     Map<Integer, BeaconInfo> bucket;
+    // Transient so reflective serializers such as Gson only see the legacy fields
+    private transient BeaconStatsTable stats;
+    private transient EventsWindow window;
+    private transient int size;
 
-    EventsBucket(Map<Integer, BeaconInfo> bucket, int eventCount, long start, long end) {
-        this.eventCount = eventCount;
-        this.bucket = new HashMap<>(bucket);
+    EventsBucket(EventsWindow window, BeaconStatsTable stats, long start, long end) {
+        this.window = window;
+        this.stats = stats;
+        this.eventCount = stats.getEventCount();
+        this.firstSequenceNo = stats.getFirstSequenceNo();
+        this.lastSequenceNo = stats.getLastSequenceNo();
+        this.size = stats.size();
         this.bucketStart = start;
         this.bucketEnd = end;
     }
 
+    /**
+     * Create the legacy map on first use. Beacons that share a minor id are merged into the entry of the first added
+     * as the window used to merge their events, use {@link #getStats()} to see every beacon. A caller that only uses
+     * this map and never calls {@link #release()} leaves the table to the garbage collector, and the window allocates
+     * a new one at the next rollover much as it used to copy the map; calling release once done with the map lets
+     * the window reuse the table.
+     * @return the map of minor id to the BeaconInfo counts and rssi/time averages
+     */
     public Map<Integer, BeaconInfo> getBucket() {
+        if(bucket == null)
+            bucket = getStats().toMinorMap();
         return bucket;
     }
 
+    /**
+     * @return the per beacon statistics of the bucket
+     * @throws IllegalStateException if the bucket has been released
+     */
+    public BeaconStatsTable getStats() {
+        if(stats == null)
+            throw new IllegalStateException("EventsBucket has been released");
+        return stats;
+    }
+
+    public boolean isReleased() {
+        return stats == null;
+    }
+
+    /**
+     * Return the statistics table to the window it came from. The bucket must not be used after this other than
+     * through a map already returned by getBucket().
+     */
+    public void release() {
+        if(stats != null) {
+            if(window != null)
+                window.releaseTable(stats);
+            stats = null;
+            window = null;
+        }
+    }
+
     public int getEventCount() {
         return eventCount;
     }
@@ -35,6 +85,22 @@ public class EventsBucket {
     }
 
 
+    /**
+     * @return the scannerSequenceNo of the first numbered event added to the bucket, 0 if none were numbered
+     */
+    public int getFirstSequenceNo() {
+        return firstSequenceNo;
+    }
+
+    /**
+     * @return the scannerSequenceNo of the last numbered event added to the bucket, 0 if none were numbered. For a
+     * single scanner's window, lastSequenceNo - firstSequenceNo + 1 - eventCount events were lost
+     * between dispatch and the window.
+     */
+    public int getLastSequenceNo() {
+        return lastSequenceNo;
+    }
+
     public long getBucketStart() {
         return bucketStart;
     }
@@ -51,8 +117,11 @@ public class EventsBucket {
         this.bucketEnd = bucketEnd;
     }
 
+    /**
+     * @return the number of distinct beacons in the bucket
+     */
     public long size() {
-        return bucket.size();
+        return size;
     }
 
     public void toTimeWindowString(StringBuilder output) {
@@ -78,9 +147,16 @@ public class EventsBucket {
      * Just the BeaconInfo counts string
      */
     public void toSimpleString(StringBuilder output) {
-        for(Map.Entry<Integer,BeaconInfo> iter : bucket.entrySet()) {
-            String msg = String.format("+%d=%d; ", iter.getKey(), iter.getValue().getCount());
-            output.append(msg);
+        if(stats != null) {
+            for(int i = 0; i < stats.size(); i ++) {
+                int slot = stats.slotAt(i);
+                output.append('+').append(stats.getMinor(slot)).append('=').append(stats.getCount(slot)).append("; ");
+            }
+        } else if(bucket != null) {
+            for(Map.Entry<Integer,BeaconInfo> iter : bucket.entrySet()) {
+                String msg = String.format("+%d=%d; ", iter.getKey(), iter.getValue().getCount());
+                output.append(msg);
+            }
         }
     }
 }
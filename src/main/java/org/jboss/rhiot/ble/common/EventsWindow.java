@@ -1,20 +1,68 @@
 package org.jboss.rhiot.ble.common;
 
 import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.BeaconView;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A class that represents a collection of Beacon events seen within a time window
+ * A class that represents a collection of Beacon events seen within a time window. The events are aggregated into a
+ * {@link BeaconStatsTable} keyed on the full (uuid, major, minor) beacon identity. When the window rolls over, the
+ * table is handed to the returned EventsBucket and the window continues with a table from its free list, or a new
+ * one presized to the largest window seen. Calling {@link EventsBucket#release()} once a bucket has been consumed
+ * returns its table to the free list, so a steady state window does not allocate per event or per rollover beyond
+ * the bucket object itself.
+ *
+ * In async rollover mode, enabled by {@link #enableAsyncRollover(int, IBucketCallback)}, the window keeps a ring of
+ * preallocated tables and the closed buckets are queued to a consumer thread that calls the IBucketCallback and then
+ * releases them, so the thread adding events only pays for the table swap at each rollover.
+ *
+ * By default the windows follow the order events are added in, and an event past the end of the current window
+ * closes it. In event time mode, enabled by {@link #setEventTimeMode(long)}, several windows are kept open and each
+ * event is added to the window its time falls in. A window is only closed once the watermark, the largest event
+ * time seen minus the allowed lateness, passes its end. Events behind the watermark whose window is still open are
+ * counted as late, and events whose window has already closed are dropped and counted.
  */
 public class EventsWindow {
+    /** The maximum number of released tables kept for reuse */
+    static final int MAX_FREE_TABLES = 4;
+    /** How long the bucket consumer waits for a bucket before checking for shutdown */
+    static final long CONSUMER_POLL_MILLIS = 100;
+
     int windowSizeSeconds = 1;
     // Current analyze window begin/end in milliseconds to be compatible with BeaconInfo.time
     long begin;
     long end;
-    int eventCount;
-    Map<Integer, BeaconInfo> eventsMap = new HashMap<>();
+    BeaconStatsTable table = new BeaconStatsTable();
+    /** The largest number of beacons seen in a window, used to presize new tables */
+    volatile int maxBeacons = BeaconStatsTable.DEFAULT_EXPECTED_BEACONS;
+    private final ArrayDeque<BeaconStatsTable> freeTables = new ArrayDeque<>(MAX_FREE_TABLES);
+    private int maxFreeTables = MAX_FREE_TABLES;
+    // Async rollover mode state
+    private ArrayBlockingQueue<EventsBucket> closedBuckets;
+    private IBucketCallback bucketCallback;
+    private Thread bucketConsumer;
+    private volatile boolean asyncRollover;
+    private volatile long overrunCount;
+    private volatile long droppedBucketCount;
+    private volatile long lastRolloverNanos;
+    private final LatencyHistogram rolloverTimes = new LatencyHistogram();
+    // Event time mode state
+    private boolean eventTimeMode;
+    private long allowedLatenessMillis;
+    /** The open windows, window i is held at i % openTables.length */
+    private BeaconStatsTable[] openTables;
+    private long[] openIndexes;
+    /** The index of the oldest window that has not been closed */
+    private long nextCloseIndex;
+    private long maxEventTime = Long.MIN_VALUE;
+    /** The closed buckets not yet returned by addEvent or pollBucket */
+    private final ArrayDeque<EventsBucket> readyBuckets = new ArrayDeque<>();
+    private long lateCount;
+    private long droppedCount;
 
     public int getWindowSizeSeconds() {
         return windowSizeSeconds;
@@ -28,79 +76,504 @@ public class EventsWindow {
         return end;
     }
 
+    /**
+     * Create the legacy minor id keyed map of the current window, with the BeaconInfo counts and rssi/time sums as
+     * they accumulate. Beacons that share a minor id are merged into one entry, use {@link #getStats()} to see every
+     * beacon without allocating.
+     * @return a new map of minor id to the BeaconInfo form of the beacons with that minor id
+     */
     public Map<Integer, BeaconInfo>  getEventsMap() {
-        return eventsMap;
+        // The legacy map held the running sums until the bucket averages were calculated
+        return table.toMinorMap(false);
+    }
+
+    /**
+     * @return the statistics table of the current window, only valid until the next rollover. In event time mode
+     * this is the newest open window.
+     */
+    public BeaconStatsTable getStats() {
+        return table;
     }
 
     public int getEventCount() {
-        return eventCount;
+        return table.getEventCount();
     }
 
     public void reset(int sizeInSeconds) {
         windowSizeSeconds = sizeInSeconds;
-        eventsMap.clear();
+        table.clear();
         resetCurrentBucket();
+        if(eventTimeMode)
+            resetEventTime();
+    }
+
+    /**
+     * Switch to event time mode, where events are added to the window their time falls in and windows are closed
+     * once the watermark passes their end. Windows remain aligned on the begin time of the last reset.
+     * @param allowedLatenessMillis - how far behind the largest event time seen an event can be and still be
+     *                              added to its window
+     */
+    public void setEventTimeMode(long allowedLatenessMillis) {
+        if(allowedLatenessMillis < 0)
+            throw new IllegalArgumentException("allowedLatenessMillis must be >= 0: "+allowedLatenessMillis);
+        this.eventTimeMode = true;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        resetEventTime();
+    }
+
+    public boolean isEventTimeMode() {
+        return eventTimeMode;
+    }
+
+    public long getAllowedLatenessMillis() {
+        return allowedLatenessMillis;
+    }
+
+    /**
+     * @return the event time before which windows are closed, Long.MIN_VALUE before the first event
+     */
+    public long getWatermark() {
+        return maxEventTime == Long.MIN_VALUE ? Long.MIN_VALUE : maxEventTime - allowedLatenessMillis;
+    }
+
+    /**
+     * @return the number of events behind the watermark that were added to a window that was still open
+     */
+    public long getLateCount() {
+        return lateCount;
     }
+
+    /**
+     * @return the number of events dropped in event time mode because their window had already closed
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Close the current window and start the next one. In event time mode, where windows are only closed by the
+     * watermark, this instead returns a snapshot of the newest open window and leaves it open; use
+     * {@link #closeOpenWindows()} to close the windows at the end of a stream. The caller must
+     * {@link EventsBucket#release()} the bucket once consumed, or the window allocates a new table for every window.
+     * @return the bucket of the closed window, null in async rollover mode where it is passed to the bucket callback.
+     * In event time mode a bucket holding a copy of the newest open window's table, null before the first event.
+     */
     public EventsBucket getCurrentBucket() {
-        // Calculate the bucket averages
-        for(BeaconInfo info : eventsMap.values()) {
-            int count = info.count;
-            info.rssi = (info.rssi / count);
-            info.time = (info.time / count);
-        }
-        // Copy the current events and return it
-        EventsBucket window = new EventsBucket(eventsMap, eventCount, begin, end);
-        // Clear the current event Map
-        eventsMap.clear();
+        if(eventTimeMode)
+            return snapshotNewestWindow();
+        // Hand the current table to the bucket and continue with an empty one
+        EventsBucket window = rollover();
         begin = end;
         end += 1000*windowSizeSeconds;
-        eventCount = 0;
         return window;
     }
+
+    /**
+     * Close every open window in event time mode regardless of the watermark, for the end of a stream. The buckets
+     * are then available from {@link #pollBucket()}, or passed to the bucket callback in async rollover mode.
+     */
+    public void closeOpenWindows() {
+        if(eventTimeMode)
+            closeWindowsBefore(Long.MAX_VALUE);
+    }
+
+    /**
+     * In event time mode more than one window can close on an event, addEvent returns the oldest and the rest are
+     * available from here. The caller must {@link EventsBucket#release()} the bucket once consumed.
+     * @return the next closed bucket, null if there are none or async rollover is enabled
+     */
+    public EventsBucket pollBucket() {
+        return readyBuckets.poll();
+    }
+
+    /**
+     * Add an event to the window it falls in
+     * @param info - the event
+     * @param isHeartbeat - the heartbeat flag of the event
+     * @return the bucket of the window that ended if the event started a new window and async rollover is not
+     * enabled, null otherwise. The caller must {@link EventsBucket#release()} the bucket once consumed.
+     */
     public EventsBucket addEvent(BeaconInfo info, boolean isHeartbeat) {
+        if(eventTimeMode) {
+            BeaconStatsTable window = eventTimeTable(info.time);
+            if(window != null)
+                window.add(info, isHeartbeat);
+            return readyBuckets.poll();
+        }
+        EventsBucket window = checkRollover(info.time);
+        // Update the ble event counts
+        table.add(info, isHeartbeat);
+        return window;
+    }
+
+    /**
+     * Add an event read from a beacon_info frame without creating a BeaconInfo
+     * @param scannerID - the id of the scanner that saw the event
+     * @param view - view wrapping the beacon_info frame
+     * @param isHeartbeat - the heartbeat flag of the event
+     * @return the bucket of the window that ended if the event started a new window and async rollover is not
+     * enabled, null otherwise. The caller must {@link EventsBucket#release()} the bucket once consumed.
+     */
+    public EventsBucket addEvent(String scannerID, BeaconView view, boolean isHeartbeat) {
+        if(eventTimeMode) {
+            BeaconStatsTable window = eventTimeTable(view.getTime());
+            if(window != null)
+                window.add(scannerID, view, isHeartbeat);
+            return readyBuckets.poll();
+        }
+        EventsBucket window = checkRollover(view.getTime());
+        table.add(scannerID, view, isHeartbeat);
+        return window;
+    }
+
+    private EventsBucket checkRollover(long time) {
         EventsBucket window = null;
-        if(info.time < end) {
-            // Update the ble event counts
-            addInfo(eventsMap, info, isHeartbeat);
-            eventCount ++;
-        } else {
-            // Calculate the bucket averages
-            for(BeaconInfo avg : eventsMap.values()) {
-                int count = avg.count;
-                avg.rssi = (avg.rssi / count);
-                avg.time = (avg.time / count);
-            }
-            // Copy the current events and return it
-            window = new EventsBucket(eventsMap, eventCount, begin, end);
-            // Clear the current event Map
-            eventsMap.clear();
+        if(time >= end) {
+            window = rollover();
             begin = end;
             end += 1000*windowSizeSeconds;
-            if(end < info.time) {
+            if(end < time) {
                 // Warn about this as it seems to happen
-                System.err.printf("Warn: next bucket(%d-%d) end < info.time(%d), now=%d\n", begin, end, info.time, System.currentTimeMillis());
+                System.err.printf("Warn: next bucket(%d-%d) end < info.time(%d), now=%d\n", begin, end, time, System.currentTimeMillis());
                 resetCurrentBucket();
             }
-            eventCount = 0;
-            // Add the event to the next window
-            addInfo(eventsMap, info, isHeartbeat);
-            eventCount ++;
         }
         return window;
     }
 
-    private void addInfo(Map<Integer, BeaconInfo> eventsMap,  BeaconInfo info, boolean isHeartbeat) {
-        if(!eventsMap.containsKey(info.getMinor())) {
-            eventsMap.put(info.getMinor(), info);
-            info.count = 1;
-            info.isHeartbeat = isHeartbeat;
+    private EventsBucket rollover() {
+        long start = System.nanoTime();
+        EventsBucket window = close(table, begin, end);
+        table = takeTable();
+        lastRolloverNanos = System.nanoTime() - start;
+        rolloverTimes.record(lastRolloverNanos);
+        return window;
+    }
+
+    /**
+     * Create the bucket of a closed window's table and pass it to the consumer thread in async rollover mode
+     * @return the bucket, null in async rollover mode
+     */
+    private EventsBucket close(BeaconStatsTable closed, long start, long end) {
+        EventsBucket window = new EventsBucket(this, closed, start, end);
+        if(closed.size() > maxBeacons)
+            maxBeacons = closed.size();
+        if(asyncRollover) {
+            ArrayBlockingQueue<EventsBucket> queue = closedBuckets;
+            if(!queue.offer(window)) {
+                droppedBucketCount ++;
+                System.err.printf("Warn: bucket consumer is %d buckets behind, dropping bucket(%d-%d)\n",
+                    queue.size(), window.getBucketStart(), window.getBucketEnd());
+                window.release();
+            }
+            // Async rollover was disabled while offering, and the consumer may have already exited
+            if(!asyncRollover)
+                deliverPending(queue);
+            window = null;
+        }
+        return window;
+    }
+
+    private BeaconStatsTable takeTable() {
+        BeaconStatsTable next;
+        synchronized (freeTables) {
+            next = freeTables.poll();
+        }
+        if(next == null) {
+            if(asyncRollover)
+                overrunCount ++;
+            next = new BeaconStatsTable(maxBeacons);
         } else {
-            BeaconInfo windowInfo = eventsMap.get(info.getMinor());
-            windowInfo.rssi = (windowInfo.getRssi() + info.getRssi());
-            windowInfo.time = (windowInfo.getTime() + info.getTime());
-            windowInfo.count ++;
+            next.clear();
+        }
+        return next;
+    }
+
+    private void resetEventTime() {
+        int windows = (int) (allowedLatenessMillis / (1000L * windowSizeSeconds)) + 2;
+        if(openTables == null || openTables.length != windows) {
+            openTables = new BeaconStatsTable[windows];
+            openIndexes = new long[windows];
+        }
+        for (int n = 0; n < windows; n++) {
+            if(openTables[n] != null)
+                releaseTable(openTables[n]);
+            openTables[n] = null;
+        }
+        nextCloseIndex = Long.MIN_VALUE;
+        maxEventTime = Long.MIN_VALUE;
+        table = takeTable();
+    }
+
+    private long windowIndex(long time) {
+        long size = 1000L * windowSizeSeconds;
+        long offset = time - begin;
+        // floor division so events before begin get negative indexes
+        return offset >= 0 ? offset / size : -((-offset + size - 1) / size);
+    }
+
+    /**
+     * Advance the watermark for an event, close the windows it passes and find the open window of the event
+     * @return the table of the event's window, null if the event was dropped
+     */
+    private BeaconStatsTable eventTimeTable(long time) {
+        if(time > maxEventTime) {
+            maxEventTime = time;
+            long watermark = time - allowedLatenessMillis;
+            closeWindowsBefore(windowIndex(watermark) - 1);
+        }
+        long index = windowIndex(time);
+        if(index < nextCloseIndex) {
+            droppedCount ++;
+            return null;
+        }
+        if(time < maxEventTime - allowedLatenessMillis)
+            lateCount ++;
+        if(nextCloseIndex == Long.MIN_VALUE)
+            nextCloseIndex = index;
+        int slot = (int) (((index % openTables.length) + openTables.length) % openTables.length);
+        BeaconStatsTable window = openTables[slot];
+        if(window != null && openIndexes[slot] != index) {
+            // Only possible if the window ring was sized for a different window size, close the occupant
+            closeWindow(slot);
+            window = null;
+        }
+        if(window == null) {
+            window = takeTable();
+            openTables[slot] = window;
+            openIndexes[slot] = index;
+        }
+        if(index == windowIndex(maxEventTime))
+            table = window;
+        return window;
+    }
+
+    /**
+     * Copy the newest open window into a bucket without closing it
+     * @return the bucket of the copy, null if no window is open
+     */
+    private EventsBucket snapshotNewestWindow() {
+        if(maxEventTime == Long.MIN_VALUE)
+            return null;
+        long index = windowIndex(maxEventTime);
+        for (int n = 0; n < openTables.length; n++) {
+            if(openTables[n] != null && openIndexes[n] == index) {
+                BeaconStatsTable copy = new BeaconStatsTable(Math.max(openTables[n].size(), maxBeacons));
+                copy.merge(openTables[n]);
+                long size = 1000L * windowSizeSeconds;
+                long start = begin + index * size;
+                return new EventsBucket(this, copy, start, start + size);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the open windows with an index up to lastIndex in time order
+     */
+    private void closeWindowsBefore(long lastIndex) {
+        while (true) {
+            int oldest = -1;
+            for (int n = 0; n < openTables.length; n++) {
+                if(openTables[n] != null && openIndexes[n] <= lastIndex && (oldest < 0 || openIndexes[n] < openIndexes[oldest]))
+                    oldest = n;
+            }
+            if(oldest < 0)
+                break;
+            closeWindow(oldest);
+        }
+        if(lastIndex != Long.MAX_VALUE && lastIndex + 1 > nextCloseIndex)
+            nextCloseIndex = lastIndex + 1;
+    }
+
+    private void closeWindow(int slot) {
+        long size = 1000L * windowSizeSeconds;
+        long start = begin + openIndexes[slot] * size;
+        EventsBucket window = close(openTables[slot], start, start + size);
+        openTables[slot] = null;
+        // Events for a closed window are dropped rather than opening it again
+        if(openIndexes[slot] + 1 > nextCloseIndex)
+            nextCloseIndex = openIndexes[slot] + 1;
+        if(window != null)
+            readyBuckets.add(window);
+    }
+
+    /**
+     * Return the table of a consumed bucket for reuse. A table too small for the largest window seen is replaced
+     * here, on the releasing thread, so the thread adding events does not pay for growing it.
+     */
+    void releaseTable(BeaconStatsTable stats) {
+        if(stats.capacity() < 2 * maxBeacons)
+            stats = new BeaconStatsTable(maxBeacons);
+        synchronized (freeTables) {
+            if(freeTables.size() < maxFreeTables)
+                freeTables.add(stats);
         }
     }
+
+    /**
+     * Switch to async rollover mode, where closed buckets are handed to a consumer thread that calls the callback
+     * and then releases the bucket. The window preallocates a ring of tables that the buckets cycle through, so
+     * rollover is a table swap on the thread adding events. addEvent and getCurrentBucket return null in this mode.
+     * @param tables - the number of tables in the ring, at least 2; the window owns one and the rest can be pending
+     *               on the consumer. If the consumer falls further behind, extra tables are allocated and counted
+     *               by getOverrunCount().
+     * @param callback - the consumer of the closed buckets
+     */
+    public synchronized void enableAsyncRollover(int tables, IBucketCallback callback) {
+        if(asyncRollover)
+            throw new IllegalStateException("Async rollover is already enabled");
+        if(tables < 2)
+            throw new IllegalArgumentException("At least 2 tables are needed, tables="+tables);
+        maxFreeTables = tables;
+        synchronized (freeTables) {
+            while (freeTables.size() < tables - 1)
+                freeTables.add(new BeaconStatsTable(maxBeacons));
+        }
+        bucketCallback = callback;
+        closedBuckets = new ArrayBlockingQueue<>(tables);
+        asyncRollover = true;
+        bucketConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consumeBuckets();
+            }
+        }, "EventsWindow-consumer");
+        bucketConsumer.setDaemon(true);
+        bucketConsumer.start();
+    }
+
+    /**
+     * Return to returning the closed buckets from addEvent/getCurrentBucket. The consumer thread passes any pending
+     * buckets to the callback before it exits, and any queued after it exits are passed to the callback on the
+     * calling thread, or on the thread adding events if it closed a window while async rollover was being disabled.
+     */
+    public synchronized void disableAsyncRollover() {
+        if(!asyncRollover)
+            return;
+        asyncRollover = false;
+        try {
+            bucketConsumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        bucketConsumer = null;
+        deliverPending(closedBuckets);
+        maxFreeTables = MAX_FREE_TABLES;
+    }
+
+    public boolean isAsyncRollover() {
+        return asyncRollover;
+    }
+
+    private void consumeBuckets() {
+        ArrayBlockingQueue<EventsBucket> queue = closedBuckets;
+        while (asyncRollover || !queue.isEmpty()) {
+            EventsBucket bucket;
+            try {
+                bucket = queue.poll(CONSUMER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if(bucket != null)
+                deliver(bucket);
+        }
+    }
+
+    /**
+     * Pass the buckets left in the queue to the callback on this thread
+     */
+    private void deliverPending(ArrayBlockingQueue<EventsBucket> queue) {
+        for (EventsBucket bucket = queue.poll(); bucket != null; bucket = queue.poll())
+            deliver(bucket);
+    }
+
+    private void deliver(EventsBucket bucket) {
+        try {
+            bucketCallback.bucketEvent(bucket);
+        } catch (Throwable e) {
+            System.err.printf("Bucket callback failed for bucket(%d-%d), msg=%s\n", bucket.getBucketStart(),
+                bucket.getBucketEnd(), e);
+        } finally {
+            bucket.release();
+        }
+    }
+
+    /**
+     * @return the number of closed buckets waiting for the consumer thread
+     */
+    public int getPendingBucketCount() {
+        ArrayBlockingQueue<EventsBucket> queue = closedBuckets;
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * @return the number of async rollovers that found no free table and allocated one
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /**
+     * @return the number of closed buckets dropped because the consumer queue was full
+     */
+    public long getDroppedBucketCount() {
+        return droppedBucketCount;
+    }
+
+    /**
+     * @return the time the last rollover took on the thread adding events
+     */
+    public long getLastRolloverNanos() {
+        return lastRolloverNanos;
+    }
+
+    /**
+     * @return the distribution of the time rollovers took on the thread adding events
+     */
+    public LatencyHistogram getRolloverTimes() {
+        return rolloverTimes;
+    }
+
+    /**
+     * Register the rollover time histogram and the queue and drop counts of this window
+     * @param registry - the registry to add the metrics to
+     * @param prefix - the metric name prefix, for example "hci0.window."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"rollover", rolloverTimes);
+        registry.register(prefix+"pendingBuckets", new IGauge() {
+            @Override
+            public long getValue() {
+                return getPendingBucketCount();
+            }
+        });
+        registry.register(prefix+"overruns", new IGauge() {
+            @Override
+            public long getValue() {
+                return overrunCount;
+            }
+        });
+        registry.register(prefix+"droppedBuckets", new IGauge() {
+            @Override
+            public long getValue() {
+                return droppedBucketCount;
+            }
+        });
+        registry.register(prefix+"lateEvents", new IGauge() {
+            @Override
+            public long getValue() {
+                return lateCount;
+            }
+        });
+        registry.register(prefix+"droppedEvents", new IGauge() {
+            @Override
+            public long getValue() {
+                return droppedCount;
+            }
+        });
+    }
+
     private void resetCurrentBucket() {
         begin = System.currentTimeMillis();
         end = begin + 1000*windowSizeSeconds;
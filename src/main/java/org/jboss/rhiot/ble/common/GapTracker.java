@@ -0,0 +1,286 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.IEventCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects the loss of beacon events between the scanners and a consumer from the scannerSequenceNo each scanner
+ * assigns its events on dispatch. The numbers of each scanner are tracked by a {@link SequenceTracker}, so the loss
+ * rate, reorder depth and duplicates are reported per scanner in constant memory per scanner, and the number of
+ * scanners tracked is bounded, the least recently heard being forgotten to make room for a new one.
+ *
+ * The int sequence numbers are extended to longs across their wrap, which skips 0, and a scanner restart is
+ * recognized by a 1, the first number a scanner assigns, arriving at or behind the highest seen, or by another number
+ * near the start of the sequence arriving well behind it, after which the scanner is tracked afresh. A scanner's first
+ * event arriving after its second is therefore taken as a restart. Unnumbered events, with a scannerSequenceNo of 0,
+ * are only counted.
+ *
+ * The tracker may be fed by several threads, and as an {@link IEventCallback} can be set as, or called from, any
+ * Beacon consumer.
+ */
+public class GapTracker implements IEventCallback {
+    public static final int DEFAULT_MAX_SCANNERS = 256;
+
+    private final ConcurrentHashMap<String, Stream> scanners = new ConcurrentHashMap<>();
+    private final int maxScanners;
+    private volatile long unnumberedCount;
+    private volatile long evictedCount;
+
+    public GapTracker() {
+        this(DEFAULT_MAX_SCANNERS);
+    }
+
+    /**
+     * @param maxScanners - the maximum number of scanners tracked
+     */
+    public GapTracker(int maxScanners) {
+        if(maxScanners <= 0)
+            throw new IllegalArgumentException("maxScanners must be > 0: "+maxScanners);
+        this.maxScanners = maxScanners;
+    }
+
+    /**
+     * IEventCallback implementation that records the beacon's sequence number
+     * @param beacon - the beacon event
+     * @return false so the beacon is not considered consumed
+     */
+    @Override
+    public boolean beaconEvent(Beacon beacon) {
+        record(beacon.getScannerID(), beacon.getScannerSequenceNo(), System.currentTimeMillis());
+        return false;
+    }
+
+    /**
+     * Record the sequence number of an event
+     * @param scannerID - the scanner that numbered the event
+     * @param sequenceNo - the scannerSequenceNo of the event, 0 if unnumbered
+     * @param time - the receive time in milliseconds, used to find the least recently heard scanner
+     */
+    public void record(String scannerID, int sequenceNo, long time) {
+        if(sequenceNo == 0) {
+            unnumberedCount ++;
+            return;
+        }
+        if(scannerID == null)
+            scannerID = "";
+        Stream stream = scanners.get(scannerID);
+        if(stream == null) {
+            if(scanners.size() >= maxScanners)
+                evictOldest();
+            stream = new Stream();
+            Stream existing = scanners.putIfAbsent(scannerID, stream);
+            if(existing != null)
+                stream = existing;
+        }
+        stream.record(sequenceNo, time);
+    }
+
+    private void evictOldest() {
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, Stream> entry : scanners.entrySet()) {
+            long time = entry.getValue().tracker.getLastTime();
+            if(time < oldestTime) {
+                oldestTime = time;
+                oldest = entry.getKey();
+            }
+        }
+        if(oldest != null && scanners.remove(oldest) != null)
+            evictedCount ++;
+    }
+
+    /**
+     * @param scannerID - the scanner id
+     * @return the tracker of the scanner, null if it is not tracked
+     */
+    public SequenceTracker getTracker(String scannerID) {
+        Stream stream = scanners.get(scannerID);
+        return stream != null ? stream.tracker : null;
+    }
+
+    /**
+     * @param scannerID - the scanner id
+     * @return the number of times the scanner was seen to restart its numbering
+     */
+    public long getRestartCount(String scannerID) {
+        Stream stream = scanners.get(scannerID);
+        return stream != null ? stream.restarts : 0;
+    }
+
+    public List<String> getScannerIDs() {
+        return new ArrayList<>(scanners.keySet());
+    }
+
+    /**
+     * @return the number of events recorded without a sequence number
+     */
+    public long getUnnumberedCount() {
+        return unnumberedCount;
+    }
+
+    /**
+     * @return the number of scanners forgotten to keep within the maximum
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    public long getLostCount() {
+        long count = 0;
+        for (Stream stream : scanners.values())
+            count += stream.tracker.getLostCount();
+        return count;
+    }
+
+    public long getReceivedCount() {
+        long count = 0;
+        for (Stream stream : scanners.values())
+            count += stream.tracker.getReceivedCount();
+        return count;
+    }
+
+    public long getReorderedCount() {
+        long count = 0;
+        for (Stream stream : scanners.values())
+            count += stream.tracker.getReorderedCount();
+        return count;
+    }
+
+    public long getDuplicateCount() {
+        long count = 0;
+        for (Stream stream : scanners.values())
+            count += stream.tracker.getDuplicateCount();
+        return count;
+    }
+
+    /**
+     * @return the largest reorder depth of any tracked scanner
+     */
+    public int getMaxReorderDepth() {
+        int depth = 0;
+        for (Stream stream : scanners.values())
+            depth = Math.max(depth, stream.tracker.getMaxReorderDepth());
+        return depth;
+    }
+
+    /**
+     * @return the lost fraction of the events expected over all tracked scanners
+     */
+    public double getLossRate() {
+        long lost = getLostCount();
+        long expected = getReceivedCount() + lost;
+        return expected > 0 ? (double) lost / expected : 0;
+    }
+
+    public void clear() {
+        scanners.clear();
+        unnumberedCount = 0;
+        evictedCount = 0;
+    }
+
+    /**
+     * Register the counts over all tracked scanners as gauges, the loss rate in parts per million
+     * @param registry - the registry to add the gauges to
+     * @param prefix - the prefix of the gauge names, e.g. "gaps."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"scanners", new IGauge() {
+            @Override
+            public long getValue() {
+                return scanners.size();
+            }
+        });
+        registry.register(prefix+"lost", new IGauge() {
+            @Override
+            public long getValue() {
+                return getLostCount();
+            }
+        });
+        registry.register(prefix+"lossPpm", new IGauge() {
+            @Override
+            public long getValue() {
+                return Math.round(getLossRate() * 1e6);
+            }
+        });
+        registry.register(prefix+"reordered", new IGauge() {
+            @Override
+            public long getValue() {
+                return getReorderedCount();
+            }
+        });
+        registry.register(prefix+"maxReorderDepth", new IGauge() {
+            @Override
+            public long getValue() {
+                return getMaxReorderDepth();
+            }
+        });
+        registry.register(prefix+"duplicates", new IGauge() {
+            @Override
+            public long getValue() {
+                return getDuplicateCount();
+            }
+        });
+        registry.register(prefix+"unnumbered", new IGauge() {
+            @Override
+            public long getValue() {
+                return unnumberedCount;
+            }
+        });
+    }
+
+    public String toString() {
+        StringBuilder tmp = new StringBuilder();
+        tmp.append(String.format("GapTracker: scanners=%d, unnumbered=%d, evicted=%d", scanners.size(),
+            unnumberedCount, evictedCount));
+        for (Map.Entry<String, Stream> entry : scanners.entrySet()) {
+            tmp.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue().tracker);
+            tmp.append(", restarts=").append(entry.getValue().restarts);
+        }
+        return tmp.toString();
+    }
+
+    /**
+     * The sequence of one scanner with the state to extend its int numbers to longs
+     */
+    private static final class Stream {
+        final SequenceTracker tracker = new SequenceTracker();
+        boolean started;
+        int lastNo;
+        long lastExtended;
+        volatile long restarts;
+
+        synchronized void record(int sequenceNo, long time) {
+            long extended;
+            if(!started) {
+                started = true;
+                extended = sequenceNo & 0xffffffffL;
+            } else {
+                // The signed 32 bit distance is exact across the wrap, less the 0 the scanner skips
+                int delta = sequenceNo - lastNo;
+                if(delta > 0 && lastNo < 0 && sequenceNo > 0)
+                    delta --;
+                else if(delta < 0 && lastNo > 0 && sequenceNo < 0)
+                    delta ++;
+                extended = lastExtended + delta;
+                // A 1 after the wrap extends past the highest, while a 1 at or behind it starts a new run however
+                // short the previous one was
+                long highest = tracker.getHighest();
+                if(sequenceNo == 1 && extended <= highest
+                    || sequenceNo > 0 && sequenceNo <= SequenceTracker.WINDOW
+                    && extended < highest - SequenceTracker.WINDOW) {
+                    // The scanner restarted its numbering
+                    tracker.restart();
+                    restarts ++;
+                    extended = sequenceNo;
+                }
+            }
+            lastNo = sequenceNo;
+            lastExtended = extended;
+            tracker.record(extended, time);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * Notification of a closed EventsBucket on the consumer thread of an EventsWindow in async rollover mode.
+ */
+@FunctionalInterface
+public interface IBucketCallback {
+    /**
+     * Consume a closed bucket. The bucket is released back to the window when this returns, so copy anything that
+     * is kept beyond the call, for example the map returned by {@link EventsBucket#getBucket()}.
+     * @param bucket - the closed bucket
+     */
+    public void bucketEvent(EventsBucket bucket);
+}
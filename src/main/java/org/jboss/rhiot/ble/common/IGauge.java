@@ -0,0 +1,12 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * A metric whose current value is read on demand from the state it describes, for example a queue depth.
+ */
+@FunctionalInterface
+public interface IGauge {
+    /**
+     * @return the current value
+     */
+    public long getValue();
+}
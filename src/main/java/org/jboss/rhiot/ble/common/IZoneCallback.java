@@ -0,0 +1,13 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * Callback notified by a {@link ZoneFusion} when a beacon is assigned to a new zone or leaves all zones
+ */
+@FunctionalInterface
+public interface IZoneCallback {
+    /**
+     * Called on the fusion worker thread that owns the beacon, so changes of one beacon are delivered in order
+     * @param change - the zone change
+     */
+    public void zoneChanged(ZoneChange change);
+}
@@ -0,0 +1,126 @@
+package org.jboss.rhiot.ble.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in nanoseconds with log-linear buckets in the style of HdrHistogram: each power
+ * of 2 range is split into 2^SUB_BUCKET_BITS linear buckets, so a recorded value is reported within 1/32 (about 3%)
+ * of its true value. Recording is two atomic increments and a read of the max, so it is safe and cheap to call from
+ * any number of threads. Values from 0 to about 4.8 hours are tracked and larger values are counted in the last
+ * bucket.
+ *
+ * Reads scan the bucket counts while recording continues, so percentiles reflect a moving but consistent enough
+ * view for monitoring.
+ */
+public class LatencyHistogram {
+    /** The log2 of the number of linear buckets in each power of 2 range */
+    public static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** The highest power of 2 tracked, 2^44ns is about 4.8 hours */
+    private static final int MAX_EXPONENT = 44;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     * @param nanos - the duration in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketIndex(nanos));
+        sum.addAndGet(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos))
+            currentMax = max.get();
+    }
+
+    static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that maps to the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS | sub) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (int n = 0; n < BUCKETS; n++)
+            count += counts.get(n);
+        return count;
+    }
+
+    /**
+     * @return the mean of the recorded values in nanoseconds, 0 if none have been recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count > 0 ? (double) sum.get() / count : 0;
+    }
+
+    /**
+     * @return the largest recorded value in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile - the percentile, 0 to 100
+     * @return the value below which the given percentage of the recorded values fall, within the bucket precision
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int n = 0; n < BUCKETS; n++) {
+            snapshot[n] = counts.get(n);
+            total += snapshot[n];
+        }
+        if(total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long cumulative = 0;
+        for (int n = 0; n < BUCKETS; n++) {
+            cumulative += snapshot[n];
+            if(cumulative >= target)
+                return Math.min(bucketUpperBound(n), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear the recorded values. Values recorded concurrently with a reset may be partially kept.
+     */
+    public void reset() {
+        for (int n = 0; n < BUCKETS; n++)
+            counts.set(n, 0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public String toString() {
+        return String.format("count=%d, mean=%.0fns, p50=%dns, p99=%dns, p99.9=%dns, max=%dns", getCount(), getMean(),
+            getValueAtPercentile(50), getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+    }
+}
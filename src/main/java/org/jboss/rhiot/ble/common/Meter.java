@@ -0,0 +1,71 @@
+package org.jboss.rhiot.ble.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe event counter that also reports its mean rate and a one minute exponentially weighted moving average
+ * rate, as in the unix load average. Marking an event is a single atomic increment, and the moving average is only
+ * updated in 5 second ticks when a rate is read.
+ */
+public class Meter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_SECONDS = 5.0;
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60);
+    /** After this many ticks without a read the average has converged on the latest rate */
+    private static final int MAX_CATCH_UP_TICKS = 120;
+
+    private final AtomicLong count = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private long lastTickNanos = startNanos;
+    private long lastTickCount;
+    private double oneMinuteRate;
+    private boolean initialized;
+
+    public void mark() {
+        count.incrementAndGet();
+    }
+
+    public void mark(long events) {
+        count.addAndGet(events);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the events per second since the meter was created
+     */
+    public double getMeanRate() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed > 0 ? count.get() * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * @return the one minute moving average of the events per second, updated every 5 seconds
+     */
+    public synchronized double getOneMinuteRate() {
+        long now = System.nanoTime();
+        long ticks = (now - lastTickNanos) / TICK_NANOS;
+        if(ticks > 0) {
+            long current = count.get();
+            // Spread the events since the last tick evenly over the elapsed ticks
+            double instantRate = (current - lastTickCount) / (ticks * TICK_SECONDS);
+            if(!initialized) {
+                oneMinuteRate = instantRate;
+                initialized = true;
+            } else {
+                for (long n = 0; n < Math.min(ticks, MAX_CATCH_UP_TICKS); n++)
+                    oneMinuteRate += ALPHA * (instantRate - oneMinuteRate);
+            }
+            lastTickNanos += ticks * TICK_NANOS;
+            lastTickCount = current;
+        }
+        return oneMinuteRate;
+    }
+
+    public String toString() {
+        return String.format("count=%d, rate1m=%.1f/s, meanRate=%.1f/s", getCount(), getOneMinuteRate(), getMeanRate());
+    }
+}
@@ -0,0 +1,75 @@
+package org.jboss.rhiot.ble.common;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A read only DynamicMBean view of the metrics of a registry that share a name prefix. The attributes are the values
+ * of {@link MetricsRegistry#snapshot(String)} with the prefix removed, and are re-read on every request so metrics
+ * registered after the MBean appear as they are added.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+    private final String prefix;
+
+    MetricsMBean(MetricsRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = registry.snapshot(prefix).get(prefix + attribute);
+        if(value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Number> snapshot = registry.snapshot(prefix);
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(prefix + attribute);
+            if(value != null)
+                list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()+" is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        SortedMap<String, Number> snapshot = registry.snapshot(prefix);
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int n = 0;
+        for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            String name = entry.getKey().substring(prefix.length());
+            attributes[n ++] = new MBeanAttributeInfo(name, entry.getValue().getClass().getName(), name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics "+prefix, attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,179 @@
+package org.jboss.rhiot.ble.common;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named set of meters, latency histograms and gauges. Metric names are dotted paths, and the components that
+ * register metrics prefix them with their own name, for example hci0.events.beacon for the beacon event meter of the
+ * scanner on hci0, so the metrics of each adapter can be selected by prefix.
+ *
+ * The registry is read through {@link #snapshot(String)}, which flattens each metric into numeric values, and through
+ * JMX with {@link #registerMBean(String, String)}. Registration and reads may happen concurrently with recording.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry the scanners register their metrics with
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get or create the named meter
+     * @param name - the metric name
+     * @return the meter registered under name
+     * @throws IllegalArgumentException if name is registered to a different kind of metric
+     */
+    public Meter meter(String name) {
+        Object metric = metrics.get(name);
+        if(metric == null) {
+            metric = new Meter();
+            Object existing = metrics.putIfAbsent(name, metric);
+            if(existing != null)
+                metric = existing;
+        }
+        if(!(metric instanceof Meter))
+            throw new IllegalArgumentException(name+" is not a Meter: "+metric.getClass().getSimpleName());
+        return (Meter) metric;
+    }
+
+    /**
+     * Get or create the named latency histogram
+     * @param name - the metric name
+     * @return the histogram registered under name
+     * @throws IllegalArgumentException if name is registered to a different kind of metric
+     */
+    public LatencyHistogram histogram(String name) {
+        Object metric = metrics.get(name);
+        if(metric == null) {
+            metric = new LatencyHistogram();
+            Object existing = metrics.putIfAbsent(name, metric);
+            if(existing != null)
+                metric = existing;
+        }
+        if(!(metric instanceof LatencyHistogram))
+            throw new IllegalArgumentException(name+" is not a LatencyHistogram: "+metric.getClass().getSimpleName());
+        return (LatencyHistogram) metric;
+    }
+
+    /**
+     * Register a metric owned by the caller, replacing any metric of the same name
+     * @param name - the metric name
+     * @param metric - a Meter, LatencyHistogram or IGauge
+     */
+    public void register(String name, Object metric) {
+        if(!(metric instanceof Meter || metric instanceof LatencyHistogram || metric instanceof IGauge))
+            throw new IllegalArgumentException("Unsupported metric type: "+metric.getClass().getName());
+        metrics.put(name, metric);
+    }
+
+    public Object get(String name) {
+        return metrics.get(name);
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Remove every metric whose name starts with prefix
+     * @param prefix - the name prefix, for example "hci0."
+     */
+    public void removeAll(String prefix) {
+        for (String name : metrics.keySet()) {
+            if(name.startsWith(prefix))
+                metrics.remove(name);
+        }
+    }
+
+    /**
+     * @return a snapshot of every metric
+     */
+    public SortedMap<String, Number> snapshot() {
+        return snapshot("");
+    }
+
+    /**
+     * Read the current value of the metrics whose names start with prefix. Meters contribute name.count, name.rate1m
+     * and name.meanRate in events/sec. Histograms contribute name.count, name.mean, name.p50, name.p90, name.p99,
+     * name.p999 and name.max in nanoseconds. Gauges contribute their value under their name.
+     * @param prefix - the name prefix, "" for all metrics
+     * @return the values sorted by name
+     */
+    public SortedMap<String, Number> snapshot(String prefix) {
+        TreeMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            if(!name.startsWith(prefix))
+                continue;
+            Object metric = entry.getValue();
+            if(metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                values.put(name+".count", meter.getCount());
+                values.put(name+".rate1m", meter.getOneMinuteRate());
+                values.put(name+".meanRate", meter.getMeanRate());
+            } else if(metric instanceof LatencyHistogram) {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                values.put(name+".count", histogram.getCount());
+                values.put(name+".mean", histogram.getMean());
+                values.put(name+".p50", histogram.getValueAtPercentile(50));
+                values.put(name+".p90", histogram.getValueAtPercentile(90));
+                values.put(name+".p99", histogram.getValueAtPercentile(99));
+                values.put(name+".p999", histogram.getValueAtPercentile(99.9));
+                values.put(name+".max", histogram.getMax());
+            } else {
+                try {
+                    values.put(name, ((IGauge) metric).getValue());
+                } catch (Exception e) {
+                    System.err.printf("Failed to read gauge %s, msg=%s\n", name, e);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Expose the metrics whose names start with prefix as the read only attributes of a platform MBean
+     * @param objectName - the MBean object name, for example org.jboss.rhiot.ble:type=Scanner,name=hci0
+     * @param prefix - the name prefix of the metrics, removed from the attribute names
+     * @return the registered object name
+     * @throws Exception on an invalid name or registration failure
+     */
+    public ObjectName registerMBean(String objectName, String prefix) throws Exception {
+        ObjectName name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(new MetricsMBean(this, prefix), name);
+        return name;
+    }
+
+    /**
+     * Remove an MBean registered with {@link #registerMBean(String, String)}
+     * @param objectName - the MBean object name
+     * @throws Exception on an invalid name or unregistration failure
+     */
+    public void unregisterMBean(String objectName) throws Exception {
+        ObjectName name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(name))
+            server.unregisterMBean(name);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet())
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        return sb.toString();
+    }
+}
@@ -2,14 +2,19 @@ package org.jboss.rhiot.ble.common;
 
 /**
  * Simple moving average for ints
+ * @deprecated use {@link SignalProcessor}, which smooths the rssi of many beacons without an object per series
  */
+@Deprecated
 public class SMA {
     private int period;
     private int window[];
     private int index;
+    private int count;
     private int total;
 
     public SMA(int period) {
+        if(period < 1)
+            throw new IllegalArgumentException("period must be > 0: "+period);
         this.period = period;
         this.window = new int[period];
     }
@@ -19,13 +24,29 @@ public class SMA {
         total = total - window[index] + val;
         window[index] = val;
         index = (index+1) % period;
+        if(count < period)
+            count ++;
     }
 
     /**
-     * Get the current average. Only valid after period elements have been added.
-     * @return
+     * @return the number of values in the average, at most period
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return true once period values have been added
+     */
+    public boolean isFull() {
+        return count == period;
+    }
+
+    /**
+     * Get the current average of the last period values, or of the values added so far while the window fills.
+     * @return the average, 0 if no values have been added
      */
     public int avg() {
-        return total / period;
+        return count > 0 ? total / count : 0;
     }
 }
@@ -0,0 +1,161 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * Tracks the sequence numbers received from one source to count lost, reordered and duplicate messages in constant
+ * memory. The numbers received within {@link #WINDOW} of the highest are remembered in a bitmap, so a number that
+ * skips ahead counts the numbers skipped as lost, a late arrival within the window of a number counted lost is
+ * counted as reordered and no longer lost, and a repeat within the window is counted as a duplicate. A number older
+ * than the window cannot be classified and is counted as stale, leaving the loss count as it was.
+ *
+ * The methods are synchronized so the counts may be read while a receiving thread records.
+ */
+public class SequenceTracker {
+    /** The number of sequence numbers below the highest that are remembered */
+    public static final int WINDOW = 64;
+    /** Returned by {@link #record(long, long)} for a number received after a higher one */
+    public static final long REORDERED = -1;
+    /** Returned by {@link #record(long, long)} for a number already received */
+    public static final long DUPLICATE = -2;
+    /** Returned by {@link #record(long, long)} for a number too far behind the highest to classify */
+    public static final long STALE = -3;
+
+    private long highest;
+    /** Bit n is set if highest - n was received */
+    private long window;
+    private boolean started;
+    private long receivedCount;
+    private long lostCount;
+    private long reorderedCount;
+    private long duplicateCount;
+    private long staleCount;
+    private int maxReorderDepth;
+    private long lastTime;
+
+    /**
+     * Record a received sequence number
+     * @param sequence - the sequence number
+     * @param time - the receive time in milliseconds, as reported by {@link #getLastTime()}
+     * @return the number of sequence numbers skipped by this one, 0 if in order, or {@link #REORDERED},
+     * {@link #DUPLICATE} or {@link #STALE}
+     */
+    public synchronized long record(long sequence, long time) {
+        lastTime = time;
+        if(!started) {
+            started = true;
+            highest = sequence;
+            window = 1;
+            receivedCount ++;
+            return 0;
+        }
+        if(sequence > highest) {
+            long skipped = sequence - highest - 1;
+            window = skipped + 1 >= WINDOW ? 1 : window << (skipped + 1) | 1;
+            highest = sequence;
+            lostCount += skipped;
+            receivedCount ++;
+            return skipped;
+        }
+        long depth = highest - sequence;
+        if(depth >= WINDOW) {
+            staleCount ++;
+            return STALE;
+        }
+        long bit = 1L << depth;
+        if((window & bit) != 0) {
+            duplicateCount ++;
+            return DUPLICATE;
+        }
+        window |= bit;
+        receivedCount ++;
+        lostCount --;
+        reorderedCount ++;
+        if(depth > maxReorderDepth)
+            maxReorderDepth = (int) depth;
+        return REORDERED;
+    }
+
+    /**
+     * Forget the sequence so the next number starts it again, keeping the counts, for when the source restarts its
+     * numbering
+     */
+    public synchronized void restart() {
+        started = false;
+    }
+
+    public synchronized void reset() {
+        started = false;
+        receivedCount = 0;
+        lostCount = 0;
+        reorderedCount = 0;
+        duplicateCount = 0;
+        staleCount = 0;
+        maxReorderDepth = 0;
+    }
+
+    /**
+     * @return the highest sequence number received, meaningless before the first
+     */
+    public synchronized long getHighest() {
+        return highest;
+    }
+
+    /**
+     * @return the number of distinct sequence numbers received
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return the number of sequence numbers skipped and not received since
+     */
+    public synchronized long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * @return the number of sequence numbers received after a higher one
+     */
+    public synchronized long getReorderedCount() {
+        return reorderedCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return the number of sequence numbers received too far behind the highest to classify
+     */
+    public synchronized long getStaleCount() {
+        return staleCount;
+    }
+
+    /**
+     * @return the largest distance behind the highest of a reordered sequence number
+     */
+    public synchronized int getMaxReorderDepth() {
+        return maxReorderDepth;
+    }
+
+    /**
+     * @return the lost fraction of the sequence numbers expected so far, 0 when none were lost
+     */
+    public synchronized double getLossRate() {
+        long expected = receivedCount + lostCount;
+        return expected > 0 ? (double) lostCount / expected : 0;
+    }
+
+    /**
+     * @return the time passed to the last {@link #record(long, long)}
+     */
+    public synchronized long getLastTime() {
+        return lastTime;
+    }
+
+    public synchronized String toString() {
+        return String.format("SequenceTracker: highest=%d, received=%d, lost=%d (%.3f%%), reordered=%d, maxDepth=%d, duplicates=%d, stale=%d",
+            highest, receivedCount, lostCount, 100 * getLossRate(), reorderedCount, maxReorderDepth, duplicateCount,
+            staleCount);
+    }
+}
@@ -0,0 +1,479 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.BeaconView;
+
+import java.util.Arrays;
+
+/**
+ * A per beacon rssi smoothing and distance estimation stage. Each beacon, keyed on its (uuid, major, minor) identity
+ * as in {@link BeaconStatsTable}, is assigned a dense slot on its first event, and the state of its EWMA, median and
+ * one dimensional Kalman filters is held in primitive arrays indexed by that slot, so tens of thousands of beacons are
+ * tracked without per beacon objects and an update does not allocate once the arrays have grown to the population.
+ * Slots are stable for the life of the processor.
+ *
+ * Warm-up: every filter starts from the first sample rather than from zero, the median is taken over the samples seen
+ * so far until the window is full, and the Kalman estimate starts with the measurement variance. A slot is warm once
+ * it has warmupSamples samples, and until then {@link #getDistance(int)} returns NaN. A beacon that has not been seen
+ * for gapResetMillis restarts its warm-up, since its filter state no longer describes where it is.
+ *
+ * Distance uses the log-distance path loss model d = 10 ^ ((txPower - rssi) / (10 * n)) in meters, where txPower is
+ * the calibrated power, the rssi at 1m, falling back to the power field and then to -59, and n is the path loss
+ * exponent, 2 in free space and 2.5-4 indoors.
+ * <pre>
+ *     int slot = processor.update(view);
+ *     if(processor.isWarm(slot))
+ *         ... processor.getRssi(slot), processor.getDistance(slot) ...
+ * </pre>
+ * The processor is not thread safe.
+ */
+public class SignalProcessor {
+    /** The rssi estimates a distance can be computed from */
+    public enum Filter {
+        RAW, EWMA, MEDIAN, KALMAN
+    }
+
+    public static final int DEFAULT_EXPECTED_BEACONS = 1024;
+    public static final double DEFAULT_EWMA_ALPHA = 0.3;
+    public static final int DEFAULT_MEDIAN_WINDOW = 5;
+    /** The default Kalman process noise in dBm^2 per sample, how fast the true rssi is expected to drift */
+    public static final double DEFAULT_PROCESS_NOISE = 0.5;
+    /** The default Kalman measurement noise in dBm^2, the variance of a single rssi reading */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 16;
+    public static final double DEFAULT_PATH_LOSS_EXPONENT = 2.0;
+    public static final long DEFAULT_GAP_RESET_MILLIS = 30000;
+    /** The rssi at 1m assumed when a beacon reports neither a calibrated power nor a power */
+    public static final int DEFAULT_TX_POWER = -59;
+
+    private double ewmaAlpha = DEFAULT_EWMA_ALPHA;
+    private final int medianWindow;
+    private double processNoise = DEFAULT_PROCESS_NOISE;
+    private double measurementNoise = DEFAULT_MEASUREMENT_NOISE;
+    private double pathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+    private long gapResetMillis = DEFAULT_GAP_RESET_MILLIS;
+    private int warmupSamples;
+    private Filter distanceFilter = Filter.KALMAN;
+
+    // The key index, an open addressing table of dense slot + 1, 0 for an empty entry
+    private int[] index;
+    private int mask;
+    private int size;
+    // The per slot key and filter state
+    private long[] uuidHighs;
+    private long[] uuidLows;
+    private boolean[] packed;
+    /** The uuid of the slots whose uuid is not packable, null otherwise */
+    private String[] uuids;
+    private int[] majors;
+    private int[] minors;
+    private int[] counts;
+    private int[] lastRssis;
+    private int[] txPowers;
+    private long[] lastTimes;
+    private double[] ewmas;
+    private double[] kalmanEstimates;
+    private double[] kalmanVariances;
+    /** medianWindow samples per slot, filled round robin */
+    private int[] medianSamples;
+    private final int[] medianScratch;
+
+    // The last uuid seen and its packed form, the uuid strings from UUIDCache are shared so this usually hits
+    private String lastUUID;
+    private long lastHigh;
+    private long lastLow;
+    private boolean lastPacked;
+
+    public SignalProcessor() {
+        this(DEFAULT_EXPECTED_BEACONS, DEFAULT_MEDIAN_WINDOW);
+    }
+
+    /**
+     * @param expectedBeacons - the number of beacons expected, the arrays grow beyond this as needed
+     * @param medianWindow - the number of samples the median filter is taken over
+     */
+    public SignalProcessor(int expectedBeacons, int medianWindow) {
+        if(medianWindow < 1)
+            throw new IllegalArgumentException("medianWindow must be > 0: "+medianWindow);
+        this.medianWindow = medianWindow;
+        this.warmupSamples = medianWindow;
+        this.medianScratch = new int[medianWindow];
+        int capacity = 16;
+        while (capacity < 2L * expectedBeacons && capacity < (1 << 30))
+            capacity <<= 1;
+        index = new int[capacity];
+        mask = capacity - 1;
+        allocateSlots(Math.max(8, expectedBeacons));
+    }
+
+    public double getEwmaAlpha() {
+        return ewmaAlpha;
+    }
+
+    /**
+     * @param ewmaAlpha - the weight of a new sample in the EWMA, 0-1
+     */
+    public void setEwmaAlpha(double ewmaAlpha) {
+        if(ewmaAlpha <= 0 || ewmaAlpha > 1)
+            throw new IllegalArgumentException("ewmaAlpha must be in (0, 1]: "+ewmaAlpha);
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    public int getMedianWindow() {
+        return medianWindow;
+    }
+
+    public double getProcessNoise() {
+        return processNoise;
+    }
+
+    public void setProcessNoise(double processNoise) {
+        this.processNoise = processNoise;
+    }
+
+    public double getMeasurementNoise() {
+        return measurementNoise;
+    }
+
+    public void setMeasurementNoise(double measurementNoise) {
+        this.measurementNoise = measurementNoise;
+    }
+
+    public double getPathLossExponent() {
+        return pathLossExponent;
+    }
+
+    public void setPathLossExponent(double pathLossExponent) {
+        this.pathLossExponent = pathLossExponent;
+    }
+
+    public long getGapResetMillis() {
+        return gapResetMillis;
+    }
+
+    /**
+     * @param gapResetMillis - restart the warm-up of a beacon not seen for this long, 0 to never restart
+     */
+    public void setGapResetMillis(long gapResetMillis) {
+        this.gapResetMillis = gapResetMillis;
+    }
+
+    public int getWarmupSamples() {
+        return warmupSamples;
+    }
+
+    /**
+     * @param warmupSamples - the number of samples before a slot is warm, by default the median window
+     */
+    public void setWarmupSamples(int warmupSamples) {
+        this.warmupSamples = warmupSamples;
+    }
+
+    public Filter getDistanceFilter() {
+        return distanceFilter;
+    }
+
+    /**
+     * @param distanceFilter - the rssi estimate used by getRssi and getDistance, KALMAN by default
+     */
+    public void setDistanceFilter(Filter distanceFilter) {
+        this.distanceFilter = distanceFilter;
+    }
+
+    /**
+     * @return the number of beacons tracked
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a sample from a beacon frame
+     * @param view - view over the beacon_info frame
+     * @return the slot of the beacon
+     */
+    public int update(BeaconView view) {
+        int slot = slot(view.getUUID(), view.getMajor(), view.getMinor());
+        update(slot, view.getRssi(), txPower(view.getCalibratedPower(), view.getPower()), view.getTime());
+        return slot;
+    }
+
+    /**
+     * Add a sample from a beacon
+     * @param beacon - the beacon event
+     * @return the slot of the beacon
+     */
+    public int update(Beacon beacon) {
+        int slot = slot(beacon.getUUID(), beacon.getMajor(), beacon.getMinor());
+        update(slot, beacon.getRssi(), txPower(beacon.getCalibratedPower(), beacon.getPower()), beacon.getTime());
+        return slot;
+    }
+
+    /**
+     * Add a sample to a slot
+     * @param slot - a slot returned by {@link #slot(String, int, int)}
+     * @param rssi - the measured rssi
+     * @param txPower - the rssi at 1m
+     * @param time - the event time
+     */
+    public void update(int slot, int rssi, int txPower, long time) {
+        int count = counts[slot];
+        if(count > 0 && gapResetMillis > 0 && time - lastTimes[slot] > gapResetMillis)
+            count = 0;
+        lastRssis[slot] = rssi;
+        txPowers[slot] = txPower;
+        lastTimes[slot] = time;
+        medianSamples[slot * medianWindow + count % medianWindow] = rssi;
+        if(count == 0) {
+            ewmas[slot] = rssi;
+            kalmanEstimates[slot] = rssi;
+            kalmanVariances[slot] = measurementNoise;
+        } else {
+            ewmas[slot] += ewmaAlpha * (rssi - ewmas[slot]);
+            // Predict, then correct with the measurement
+            double variance = kalmanVariances[slot] + processNoise;
+            double gain = variance / (variance + measurementNoise);
+            kalmanEstimates[slot] += gain * (rssi - kalmanEstimates[slot]);
+            kalmanVariances[slot] = (1 - gain) * variance;
+        }
+        // Saturate rather than wrap so the round robin index stays valid
+        counts[slot] = count == Integer.MAX_VALUE ? medianWindow : count + 1;
+    }
+
+    private static int txPower(int calibratedPower, int power) {
+        if(calibratedPower != 0)
+            return calibratedPower;
+        return power != 0 ? power : DEFAULT_TX_POWER;
+    }
+
+    /**
+     * Get the slot of a beacon, assigning the next slot if it has not been seen
+     * @return the slot
+     */
+    public int slot(String uuid, int major, int minor) {
+        packKey(uuid);
+        int entry = findEntry(lastHigh, lastLow, lastPacked, uuid, major, minor);
+        if(index[entry] != 0)
+            return index[entry] - 1;
+        if(size == majors.length)
+            allocateSlots(size * 2);
+        int slot = size ++;
+        uuidHighs[slot] = lastHigh;
+        uuidLows[slot] = lastLow;
+        packed[slot] = lastPacked;
+        uuids[slot] = lastPacked ? null : uuid;
+        majors[slot] = major;
+        minors[slot] = minor;
+        index[entry] = slot + 1;
+        if(2 * size > index.length)
+            rehash(index.length * 2);
+        return slot;
+    }
+
+    /**
+     * @return the slot of the beacon, -1 if it has not been seen
+     */
+    public int find(String uuid, int major, int minor) {
+        packKey(uuid);
+        int entry = findEntry(lastHigh, lastLow, lastPacked, uuid, major, minor);
+        return index[entry] - 1;
+    }
+
+    private void packKey(String uuid) {
+        if(uuid == lastUUID)
+            return;
+        lastUUID = uuid;
+        if(uuid == null) {
+            lastPacked = false;
+            lastHigh = 0;
+            lastLow = 0;
+        } else if(UUIDCodec.isPackable(uuid)) {
+            lastPacked = true;
+            lastHigh = UUIDCodec.high(uuid);
+            lastLow = UUIDCodec.low(uuid);
+        } else {
+            lastPacked = false;
+            lastHigh = uuid.hashCode();
+            lastLow = uuid.length();
+        }
+    }
+
+    /**
+     * Linear probe for the index entry holding the key or the first empty entry
+     */
+    private int findEntry(long high, long low, boolean isPacked, String uuid, int major, int minor) {
+        int entry = BeaconStatsTable.hash(high, low, major, minor) & mask;
+        int slot;
+        while ((slot = index[entry] - 1) >= 0) {
+            if(uuidHighs[slot] == high && uuidLows[slot] == low && majors[slot] == major && minors[slot] == minor
+                && packed[slot] == isPacked && (isPacked || equals(uuids[slot], uuid)))
+                return entry;
+            entry = (entry + 1) & mask;
+        }
+        return entry;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void rehash(int capacity) {
+        index = new int[capacity];
+        mask = capacity - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int entry = BeaconStatsTable.hash(uuidHighs[slot], uuidLows[slot], majors[slot], minors[slot]) & mask;
+            while (index[entry] != 0)
+                entry = (entry + 1) & mask;
+            index[entry] = slot + 1;
+        }
+    }
+
+    private void allocateSlots(int slots) {
+        if(majors == null) {
+            uuidHighs = new long[slots];
+            uuidLows = new long[slots];
+            packed = new boolean[slots];
+            uuids = new String[slots];
+            majors = new int[slots];
+            minors = new int[slots];
+            counts = new int[slots];
+            lastRssis = new int[slots];
+            txPowers = new int[slots];
+            lastTimes = new long[slots];
+            ewmas = new double[slots];
+            kalmanEstimates = new double[slots];
+            kalmanVariances = new double[slots];
+            medianSamples = new int[slots * medianWindow];
+        } else {
+            uuidHighs = Arrays.copyOf(uuidHighs, slots);
+            uuidLows = Arrays.copyOf(uuidLows, slots);
+            packed = Arrays.copyOf(packed, slots);
+            uuids = Arrays.copyOf(uuids, slots);
+            majors = Arrays.copyOf(majors, slots);
+            minors = Arrays.copyOf(minors, slots);
+            counts = Arrays.copyOf(counts, slots);
+            lastRssis = Arrays.copyOf(lastRssis, slots);
+            txPowers = Arrays.copyOf(txPowers, slots);
+            lastTimes = Arrays.copyOf(lastTimes, slots);
+            ewmas = Arrays.copyOf(ewmas, slots);
+            kalmanEstimates = Arrays.copyOf(kalmanEstimates, slots);
+            kalmanVariances = Arrays.copyOf(kalmanVariances, slots);
+            medianSamples = Arrays.copyOf(medianSamples, slots * medianWindow);
+        }
+    }
+
+    public String getUUID(int slot) {
+        return packed[slot] ? UUIDCodec.toString(uuidHighs[slot], uuidLows[slot]) : uuids[slot];
+    }
+
+    public int getMajor(int slot) {
+        return majors[slot];
+    }
+
+    public int getMinor(int slot) {
+        return minors[slot];
+    }
+
+    /**
+     * @return the number of samples since the slot was created or its warm-up restarted
+     */
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    public boolean isWarm(int slot) {
+        return counts[slot] >= warmupSamples;
+    }
+
+    public int getLastRssi(int slot) {
+        return lastRssis[slot];
+    }
+
+    public int getTxPower(int slot) {
+        return txPowers[slot];
+    }
+
+    public long getLastTime(int slot) {
+        return lastTimes[slot];
+    }
+
+    public double getEwmaRssi(int slot) {
+        return ewmas[slot];
+    }
+
+    public double getKalmanRssi(int slot) {
+        return kalmanEstimates[slot];
+    }
+
+    /**
+     * @return the variance of the Kalman estimate in dBm^2
+     */
+    public double getKalmanVariance(int slot) {
+        return kalmanVariances[slot];
+    }
+
+    /**
+     * @return the median of the last medianWindow samples, or of all the samples during warm-up
+     */
+    public double getMedianRssi(int slot) {
+        int n = Math.min(counts[slot], medianWindow);
+        if(n == 0)
+            return Double.NaN;
+        int[] samples = medianScratch;
+        System.arraycopy(medianSamples, slot * medianWindow, samples, 0, n);
+        // Insertion sort, the window is small
+        for (int i = 1; i < n; i++) {
+            int value = samples[i];
+            int j = i - 1;
+            while (j >= 0 && samples[j] > value) {
+                samples[j + 1] = samples[j];
+                j --;
+            }
+            samples[j + 1] = value;
+        }
+        return (n & 1) == 1 ? samples[n / 2] : (samples[n / 2 - 1] + samples[n / 2]) / 2.0;
+    }
+
+    /**
+     * @return the rssi estimate of the distance filter
+     */
+    public double getRssi(int slot) {
+        return getRssi(slot, distanceFilter);
+    }
+
+    public double getRssi(int slot, Filter filter) {
+        switch (filter) {
+            case RAW:
+                return lastRssis[slot];
+            case EWMA:
+                return ewmas[slot];
+            case MEDIAN:
+                return getMedianRssi(slot);
+            default:
+                return kalmanEstimates[slot];
+        }
+    }
+
+    /**
+     * @return the estimated distance in meters from the distance filter's rssi, NaN until the slot is warm
+     */
+    public double getDistance(int slot) {
+        if(!isWarm(slot))
+            return Double.NaN;
+        return distance(txPowers[slot], getRssi(slot), pathLossExponent);
+    }
+
+    /**
+     * The log-distance path loss model
+     * @param txPower - the rssi at 1m
+     * @param rssi - the measured or filtered rssi
+     * @param pathLossExponent - 2 in free space, 2.5-4 indoors
+     * @return the distance in meters
+     */
+    public static double distance(int txPower, double rssi, double pathLossExponent) {
+        return Math.pow(10, (txPower - rssi) / (10 * pathLossExponent));
+    }
+
+    public String toString() {
+        return String.format("SignalProcessor(ewmaAlpha=%.2f, medianWindow=%d, Q=%.2f, R=%.2f, n=%.1f, filter=%s): beacons=%d",
+            ewmaAlpha, medianWindow, processNoise, measurementNoise, pathLossExponent, distanceFilter, size);
+    }
+}
@@ -0,0 +1,200 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.BeaconView;
+
+import java.util.ArrayList;
+
+/**
+ * Sliding and hopping windows of several sizes computed from one feed of beacon events. The events are aggregated
+ * once into panes, {@link BeaconStatsTable}s covering paneMillis each, and each window is emitted by merging the
+ * panes it covers when its hop boundary is reached. Adding a window therefore adds no per event cost, only the
+ * merge of size/paneMillis panes at each of its emissions. For example a 250ms presence window and a 1 minute
+ * occupancy window hopping every 10 seconds can share 250ms panes:
+ * <pre>
+ *     SlidingEventsWindow windows = new SlidingEventsWindow(250);
+ *     windows.addWindow(250, 250, presenceCallback);
+ *     windows.addWindow(60000, 10000, occupancyCallback);
+ * </pre>
+ * Windows are aligned on multiples of their hop from the epoch, and the window sizes and hops must be multiples of
+ * the pane size. The bucket passed to a callback is only valid for the duration of the call.
+ *
+ * An event for a pane that has already closed is still added to it while the pane is within the largest window,
+ * but windows already emitted do not include it; these are counted as late events. Older events are dropped.
+ * The class is not thread safe.
+ */
+public class SlidingEventsWindow {
+    private final long paneMillis;
+    private final ArrayList<WindowSpec> windows = new ArrayList<>();
+    /** The ring of pane tables, pane p is held at p % panes.length */
+    private BeaconStatsTable[] panes;
+    /** The pane index of the newest pane, -1 before the first event */
+    private long currentPane = -1;
+    /** The oldest pane index that holds events of the current feed */
+    private long firstPane;
+    private long lateCount;
+    private long droppedCount;
+
+    /**
+     * A window definition and the table its panes are merged into
+     */
+    private static class WindowSpec {
+        final long sizeMillis;
+        final long hopMillis;
+        final int sizePanes;
+        final IBucketCallback callback;
+        final BeaconStatsTable merged = new BeaconStatsTable();
+
+        WindowSpec(long sizeMillis, long hopMillis, int sizePanes, IBucketCallback callback) {
+            this.sizeMillis = sizeMillis;
+            this.hopMillis = hopMillis;
+            this.sizePanes = sizePanes;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * @param paneMillis - the granularity of the windows in milliseconds
+     */
+    public SlidingEventsWindow(long paneMillis) {
+        if(paneMillis <= 0)
+            throw new IllegalArgumentException("paneMillis must be > 0: "+paneMillis);
+        this.paneMillis = paneMillis;
+    }
+
+    public long getPaneMillis() {
+        return paneMillis;
+    }
+
+    /**
+     * Add a window, before any events are added. A window with sizeMillis == hopMillis is a tumbling window.
+     * @param sizeMillis - the length of the window, a multiple of the pane size
+     * @param hopMillis - the interval between emissions of the window, a multiple of the pane size
+     * @param callback - the consumer of the window buckets
+     */
+    public void addWindow(long sizeMillis, long hopMillis, IBucketCallback callback) {
+        if(currentPane >= 0)
+            throw new IllegalStateException("Windows must be added before the first event");
+        if(sizeMillis <= 0 || sizeMillis % paneMillis != 0 || hopMillis <= 0 || hopMillis % paneMillis != 0)
+            throw new IllegalArgumentException(String.format("Window size(%d) and hop(%d) must be positive multiples of the pane size(%d)",
+                sizeMillis, hopMillis, paneMillis));
+        windows.add(new WindowSpec(sizeMillis, hopMillis, (int) (sizeMillis / paneMillis), callback));
+    }
+
+    /**
+     * @return the number of events added to panes that had already closed
+     */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * @return the number of events dropped because they were older than the largest window
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public void addEvent(BeaconInfo info, boolean isHeartbeat) {
+        BeaconStatsTable pane = paneFor(info.time);
+        if(pane != null)
+            pane.add(info, isHeartbeat);
+    }
+
+    /**
+     * Add an event read from a beacon_info frame without creating a BeaconInfo
+     * @param scannerID - the id of the scanner that saw the event
+     * @param view - view wrapping the beacon_info frame
+     * @param isHeartbeat - the heartbeat flag of the event
+     */
+    public void addEvent(String scannerID, BeaconView view, boolean isHeartbeat) {
+        BeaconStatsTable pane = paneFor(view.getTime());
+        if(pane != null)
+            pane.add(scannerID, view, isHeartbeat);
+    }
+
+    /**
+     * Close the panes up to the given time, emitting the windows that end on or before it. This lets windows be
+     * emitted when no events arrive, for example from a timer.
+     * @param time - the current time in milliseconds
+     */
+    public void advanceTo(long time) {
+        if(currentPane < 0)
+            start(time / paneMillis);
+        advance(time / paneMillis);
+    }
+
+    private BeaconStatsTable paneFor(long time) {
+        long pane = time / paneMillis;
+        if(currentPane < 0)
+            start(pane);
+        if(pane > currentPane) {
+            advance(pane);
+        } else if(pane < currentPane) {
+            if(pane <= currentPane - panes.length || pane < firstPane) {
+                droppedCount ++;
+                return null;
+            }
+            lateCount ++;
+        }
+        return panes[(int) (pane % panes.length)];
+    }
+
+    private void start(long pane) {
+        if(windows.isEmpty())
+            throw new IllegalStateException("No windows have been added");
+        int maxPanes = 1;
+        for (WindowSpec spec : windows)
+            maxPanes = Math.max(maxPanes, spec.sizePanes);
+        panes = new BeaconStatsTable[maxPanes];
+        for (int n = 0; n < maxPanes; n++)
+            panes[n] = new BeaconStatsTable();
+        currentPane = pane;
+        firstPane = pane;
+    }
+
+    /**
+     * Close panes until the given pane is the newest
+     */
+    private void advance(long pane) {
+        if(pane - currentPane > panes.length) {
+            // Only the last panes.length closes can emit windows holding events, skip the empty ones before them
+            for (int n = 0; n < panes.length; n++)
+                closePane();
+            currentPane = pane - 1;
+        }
+        while (currentPane < pane)
+            closePane();
+    }
+
+    /**
+     * Close the current pane, emit the windows that end with it, and start the next pane
+     */
+    private void closePane() {
+        long windowEnd = (currentPane + 1) * paneMillis;
+        for (WindowSpec spec : windows) {
+            if(windowEnd % spec.hopMillis == 0)
+                emit(spec, windowEnd);
+        }
+        currentPane ++;
+        panes[(int) (currentPane % panes.length)].clear();
+    }
+
+    private void emit(WindowSpec spec, long windowEnd) {
+        BeaconStatsTable merged = spec.merged;
+        merged.clear();
+        long lastPane = currentPane;
+        long startPane = Math.max(lastPane - spec.sizePanes + 1, firstPane);
+        for (long p = startPane; p <= lastPane; p++)
+            merged.merge(panes[(int) (p % panes.length)]);
+        EventsBucket bucket = new EventsBucket(null, merged, windowEnd - spec.sizeMillis, windowEnd);
+        try {
+            spec.callback.bucketEvent(bucket);
+        } catch (Throwable e) {
+            System.err.printf("Window(%d/%d) callback failed for bucket(%d-%d), msg=%s\n", spec.sizeMillis, spec.hopMillis,
+                bucket.getBucketStart(), bucket.getBucketEnd(), e);
+        } finally {
+            bucket.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * Packs the proximity uuid strings of beacons, 32 hex digits with or without the 4 dashes of the canonical form,
+ * into two longs without allocating, so they can be used as primitive keys.
+ */
+public class UUIDCodec {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * @param uuid - the uuid string
+     * @return true if the uuid is 32 hex digits, optionally with dashes, and can be packed without loss
+     */
+    public static boolean isPackable(String uuid) {
+        int digits = 0;
+        int length = uuid.length();
+        if(length != 32 && length != 36)
+            return false;
+        for (int n = 0; n < length; n++) {
+            char c = uuid.charAt(n);
+            if(c == '-')
+                continue;
+            if(hexValue(c) < 0)
+                return false;
+            digits ++;
+        }
+        return digits == 32;
+    }
+
+    /**
+     * @param uuid - the uuid string
+     * @return true if the uuid is in the native scanner form of 32 uppercase hex digits, which
+     * {@link #toString(long, long)} reproduces exactly from the packed form
+     */
+    public static boolean isCanonical(String uuid) {
+        if(uuid.length() != 32)
+            return false;
+        for (int n = 0; n < 32; n++) {
+            char c = uuid.charAt(n);
+            if(!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param uuid - a packable uuid string
+     * @return the most significant 64 bits of the uuid
+     */
+    public static long high(String uuid) {
+        return pack(uuid, 0);
+    }
+
+    /**
+     * @param uuid - a packable uuid string
+     * @return the least significant 64 bits of the uuid
+     */
+    public static long low(String uuid) {
+        return pack(uuid, 16);
+    }
+
+    /**
+     * Pack 16 hex digits of the uuid starting at the given digit, skipping dashes
+     */
+    private static long pack(String uuid, int firstDigit) {
+        long value = 0;
+        int digit = 0;
+        int length = uuid.length();
+        for (int n = 0; n < length && digit < firstDigit + 16; n++) {
+            char c = uuid.charAt(n);
+            if(c == '-')
+                continue;
+            if(digit >= firstDigit)
+                value = (value << 4) | hexValue(c);
+            digit ++;
+        }
+        return value;
+    }
+
+    /**
+     * @return the 32 uppercase hex digit form of the packed uuid, as written by the native scanner
+     */
+    public static String toString(long high, long low) {
+        char[] chars = new char[32];
+        for (int n = 0; n < 16; n++) {
+            chars[n] = HEX[(int) (high >>> (60 - 4*n)) & 0xf];
+            chars[16 + n] = HEX[(int) (low >>> (60 - 4*n)) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static int hexValue(char c) {
+        if(c >= '0' && c <= '9')
+            return c - '0';
+        if(c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if(c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+}
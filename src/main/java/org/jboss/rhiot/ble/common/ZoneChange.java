@@ -0,0 +1,83 @@
+package org.jboss.rhiot.ble.common;
+
+/**
+ * A change of the zone a beacon is assigned to by a {@link ZoneFusion}
+ */
+public class ZoneChange {
+    private final String uuid;
+    private final int major;
+    private final int minor;
+    private final String previousZone;
+    private final String zone;
+    private final String scannerID;
+    private final double rssi;
+    private final long time;
+
+    ZoneChange(String uuid, int major, int minor, String previousZone, String zone, String scannerID, double rssi,
+               long time) {
+        this.uuid = uuid;
+        this.major = major;
+        this.minor = minor;
+        this.previousZone = previousZone;
+        this.zone = zone;
+        this.scannerID = scannerID;
+        this.rssi = rssi;
+        this.time = time;
+    }
+
+    public String getUUID() {
+        return uuid;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * @return the zone the beacon was assigned to, null if it was just seen for the first time
+     */
+    public String getPreviousZone() {
+        return previousZone;
+    }
+
+    /**
+     * @return the zone the beacon is now assigned to, null if no scanner has heard it within the stale time
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * @return the scanner with the strongest smoothed rssi in the new zone, null when leaving all zones
+     */
+    public String getScannerID() {
+        return scannerID;
+    }
+
+    /**
+     * @return the smoothed rssi of the beacon at that scanner
+     */
+    public double getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return the fusion clock time of the change in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public boolean isExit() {
+        return zone == null;
+    }
+
+    public String toString() {
+        return String.format("ZoneChange{[%s,%d,%d] %s -> %s, scanner=%s, rssi=%.1f, time=%d}", uuid, major, minor,
+            previousZone, zone, scannerID, rssi, time);
+    }
+}
@@ -0,0 +1,587 @@
+package org.jboss.rhiot.ble.common;
+
+import org.jboss.rhiot.ble.bluez.IEventCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assigns each beacon to the zone of the scanners that hear it best, fusing the Beacon events of many scanners.
+ * Each scanner belongs to one zone, by default a zone named after its scannerID. For every beacon the fusion keeps
+ * an exponentially weighted moving average of the rssi reported by each scanner, and the beacon is in the zone of
+ * the scanner with the strongest fresh average. A beacon only moves to another zone once that zone beats the current
+ * one by the hysteresis margin for at least the dwell time, so a beacon between two scanners does not flap, and
+ * leaves all zones once no scanner has heard it for the stale time.
+ *
+ * The beacons are partitioned by the hash of their uuid, major and minor over a worker thread per partition, which
+ * by default is one per core. A partition's worker owns the state of its beacons, so the smoothing and zone
+ * decisions never lock, and the changes of one beacon are delivered in order on its worker thread. Submitting only
+ * offers the beacon to the bounded queue of its partition, and beacons are dropped and counted when it is full.
+ *
+ * Times are taken from the fusion's clock when a beacon is processed, not from the event times, so the clocks of
+ * the scanners need not be in sync. The fusion is an {@link IEventCallback} so scanners in the same process can
+ * feed it directly. Remote scanners can send their beacons with a {@link BeaconDatagramSender} to a
+ * {@link BeaconDatagramReceiver} that passes them to the fusion, or the Beacon.toByteMsg and BeaconCodec messages
+ * read from any other transport can be submitted.
+ */
+public class ZoneFusion implements IEventCallback {
+    public static final double DEFAULT_RSSI_ALPHA = 0.3;
+    public static final double DEFAULT_HYSTERESIS_DB = 4.0;
+    public static final long DEFAULT_DWELL_MILLIS = 2000;
+    public static final long DEFAULT_STALE_MILLIS = 10000;
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    private final Partition[] partitions;
+    private final CopyOnWriteArrayList<IZoneCallback> callbacks = new CopyOnWriteArrayList<>();
+    /** The scanner index of each scannerID, assigned on first use */
+    private final ConcurrentHashMap<String, Integer> scannerIndexes = new ConcurrentHashMap<>();
+    /** The scannerID and zone of each scanner index, replaced when a scanner is added or its zone set */
+    private volatile String[] scannerIDs = new String[0];
+    private volatile String[] zones = new String[0];
+    /** The current zone of each beacon, written by the workers on a change for {@link #getZone} */
+    private final ConcurrentHashMap<BeaconKey, String> assignments = new ConcurrentHashMap<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong changeCount = new AtomicLong();
+    private final AtomicLong callbackErrorCount = new AtomicLong();
+    private double rssiAlpha = DEFAULT_RSSI_ALPHA;
+    private double hysteresisDb = DEFAULT_HYSTERESIS_DB;
+    private long dwellMillis = DEFAULT_DWELL_MILLIS;
+    private long staleMillis = DEFAULT_STALE_MILLIS;
+    private volatile boolean running;
+
+    /**
+     * Create a fusion with a partition per available processor
+     */
+    public ZoneFusion() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param partitionCount - the number of partitions and worker threads
+     * @param queueSize - the capacity of each partition's queue
+     */
+    public ZoneFusion(int partitionCount, int queueSize) {
+        if(partitionCount <= 0)
+            throw new IllegalArgumentException("partitionCount must be > 0: "+partitionCount);
+        if(queueSize <= 0)
+            throw new IllegalArgumentException("queueSize must be > 0: "+queueSize);
+        partitions = new Partition[partitionCount];
+        for (int n = 0; n < partitionCount; n++)
+            partitions[n] = new Partition(queueSize);
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public double getRssiAlpha() {
+        return rssiAlpha;
+    }
+
+    /**
+     * Set the weight of a new rssi in the per scanner moving averages. Takes effect for events processed after the
+     * fusion is started.
+     * @param rssiAlpha - weight in (0, 1], 1 for no smoothing
+     */
+    public void setRssiAlpha(double rssiAlpha) {
+        if(!(rssiAlpha > 0 && rssiAlpha <= 1))
+            throw new IllegalArgumentException("rssiAlpha must be in (0, 1]: "+rssiAlpha);
+        this.rssiAlpha = rssiAlpha;
+    }
+
+    public double getHysteresisDb() {
+        return hysteresisDb;
+    }
+
+    /**
+     * @param hysteresisDb - the dB by which another zone's smoothed rssi must exceed the current zone's to move the
+     *                     beacon
+     */
+    public void setHysteresisDb(double hysteresisDb) {
+        if(hysteresisDb < 0)
+            throw new IllegalArgumentException("hysteresisDb must be >= 0: "+hysteresisDb);
+        this.hysteresisDb = hysteresisDb;
+    }
+
+    public long getDwellMillis() {
+        return dwellMillis;
+    }
+
+    /**
+     * @param dwellMillis - how long another zone must keep beating the current zone by the hysteresis before the
+     *                    beacon moves, 0 to move on the first such event
+     */
+    public void setDwellMillis(long dwellMillis) {
+        if(dwellMillis < 0)
+            throw new IllegalArgumentException("dwellMillis must be >= 0: "+dwellMillis);
+        this.dwellMillis = dwellMillis;
+    }
+
+    public long getStaleMillis() {
+        return staleMillis;
+    }
+
+    /**
+     * @param staleMillis - how long a scanner's average for a beacon counts after its last event; a beacon no
+     *                    scanner has heard for this long leaves its zone
+     */
+    public void setStaleMillis(long staleMillis) {
+        if(staleMillis <= 0)
+            throw new IllegalArgumentException("staleMillis must be > 0: "+staleMillis);
+        this.staleMillis = staleMillis;
+    }
+
+    /**
+     * Assign a scanner to a zone, by default a scanner is in a zone named by its scannerID. Can be called at any
+     * time, and applies to the next event of each beacon.
+     * @param scannerID - the scanner id as in Beacon.getScannerID()
+     * @param zone - the zone name
+     */
+    public synchronized void setZone(String scannerID, String zone) {
+        int index = scannerIndex(scannerID);
+        String[] tmp = Arrays.copyOf(zones, zones.length);
+        tmp[index] = zone;
+        zones = tmp;
+    }
+
+    /**
+     * @param scannerID - the scanner id as in Beacon.getScannerID()
+     * @return the zone of the scanner, null if it has not been seen or assigned
+     */
+    public String getScannerZone(String scannerID) {
+        Integer index = scannerIndexes.get(scannerID);
+        return index != null ? zones[index] : null;
+    }
+
+    public void addCallback(IZoneCallback callback) {
+        callbacks.add(callback);
+    }
+
+    public void removeCallback(IZoneCallback callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * Start a worker thread per partition
+     */
+    public synchronized void start() {
+        if(running)
+            return;
+        running = true;
+        for (int n = 0; n < partitions.length; n++) {
+            Thread thread = new Thread(partitions[n], "ZoneFusion-"+n);
+            thread.setDaemon(true);
+            partitions[n].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the worker threads, waiting for them to exit. Events still queued are discarded.
+     */
+    public synchronized void stop() {
+        if(!running)
+            return;
+        running = false;
+        for (Partition partition : partitions) {
+            partition.thread.interrupt();
+            try {
+                partition.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            partition.thread = null;
+            partition.queue.clear();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * IEventCallback implementation that submits the beacon so scanners can feed the fusion directly
+     * @param beacon - the beacon event, which must not be modified after this call
+     * @return false so the beacon is not considered consumed
+     */
+    @Override
+    public boolean beaconEvent(Beacon beacon) {
+        submit(beacon);
+        return false;
+    }
+
+    /**
+     * Queue a beacon for its partition. Heartbeats and beacons without a scannerID or uuid are ignored.
+     * @param beacon - the beacon event, which must not be modified after this call
+     * @return true if queued, false if ignored or dropped because the partition queue is full
+     */
+    public boolean submit(Beacon beacon) {
+        if(beacon.isHeartbeat() || beacon.getScannerID() == null || beacon.getUUID() == null)
+            return false;
+        int hash = BeaconKey.hash(beacon.getUUID(), beacon.getMajor(), beacon.getMinor());
+        Partition partition = partitions[(hash & 0x7fffffff) % partitions.length];
+        if(!partition.queue.offer(beacon)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode and submit a version 4 Beacon.toByteMsg message or a version 5 BeaconCodec message of any size
+     * @param msg - the message bytes
+     * @return the number of beacons queued
+     * @throws IOException on an unknown version or malformed message
+     */
+    public int submit(byte[] msg) throws IOException {
+        return submit(msg, 0, msg.length);
+    }
+
+    /**
+     * Decode and submit a version 4 Beacon.toByteMsg message or a version 5 BeaconCodec message of any size
+     * @param msg - the array holding the message
+     * @param offset - the offset of the message
+     * @param length - the length of the message
+     * @return the number of beacons queued
+     * @throws IOException on an unknown version or malformed message
+     */
+    public int submit(byte[] msg, int offset, int length) throws IOException {
+        int queued = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(msg, offset, length);
+        if(length >= 4 && buffer.getInt(offset) == BeaconCodec.VERSION) {
+            for (Beacon beacon : BeaconCodec.decode(buffer)) {
+                if(submit(beacon))
+                    queued ++;
+            }
+        } else {
+            byte[] copy = offset == 0 && length == msg.length ? msg : Arrays.copyOfRange(msg, offset, offset + length);
+            if(submit(Beacon.fromByteMsg(copy)))
+                queued ++;
+        }
+        return queued;
+    }
+
+    /**
+     * @param uuid - the beacon uuid
+     * @param major - the beacon major
+     * @param minor - the beacon minor
+     * @return the current zone of the beacon, null if it is in none
+     */
+    public String getZone(String uuid, int major, int minor) {
+        return assignments.get(new BeaconKey(uuid, major, minor));
+    }
+
+    /**
+     * @return the number of beacons currently assigned to a zone
+     */
+    public int getAssignedCount() {
+        return assignments.size();
+    }
+
+    /**
+     * @return the number of beacons dropped because their partition queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getProcessedCount() {
+        long count = 0;
+        for (Partition partition : partitions)
+            count += partition.processedCount;
+        return count;
+    }
+
+    /**
+     * @return the number of zone changes, including entering the first zone and leaving all zones
+     */
+    public long getChangeCount() {
+        return changeCount.get();
+    }
+
+    public long getCallbackErrorCount() {
+        return callbackErrorCount.get();
+    }
+
+    /**
+     * @return the number of events waiting in the partition queues
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (Partition partition : partitions)
+            count += partition.queue.size();
+        return count;
+    }
+
+    /**
+     * Register the fusion counters as gauges
+     * @param registry - the registry to add the gauges to
+     * @param prefix - the prefix of the gauge names, e.g. "zones."
+     */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.register(prefix+"assigned", new IGauge() {
+            @Override
+            public long getValue() {
+                return getAssignedCount();
+            }
+        });
+        registry.register(prefix+"queued", new IGauge() {
+            @Override
+            public long getValue() {
+                return getQueuedCount();
+            }
+        });
+        registry.register(prefix+"processed", new IGauge() {
+            @Override
+            public long getValue() {
+                return getProcessedCount();
+            }
+        });
+        registry.register(prefix+"dropped", new IGauge() {
+            @Override
+            public long getValue() {
+                return getDroppedCount();
+            }
+        });
+        registry.register(prefix+"changes", new IGauge() {
+            @Override
+            public long getValue() {
+                return getChangeCount();
+            }
+        });
+    }
+
+    /**
+     * Look up or assign the index of a scanner, publishing its default zone before the index is visible
+     */
+    private int scannerIndex(String scannerID) {
+        Integer index = scannerIndexes.get(scannerID);
+        if(index != null)
+            return index;
+        synchronized (this) {
+            index = scannerIndexes.get(scannerID);
+            if(index == null) {
+                index = scannerIDs.length;
+                String[] ids = Arrays.copyOf(scannerIDs, index + 1);
+                ids[index] = scannerID;
+                String[] tmp = Arrays.copyOf(zones, index + 1);
+                tmp[index] = scannerID;
+                scannerIDs = ids;
+                zones = tmp;
+                scannerIndexes.put(scannerID, index);
+            }
+            return index;
+        }
+    }
+
+    private void changeZone(BeaconState state, String zone, String scannerID, double rssi, long now) {
+        ZoneChange change = new ZoneChange(state.key.uuid, state.key.major, state.key.minor, state.zone, zone,
+            scannerID, rssi, now);
+        state.zone = zone;
+        state.candidate = null;
+        if(zone != null)
+            assignments.put(state.key, zone);
+        else
+            assignments.remove(state.key);
+        changeCount.incrementAndGet();
+        for (IZoneCallback callback : callbacks) {
+            try {
+                callback.zoneChanged(change);
+            } catch (Throwable e) {
+                callbackErrorCount.incrementAndGet();
+                System.err.printf("ZoneFusion callback failed for %s: %s\n", change, e);
+            }
+        }
+    }
+
+    public String toString() {
+        return String.format("ZoneFusion: partitions=%d, scanners=%d, assigned=%d, processed=%d, dropped=%d, changes=%d",
+            partitions.length, scannerIDs.length, assignments.size(), getProcessedCount(), droppedCount.get(),
+            changeCount.get());
+    }
+
+    /**
+     * The beacons of one hash partition, only accessed by its worker thread apart from the queue
+     */
+    private final class Partition implements Runnable {
+        final ArrayBlockingQueue<Beacon> queue;
+        final HashMap<BeaconKey, BeaconState> states = new HashMap<>();
+        final BeaconKey probe = new BeaconKey(null, 0, 0);
+        final List<Beacon> batch = new ArrayList<>();
+        volatile long processedCount;
+        long lastSweep;
+        Thread thread;
+
+        Partition(int queueSize) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            long sweepMillis = Math.max(staleMillis / 4, 10);
+            lastSweep = System.currentTimeMillis();
+            while (running) {
+                Beacon beacon;
+                try {
+                    beacon = queue.poll(sweepMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if(beacon != null) {
+                    process(beacon, now);
+                    queue.drainTo(batch, 256);
+                    for (int n = 0; n < batch.size(); n++)
+                        process(batch.get(n), now);
+                    processedCount += 1 + batch.size();
+                    batch.clear();
+                }
+                if(now - lastSweep >= sweepMillis) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            }
+        }
+
+        private void process(Beacon beacon, long now) {
+            int index = scannerIndex(beacon.getScannerID());
+            probe.set(beacon.getUUID(), beacon.getMajor(), beacon.getMinor());
+            BeaconState state = states.get(probe);
+            if(state == null) {
+                BeaconKey key = new BeaconKey(probe.uuid, probe.major, probe.minor);
+                state = new BeaconState(key);
+                states.put(key, state);
+            }
+            state.ensureCapacity(index + 1);
+            int rssi = beacon.getRssi();
+            if(now - state.lastSeen[index] > staleMillis)
+                state.rssi[index] = rssi;
+            else
+                state.rssi[index] += rssiAlpha * (rssi - state.rssi[index]);
+            state.lastSeen[index] = now;
+            evaluate(state, now);
+        }
+
+        private void evaluate(BeaconState state, long now) {
+            String[] zones = ZoneFusion.this.zones;
+            String[] ids = scannerIDs;
+            long cutoff = now - staleMillis;
+            int best = -1;
+            double currentRssi = Double.NEGATIVE_INFINITY;
+            int count = Math.min(state.rssi.length, zones.length);
+            for (int n = 0; n < count; n++) {
+                if(state.lastSeen[n] < cutoff || state.lastSeen[n] == 0)
+                    continue;
+                double rssi = state.rssi[n];
+                if(best < 0 || rssi > state.rssi[best])
+                    best = n;
+                if(rssi > currentRssi && zones[n].equals(state.zone))
+                    currentRssi = rssi;
+            }
+            if(best < 0)
+                return;
+            String bestZone = zones[best];
+            double bestRssi = state.rssi[best];
+            if(state.zone == null) {
+                changeZone(state, bestZone, ids[best], bestRssi, now);
+            } else if(bestZone.equals(state.zone) || bestRssi < currentRssi + hysteresisDb) {
+                state.candidate = null;
+            } else {
+                if(!bestZone.equals(state.candidate)) {
+                    state.candidate = bestZone;
+                    state.candidateSince = now;
+                }
+                if(now - state.candidateSince >= dwellMillis)
+                    changeZone(state, bestZone, ids[best], bestRssi, now);
+            }
+        }
+
+        /**
+         * Remove the beacons no scanner has heard within the stale time, notifying those leaving a zone
+         */
+        private void sweep(long now) {
+            long cutoff = now - staleMillis;
+            for (Iterator<BeaconState> i = states.values().iterator(); i.hasNext(); ) {
+                BeaconState state = i.next();
+                boolean fresh = false;
+                for (int n = 0; n < state.lastSeen.length && !fresh; n++)
+                    fresh = state.lastSeen[n] >= cutoff && state.lastSeen[n] != 0;
+                if(fresh)
+                    continue;
+                i.remove();
+                if(state.zone != null)
+                    changeZone(state, null, null, Double.NaN, now);
+            }
+        }
+    }
+
+    /**
+     * The per scanner moving averages and zone of one beacon
+     */
+    private static final class BeaconState {
+        final BeaconKey key;
+        /** The smoothed rssi and last processing time by scanner index */
+        double[] rssi = new double[4];
+        long[] lastSeen = new long[4];
+        String zone;
+        /** The zone beating the current one by the hysteresis, and since when */
+        String candidate;
+        long candidateSince;
+
+        BeaconState(BeaconKey key) {
+            this.key = key;
+        }
+
+        void ensureCapacity(int size) {
+            if(size > rssi.length) {
+                int length = Math.max(size, rssi.length * 2);
+                rssi = Arrays.copyOf(rssi, length);
+                lastSeen = Arrays.copyOf(lastSeen, length);
+            }
+        }
+    }
+
+    private static final class BeaconKey {
+        String uuid;
+        int major;
+        int minor;
+
+        BeaconKey(String uuid, int major, int minor) {
+            set(uuid, major, minor);
+        }
+
+        void set(String uuid, int major, int minor) {
+            this.uuid = uuid;
+            this.major = major;
+            this.minor = minor;
+        }
+
+        static int hash(String uuid, int major, int minor) {
+            int h = (uuid.hashCode() * 31 + major) * 31 + minor;
+            return h ^ (h >>> 16);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof BeaconKey))
+                return false;
+            BeaconKey key = (BeaconKey) o;
+            return major == key.major && minor == key.minor && uuid.equals(key.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(uuid, major, minor);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.BeaconCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round trip beacons through the version 5 BeaconCodec and the version 4 Beacon.toByteMsg form, covering the varint
+ * and zigzag extremes, each combination of the FLAG_UUID_BYTES, FLAG_SAME_UUID and FLAG_SEQUENCE record flags and
+ * the recordSize accounting. Throws an IllegalStateException on the first mismatch.
+ * Usage: TestBeaconCodec
+ */
+public class TestBeaconCodec {
+    static final String HEX_UUID = "15DAF246CE836311E4B116123B93F75C";
+    static final String STRING_UUID = "not-a-hex-uuid";
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+    }
+
+    static Beacon beacon(String scannerID, String uuid, int major, int minor, int rssi, long time, int sequenceNo) {
+        Beacon beacon = new Beacon(scannerID, uuid, 533, 0x004c, major, minor, -59, rssi, time);
+        beacon.setCalibratedPower(-62);
+        beacon.setScannerSequenceNo(sequenceNo);
+        return beacon;
+    }
+
+    static void checkSame(Beacon expected, Beacon actual, String what) {
+        boolean same = expected.getScannerID().equals(actual.getScannerID())
+            && expected.getUUID().equals(actual.getUUID())
+            && expected.getCode() == actual.getCode()
+            && expected.getManufacturer() == actual.getManufacturer()
+            && expected.getMajor() == actual.getMajor()
+            && expected.getMinor() == actual.getMinor()
+            && expected.getPower() == actual.getPower()
+            && expected.getCalibratedPower() == actual.getCalibratedPower()
+            && expected.getRssi() == actual.getRssi()
+            && expected.getTime() == actual.getTime()
+            && expected.getMessageType() == actual.getMessageType()
+            && expected.getScannerSequenceNo() == actual.getScannerSequenceNo();
+        check(same, what+": expected "+expected+", was "+actual);
+    }
+
+    /**
+     * Encode a batch of one or two beacons of one scanner id and check the flags of the last record, found from the
+     * fixed header, the one definition and the size of the record before it
+     */
+    static void checkFlags(Beacon first, Beacon second, int expected) throws Exception {
+        BeaconCodec codec = new BeaconCodec();
+        List<Beacon> batch = new ArrayList<>();
+        batch.add(first);
+        if(second != null)
+            batch.add(second);
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        codec.encodeBatch(batch, out);
+        int offset = BeaconCodec.BATCH_HEADER_SIZE + 2 + codec.definitionSize(first.getScannerID());
+        if(second != null)
+            offset += codec.recordSize(first, null);
+        int flags = out.get(offset) & 0xff;
+        check(flags == expected, String.format("flags 0x%x != 0x%x for %s", flags, expected, batch));
+        out.flip();
+        List<Beacon> decoded = BeaconCodec.decode(out);
+        for (int n = 0; n < batch.size(); n++)
+            checkSame(batch.get(n), decoded.get(n), "flags record "+n);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long now = System.currentTimeMillis();
+        List<Beacon> beacons = new ArrayList<>();
+        // Each uuid form with and without a sequence number, then repeated so the uuid is omitted
+        String[] uuids = {HEX_UUID, STRING_UUID, ""};
+        int[] sequenceNos = {0, 1, Integer.MAX_VALUE, Integer.MIN_VALUE, -1};
+        for (String uuid : uuids) {
+            for (int sequenceNo : sequenceNos) {
+                beacons.add(beacon("scanner-1", uuid, 1, 2, -70, now, sequenceNo));
+                beacons.add(beacon("scanner-2", uuid, 3, 4, -71, now + 1, sequenceNo));
+            }
+        }
+        // The varint and zigzag extremes, with time deltas that go backwards and span the long range
+        beacons.add(beacon("scanner-1", HEX_UUID, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 0, 127));
+        beacons.add(beacon("scanner-\u00e9", HEX_UUID, -1, 128, Integer.MAX_VALUE, Long.MAX_VALUE / 2, 128));
+        beacons.add(beacon("", STRING_UUID, 16383, 16384, 0, -1000, 16384));
+        beacons.add(beacon("scanner-1", HEX_UUID.toLowerCase(), 0, 0, -128, now - 5000, 0));
+
+        BeaconCodec codec = new BeaconCodec();
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        int length = codec.encodeBatch(beacons, out);
+        check(length == out.position(), "encodeBatch length");
+        out.flip();
+        List<Beacon> decoded = BeaconCodec.decode(out);
+        check(decoded.size() == beacons.size(), "batch size "+decoded.size());
+        check(!out.hasRemaining(), "batch fully read, remaining "+out.remaining());
+        for (int n = 0; n < beacons.size(); n++)
+            checkSame(beacons.get(n), decoded.get(n), "batch record "+n);
+        System.out.printf("batch of %d beacons in %d bytes round tripped\n", beacons.size(), length);
+
+        // The recordSize and definitionSize accounting, the scanner id and record counts each fit a one byte varint
+        int recordsSize = 0;
+        for (int n = 0; n < beacons.size(); n++)
+            recordsSize += codec.recordSize(beacons.get(n), n > 0 ? beacons.get(n - 1) : null);
+        int definitionsSize = codec.definitionSize("scanner-1") + codec.definitionSize("scanner-2")
+            + codec.definitionSize("scanner-\u00e9") + codec.definitionSize("");
+        check(BeaconCodec.BATCH_HEADER_SIZE + 2 + definitionsSize + recordsSize == length, "size accounting");
+
+        // Each combination of the record flags
+        checkFlags(beacon("s", HEX_UUID, 1, 1, -70, now, 0), null, BeaconCodec.FLAG_UUID_BYTES);
+        checkFlags(beacon("s", HEX_UUID, 1, 1, -70, now, 5), null,
+            BeaconCodec.FLAG_UUID_BYTES | BeaconCodec.FLAG_SEQUENCE);
+        checkFlags(beacon("s", STRING_UUID, 1, 1, -70, now, 0), null, 0);
+        checkFlags(beacon("s", STRING_UUID, 1, 1, -70, now, -5), null, BeaconCodec.FLAG_SEQUENCE);
+        checkFlags(beacon("s", HEX_UUID, 1, 1, -70, now, 0), beacon("s", HEX_UUID, 1, 2, -70, now, 0),
+            BeaconCodec.FLAG_UUID_BYTES | BeaconCodec.FLAG_SAME_UUID);
+        checkFlags(beacon("s", HEX_UUID, 1, 1, -70, now, 0), beacon("s", HEX_UUID, 1, 2, -70, now, 6),
+            BeaconCodec.FLAG_UUID_BYTES | BeaconCodec.FLAG_SAME_UUID | BeaconCodec.FLAG_SEQUENCE);
+        checkFlags(beacon("s", STRING_UUID, 1, 1, -70, now, 0), beacon("s", STRING_UUID, 1, 2, -70, now, 0),
+            BeaconCodec.FLAG_SAME_UUID);
+        checkFlags(beacon("s", STRING_UUID, 1, 1, -70, now, 0), beacon("s", STRING_UUID, 1, 2, -70, now, 7),
+            BeaconCodec.FLAG_SAME_UUID | BeaconCodec.FLAG_SEQUENCE);
+        checkFlags(beacon("s", HEX_UUID, 1, 1, -70, now, 0), beacon("s", STRING_UUID, 1, 2, -70, now, 0), 0);
+        System.out.printf("record flags and sizes ok\n");
+
+        ByteBuffer single = ByteBuffer.allocate(1024);
+        // Single beacon messages through Beacon.fromByteMsg, version 5 and version 4
+        for (int n = 0; n < beacons.size(); n++) {
+            Beacon beacon = beacons.get(n);
+            single.clear();
+            int size = codec.encode(beacon, single);
+            byte[] msg = new byte[size];
+            single.flip();
+            single.get(msg);
+            checkSame(beacon, Beacon.fromByteMsg(msg), "version 5 message "+n);
+            // Version 4 writes the low byte of each char, so only ascii ids round trip
+            if(beacon.getScannerID().matches("\\p{ASCII}*"))
+                checkSame(beacon, Beacon.fromByteMsg(beacon.toByteMsg()), "version 4 message "+n);
+        }
+        System.out.printf("single beacon version 4 and 5 messages round tripped\n");
+
+        // An empty batch
+        out.clear();
+        codec.encodeBatch(new ArrayList<Beacon>(), out);
+        out.flip();
+        check(BeaconCodec.decode(out).isEmpty(), "empty batch");
+        System.out.printf("all ok\n");
+    }
+}
@@ -0,0 +1,155 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.IEventCallback;
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.BeaconCodec;
+import org.jboss.rhiot.ble.common.BeaconDatagramReceiver;
+import org.jboss.rhiot.ble.common.BeaconDatagramSender;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Send beacons from a BeaconDatagramSender to a BeaconDatagramReceiver over loopback and check that they are packed
+ * into full datagrams and delivered in order, then send hand built packets that skip, repeat, arrive late and fall
+ * behind the tracker window, and check the lost, lost event, reordered, duplicate and stale counts and that only the
+ * new packets are delivered. Throws an IllegalStateException on the first failure.
+ * Usage: TestBeaconDatagram [beacons]
+ */
+public class TestBeaconDatagram {
+    static final String UUID = "DAF246CEF20311E4B116123B93F75CBA";
+    static final List<Beacon> received = new ArrayList<>();
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+        System.out.printf("ok: %s\n", what);
+    }
+
+    static Beacon beacon(int sequenceNo) {
+        Beacon beacon = new Beacon("scanner-1", UUID, 533, 0x4c, 1, sequenceNo % 500, -59, -60 - sequenceNo % 30,
+            System.currentTimeMillis());
+        beacon.setScannerSequenceNo(sequenceNo);
+        return beacon;
+    }
+
+    /**
+     * Wait for the receiver to have finished with a number of packets, those delivered and those dropped, as a
+     * packet is counted before it is decoded
+     */
+    static void await(BeaconDatagramReceiver receiver, long packets, int delivered, long dropped)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (receiver.getPacketCount() < packets || receivedCount() < delivered
+            || receiver.getDuplicateDroppedCount() + receiver.getStaleDroppedCount() < dropped) {
+            if(System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Timed out waiting for "+packets+" packets: "+receiver);
+            Thread.sleep(1);
+        }
+    }
+
+    static int receivedCount() {
+        synchronized (received) {
+            return received.size();
+        }
+    }
+
+    /**
+     * Send a packet of the beacons numbered first..last as a sender of the given session would
+     */
+    static void send(DatagramChannel channel, long session, long sequence, int first, int last) throws Exception {
+        List<Beacon> beacons = new ArrayList<>();
+        for (int n = first; n <= last; n++)
+            beacons.add(beacon(n));
+        ByteBuffer packet = ByteBuffer.allocate(BeaconDatagramSender.DEFAULT_MAX_DATAGRAM);
+        packet.putInt(BeaconDatagramSender.MAGIC);
+        packet.put((byte) BeaconDatagramSender.HEADER_VERSION);
+        packet.put((byte) 0);
+        packet.putLong(session);
+        packet.putLong(sequence);
+        packet.putInt(first);
+        packet.putInt(last);
+        new BeaconCodec().encodeBatch(beacons, packet);
+        packet.flip();
+        channel.write(packet);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        BeaconDatagramReceiver receiver = new BeaconDatagramReceiver(0, new IEventCallback() {
+            @Override
+            public boolean beaconEvent(Beacon beacon) {
+                synchronized (received) {
+                    received.add(beacon);
+                }
+                return false;
+            }
+        });
+        receiver.start();
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", receiver.getLocalPort());
+
+        // A sender that only sends full batches, apart from the final flush
+        BeaconDatagramSender sender = new BeaconDatagramSender(target);
+        sender.setLingerMillis(Long.MAX_VALUE);
+        for (int n = 1; n <= count; n++) {
+            sender.send(beacon(n));
+            // Let the receiver keep up so the loopback socket buffer does not overflow
+            if(n % 1000 == 0)
+                await(receiver, sender.getPacketCount(), (int) sender.getBeaconCount(), 0);
+        }
+        sender.flush();
+        await(receiver, sender.getPacketCount(), count, 0);
+        check(sender.getBeaconCount() == count && receivedCount() == count, "all beacons delivered: "+receiver);
+        double perPacket = (double) count / sender.getPacketCount();
+        double bytesPerPacket = (double) sender.getByteCount() / sender.getPacketCount();
+        check(perPacket > 20 && bytesPerPacket <= BeaconDatagramSender.DEFAULT_MAX_DATAGRAM
+            && bytesPerPacket > BeaconDatagramSender.DEFAULT_MAX_DATAGRAM * 0.9,
+            String.format("packed %.1f beacons in %.0f bytes per packet", perPacket, bytesPerPacket));
+        boolean inOrder = true;
+        synchronized (received) {
+            for (int n = 0; n < count; n++)
+                inOrder &= received.get(n).getScannerSequenceNo() == n + 1 && UUID.equals(received.get(n).getUUID());
+        }
+        check(inOrder, "delivered in order");
+        check(receiver.getLostPacketCount() == 0 && receiver.getDuplicateDroppedCount() == 0, "no loss: "+receiver);
+        sender.close();
+
+        // Hand built packets of one session, two beacons each
+        synchronized (received) {
+            received.clear();
+        }
+        long packets = receiver.getPacketCount();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(target);
+        long session = 42;
+        send(channel, session, 0, 1, 2);
+        send(channel, session, 1, 3, 4);
+        // Packet 2 holding 5 and 6 is lost
+        send(channel, session, 3, 7, 8);
+        await(receiver, packets += 3, 6, 0);
+        check(receiver.getLostPacketCount() == 1 && receiver.getLostEventCount() == 2, "gap: "+receiver);
+        send(channel, session, 3, 7, 8);
+        await(receiver, packets += 1, 6, 1);
+        check(receiver.getDuplicateDroppedCount() == 1 && receivedCount() == 6, "duplicate dropped: "+receiver);
+        // The lost packet arrives late
+        send(channel, session, 2, 5, 6);
+        await(receiver, packets += 1, 8, 1);
+        check(receiver.getLostPacketCount() == 0 && receiver.getLostEventCount() == 0
+            && receiver.getReorderedPacketCount() == 1 && receivedCount() == 8, "late packet delivered: "+receiver);
+        // Packets 4 to 99 are lost, then packet 10 arrives too late to tell from a duplicate
+        send(channel, session, 100, 201, 202);
+        send(channel, session, 10, 21, 22);
+        await(receiver, packets += 2, 10, 2);
+        check(receiver.getStaleDroppedCount() == 1 && receivedCount() == 10, "stale packet dropped: "+receiver);
+        check(receiver.getLostPacketCount() == 96 && receiver.getLostEventCount() == 192, "lost after the gap: "+receiver);
+        send(channel, session, 0, 1, 2);
+        await(receiver, packets += 1, 10, 3);
+        check(receiver.getStaleDroppedCount() == 2 && receivedCount() == 10, "stale repeat dropped");
+        channel.close();
+        receiver.close();
+        System.out.printf("%s\n", receiver);
+    }
+}
@@ -0,0 +1,286 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.EventSpool;
+import org.jboss.rhiot.ble.bluez.ISpoolCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Exercise the EventSpool drain order, segment release, cursor restart, size and age retention, frame truncation
+ * the recovery of the write end after a host crash, simulated by editing the segment and cursor files as the
+ * documented layout describes, and rollovers racing forces and drains. Throws an IllegalStateException on the first
+ * failure.
+ * Usage: TestEventSpool [directory]
+ */
+public class TestEventSpool {
+    static final int FRAME_LENGTH = 80;
+    static final int RECORDS_PER_SEGMENT = 1000;
+    static final int SEGMENT_HEADER_SIZE = 64;
+    static final int CURSOR_FORCED_OFFSET = 16;
+    static final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+        System.out.printf("ok: %s\n", what);
+    }
+
+    static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    static EventSpool open(File directory) throws IOException {
+        return open(directory, RECORDS_PER_SEGMENT);
+    }
+
+    static EventSpool open(File directory, int recordsPerSegment) throws IOException {
+        return new EventSpool(directory, false, FRAME_LENGTH, recordsPerSegment);
+    }
+
+    /**
+     * Run threads until they finish, failing if they do not within the timeout, when they are reported as deadlocked
+     * if the jvm finds them so, or if one of them throws
+     */
+    static void run(long timeoutMillis, Runnable... tasks) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[tasks.length];
+        for (int n = 0; n < tasks.length; n++) {
+            threads[n] = new Thread(tasks[n], "task-"+n);
+            threads[n].setDaemon(true);
+            threads[n].setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread thread, Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            threads[n].start();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread thread : threads)
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        for (Thread thread : threads) {
+            if(thread.isAlive()) {
+                long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+                throw new IllegalStateException(String.format("%s did not finish, %d threads deadlocked", thread.getName(),
+                    deadlocked != null ? deadlocked.length : 0));
+            }
+        }
+        if(failure[0] != null)
+            throw new IllegalStateException("Task failed", failure[0]);
+    }
+
+    /**
+     * Append frames holding the values from..to-1, each spooled at the time of its value
+     */
+    static void append(EventSpool spool, int from, int to) {
+        for (int n = from; n < to; n++) {
+            frame.putInt(0, n);
+            if(!spool.append(frame, FRAME_LENGTH, false, n))
+                throw new IllegalStateException("Append rejected: "+spool);
+        }
+    }
+
+    /**
+     * Drain and check that the frames hold consecutive values
+     * @return the value after the last drained
+     */
+    static int drain(EventSpool spool, final int from, int maxRecords) {
+        final int[] next = {from};
+        spool.drain(new ISpoolCallback() {
+            @Override
+            public boolean spooledEvent(ByteBuffer frame, boolean general, long time) {
+                int value = frame.getInt(0);
+                if(value != next[0] || time != value || general || frame.remaining() != FRAME_LENGTH)
+                    throw new IllegalStateException("Drained "+value+" at "+time+", expected "+next[0]);
+                next[0] ++;
+                return true;
+            }
+        }, maxRecords);
+        return next[0];
+    }
+
+    static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("spool").toFile();
+        clear(directory);
+
+        // Drain order and the release of drained segments
+        EventSpool spool = open(directory);
+        append(spool, 0, 2500);
+        check(spool.getSegmentCount() == 3, "three segments: "+spool);
+        check(drain(spool, 0, 1200) == 1200, "drained 1200 in order");
+        check(spool.getSegmentCount() == 2, "drained segment deleted: "+spool);
+        spool.close();
+
+        // A restart continues from the cursor and the write end
+        spool = open(directory);
+        check(spool.getPendingCount() == 1300, "restart pending: "+spool);
+        append(spool, 2500, 2600);
+        check(drain(spool, 1200, 500) == 1700, "restart drains from the cursor");
+        spool.close();
+        spool = open(directory);
+        check(drain(spool, 1700, Integer.MAX_VALUE) == 2600, "second restart drains the rest");
+        check(spool.getPendingCount() == 0, "empty after draining");
+        spool.close();
+
+        // A callback that stops the drain leaves the record for the next drain
+        clear(directory);
+        spool = open(directory);
+        append(spool, 0, 10);
+        spool.drain(new ISpoolCallback() {
+            @Override
+            public boolean spooledEvent(ByteBuffer frame, boolean general, long time) {
+                return frame.getInt(0) < 5;
+            }
+        }, Integer.MAX_VALUE);
+        check(drain(spool, 5, Integer.MAX_VALUE) == 10, "stopped drain resumes at the refused record");
+        spool.close();
+
+        // Size retention drops the oldest segments and counts their records
+        clear(directory);
+        spool = open(directory);
+        spool.setMaxBytes(3 * (SEGMENT_HEADER_SIZE + (long) RECORDS_PER_SEGMENT * spool.getRecordSize()));
+        append(spool, 0, 10000);
+        check(spool.getSegmentCount() <= 3, "size retention: "+spool);
+        // The deleted records are counted as dropped when the drain reaches them
+        int first = (int) (10000 - spool.getPendingCount());
+        check(drain(spool, first, Integer.MAX_VALUE) == 10000, "records after the deleted ones drained in order");
+        check(spool.getDroppedCount() + spool.getDrainedCount() == 10000, "dropped and drained account for every record");
+        spool.close();
+
+        // Age retention drops segments whose last record is too old
+        clear(directory);
+        spool = open(directory);
+        spool.setMaxAgeMillis(1000);
+        long now = System.currentTimeMillis();
+        for (int n = 0; n < 3000; n++) {
+            frame.putInt(0, n);
+            spool.append(frame, FRAME_LENGTH, false, n < 2000 ? now - 5000 : now);
+        }
+        spool.append(frame, FRAME_LENGTH, false, now);
+        check(spool.getSegmentCount() == 2 && spool.getPendingCount() == 1001, "age retention: "+spool);
+        check(spool.drain(new ISpoolCallback() {
+            @Override
+            public boolean spooledEvent(ByteBuffer frame, boolean general, long time) {
+                return true;
+            }
+        }, Integer.MAX_VALUE) == 1001 && spool.getDroppedCount() == 2000, "aged records dropped: "+spool);
+        spool.close();
+
+        // Long frames are truncated and short ones keep their length
+        clear(directory);
+        spool = open(directory);
+        spool.append(ByteBuffer.allocate(200), 200, true, 1);
+        spool.append(ByteBuffer.allocate(200), 10, true, 2);
+        final int[] lengths = new int[2];
+        final int[] count = {0};
+        spool.drain(new ISpoolCallback() {
+            @Override
+            public boolean spooledEvent(ByteBuffer frame, boolean general, long time) {
+                if(general)
+                    lengths[count[0] ++] = frame.remaining();
+                return true;
+            }
+        }, Integer.MAX_VALUE);
+        check(spool.getTruncatedCount() == 1 && lengths[0] == FRAME_LENGTH && lengths[1] == 10, "truncation");
+        spool.close();
+
+        // A host crash after a force at 500, where record 550 of those written since never reached the device
+        clear(directory);
+        spool = open(directory);
+        append(spool, 0, 600);
+        int recordSize = spool.getRecordSize();
+        spool.close();
+        MappedByteBuffer cursor = map(new File(directory, "cursor"));
+        check(cursor.getLong(CURSOR_FORCED_OFFSET) == 600, "close records the forced position");
+        cursor.putLong(CURSOR_FORCED_OFFSET, 500);
+        cursor.force();
+        MappedByteBuffer segment = map(new File(directory, String.format("%020d.spool", 0)));
+        segment.putInt(SEGMENT_HEADER_SIZE + 550 * recordSize, 0);
+        segment.force();
+        spool = open(directory);
+        check(spool.getPendingCount() == 550, "recovered end at the first unwritten record: "+spool);
+        check(segment.getInt(SEGMENT_HEADER_SIZE + 551 * recordSize) == 0
+            && segment.getInt(SEGMENT_HEADER_SIZE + 599 * recordSize) == 0, "records after the end cleared");
+        append(spool, 550, 600);
+        spool.close();
+        spool = open(directory);
+        check(drain(spool, 0, Integer.MAX_VALUE) == 600, "records appended after recovery follow in order");
+        spool.close();
+
+        // A drain that empties the full current segment leaves it to the rollover
+        clear(directory);
+        spool = open(directory, 4);
+        append(spool, 0, 4);
+        check(drain(spool, 0, Integer.MAX_VALUE) == 4, "drained the full current segment");
+        append(spool, 4, 5);
+        check(spool.getSegmentCount() == 1, "drained segment deleted by the rollover: "+spool);
+        check(drain(spool, 4, Integer.MAX_VALUE) == 5, "drained the append after the rollover");
+        spool.close();
+
+        // Rollovers and their retention racing the force thread, explicit forces and drains
+        clear(directory);
+        final EventSpool racing = open(directory, 4);
+        racing.setMaxBytes(3 * (SEGMENT_HEADER_SIZE + 4L * racing.getRecordSize()));
+        racing.setMaxAgeMillis(60000);
+        racing.setForceIntervalMillis(1);
+        racing.start();
+        final int appends = 200000;
+        final boolean[] appending = {true};
+        run(60000, new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer frame = ByteBuffer.allocate(FRAME_LENGTH);
+                for (int n = 0; n < appends; n++) {
+                    frame.putInt(0, n);
+                    racing.append(frame, FRAME_LENGTH, false, System.currentTimeMillis());
+                }
+                appending[0] = false;
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                while (appending[0])
+                    racing.force();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                ISpoolCallback accept = new ISpoolCallback() {
+                    @Override
+                    public boolean spooledEvent(ByteBuffer frame, boolean general, long time) {
+                        return true;
+                    }
+                };
+                while (appending[0])
+                    racing.drain(accept, 100);
+            }
+        });
+        racing.close();
+        check(racing.getAppendedCount() == appends && racing.getErrorCount() == 0, "no deadlock or errors racing: "+racing);
+        check(racing.getDrainedCount() + racing.getDroppedCount() + racing.getPendingCount() == appends,
+            "racing drains account for every record");
+
+        clear(directory);
+        if(args.length == 0)
+            directory.delete();
+        System.out.printf("%s\n", spool);
+    }
+}
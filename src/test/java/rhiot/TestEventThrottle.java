@@ -0,0 +1,122 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.BeaconView;
+import org.jboss.rhiot.ble.bluez.EventThrottle;
+import org.jboss.rhiot.ble.bluez.FrameEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Check the EventThrottle window, rssi threshold and least recently used eviction, and compare its decisions over a
+ * random event stream with those of a LinkedHashMap model of the same policy. Throws an IllegalStateException on the
+ * first wrong decision.
+ * Usage: TestEventThrottle [events]
+ */
+public class TestEventThrottle {
+    static final String UUID = "DAF246CEF20311E4B116123B93F75CBA";
+    static final ByteBuffer frame = ByteBuffer.allocateDirect(512).order(ByteOrder.LITTLE_ENDIAN);
+    static final BeaconView view = new BeaconView();
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+    }
+
+    static boolean accept(EventThrottle throttle, String uuid, int minor, int rssi, long time) {
+        int length = FrameEncoder.encodeBeacon(frame, uuid, false, 1, FrameEncoder.IBEACON_CODE,
+            FrameEncoder.IBEACON_MANUFACTURER, 201, minor, -59, -59, rssi, time);
+        frame.clear();
+        frame.limit(length);
+        return throttle.accept(view.wrap(frame));
+    }
+
+    /**
+     * The throttle policy over an access ordered map, the least recently seen identity first
+     */
+    static class Model {
+        final int capacity;
+        final long windowMillis;
+        final int rssiThreshold;
+        final LinkedHashMap<Integer, long[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        Model(long windowMillis, int rssiThreshold, int capacity) {
+            this.capacity = capacity;
+            this.windowMillis = windowMillis;
+            this.rssiThreshold = rssiThreshold;
+        }
+
+        boolean accept(int minor, int rssi, long time) {
+            long[] last = entries.get(minor);
+            if(last == null) {
+                if(entries.size() == capacity) {
+                    Iterator<Map.Entry<Integer, long[]>> oldest = entries.entrySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                entries.put(minor, new long[] {time, rssi});
+                return true;
+            }
+            if(time - last[0] >= windowMillis || time < last[0]
+                || (rssiThreshold >= 0 && Math.abs(rssi - last[1]) > rssiThreshold)) {
+                last[0] = time;
+                last[1] = rssi;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        // The window, time going backwards and the rssi threshold
+        EventThrottle throttle = new EventThrottle(1000, 5, 16);
+        check(accept(throttle, UUID, 1, -70, 10000), "first event forwarded");
+        check(!accept(throttle, UUID, 1, -72, 10500), "repeat within the window suppressed");
+        check(accept(throttle, UUID, 1, -76, 10600), "rssi change forwarded");
+        check(!accept(throttle, UUID, 1, -71, 11599), "rssi within the threshold of the last forwarded suppressed");
+        check(accept(throttle, UUID, 1, -76, 11600), "repeat after the window forwarded");
+        check(accept(throttle, UUID, 1, -76, 5000), "time going backwards forwarded");
+        check(accept(throttle, UUID, 2, -76, 5000), "other minor forwarded");
+        check(accept(throttle, UUID.replace('D', 'E'), 1, -76, 5000), "other uuid forwarded");
+        check(accept(throttle, "short-uuid", 1, -76, 5000), "hashed uuid forwarded");
+        check(!accept(throttle, "short-uuid", 1, -76, 5001), "hashed uuid repeat suppressed");
+        check(throttle.getForwardedCount() == 7 && throttle.getSuppressedCount() == 3, "counts: "+throttle);
+
+        // Least recently used eviction, a repeat refreshes an identity
+        throttle = new EventThrottle(Long.MAX_VALUE, -1, 4);
+        for (int minor = 1; minor <= 4; minor++)
+            check(accept(throttle, UUID, minor, -70, 0), "fill "+minor);
+        check(!accept(throttle, UUID, 1, -70, 1), "refresh 1");
+        check(accept(throttle, UUID, 5, -70, 2), "new identity evicts the oldest");
+        check(throttle.getEvictionCount() == 1 && throttle.size() == 4, "evicted one: "+throttle);
+        check(!accept(throttle, UUID, 1, -70, 3), "refreshed identity kept");
+        check(accept(throttle, UUID, 2, -70, 4), "least recently seen identity was evicted");
+        check(!accept(throttle, UUID, 5, -70, 5), "newest identity kept");
+        check(accept(throttle, UUID, 3, -70, 6), "identity evicted by the re-added one");
+        check(throttle.getEvictionCount() == 3, "evictions: "+throttle);
+        throttle.clear();
+        check(throttle.size() == 0 && accept(throttle, UUID, 5, -70, 7), "clear");
+
+        // A random stream over more identities than the capacity against the model
+        Random random = new Random(17);
+        throttle = new EventThrottle(500, 8, 64);
+        Model model = new Model(500, 8, 64);
+        long time = 0;
+        for (int n = 0; n < events; n++) {
+            // Skewed so some identities stay hot while the rest churn through the table
+            int minor = random.nextInt(4) == 0 ? random.nextInt(16) : random.nextInt(200);
+            int rssi = -60 - random.nextInt(20);
+            time += random.nextInt(10) == 0 ? -random.nextInt(50) : random.nextInt(5);
+            boolean expected = model.accept(minor, rssi, time);
+            check(accept(throttle, UUID, minor, rssi, time) == expected, "event "+n+" minor "+minor+" expected "+expected);
+        }
+        check(throttle.size() == 64 && throttle.getEvictionCount() > 0, "random stream evicted: "+throttle);
+        System.out.printf("%s\n", throttle);
+    }
+}
@@ -0,0 +1,86 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.common.GapTracker;
+import org.jboss.rhiot.ble.common.SequenceTracker;
+
+/**
+ * Feed the GapTracker numbered sequences with gaps, reordering, duplicates, the int wrap and scanner restarts, and
+ * check the counts it reports. Throws an IllegalStateException on the first wrong count.
+ * Usage: TestGapTracker
+ */
+public class TestGapTracker {
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+        System.out.printf("ok: %s\n", what);
+    }
+
+    static void record(GapTracker tracker, String scannerID, int from, int to) {
+        // A long count so a run ending at MAX_VALUE stops
+        for (long n = from; n <= to; n++)
+            tracker.record(scannerID, (int) n, n);
+    }
+
+    public static void main(String[] args) {
+        GapTracker tracker = new GapTracker();
+        record(tracker, "inorder", 1, 1000);
+        SequenceTracker inOrder = tracker.getTracker("inorder");
+        check(inOrder.getReceivedCount() == 1000 && inOrder.getLostCount() == 0, "in order: "+inOrder);
+
+        // 5 and 6 are lost, 9 arrives after 10 and 10 is repeated
+        int[] gaps = {1, 2, 3, 4, 7, 8, 10, 9, 10, 11};
+        for (int sequenceNo : gaps)
+            tracker.record("gaps", sequenceNo, 0);
+        SequenceTracker gapped = tracker.getTracker("gaps");
+        check(gapped.getLostCount() == 2, "lost: "+gapped);
+        check(gapped.getReorderedCount() == 1 && gapped.getMaxReorderDepth() == 1, "reordered: "+gapped);
+        check(gapped.getDuplicateCount() == 1, "duplicates: "+gapped);
+
+        // The numbers wrap from MAX_VALUE to MIN_VALUE and from -1 to 1, skipping 0
+        record(tracker, "wrap", Integer.MAX_VALUE - 10, Integer.MAX_VALUE);
+        record(tracker, "wrap", Integer.MIN_VALUE, Integer.MIN_VALUE + 10);
+        record(tracker, "wrap", -10, -1);
+        record(tracker, "wrap", 1, 10);
+        SequenceTracker wrapped = tracker.getTracker("wrap");
+        check(tracker.getRestartCount("wrap") == 0, "no restart at the wrap");
+        check(wrapped.getLostCount() == (1L << 31) - 21, "lost across the wrap: "+wrapped);
+        check(wrapped.getReceivedCount() == 42, "received across the wrap: "+wrapped);
+
+        // Restart after a long run, well behind the highest
+        record(tracker, "long", 1, 500);
+        record(tracker, "long", 1, 100);
+        SequenceTracker longRun = tracker.getTracker("long");
+        check(tracker.getRestartCount("long") == 1, "restart after a long run");
+        check(longRun.getLostCount() == 0 && longRun.getDuplicateCount() == 0, "long restart counts: "+longRun);
+
+        // Restart after a run shorter than the window, and again after a single event
+        record(tracker, "short", 1, 10);
+        record(tracker, "short", 1, 5);
+        tracker.record("short", 1, 0);
+        record(tracker, "short", 1, 3);
+        SequenceTracker shortRun = tracker.getTracker("short");
+        check(tracker.getRestartCount("short") == 3, "restarts after short runs: "+tracker.getRestartCount("short"));
+        check(shortRun.getLostCount() == 0 && shortRun.getDuplicateCount() == 0
+            && shortRun.getReorderedCount() == 0, "short restart counts: "+shortRun);
+        check(shortRun.getHighest() == 3, "short restart highest: "+shortRun.getHighest());
+
+        // Restart after a wrap
+        record(tracker, "wrapRestart", -5, -1);
+        record(tracker, "wrapRestart", 1, 5);
+        record(tracker, "wrapRestart", 1, 5);
+        check(tracker.getRestartCount("wrapRestart") == 1, "restart after the wrap");
+        check(tracker.getTracker("wrapRestart").getLostCount() == 0, "wrap restart lost");
+
+        // Unnumbered events and the scanner bound
+        tracker.record("inorder", 0, 0);
+        check(tracker.getUnnumberedCount() == 1, "unnumbered");
+        GapTracker bounded = new GapTracker(2);
+        bounded.record("a", 1, 1);
+        bounded.record("b", 1, 2);
+        bounded.record("a", 2, 3);
+        bounded.record("c", 1, 4);
+        check(bounded.getEvictedCount() == 1 && bounded.getTracker("b") == null && bounded.getTracker("a") != null,
+            "least recently heard evicted: "+bounded.getScannerIDs());
+        System.out.println(tracker);
+    }
+}
@@ -0,0 +1,147 @@
+package rhiot;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.BeaconJsonWriter;
+import org.jboss.rhiot.ble.common.EventsBucket;
+import org.jboss.rhiot.ble.common.EventsWindow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the BeaconJsonWriter output for Beacon, BeaconInfo, RHIoTTag and EventsBucket with that of Gson, compact
+ * and pretty printed, including strings that need escaping, omitted null fields, doubles and newline delimited
+ * batches. Throws an IllegalStateException on the first difference.
+ * Usage: TestJsonWriter
+ */
+public class TestJsonWriter {
+    static final Gson GSON = new Gson();
+    static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+    static final BeaconJsonWriter WRITER = new BeaconJsonWriter();
+    static final BeaconJsonWriter PRETTY_WRITER = new BeaconJsonWriter(true);
+    static int compared;
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+    }
+
+    static void checkSame(String expected, String actual, String what) {
+        check(expected.equals(actual), what+":\nexpected: "+expected+"\nwas:      "+actual);
+        compared ++;
+    }
+
+    static void compare(Beacon beacon) {
+        WRITER.reset();
+        PRETTY_WRITER.reset();
+        checkSame(GSON.toJson(beacon), WRITER.write(beacon).toString(), "Beacon");
+        checkSame(PRETTY_GSON.toJson(beacon), PRETTY_WRITER.write(beacon).toString(), "pretty Beacon");
+        if(beacon.getScannerID() != null && beacon.getUUID() != null) {
+            checkSame(GSON.toJson(beacon), beacon.toJSONSimple(), "Beacon.toJSONSimple");
+            checkSame(PRETTY_GSON.toJson(beacon), beacon.toJSON(), "Beacon.toJSON");
+        }
+    }
+
+    static void compare(BeaconInfo info) {
+        WRITER.reset();
+        PRETTY_WRITER.reset();
+        checkSame(GSON.toJson(info), WRITER.write(info).toString(), "BeaconInfo");
+        checkSame(PRETTY_GSON.toJson(info), PRETTY_WRITER.write(info).toString(), "pretty BeaconInfo");
+    }
+
+    static void compare(RHIoTTag tag) {
+        WRITER.reset();
+        PRETTY_WRITER.reset();
+        checkSame(GSON.toJson(tag), WRITER.write(tag).toString(), "RHIoTTag");
+        checkSame(PRETTY_GSON.toJson(tag), PRETTY_WRITER.write(tag).toString(), "pretty RHIoTTag");
+    }
+
+    /**
+     * Service data for a tag with the given temperature in 8.8 fixed point
+     */
+    static byte[] tagData(int vBatt, int temp, int advCnt, int secCnt, int keys, int lux) {
+        return new byte[] {(byte) 0xAA, (byte) 0xFE, 0x20, 0, (byte) (vBatt >> 8), (byte) vBatt, (byte) (temp >> 8),
+            (byte) temp, (byte) (advCnt >> 24), (byte) (advCnt >> 16), (byte) (advCnt >> 8), (byte) advCnt,
+            (byte) (secCnt >> 24), (byte) (secCnt >> 16), (byte) (secCnt >> 8), (byte) secCnt, (byte) keys,
+            (byte) (lux >> 8), (byte) lux};
+    }
+
+    public static void main(String[] args) {
+        long now = System.currentTimeMillis();
+        // Strings Gson escapes, the html safe characters, quotes, controls and non-ascii
+        String[] strings = {"scanner-1", "", "<a href=\"x\">&'=</a>", "back\\slash\ttab\nnewline\r\b\f", "\u0001\u001f",
+            "\u00e9\u4e2d\u2028\u2029", "\ud83d\ude00"};
+        for (String value : strings) {
+            Beacon beacon = new Beacon(value, "15DAF246CE836311E4B116123B93F75C", 533, 0x4c, 1, 2, -59, -70, now);
+            beacon.setScannerSequenceNo(-5);
+            compare(beacon);
+            beacon = new Beacon("scanner-1", value, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1, 127, -128, Long.MIN_VALUE);
+            compare(beacon);
+        }
+        // Null fields are omitted
+        Beacon empty = new Beacon();
+        compare(empty);
+
+        BeaconInfo info = new BeaconInfo("scanner-<1>", true, 201, 7, now);
+        info.uuid = "DAF246CEF20111E4B116123B93F75CBA";
+        info.count = 3;
+        info.rssi = -72;
+        info.scannerSequenceNo = Integer.MIN_VALUE;
+        compare(info);
+        compare(new BeaconInfo(null, false, 0, 0, 0));
+
+        // Whole, fractional and negative temperatures
+        int[] temps = {0, 1, 0x1580, 0x1501, 0xff00, 0xff01, 0x8000, 0x7fff, 0x0001, -1};
+        for (int temp : temps) {
+            RHIoTTag tag = new RHIoTTag(tagData(3011, temp, 12345, 99, 3, 600));
+            compare(tag);
+            tag.setAddress(RHIoTTag.fromStringAddress("B0:B4:48:D6:DA:85"));
+            tag.setName("tag \"one\"");
+            compare(tag);
+        }
+        compare(new RHIoTTag("B0:B4:48:D6:DA:85", (byte) 4, 65535));
+
+        // A bucket written from its statistics table, which Gson only sees once the map has been created, so the
+        // two are compared as parsed trees as the entry order differs
+        EventsWindow window = new EventsWindow();
+        window.reset(1);
+        long begin = window.getBegin();
+        for (int n = 0; n < 50; n++) {
+            BeaconInfo event = new BeaconInfo("scanner-"+(n % 3), n % 7 == 0, 201, n % 20, begin + n);
+            event.scannerSequenceNo = n + 1;
+            window.addEvent(event, false);
+        }
+        EventsBucket bucket = window.getCurrentBucket();
+        WRITER.reset();
+        String fromStats = WRITER.write(bucket).toString();
+        bucket.getBucket();
+        String expected = GSON.toJson(bucket);
+        check(new JsonParser().parse(expected).equals(new JsonParser().parse(fromStats)),
+            "EventsBucket from stats:\nexpected: "+expected+"\nwas:      "+fromStats);
+        WRITER.reset();
+        PRETTY_WRITER.reset();
+        checkSame(expected, WRITER.write(bucket).toString(), "EventsBucket");
+        checkSame(PRETTY_GSON.toJson(bucket), PRETTY_WRITER.write(bucket).toString(), "pretty EventsBucket");
+        bucket.release();
+        WRITER.reset();
+        checkSame(expected, WRITER.write(bucket).toString(), "released EventsBucket");
+
+        // Newline delimited records are the Gson records each followed by a newline
+        List<Beacon> beacons = new ArrayList<>();
+        StringBuilder lines = new StringBuilder();
+        for (int n = 0; n < 10; n++) {
+            Beacon beacon = new Beacon("scanner-"+n, "uuid-"+n, 533, 0x4c, 1, n, -59, -60 - n, now + n);
+            beacons.add(beacon);
+            lines.append(GSON.toJson(beacon)).append('\n');
+        }
+        BeaconJsonWriter ndjson = new BeaconJsonWriter();
+        ndjson.setNewlineDelimited(true);
+        checkSame(lines.toString(), ndjson.write(beacons).toString(), "newline delimited");
+        System.out.printf("%d records match the Gson output\n", compared);
+    }
+}
@@ -0,0 +1,79 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.HCIDump;
+import org.jboss.rhiot.ble.bluez.HCIScanner;
+import org.jboss.rhiot.ble.bluez.IAdvertEventCallback;
+import org.jboss.rhiot.ble.bluez.MergedEventStream;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+
+import java.util.Date;
+
+/**
+ * Test scanning several hci devices concurrently and merging their events into a single deduplicated stream.
+ *
+ * -Djava.library.path=/usr/local/lib must be specified on command line in order for this to load the scannerJni lib.
+ * This also typically one runs as root or use sudo to enable proper access for the native code. Scanning any device
+ * other than the default needs a scannerJni rebuilt with the per device scanner, which this reports rather than
+ * failing on the link error.
+ * Usage: TestMultiAdapter 0 1 ...
+ */
+public class TestMultiAdapter implements IAdvertEventCallback {
+    @Override
+    public boolean advertEvent(AdEventInfo info) {
+        System.out.printf("+++ advertEvent(%s), rssi=%d, time=%s\n", info.getBDaddrAsString(), info.getRssi(), new Date(info.getTime()));
+        RHIoTTag tag = RHIoTTag.create(info);
+        if(tag != null) {
+            System.out.printf("%s\n", tag.toFullString());
+        }
+        return false;
+    }
+
+    public static void main(String[] args) {
+        if(args.length == 0)
+            args = new String[]{"0", "1"};
+        MergedEventStream merged = new MergedEventStream(50, 4096);
+        merged.setAdvertEventCallback(new TestMultiAdapter());
+
+        try {
+            // Load the native library
+            try {
+                HCIDump.loadLibrary();
+            } catch (UnsatisfiedLinkError e) {
+                System.err.printf("No scannerJni library found on java.library.path=%s: %s\n",
+                    System.getProperty("java.library.path"), e.getMessage());
+                return;
+            }
+
+            HCIScanner[] scanners = new HCIScanner[args.length];
+            for (int n = 0; n < args.length; n++) {
+                scanners[n] = new HCIScanner("hci" + args[n]);
+                scanners[n].setScannerID(scanners[n].getHciDev());
+            }
+            merged.attach(true, scanners);
+            for (int n = 0; n < scanners.length; n++) {
+                try {
+                    scanners[n].start();
+                } catch (UnsupportedOperationException e) {
+                    System.err.printf("Cannot scan %s, the scannerJni library needs rebuilding: %s\n",
+                        scanners[n].getHciDev(), e.getMessage());
+                    for (int s = 0; s < n; s++)
+                        scanners[s].stop();
+                    return;
+                }
+            }
+
+            boolean running = true;
+            while (running) {
+                Thread.sleep(10000);
+                for(HCIScanner scanner : scanners)
+                    System.out.printf("%s\n", scanner);
+                System.out.printf("merged forwarded=%d, duplicates=%d\n", merged.getForwardedCount(), merged.getDuplicateCount());
+            }
+            for(HCIScanner scanner : scanners)
+                scanner.stop();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+}
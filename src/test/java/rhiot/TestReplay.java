@@ -0,0 +1,73 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.HCIScanner;
+import org.jboss.rhiot.ble.bluez.IAdvertEventCallback;
+import org.jboss.rhiot.ble.bluez.IRawEventCallback;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.ble.bluez.ReplayEventSource;
+import org.jboss.rhiot.ble.common.EventsBucket;
+import org.jboss.rhiot.ble.common.EventsWindow;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Replay a btsnoop/pcap capture or native frame dump through a scanner as fast as possible and report the end to
+ * end throughput of the EventsWindow aggregation (beacon mode) or RHIoTTag.create (general mode). No bluetooth
+ * adapter or native library is needed.
+ * Usage: TestReplay capture-file [general] [speed] [loops]
+ */
+public class TestReplay {
+    public static void main(String[] args) throws Exception {
+        if(args.length == 0) {
+            System.err.printf("Usage: TestReplay capture-file [general] [speed] [loops]\n");
+            System.exit(1);
+        }
+        File capture = new File(args[0]);
+        boolean general = args.length > 1 && Boolean.parseBoolean(args[1]);
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : ReplayEventSource.AS_FAST_AS_POSSIBLE;
+        int loops = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        final EventsWindow window = new EventsWindow();
+        window.reset(1);
+        final long[] counts = new long[2];
+        HCIScanner scanner = new HCIScanner("hci0");
+        if(general) {
+            scanner.setAdvertEventCallback(new IAdvertEventCallback() {
+                @Override
+                public boolean advertEvent(AdEventInfo info) {
+                    if(RHIoTTag.create(info) != null)
+                        counts[0] ++;
+                    return false;
+                }
+            });
+        } else {
+            scanner.setRawEventCallback(new IRawEventCallback() {
+                @Override
+                public boolean beaconEvent(ByteBuffer beaconInfo) {
+                    BeaconInfo info = new BeaconInfo(beaconInfo);
+                    EventsBucket bucket = window.addEvent(info, false);
+                    if(bucket != null) {
+                        counts[1] ++;
+                        bucket.release();
+                    }
+                    counts[0] ++;
+                    return false;
+                }
+            });
+        }
+        ReplayEventSource replay = new ReplayEventSource(capture, speed);
+        replay.setLoopCount(loops);
+        scanner.setEventSource(replay);
+        scanner.start();
+        replay.join(0);
+        scanner.stop();
+
+        double seconds = replay.getElapsedNanos() / 1e9;
+        System.out.printf("%s\n", replay);
+        System.out.printf("%s: %d events in %.3fs = %.0f events/sec, matched=%d, buckets=%d\n", general ? "general" : "beacon",
+            replay.getDeliveredCount(), seconds, replay.getDeliveredCount() / seconds, counts[0], counts[1]);
+    }
+}
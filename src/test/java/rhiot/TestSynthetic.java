@@ -0,0 +1,69 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.bluez.AdEventInfo;
+import org.jboss.rhiot.ble.bluez.BeaconInfo;
+import org.jboss.rhiot.ble.bluez.HCIScanner;
+import org.jboss.rhiot.ble.bluez.IAdvertEventCallback;
+import org.jboss.rhiot.ble.bluez.IRawEventCallback;
+import org.jboss.rhiot.ble.bluez.RHIoTTag;
+import org.jboss.rhiot.ble.bluez.SyntheticEventSource;
+import org.jboss.rhiot.ble.common.EventsBucket;
+import org.jboss.rhiot.ble.common.EventsWindow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drive a simulated beacon population through a scanner as fast as possible and report the throughput of the
+ * EventsWindow aggregation (beacon mode) or RHIoTTag.create (general mode). No bluetooth adapter or native library
+ * is needed.
+ * Usage: TestSynthetic [population] [events] [general] [tagFraction]
+ */
+public class TestSynthetic {
+    public static void main(String[] args) throws Exception {
+        int population = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long events = args.length > 1 ? Long.parseLong(args[1]) : 5000000;
+        boolean general = args.length > 2 && Boolean.parseBoolean(args[2]);
+        double tagFraction = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+
+        final EventsWindow window = new EventsWindow();
+        window.reset(1);
+        final long[] counts = new long[2];
+        HCIScanner scanner = new HCIScanner("hci0");
+        if(general) {
+            scanner.setAdvertEventCallback(new IAdvertEventCallback() {
+                @Override
+                public boolean advertEvent(AdEventInfo info) {
+                    if(RHIoTTag.create(info) != null)
+                        counts[0] ++;
+                    return false;
+                }
+            });
+        } else {
+            scanner.setRawEventCallback(new IRawEventCallback() {
+                @Override
+                public boolean beaconEvent(ByteBuffer beaconInfo) {
+                    BeaconInfo info = new BeaconInfo(beaconInfo);
+                    EventsBucket bucket = window.addEvent(info, false);
+                    if(bucket != null) {
+                        counts[1] ++;
+                        bucket.release();
+                    }
+                    counts[0] ++;
+                    return false;
+                }
+            });
+        }
+        SyntheticEventSource generator = new SyntheticEventSource(population, SyntheticEventSource.AS_FAST_AS_POSSIBLE);
+        generator.setTagFraction(tagFraction);
+        generator.setMaxEvents(events);
+        scanner.setEventSource(generator);
+        scanner.start();
+        generator.join(0);
+        scanner.stop();
+
+        double seconds = generator.getElapsedNanos() / 1e9;
+        System.out.printf("%s\n", generator);
+        System.out.printf("%s: %d events in %.3fs = %.0f events/sec, matched=%d, buckets=%d\n", general ? "general" : "beacon",
+            generator.getGeneratedCount(), seconds, generator.getGeneratedCount() / seconds, counts[0], counts[1]);
+    }
+}
@@ -0,0 +1,126 @@
+package rhiot;
+
+import org.jboss.rhiot.ble.common.Beacon;
+import org.jboss.rhiot.ble.common.IZoneCallback;
+import org.jboss.rhiot.ble.common.ZoneChange;
+import org.jboss.rhiot.ble.common.ZoneFusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feed a ZoneFusion in process the events of two zones' scanners for one beacon and check that it enters the zone
+ * heard best, stays put while the other zone is within the hysteresis or has not beaten it for the dwell time, moves
+ * once it has, and leaves all zones once it goes stale. The fusion runs on the wall clock with no smoothing, a short
+ * dwell and stale time. Throws an IllegalStateException on the first wrong assignment.
+ * Usage: TestZoneFusion
+ */
+public class TestZoneFusion {
+    static final String UUID = "DAF246CEF20311E4B116123B93F75CBA";
+    static final long DWELL_MILLIS = 400;
+    static final long STALE_MILLIS = 2000;
+    static final List<ZoneChange> changes = new ArrayList<>();
+    static ZoneFusion fusion;
+    static int submitted;
+
+    static void check(boolean ok, String what) {
+        if(!ok)
+            throw new IllegalStateException("Failed: "+what);
+        System.out.printf("ok: %s\n", what);
+    }
+
+    /**
+     * Submit an event and wait for the fusion to process it
+     */
+    static void event(String scannerID, int rssi) throws InterruptedException {
+        Beacon beacon = new Beacon(scannerID, UUID, 533, 0x4c, 1, 7, -59, rssi, System.currentTimeMillis());
+        if(!fusion.submit(beacon))
+            throw new IllegalStateException("Event not queued: "+fusion);
+        submitted ++;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fusion.getProcessedCount() < submitted) {
+            if(System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Event not processed: "+fusion);
+            Thread.sleep(1);
+        }
+    }
+
+    static String zone() {
+        return fusion.getZone(UUID, 1, 7);
+    }
+
+    static int changeCount() {
+        synchronized (changes) {
+            return changes.size();
+        }
+    }
+
+    static ZoneChange lastChange() {
+        synchronized (changes) {
+            return changes.get(changes.size() - 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        fusion = new ZoneFusion(1, 64);
+        fusion.setRssiAlpha(1);
+        fusion.setHysteresisDb(4);
+        fusion.setDwellMillis(DWELL_MILLIS);
+        fusion.setStaleMillis(STALE_MILLIS);
+        fusion.setZone("scanner-a1", "lobby");
+        fusion.setZone("scanner-a2", "lobby");
+        fusion.setZone("scanner-b", "lab");
+        fusion.addCallback(new IZoneCallback() {
+            @Override
+            public void zoneChanged(ZoneChange change) {
+                synchronized (changes) {
+                    changes.add(change);
+                }
+            }
+        });
+        fusion.start();
+
+        // The first event assigns the zone of the scanner hearing it
+        event("scanner-a1", -60);
+        check("lobby".equals(zone()) && changeCount() == 1 && lastChange().getPreviousZone() == null,
+            "entered the first zone: "+zone());
+        event("scanner-b", -62);
+        check("lobby".equals(zone()), "weaker zone ignored");
+
+        // A zone stronger by less than the hysteresis never takes the beacon, however long it stays stronger
+        event("scanner-b", -57);
+        Thread.sleep(DWELL_MILLIS + 100);
+        event("scanner-a1", -60);
+        event("scanner-b", -57);
+        check("lobby".equals(zone()) && changeCount() == 1, "within the hysteresis after the dwell");
+
+        // A zone beating the current one by the hysteresis only takes the beacon once it has for the dwell time
+        event("scanner-b", -50);
+        check("lobby".equals(zone()), "stronger zone waits for the dwell");
+        // The second scanner of the zone regaining the lead resets the dwell, so the stronger zone starts again
+        Thread.sleep(DWELL_MILLIS / 2);
+        event("scanner-a2", -48);
+        Thread.sleep(DWELL_MILLIS / 2 + 50);
+        long candidateSince = System.currentTimeMillis();
+        event("scanner-a2", -60);
+        check("lobby".equals(zone()) && changeCount() == 1, "zone regaining the lead resets the dwell");
+        Thread.sleep(DWELL_MILLIS / 2);
+        event("scanner-b", -45);
+        check("lobby".equals(zone()), "still within the dwell");
+        Thread.sleep(Math.max(0, candidateSince + DWELL_MILLIS + 50 - System.currentTimeMillis()));
+        event("scanner-b", -45);
+        check("lab".equals(zone()) && changeCount() == 2, "moved after the dwell: "+zone());
+        ZoneChange moved = lastChange();
+        check("lobby".equals(moved.getPreviousZone()) && "scanner-b".equals(moved.getScannerID()),
+            "change from the lobby by scanner-b: "+moved.getPreviousZone()+" "+moved.getScannerID());
+
+        // Once no scanner has heard the beacon for the stale time it leaves all zones
+        long deadline = System.currentTimeMillis() + 3 * STALE_MILLIS;
+        while (zone() != null && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        check(zone() == null && changeCount() == 3 && lastChange().getZone() == null, "left all zones when stale");
+        check(fusion.getDroppedCount() == 0 && fusion.getCallbackErrorCount() == 0, "no drops or errors: "+fusion);
+        fusion.stop();
+        System.out.printf("%s\n", fusion);
+    }
+}